@@ -0,0 +1,333 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.compiler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.teatrove.tea.parsetree.Template;
+import org.teatrove.tea.util.StringCompilationProvider;
+import org.teatrove.tea.util.TestCompiler;
+import org.teatrove.trove.io.SourceReader;
+import org.teatrove.trove.util.ClassInjector;
+
+/**
+ * Measures each phase of the compiler pipeline separately against a
+ * synthetic corpus of small, medium and huge templates. Every phase starts
+ * from the output of the previous one, prepared outside of the measurement,
+ * so a regression shows up against the phase that caused it. The compile
+ * benchmark runs the whole pipeline through a {@link Compiler} and
+ * {@link StringCompilationProvider}, as a template reload would. Run with:
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar CompilerBenchmark -prof gc
+ * </pre>
+ *
+ * The main method adds the gc profiler itself, which reports the allocation
+ * rate and bytes allocated per operation of each phase.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+
+    private static final String PKG = "org.teatrove.tea.compiler.bench";
+    private static final String NAME = "bench";
+
+    /**
+     * Returns the source of a template with the given number of sections.
+     * Each section mixes text, loops, branches, concatenation, arithmetic,
+     * method calls and context functions, with its own set of variables.
+     */
+    public static String createSource(int sections) {
+        StringBuilder buffer = new StringBuilder(sections * 640 + 256);
+        buffer.append("<% template ").append(NAME)
+              .append("(String title, String[] items, int count, ")
+              .append("Integer limit, java.util.List rows) %>\n")
+              .append("<html>\n<head><title><% title %></title></head>\n")
+              .append("<body>\n");
+
+        for (int i = 0; i < sections; i++) {
+            buffer.append("<h2>Section ").append(i).append("</h2>\n")
+                  .append("<ul>\n")
+                  .append("<%\n")
+                  .append("total").append(i).append(" = 0\n")
+                  .append("foreach (item in items) {\n")
+                  .append("    if (item != null and item.length() > 3) {\n")
+                  .append("        '<li>' & item & '</li>'\n")
+                  .append("        total").append(i).append(" = total")
+                  .append(i).append(" + item.length()\n")
+                  .append("    }\n")
+                  .append("    else {\n")
+                  .append("        'short: ' item\n")
+                  .append("    }\n")
+                  .append("}\n")
+                  .append("%>\n</ul>\n<p>\n<%\n")
+                  .append("foreach (j in 0..count) {\n")
+                  .append("    if (j == ").append(i % 7).append(") { j }\n")
+                  .append("}\n")
+                  .append("label").append(i).append(" = title & '-' & ")
+                  .append(i).append(" & '-' & count\n")
+                  .append("if (limit != null and total").append(i)
+                  .append(" > limit) {\n")
+                  .append("    label").append(i).append(" & ' over'\n")
+                  .append("}\n")
+                  .append("numberFormat(\"#,##0.00\")\n")
+                  .append("total").append(i).append(" * 1.5 + ")
+                  .append(i).append(" * 2\n")
+                  .append("foreach (row in rows) {\n")
+                  .append("    row.toString().toUpperCase()\n")
+                  .append("}\n")
+                  .append("%>\n</p>\n");
+        }
+
+        buffer.append("</body>\n</html>\n");
+        return buffer.toString();
+    }
+
+    /**
+     * Holds the corpus template and a compiler to resolve it against.
+     */
+    @State(Scope.Thread)
+    public static class Corpus {
+        @Param({ "small", "medium", "huge" })
+        public String size;
+
+        String source;
+        Compiler compiler;
+        CompilationUnit unit;
+        List<Token> tokens;
+
+        @Setup(Level.Trial)
+        public void setupCorpus() throws IOException {
+            if ("small".equals(size)) {
+                source = createSource(1);
+            }
+            else if ("medium".equals(size)) {
+                source = createSource(20);
+            }
+            else if ("huge".equals(size)) {
+                // about 3000 lines, close to the 64k limit on method code
+                source = createSource(100);
+            }
+            else {
+                throw new IllegalArgumentException(size);
+            }
+
+            compiler = createCompiler(source);
+            unit = compiler.getCompilationUnit(NAME);
+
+            tokens = new ArrayList<Token>();
+            Scanner scanner = createScanner();
+            Token token;
+            do {
+                token = scanner.readToken();
+                tokens.add(token);
+            } while (token.getID() != Token.EOF);
+
+            // verify the corpus once so phases never measure error paths
+            Template tree = optimize(typeCheck(parse()));
+            unit.setParseTree(tree);
+            new JavaClassGenerator(unit).writeTo(DISCARD);
+            if (unit.getErrorCount() > 0 || tree == null) {
+                throw new IllegalStateException
+                    ("corpus failed to compile: " + unit.getErrorCount());
+            }
+        }
+
+        Scanner createScanner() {
+            return new Scanner(new SourceReader
+                (new StringReader(source), "<%", "%>"), unit);
+        }
+
+        Template parse() throws IOException {
+            return new Parser(new TokenReplay(tokens), unit).parse();
+        }
+
+        Template typeCheck(Template tree) {
+            unit.setParseTree(tree);
+            TypeChecker tc = new TypeChecker(unit);
+            tc.setClassLoader(compiler.getClassLoader());
+            tc.setExceptionGuardianEnabled
+                (compiler.isExceptionGuardianEnabled());
+            tc.typeCheck();
+            return tree;
+        }
+
+        Template optimize(Template tree) {
+            return (Template) new BasicOptimizer(tree).optimize();
+        }
+    }
+
+    /** Fresh parse tree for each invocation of the type checker. */
+    @State(Scope.Thread)
+    public static class Parsed extends Corpus {
+        Template tree;
+
+        @Setup(Level.Invocation)
+        public void setupTree() throws IOException {
+            tree = parse();
+        }
+    }
+
+    /** Fresh type checked tree for each invocation of the optimizer. */
+    @State(Scope.Thread)
+    public static class Checked extends Corpus {
+        Template tree;
+
+        @Setup(Level.Invocation)
+        public void setupTree() throws IOException {
+            tree = typeCheck(parse());
+        }
+    }
+
+    /** Fresh optimized tree for each invocation of the code generator. */
+    @State(Scope.Thread)
+    public static class Optimized extends Corpus {
+        @Setup(Level.Invocation)
+        public void setupTree() throws IOException {
+            unit.setParseTree(optimize(typeCheck(parse())));
+        }
+    }
+
+    @Benchmark
+    public void scan(Corpus corpus, Blackhole hole) throws IOException {
+        Scanner scanner = corpus.createScanner();
+        Token token;
+        do {
+            token = scanner.readToken();
+            hole.consume(token);
+        } while (token.getID() != Token.EOF);
+    }
+
+    @Benchmark
+    public Template parse(Corpus corpus) throws IOException {
+        return corpus.parse();
+    }
+
+    @Benchmark
+    public Template typeCheck(Parsed parsed) {
+        return parsed.typeCheck(parsed.tree);
+    }
+
+    @Benchmark
+    public Template optimize(Checked checked) {
+        return checked.optimize(checked.tree);
+    }
+
+    @Benchmark
+    public void generate(Optimized optimized) throws IOException {
+        new JavaClassGenerator(optimized.unit).writeTo(DISCARD);
+    }
+
+    @Benchmark
+    public int compile(Corpus corpus) throws Exception {
+        Compiler compiler = createCompiler(corpus.source);
+        compiler.compileAll();
+        return compiler.getErrorCount();
+    }
+
+    static Compiler createCompiler(String source) {
+        Compiler compiler = new Compiler(new ClassInjector(), PKG, null);
+        compiler.setRuntimeContext(TestCompiler.Context.class);
+
+        StringCompilationProvider provider = new StringCompilationProvider();
+        provider.setTemplateSource(NAME, source);
+        compiler.addCompilationProvider(provider);
+        return compiler;
+    }
+
+    static final OutputStream DISCARD = new OutputStream() {
+        public void write(int b) { }
+        public void write(byte[] b, int off, int len) { }
+    };
+
+    /**
+     * Replays previously scanned tokens so that parsing is measured without
+     * the cost of scanning.
+     */
+    static class TokenReplay extends Scanner {
+        private final List<Token> mTokens;
+        private final List<Token> mLookahead = new ArrayList<Token>();
+        private int mIndex;
+
+        TokenReplay(List<Token> tokens) {
+            super(null);
+            mTokens = tokens;
+        }
+
+        public Token readToken() {
+            int size = mLookahead.size();
+            if (size > 0) {
+                return mLookahead.remove(size - 1);
+            }
+            Token token = mTokens.get(mIndex);
+            if (mIndex < mTokens.size() - 1) {
+                mIndex++;
+            }
+            return token;
+        }
+
+        public Token peekToken() {
+            int size = mLookahead.size();
+            if (size > 0) {
+                return mLookahead.get(size - 1);
+            }
+            return mTokens.get(mIndex);
+        }
+
+        public void unreadToken(Token token) {
+            mLookahead.add(token);
+        }
+
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .include(CompilerBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build();
+
+        new Runner(options).run();
+    }
+}
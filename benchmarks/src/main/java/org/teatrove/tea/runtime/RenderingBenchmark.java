@@ -0,0 +1,273 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.runtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.teatrove.tea.compiler.Compiler;
+import org.teatrove.tea.util.StringCompilationProvider;
+import org.teatrove.trove.io.CharToByteBuffer;
+import org.teatrove.trove.io.DefaultByteBuffer;
+import org.teatrove.trove.io.FastCharToByteBuffer;
+import org.teatrove.trove.util.ClassInjector;
+
+/**
+ * Measures the cost of rendering each kind of template construct end to
+ * end. Templates are compiled in-process, then executed through their
+ * {@link TemplateLoader.Template} the way SimpleTeaEngine does, into a
+ * context that writes to a {@link FastCharToByteBuffer} over a
+ * {@link DefaultByteBuffer}, as the TeaServlet does. The buffer is cleared
+ * after each execution. Literal text is pre-encoded in the output encoding,
+ * so ISO-8859-1 exercises the fast conversion path and UTF-8 the slow one.
+ * Run with:
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar RenderingBenchmark -prof gc
+ * </pre>
+ *
+ * The main method adds the gc profiler itself, which reports the allocation
+ * rate and bytes allocated per execution of each template.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderingBenchmark {
+
+    private static final String PKG = "org.teatrove.tea.runtime.render";
+
+    private static final String PARAMS =
+        "(String name, " +
+        "org.teatrove.tea.runtime.RenderingBenchmark$Item item, " +
+        "String[] items, java.util.List list, int count, double amount, " +
+        "java.util.Date date)";
+
+    private static final String[][] TEMPLATES = {
+        {
+            "literal",
+            "<% template literal" + PARAMS + " %>" +
+            "<html>\n<head><title>Literal</title></head>\n<body>\n" +
+            "<div class=\"header\">A header with some static text</div>\n" +
+            "<% if (count > 0) { %>" +
+            "<p>Paragraph one of a page made of mostly static markup.</p>\n" +
+            "<p>Paragraph two of a page made of mostly static markup.</p>\n" +
+            "<% } %>" +
+            "<div class=\"footer\">A footer with some static text</div>\n" +
+            "</body>\n</html>\n"
+        },
+        {
+            "lookup",
+            "<% template lookup" + PARAMS + "\n" +
+            "item.name ' ' item.price ' ' item.child.name ' ' " +
+            "item.child.price ' ' item.child.child.name\n" +
+            "items[0] ' ' items[items.length - 1] ' ' list[1] %>"
+        },
+        {
+            "foreachArray",
+            "<% template foreachArray" + PARAMS + "\n" +
+            "foreach (s in items) { '<li>' s '</li>' } %>"
+        },
+        {
+            "foreachList",
+            "<% template foreachList" + PARAMS + "\n" +
+            "foreach (o in list) { '<li>' o '</li>' } %>"
+        },
+        {
+            "concat",
+            "<% template concat" + PARAMS + "\n" +
+            "label = name & '-' & count & '-' & item.name\n" +
+            "label & '/' & items[0]\n" +
+            "'<a href=\"/item?id=' & count & '\">' & name & '</a>' %>"
+        },
+        {
+            "substitution",
+            "<% template substitution" + PARAMS + "\n" +
+            "call frame(name) { '<p>' item.name '</p>' }\n" +
+            "call frame(name) { foreach (s in items) { s ' ' } } %>"
+        },
+        {
+            "frame",
+            "<% template frame(String title) {...}\n" +
+            "'<div><h3>' title '</h3>'\n" +
+            "...\n" +
+            "'</div>' %>"
+        },
+        {
+            "numberFormat",
+            "<% template numberFormat" + PARAMS + "\n" +
+            "count ' ' amount ' ' item.price\n" +
+            "numberFormat(\"#,##0.00\")\n" +
+            "count ' ' amount ' ' item.price ' ' (amount * count) %>"
+        },
+        {
+            "dateFormat",
+            "<% template dateFormat" + PARAMS + "\n" +
+            "date\n" +
+            "dateFormat(\"yyyy-MM-dd HH:mm:ss\")\n" +
+            "' ' date %>"
+        },
+    };
+
+    @Param({ "literal", "lookup", "foreachArray", "foreachList", "concat",
+             "substitution", "numberFormat", "dateFormat" })
+    public String template;
+
+    @Param({ "ISO-8859-1", "UTF-8" })
+    public String encoding;
+
+    private TemplateLoader.Template mTemplate;
+    private Object[] mParameters;
+    private CharToByteBuffer mBuffer;
+
+    @Setup
+    public void setup() throws Exception {
+        ClassInjector injector = new ClassInjector();
+        Compiler compiler = new Compiler(injector, PKG, null);
+        compiler.setRuntimeContext(BufferContext.class);
+        compiler.setOutputEncoding(encoding);
+
+        StringCompilationProvider provider = new StringCompilationProvider();
+        for (String[] source : TEMPLATES) {
+            provider.setTemplateSource(source[0], source[1]);
+        }
+        compiler.addCompilationProvider(provider);
+        compiler.compileAll();
+        if (compiler.getErrorCount() > 0) {
+            throw new IllegalStateException
+                ("templates failed to compile: " + compiler.getErrorCount());
+        }
+
+        mTemplate = new TemplateLoader(injector, PKG).getTemplate(template);
+
+        String[] items = new String[10];
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < items.length; i++) {
+            items[i] = "item" + i;
+            list.add("entry" + i);
+        }
+
+        Item item = new Item("first", 12.5, new Item
+            ("second", 1234.125, new Item("third", 0.5, null)));
+
+        mParameters = new Object[] {
+            "Name", item, items, list, Integer.valueOf(42),
+            Double.valueOf(98765.4321), new Date(1300000000000L)
+        };
+
+        mBuffer = new FastCharToByteBuffer(new DefaultByteBuffer(), encoding);
+    }
+
+    @Benchmark
+    public long execute() throws Exception {
+        // a context per execution, like a request, so formats set by a
+        // template never carry over into the next execution
+        mTemplate.execute(new BufferContext(mBuffer), mParameters);
+        long count = mBuffer.getByteCount();
+        mBuffer.clear();
+        return count;
+    }
+
+    /**
+     * Writes template output into a CharToByteBuffer, appending pre-encoded
+     * literal text directly when it matches the buffer encoding.
+     */
+    public static class BufferContext extends DefaultContext
+        implements EncodedOutputReceiver {
+
+        private final CharToByteBuffer mBuffer;
+
+        public BufferContext(CharToByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        public void print(Object obj) throws IOException {
+            mBuffer.append(toString(obj));
+        }
+
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            mBuffer.append(cbuf, off, len);
+        }
+
+        public void writeEncoded(String str, byte[] bytes, String encoding)
+            throws IOException {
+            if (encoding.equals(mBuffer.getEncoding())) {
+                mBuffer.append(bytes);
+            }
+            else {
+                mBuffer.append(toString(str));
+            }
+        }
+    }
+
+    /**
+     * Nested bean for property lookups.
+     */
+    public static class Item {
+        private final String mName;
+        private final double mPrice;
+        private final Item mChild;
+
+        public Item(String name, double price, Item child) {
+            mName = name;
+            mPrice = price;
+            mChild = child;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public double getPrice() {
+            return mPrice;
+        }
+
+        public Item getChild() {
+            return mChild;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .include(RenderingBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.runtime;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.teatrove.tea.compiler.Compiler;
+import org.teatrove.tea.util.StringCompilationProvider;
+import org.teatrove.tea.util.TestCompiler;
+import org.teatrove.trove.util.ClassInjector;
+
+/**
+ * Compares executing a template through the generated {@link TemplateInvoker}
+ * against the previous reflective {@link Method#invoke} path. Run with:
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar TemplateInvokerBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateInvokerBenchmark {
+
+    private static final String PKG = "org.teatrove.tea.runtime.bench";
+
+    private Context context;
+    private Object[] parameters;
+    private Method executeMethod;
+    private TemplateLoader.Template template;
+
+    @Setup
+    public void setup() throws Exception {
+        ClassInjector injector = new ClassInjector();
+        Compiler compiler = new Compiler(injector, PKG, null);
+        compiler.setRuntimeContext(TestCompiler.Context.class);
+
+        StringCompilationProvider provider = new StringCompilationProvider();
+        provider.setTemplateSource
+        (
+            "bench", "<% template bench(String a, int b, Integer c) " +
+                     "a; b; c %>"
+        );
+        compiler.addCompilationProvider(provider);
+        compiler.compileAll();
+
+        TemplateLoader loader = new TemplateLoader(injector, PKG);
+        template = loader.getTemplate("bench");
+
+        for (Method method : template.getTemplateClass().getMethods()) {
+            if (method.getName().equals("execute")) {
+                executeMethod = method;
+                break;
+            }
+        }
+
+        context = new TestCompiler.Context(new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        }));
+
+        parameters = new Object[] { "test", Integer.valueOf(5),
+                                    Integer.valueOf(7) };
+    }
+
+    @Benchmark
+    public void generated() throws Exception {
+        template.execute(context, parameters);
+    }
+
+    @Benchmark
+    public void reflective() throws Exception {
+        int length = parameters.length;
+        Object[] args = new Object[1 + length];
+        args[0] = context;
+        for (int i = 0; i < length; i++) {
+            args[i + 1] = parameters[i];
+        }
+
+        try {
+            Object ret = executeMethod.invoke(null, args);
+            if (template.getReturnType() != void.class) {
+                context.print(ret);
+            }
+        }
+        catch (InvocationTargetException e) {
+            Throwable t = e.getTargetException();
+            if (t instanceof Exception) {
+                throw (Exception) t;
+            }
+            throw e;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(TemplateInvokerBenchmark.class.getSimpleName())
+            .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.annotation.Retention;
+
+/**
+ * Marks a method as {@link Pure}, and as returning an equivalent result
+ * whenever it is called with the same arguments, for as long as its class is
+ * loaded. When a template calls a static deterministic function with
+ * constant arguments, the function is called once as the template is
+ * compiled, and a String, number or boolean result replaces the call.
+ *
+ * @see org.teatrove.tea.compiler.BasicOptimizer
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Deterministic {
+}
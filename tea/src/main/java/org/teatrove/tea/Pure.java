@@ -0,0 +1,37 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.annotation.Retention;
+
+/**
+ * Marks a method as having no side effects, and as returning an equivalent
+ * result when called again with the same receiver and arguments while a
+ * template executes. Templates may call a pure "getter" method fewer times
+ * than its property is referenced, and may call pure getters and context
+ * functions once before a loop instead of on every iteration.
+ *
+ * @see org.teatrove.tea.compiler.CommonLookupEliminator
+ * @see org.teatrove.tea.compiler.LoopInvariantHoister
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Pure {
+}
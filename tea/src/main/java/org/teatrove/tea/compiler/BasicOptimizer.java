@@ -16,8 +16,12 @@
 
 package org.teatrove.tea.compiler;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Vector;
 
+import org.teatrove.tea.Deterministic;
 import org.teatrove.tea.parsetree.AndExpression;
 import org.teatrove.tea.parsetree.ArithmeticExpression;
 import org.teatrove.tea.parsetree.Block;
@@ -29,11 +33,13 @@ import org.teatrove.tea.parsetree.ContinueStatement;
 import org.teatrove.tea.parsetree.Expression;
 import org.teatrove.tea.parsetree.Expression.Conversion;
 import org.teatrove.tea.parsetree.ForeachStatement;
+import org.teatrove.tea.parsetree.FunctionCallExpression;
 import org.teatrove.tea.parsetree.IfStatement;
 import org.teatrove.tea.parsetree.Literal;
 import org.teatrove.tea.parsetree.NegateExpression;
 import org.teatrove.tea.parsetree.Node;
 import org.teatrove.tea.parsetree.NotExpression;
+import org.teatrove.tea.parsetree.NullLiteral;
 import org.teatrove.tea.parsetree.NumberLiteral;
 import org.teatrove.tea.parsetree.OrExpression;
 import org.teatrove.tea.parsetree.ParenExpression;
@@ -54,6 +60,10 @@ import org.teatrove.tea.parsetree.VariableRef;
  * known as constant folding. It improves runtime performance and reduces
  * the size of generated code.
  *
+ * <p>Calls to static {@link Deterministic} functions whose arguments are all
+ * known are also replaced by their result, when it is a String, number or
+ * boolean.
+ *
  * <p>Statements that are known at compile time to be unreachable (sometimes
  * as a result of constant folding) can be removed. This is dead code
  * elimination, and it mainly reduces the size of generated code. It can also
@@ -63,6 +73,7 @@ import org.teatrove.tea.parsetree.VariableRef;
  */
 public class BasicOptimizer {
     private Node mTree;
+    private boolean mCallFolded;
 
     public BasicOptimizer(Node tree) {
         mTree = tree;
@@ -72,7 +83,120 @@ public class BasicOptimizer {
         return (Node)mTree.accept(new Visitor());
     }
 
-    private static class Visitor extends TreeMutator {
+    /**
+     * Returns true if the optimized tree has a call replaced by its result,
+     * which only holds while the called function's class is loaded.
+     */
+    public boolean isCallFolded() {
+        return mCallFolded;
+    }
+
+    /**
+     * Calls the given function if it is a static {@link Deterministic}
+     * function, and returns its result as a Literal. Null is returned if the
+     * call cannot be replaced.
+     */
+    private static Literal fold(FunctionCallExpression node) {
+        Method method = node.getCalledMethod();
+        if (method == null || method.isVarArgs() ||
+            !Modifier.isStatic(method.getModifiers()) ||
+            !method.isAnnotationPresent(Deterministic.class) ||
+            node.getExpression() != null ||
+            node.getInitializer() != null ||
+            node.getSubstitutionParam() != null) {
+            return null;
+        }
+
+        Class<?>[] paramTypes = method.getParameterTypes();
+        Expression[] exprs = node.getParams().getExpressions();
+        if (exprs.length != paramTypes.length) {
+            return null;
+        }
+
+        Object[] args = new Object[exprs.length];
+        for (int i=0; i<exprs.length; i++) {
+            if (!exprs[i].isValueKnown()) {
+                return null;
+            }
+
+            args[i] = toArgument(exprs[i].getValue(), paramTypes[i]);
+            if (args[i] == null && (exprs[i].getValue() != null ||
+                                    paramTypes[i].isPrimitive())) {
+                return null;
+            }
+        }
+
+        Object result;
+        try {
+            result = method.invoke(null, args);
+        }
+        catch (InvocationTargetException e) {
+            // Leave the call, so that it fails at runtime instead.
+            return null;
+        }
+        catch (IllegalAccessException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        catch (LinkageError e) {
+            return null;
+        }
+
+        SourceInfo info = node.getSourceInfo();
+        if (result == null) {
+            return method.getReturnType().isPrimitive() ?
+                null : new NullLiteral(info);
+        }
+        else if (result instanceof String) {
+            return new StringLiteral(info, (String)result);
+        }
+        else if (result instanceof Boolean) {
+            return new BooleanLiteral(info, ((Boolean)result).booleanValue());
+        }
+        else if (result instanceof Integer || result instanceof Long ||
+                 result instanceof Float || result instanceof Double) {
+            return new NumberLiteral(info, (Number)result);
+        }
+
+        return null;
+    }
+
+    /**
+     * Converts a known value to the given parameter type, returning null
+     * if it cannot be passed as is.
+     */
+    private static Object toArgument(Object value, Class<?> type) {
+        if (value == null) {
+            return null;
+        }
+
+        if (type.isPrimitive() && value instanceof Number) {
+            Number number = (Number)value;
+            if (type == int.class && value instanceof Integer) {
+                return value;
+            }
+            else if (type == long.class &&
+                     (value instanceof Integer || value instanceof Long)) {
+                return new Long(number.longValue());
+            }
+            else if (type == float.class && !(value instanceof Double)) {
+                return new Float(number.floatValue());
+            }
+            else if (type == double.class) {
+                return new Double(number.doubleValue());
+            }
+            return null;
+        }
+        else if (type == boolean.class) {
+            return (value instanceof Boolean) ? value : null;
+        }
+
+        return type.isInstance(value) ? value : null;
+    }
+
+    private class Visitor extends TreeMutator {
         public Object visit(Statement node) {
             return null;
         }
@@ -240,6 +364,18 @@ public class BasicOptimizer {
             return node;
         }
 
+        public Object visit(FunctionCallExpression node) {
+            node = (FunctionCallExpression)super.visit(node);
+
+            Literal result = fold(node);
+            if (result == null) {
+                return node;
+            }
+
+            mCallFolded = true;
+            return result;
+        }
+
         public Object visit(ParenExpression node) {
             return node.getExpression().accept(this);
         }
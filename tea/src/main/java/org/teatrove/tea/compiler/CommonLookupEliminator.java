@@ -0,0 +1,703 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.compiler;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.teatrove.tea.Deterministic;
+import org.teatrove.tea.Pure;
+import org.teatrove.tea.parsetree.AndExpression;
+import org.teatrove.tea.parsetree.ArrayLookup;
+import org.teatrove.tea.parsetree.AssignmentStatement;
+import org.teatrove.tea.parsetree.Block;
+import org.teatrove.tea.parsetree.CallExpression;
+import org.teatrove.tea.parsetree.ExceptionGuardStatement;
+import org.teatrove.tea.parsetree.Expression;
+import org.teatrove.tea.parsetree.Expression.Conversion;
+import org.teatrove.tea.parsetree.ExpressionStatement;
+import org.teatrove.tea.parsetree.ForeachStatement;
+import org.teatrove.tea.parsetree.FunctionCallExpression;
+import org.teatrove.tea.parsetree.IfStatement;
+import org.teatrove.tea.parsetree.Literal;
+import org.teatrove.tea.parsetree.Lookup;
+import org.teatrove.tea.parsetree.Node;
+import org.teatrove.tea.parsetree.OrExpression;
+import org.teatrove.tea.parsetree.ReturnStatement;
+import org.teatrove.tea.parsetree.SpreadExpression;
+import org.teatrove.tea.parsetree.Statement;
+import org.teatrove.tea.parsetree.StatementList;
+import org.teatrove.tea.parsetree.SubstitutionStatement;
+import org.teatrove.tea.parsetree.Template;
+import org.teatrove.tea.parsetree.TemplateCallExpression;
+import org.teatrove.tea.parsetree.TernaryExpression;
+import org.teatrove.tea.parsetree.TreeMutator;
+import org.teatrove.tea.parsetree.TreeWalker;
+import org.teatrove.tea.parsetree.Variable;
+import org.teatrove.tea.parsetree.VariableRef;
+
+/**
+ * The CommonLookupEliminator stores the result of a property or array lookup
+ * chain, such as <tt>item.product.price</tt>, in a local variable when the
+ * chain is evaluated more than once, and replaces the repeated evaluations
+ * with references to the variable.
+ *
+ * <p>Only chains of pure lookups that begin with a variable, and that are
+ * not null-safe, are considered. A lookup is pure if its read method is
+ * annotated {@link Pure}, or if the Compiler has been told to assume that
+ * all lookups are pure. A chain is stored just before the first statement
+ * that evaluates it unconditionally, and it is reused by later statements of
+ * the same block, including nested blocks, until a variable that it depends
+ * on is assigned. A chain is only stored ahead of a statement if nothing the
+ * statement evaluates before it, such as a function call or an impure
+ * lookup, can have side effects; otherwise it is left in place.
+ *
+ * <p>Templates that generate substitutions, or that guard statements against
+ * exceptions, are left unchanged.
+ *
+ * @see Compiler#setAssumePureLookups
+ */
+public class CommonLookupEliminator {
+    private Template mTree;
+    private boolean mAssumePure;
+    private int mVariableCount;
+
+    public CommonLookupEliminator(Template tree, boolean assumePure) {
+        mTree = tree;
+        mAssumePure = assumePure;
+    }
+
+    public Template eliminate() {
+        Statement stmt = mTree.getStatement();
+        if (stmt == null || !isEligible(mTree)) {
+            return mTree;
+        }
+
+        Statement[] stmts = eliminate(flatten(stmt),
+                                      new HashMap<String, Variable>());
+        if (stmts.length == 1) {
+            mTree.setStatement(stmts[0]);
+        }
+        else {
+            mTree.setStatement(new StatementList(stmt.getSourceInfo(), stmts));
+        }
+
+        return mTree;
+    }
+
+    /**
+     * Returns true if the given lookup read method may be called fewer times
+     * than it appears in a template.
+     */
+    public static boolean isPure(Method method, boolean assumePure) {
+        return assumePure ||
+            (method != null && (method.isAnnotationPresent(Pure.class) ||
+                                method.isAnnotationPresent
+                                (Deterministic.class)));
+    }
+
+    /**
+     * Eliminates repeated lookups from a sequence of statements, given the
+     * lookups already stored in variables before the sequence.
+     *
+     * @param available maps lookup chain keys to the variables that store
+     * them, which is updated as the sequence is processed
+     */
+    private Statement[] eliminate(Statement[] stmts,
+                                  Map<String, Variable> available) {
+        List<Statement> result = new ArrayList<Statement>(stmts.length);
+        Set<String> rejected = new HashSet<String>();
+
+        for (int i=0; i<stmts.length; i++) {
+            Statement stmt = stmts[i];
+
+            // Store repeated chains evaluated by this statement.
+            while (true) {
+                replace(stmt, available);
+
+                Occurrences found = new Occurrences(true);
+                visitExpressions(stmt, found);
+
+                Expression chain = null;
+                for (Expression expr : found.mChains) {
+                    String key = found.mKeys.get(expr);
+                    if (!available.containsKey(key) &&
+                        !rejected.contains(key)) {
+                        if (countFrom(stmts, i, key, found.mDepends.get(key))
+                            >= 2) {
+                            chain = expr;
+                            break;
+                        }
+                        rejected.add(key);
+                    }
+                }
+
+                if (chain == null) {
+                    break;
+                }
+
+                String key = found.mKeys.get(chain);
+                Variable var = createVariable(chain);
+                result.add(createAssignment(chain, var));
+                available.put(key, var);
+            }
+
+            // Nested blocks may use the stored chains, but any that they
+            // are unable to rely upon must be removed.
+            if (stmt instanceof IfStatement) {
+                IfStatement ifStmt = (IfStatement)stmt;
+                ifStmt.setThenPart(eliminate(ifStmt.getThenPart(),
+                                             available));
+                ifStmt.setElsePart(eliminate(ifStmt.getElsePart(),
+                                             available));
+            }
+            else if (stmt instanceof ForeachStatement) {
+                // The loop body may be executed again after assignments
+                // made within it.
+                ForeachStatement foreach = (ForeachStatement)stmt;
+                Map<String, Variable> inner =
+                    new HashMap<String, Variable>(available);
+                kill(inner, getAssigned(stmt));
+                foreach.setBody(eliminate(foreach.getBody(), inner));
+            }
+
+            Set<String> assigned = getAssigned(stmt);
+            if (!assigned.isEmpty()) {
+                // Chains that were only evaluated once may be evaluated
+                // more often with new values.
+                kill(available, assigned);
+                rejected.clear();
+            }
+            result.add(stmt);
+        }
+
+        return result.toArray(new Statement[result.size()]);
+    }
+
+    private Block eliminate(Block block, Map<String, Variable> available) {
+        if (block == null) {
+            return null;
+        }
+
+        Map<String, Variable> inner = new HashMap<String, Variable>(available);
+        Statement init = block.getInitializer();
+        if (init != null) {
+            kill(inner, getAssigned(init));
+        }
+
+        Statement[] stmts = block.getStatements();
+        if (stmts != null) {
+            List<Statement> list = new ArrayList<Statement>(stmts.length);
+            for (int i=0; i<stmts.length; i++) {
+                addFlattened(list, stmts[i]);
+            }
+            block.setStatements
+                (eliminate(list.toArray(new Statement[list.size()]), inner));
+        }
+
+        return block;
+    }
+
+    /**
+     * Counts the evaluations of the given chain by the statements starting
+     * at the given index, until one assigns a variable the chain depends on.
+     */
+    private int countFrom(Statement[] stmts, int index, String key,
+                          Set<String> depends) {
+        int count = 0;
+        for (int i=index; i<stmts.length; i++) {
+            Statement stmt = stmts[i];
+            Occurrences found = new Occurrences(false);
+            visitExpressions(stmt, found);
+            count += found.count(key);
+
+            Set<String> assigned = getAssigned(stmt);
+            assigned.retainAll(depends);
+            if (!assigned.isEmpty()) {
+                break;
+            }
+
+            if (stmt instanceof IfStatement) {
+                IfStatement ifStmt = (IfStatement)stmt;
+                count += countAll(ifStmt.getThenPart(), key);
+                count += countAll(ifStmt.getElsePart(), key);
+            }
+            else if (stmt instanceof ForeachStatement) {
+                // A single evaluation within a loop body is worth storing.
+                count += 2 * countAll(((ForeachStatement)stmt).getBody(), key);
+            }
+        }
+        return count;
+    }
+
+    private int countAll(Node node, String key) {
+        if (node == null) {
+            return 0;
+        }
+        Occurrences found = new Occurrences(false);
+        node.accept(found);
+        return found.count(key);
+    }
+
+    /**
+     * Replaces the chains evaluated by the given statement, outside of any
+     * nested blocks, with the variables that store them.
+     */
+    private void replace(Statement stmt, final Map<String, Variable> available) {
+        if (available.isEmpty()) {
+            return;
+        }
+
+        TreeMutator replacer = new TreeMutator() {
+            public Object visit(Lookup node) {
+                Variable var = find(node);
+                return var != null ? createReference(node, var)
+                    : super.visit(node);
+            }
+
+            public Object visit(ArrayLookup node) {
+                Variable var = find(node);
+                return var != null ? createReference(node, var)
+                    : super.visit(node);
+            }
+
+            public Object visit(SpreadExpression node) {
+                return node;
+            }
+
+            private Variable find(Expression node) {
+                String key = getKey(node, null);
+                return key == null ? null : available.get(key);
+            }
+        };
+
+        if (stmt instanceof ExpressionStatement) {
+            ExpressionStatement es = (ExpressionStatement)stmt;
+            es.setExpression((Expression)es.getExpression().accept(replacer));
+        }
+        else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement as = (AssignmentStatement)stmt;
+            as.setRValue((Expression)as.getRValue().accept(replacer));
+        }
+        else if (stmt instanceof ReturnStatement) {
+            ReturnStatement rs = (ReturnStatement)stmt;
+            if (rs.getExpression() != null) {
+                rs.setExpression
+                    ((Expression)rs.getExpression().accept(replacer));
+            }
+        }
+        else if (stmt instanceof IfStatement) {
+            IfStatement is = (IfStatement)stmt;
+            is.setCondition((Expression)is.getCondition().accept(replacer));
+        }
+        else if (stmt instanceof ForeachStatement) {
+            ForeachStatement fs = (ForeachStatement)stmt;
+            fs.setRange((Expression)fs.getRange().accept(replacer));
+            if (fs.getEndRange() != null) {
+                fs.setEndRange
+                    ((Expression)fs.getEndRange().accept(replacer));
+            }
+        }
+    }
+
+    /**
+     * Visits the expressions the given statement evaluates, outside of any
+     * nested blocks.
+     */
+    private static void visitExpressions(Statement stmt, TreeWalker walker) {
+        if (stmt instanceof ExpressionStatement) {
+            ((ExpressionStatement)stmt).getExpression().accept(walker);
+        }
+        else if (stmt instanceof AssignmentStatement) {
+            ((AssignmentStatement)stmt).getRValue().accept(walker);
+        }
+        else if (stmt instanceof ReturnStatement) {
+            Expression expr = ((ReturnStatement)stmt).getExpression();
+            if (expr != null) {
+                expr.accept(walker);
+            }
+        }
+        else if (stmt instanceof IfStatement) {
+            ((IfStatement)stmt).getCondition().accept(walker);
+        }
+        else if (stmt instanceof ForeachStatement) {
+            ForeachStatement fs = (ForeachStatement)stmt;
+            fs.getRange().accept(walker);
+            if (fs.getEndRange() != null) {
+                fs.getEndRange().accept(walker);
+            }
+        }
+    }
+
+    /**
+     * Returns a key identifying the value of the given lookup chain, or null
+     * if the expression is not a chain of pure lookups beginning with a
+     * variable. The conversions applied to the chain itself are excluded.
+     *
+     * @param depends if not null, receives the names of the variables the
+     * chain depends on
+     */
+    String getKey(Expression expr, Set<String> depends) {
+        StringBuilder key = new StringBuilder();
+        if (!appendKey(key, expr, depends) || expr instanceof VariableRef) {
+            return null;
+        }
+        key.append('{').append(expr.getInitialType()).append('}');
+        return key.toString();
+    }
+
+    private boolean appendKey(StringBuilder key, Expression expr,
+                              Set<String> depends) {
+        if (expr instanceof VariableRef) {
+            Variable var = ((VariableRef)expr).getVariable();
+            if (var == null || var.isField()) {
+                return false;
+            }
+            key.append(var.getName()).append('{').append(var.getType());
+            key.append('}');
+            if (depends != null) {
+                depends.add(var.getName());
+            }
+            return true;
+        }
+        else if (expr instanceof Lookup) {
+            Lookup lookup = (Lookup)expr;
+            Expression inner = lookup.getExpression();
+            Method method = lookup.getReadMethod();
+            if (lookup.isNullSafe() || lookup.getReadProperty() != null ||
+                !isPure(method) ||
+                (method == null &&
+                 !(inner.getType() != null &&
+                   inner.getType().getObjectClass().isArray() &&
+                   "length".equals(lookup.getLookupName().getName())))) {
+                return false;
+            }
+            if (!appendInner(key, inner, depends)) {
+                return false;
+            }
+            key.append('.');
+            key.append(lookup.getLookupName().getName());
+            return true;
+        }
+        else if (expr instanceof ArrayLookup) {
+            ArrayLookup lookup = (ArrayLookup)expr;
+            Expression index = lookup.getLookupIndex();
+            if (lookup.isNullSafe() || !isPure(lookup.getReadMethod()) ||
+                !appendInner(key, lookup.getExpression(), depends)) {
+                return false;
+            }
+            key.append('[');
+            if (index instanceof Literal && index.isValueKnown()) {
+                key.append('\'').append(index.getValue()).append('\'');
+                key.append('{').append(index.getType()).append('}');
+            }
+            else if (!(index instanceof VariableRef) ||
+                     !appendKey(key, index, depends)) {
+                return false;
+            }
+            else {
+                key.append("->").append(index.getType());
+            }
+            key.append(']');
+            return true;
+        }
+        return false;
+    }
+
+    private boolean appendInner(StringBuilder key, Expression inner,
+                                Set<String> depends) {
+        key.append('(');
+        if (!appendKey(key, inner, depends)) {
+            return false;
+        }
+        key.append("->").append(inner.getType()).append(')');
+        return true;
+    }
+
+    private boolean isPure(Method method) {
+        return isPure(method, mAssumePure);
+    }
+
+    private Variable createVariable(Expression chain) {
+        return new Variable(chain.getSourceInfo(),
+                            "lookup$" + mVariableCount++,
+                            chain.getInitialType());
+    }
+
+    /**
+     * Creates a statement that assigns the unconverted value of the given
+     * chain to the given variable.
+     */
+    private Statement createAssignment(Expression chain, Variable var) {
+        SourceInfo info = chain.getSourceInfo();
+        Expression value = (Expression)chain.clone();
+        value.setType(chain.getInitialType());
+
+        VariableRef ref = new VariableRef(info, var.getName());
+        ref.setVariable(var);
+        return new AssignmentStatement(info, ref, value);
+    }
+
+    /**
+     * Creates a reference to the given variable that applies the same
+     * conversions as the chain it replaces.
+     */
+    private static Expression createReference(Expression chain, Variable var) {
+        VariableRef ref = new VariableRef(chain.getSourceInfo(), var.getName());
+        ref.setVariable(var);
+
+        boolean first = true;
+        for (Conversion conversion : chain.getConversionChain()) {
+            if (first) {
+                first = false;
+                continue;
+            }
+            ref.forceConversion(conversion.getToType(),
+                                conversion.isCastPreferred());
+        }
+
+        return ref;
+    }
+
+    /**
+     * Removes the chains that depend on any of the given variables.
+     */
+    private void kill(Map<String, Variable> available, Set<String> assigned) {
+        if (assigned.isEmpty() || available.isEmpty()) {
+            return;
+        }
+
+        List<String> keys = new ArrayList<String>(available.keySet());
+        for (String key : keys) {
+            for (String name : assigned) {
+                if (key.startsWith(name + '{') ||
+                    key.indexOf('(' + name + '{') >= 0 ||
+                    key.indexOf('[' + name + '{') >= 0) {
+                    available.remove(key);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the statements of the given parse tree may be
+     * reordered, which they may not be if it generates substitutions or
+     * guards against exceptions.
+     */
+    static boolean isEligible(Template tree) {
+        if (tree.hasSubstitutionParam()) {
+            return false;
+        }
+        Eligibility eligibility = new Eligibility();
+        tree.getStatement().accept(eligibility);
+        return eligibility.mEligible;
+    }
+
+    /**
+     * Returns the names of all variables assigned anywhere within the given
+     * statement.
+     */
+    static Set<String> getAssigned(Statement stmt) {
+        final Set<String> assigned = new HashSet<String>();
+        stmt.accept(new TreeWalker() {
+            public Object visit(AssignmentStatement node) {
+                assigned.add(node.getLValue().getName());
+                return super.visit(node);
+            }
+
+            public Object visit(ForeachStatement node) {
+                assigned.add(node.getLoopVariable().getName());
+                return super.visit(node);
+            }
+        });
+        return assigned;
+    }
+
+    private static Statement[] flatten(Statement stmt) {
+        List<Statement> list = new ArrayList<Statement>();
+        addFlattened(list, stmt);
+        return list.toArray(new Statement[list.size()]);
+    }
+
+    private static void addFlattened(List<Statement> list, Statement stmt) {
+        if (stmt instanceof StatementList && !(stmt instanceof Block)) {
+            Statement[] stmts = ((StatementList)stmt).getStatements();
+            if (stmts != null) {
+                for (int i=0; i<stmts.length; i++) {
+                    addFlattened(list, stmts[i]);
+                }
+            }
+        }
+        else if (stmt != null) {
+            list.add(stmt);
+        }
+    }
+
+    /**
+     * Collects the lookup chains evaluated by an expression, in the order
+     * they are evaluated.
+     */
+    private class Occurrences extends TreeWalker {
+        final List<Expression> mChains = new ArrayList<Expression>();
+        final Map<Expression, String> mKeys =
+            new HashMap<Expression, String>();
+        final Map<String, Set<String>> mDepends =
+            new HashMap<String, Set<String>>();
+
+        // When true, chains that are only conditionally evaluated, or that
+        // are evaluated after an expression that may have side effects, are
+        // excluded.
+        private final boolean mUnconditional;
+        private int mConditional;
+        private boolean mSideEffects;
+
+        Occurrences(boolean unconditional) {
+            mUnconditional = unconditional;
+        }
+
+        int count(String key) {
+            int count = 0;
+            for (String k : mKeys.values()) {
+                if (k.equals(key)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public Object visit(Lookup node) {
+            super.visit(node);
+            add(node);
+            visitMethod(node.getReadMethod());
+            return null;
+        }
+
+        public Object visit(ArrayLookup node) {
+            super.visit(node);
+            add(node);
+            visitMethod(node.getReadMethod());
+            return null;
+        }
+
+        public Object visit(FunctionCallExpression node) {
+            super.visit(node);
+            mSideEffects = true;
+            return null;
+        }
+
+        public Object visit(TemplateCallExpression node) {
+            super.visit(node);
+            mSideEffects = true;
+            return null;
+        }
+
+        private void visitMethod(Method method) {
+            if (method != null && !isPure(method)) {
+                mSideEffects = true;
+            }
+        }
+
+        private void add(Expression node) {
+            if (mUnconditional && (mConditional > 0 || mSideEffects)) {
+                return;
+            }
+            Set<String> depends = new HashSet<String>();
+            String key = getKey(node, depends);
+            if (key != null) {
+                mChains.add(node);
+                mKeys.put(node, key);
+                mDepends.put(key, depends);
+            }
+        }
+
+        public Object visit(AndExpression node) {
+            node.getLeftExpression().accept(this);
+            mConditional++;
+            node.getRightExpression().accept(this);
+            mConditional--;
+            return null;
+        }
+
+        public Object visit(OrExpression node) {
+            node.getLeftExpression().accept(this);
+            mConditional++;
+            node.getRightExpression().accept(this);
+            mConditional--;
+            return null;
+        }
+
+        public Object visit(TernaryExpression node) {
+            node.getCondition().accept(this);
+            mConditional++;
+            if (node.getThenPart() != null) {
+                node.getThenPart().accept(this);
+            }
+            if (node.getElsePart() != null) {
+                node.getElsePart().accept(this);
+            }
+            mConditional--;
+            return null;
+        }
+
+        public Object visit(SpreadExpression node) {
+            return null;
+        }
+    }
+
+    private static class Eligibility extends TreeWalker {
+        boolean mEligible = true;
+
+        public Object visit(SubstitutionStatement node) {
+            mEligible = false;
+            return null;
+        }
+
+        public Object visit(FunctionCallExpression node) {
+            visitCall(node);
+            return super.visit(node);
+        }
+
+        public Object visit(TemplateCallExpression node) {
+            visitCall(node);
+            return super.visit(node);
+        }
+
+        private void visitCall(CallExpression node) {
+            if (node.getSubstitutionParam() != null) {
+                mEligible = false;
+            }
+        }
+
+        public Object visit(ExceptionGuardStatement node) {
+            mEligible = false;
+            return null;
+        }
+
+        public Object visit(Variable node) {
+            if (node.isField()) {
+                mEligible = false;
+            }
+            return super.visit(node);
+        }
+    }
+}
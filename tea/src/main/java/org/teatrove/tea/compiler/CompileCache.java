@@ -0,0 +1,700 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Reader;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.teatrove.tea.Deterministic;
+import org.teatrove.tea.Pure;
+import org.teatrove.tea.parsetree.Template;
+import org.teatrove.trove.classfile.MethodDesc;
+import org.teatrove.trove.classfile.TypeDesc;
+
+/**
+ * Caches the parse trees and class files of compiled templates, so that a
+ * {@link Compiler} can skip work for templates whose source has not changed.
+ * Entries are keyed by template name and the hash of the template source.
+ * <p>
+ * A cached parse tree is used in place of scanning and parsing the source.
+ * A cached class file is used in place of type checking and generating code
+ * if the template was compiled with the same settings, and if every class,
+ * method and field the class file refers to is unchanged. The runtime
+ * context may have changed otherwise, and the class file is adapted to the
+ * name of the new context class. Only templates compiled without errors or
+ * warnings are cached.
+ * <p>
+ * A CompileCache may be shared by several compilers, one after the other or
+ * at the same time. Entries are persisted in a directory, if one is given,
+ * and so may also be shared by several processes.
+ *
+ * @see Compiler#setCompileCache
+ */
+public class CompileCache {
+
+    private static final String SUFFIX = ".tcache";
+
+    private final File mDirectory;
+    private final Map<String, Entry> mEntries;
+
+    /**
+     * Creates a CompileCache which keeps its entries in memory.
+     */
+    public CompileCache() {
+        mDirectory = null;
+        mEntries = new ConcurrentHashMap<String, Entry>();
+    }
+
+    /**
+     * Creates a CompileCache which keeps its entries in the given directory,
+     * which is created if it doesn't exist.
+     */
+    public CompileCache(File directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("No cache directory");
+        }
+        directory.mkdirs();
+        mDirectory = directory;
+        mEntries = null;
+    }
+
+    /**
+     * Returns the directory entries are persisted in, or null if they are
+     * kept in memory.
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Removes the entry for the given template name, if any.
+     */
+    public void remove(String name) {
+        if (mDirectory == null) {
+            mEntries.remove(name);
+        }
+        else {
+            new File(mDirectory, name + SUFFIX).delete();
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        if (mDirectory == null) {
+            mEntries.clear();
+        }
+        else {
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(SUFFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the entry for the given template name, or null if none or if
+     * it cannot be read.
+     */
+    Entry get(String name) {
+        if (mDirectory == null) {
+            return mEntries.get(name);
+        }
+
+        File file = new File(mDirectory, name + SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream
+                (new BufferedInputStream(new FileInputStream(file)));
+            return (Entry)in.readObject();
+        }
+        catch (Exception e) {
+            // The entry is incomplete or is from an incompatible version.
+            return null;
+        }
+        finally {
+            close(in);
+        }
+    }
+
+    void put(String name, Entry entry) {
+        if (mDirectory == null) {
+            mEntries.put(name, entry);
+            return;
+        }
+
+        // Write to a temporary file first so that readers never see a
+        // partially written entry.
+        File file = new File(mDirectory, name + SUFFIX);
+        File temp = null;
+        ObjectOutputStream out = null;
+        try {
+            temp = File.createTempFile(name + SUFFIX, ".tmp", mDirectory);
+            out = new ObjectOutputStream
+                (new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeObject(entry);
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                }
+            }
+        }
+        catch (IOException e) {
+            close(out);
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a hash of all the characters read from the given reader, which
+     * is then closed.
+     */
+    static String hash(Reader reader) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new InternalError(e.toString());
+        }
+
+        try {
+            char[] chars = new char[4096];
+            byte[] bytes = new byte[chars.length * 2];
+            int amt;
+            while ((amt = reader.read(chars, 0, chars.length)) >= 0) {
+                for (int i = 0, j = 0; i < amt; i++) {
+                    bytes[j++] = (byte)(chars[i] >> 8);
+                    bytes[j++] = (byte)chars[i];
+                }
+                digest.update(bytes, 0, amt * 2);
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        byte[] hash = digest.digest();
+        StringBuilder buf = new StringBuilder(hash.length * 2);
+        for (int i = 0; i < hash.length; i++) {
+            buf.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            buf.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns a copy of the given class file in which the class of the given
+     * name is renamed.
+     */
+    static byte[] rename(byte[] classFile, String from, String to)
+        throws IOException {
+
+        if (from.equals(to)) {
+            return classFile;
+        }
+
+        String fromName = from.replace('.', '/');
+        String toName = to.replace('.', '/');
+        String fromDesc = 'L' + fromName + ';';
+        String toDesc = 'L' + toName + ';';
+
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(classFile));
+        ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream(classFile.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(in.readInt());
+        out.writeInt(in.readInt());
+        int count = in.readUnsignedShort();
+        out.writeShort(count);
+
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            out.writeByte(tag);
+
+            if (tag == 1) {
+                String value = in.readUTF();
+                if (value.equals(fromName)) {
+                    value = toName;
+                }
+                else if (value.indexOf(fromDesc) >= 0) {
+                    value = value.replace(fromDesc, toDesc);
+                }
+                out.writeUTF(value);
+            }
+            else {
+                int size = getConstantSize(tag);
+                for (int j = 0; j < size; j++) {
+                    out.writeByte(in.readUnsignedByte());
+                }
+                if (tag == 5 || tag == 6) {
+                    // Longs and doubles take two constant pool entries.
+                    i++;
+                }
+            }
+        }
+
+        byte[] buf = new byte[1024];
+        int amt;
+        while ((amt = in.read(buf)) > 0) {
+            out.write(buf, 0, amt);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the classes and members referenced by the given class file.
+     * Classes are named by their binary names, and members by keys made of
+     * their kind, class and name. Array classes and the class itself are not
+     * included.
+     */
+    static Set<String> getReferences(byte[] classFile) throws IOException {
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(classFile));
+
+        in.readInt();
+        in.readInt();
+        int count = in.readUnsignedShort();
+
+        int[] tags = new int[count];
+        String[] strings = new String[count];
+        int[] first = new int[count];
+        int[] second = new int[count];
+
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            tags[i] = tag;
+
+            switch (tag) {
+            case 1:
+                strings[i] = in.readUTF();
+                break;
+            case 7: case 8: case 16:
+                first[i] = in.readUnsignedShort();
+                break;
+            case 9: case 10: case 11: case 12:
+                first[i] = in.readUnsignedShort();
+                second[i] = in.readUnsignedShort();
+                break;
+            default:
+                int size = getConstantSize(tag);
+                for (int j = 0; j < size; j++) {
+                    in.readUnsignedByte();
+                }
+                if (tag == 5 || tag == 6) {
+                    i++;
+                }
+                break;
+            }
+        }
+
+        in.readUnsignedShort();
+        String self = strings[first[in.readUnsignedShort()]];
+
+        Set<String> references = new TreeSet<String>();
+        for (int i = 1; i < count; i++) {
+            String owner;
+            switch (tags[i]) {
+            case 7:
+                owner = strings[first[i]];
+                if (owner.charAt(0) == '[') {
+                    owner = owner.substring(owner.lastIndexOf('[') + 1);
+                    if (owner.charAt(0) != 'L') {
+                        break;
+                    }
+                    owner = owner.substring(1, owner.length() - 1);
+                }
+                if (!owner.equals(self)) {
+                    references.add("class " + owner.replace('/', '.'));
+                }
+                break;
+            case 9: case 10: case 11:
+                owner = strings[first[first[i]]];
+                if (owner.charAt(0) != '[' && !owner.equals(self)) {
+                    references.add
+                        ((tags[i] == 9 ? "field " : "method ") +
+                         owner.replace('/', '.') + ' ' +
+                         strings[first[second[i]]]);
+                }
+                break;
+            }
+        }
+
+        return references;
+    }
+
+    /**
+     * Returns a description of the supertypes of a class, or of all the
+     * members a reference returned by {@link #getReferences} may resolve to,
+     * which changes if the reference may resolve or be type checked
+     * differently. Generic types are included, since they determine the
+     * types of loop variables and element lookups. The class is given, and
+     * null is returned if a member is not found.
+     */
+    static String describe(String reference, Class<?> clazz) {
+        Set<String> members = new TreeSet<String>();
+
+        if (reference.startsWith("class ")) {
+            members.add("class");
+            addSupertypes(clazz, members);
+            return join(members);
+        }
+
+        String name = reference.substring(reference.lastIndexOf(' ') + 1);
+
+        if (reference.startsWith("field ")) {
+            try {
+                Field field = clazz.getField(name);
+                members.add(describe(field.getModifiers()) +
+                            TypeDesc.forClass(field.getType()).getDescriptor() +
+                            describe(field.getGenericType()));
+            }
+            catch (NoSuchFieldException e) {
+                return null;
+            }
+        }
+        else if (name.equals("<init>")) {
+            for (Constructor<?> ctor : clazz.getConstructors()) {
+                members.add(MethodDesc.forArguments
+                    (TypeDesc.VOID,
+                     TypeDesc.forClasses(ctor.getParameterTypes())) +
+                    describe(ctor.getGenericParameterTypes()));
+            }
+        }
+        else {
+            // A property may be read by either of its read methods.
+            String other = name;
+            if (name.startsWith("get")) {
+                other = "is".concat(name.substring(3));
+            }
+            else if (name.startsWith("is")) {
+                other = "get".concat(name.substring(2));
+            }
+
+            for (Method method : clazz.getMethods()) {
+                if (method.getName().equals(name) ||
+                    method.getName().equals(other)) {
+                    java.lang.reflect.Type[] params =
+                        method.getGenericParameterTypes();
+                    java.lang.reflect.Type[] types =
+                        new java.lang.reflect.Type[params.length + 1];
+                    types[0] = method.getGenericReturnType();
+                    System.arraycopy(params, 0, types, 1, params.length);
+
+                    String desc = describe(method.getModifiers()) +
+                        method.getName() + MethodDesc.forArguments
+                        (TypeDesc.forClass(method.getReturnType()),
+                         TypeDesc.forClasses(method.getParameterTypes())) +
+                        describe(types);
+                    if (method.isAnnotationPresent(Pure.class)) {
+                        desc = desc.concat(" pure");
+                    }
+                    if (method.isAnnotationPresent(Deterministic.class)) {
+                        desc = desc.concat(" deterministic");
+                    }
+                    members.add(desc);
+                }
+            }
+        }
+
+        if (members.isEmpty()) {
+            return null;
+        }
+
+        return join(members);
+    }
+
+    private static String describe(int modifiers) {
+        return Modifier.isStatic(modifiers) ? "static " : "";
+    }
+
+    /**
+     * Returns the given types in brackets if any of them is generic, or else
+     * an empty string, since their erasures are already described.
+     */
+    private static String describe(java.lang.reflect.Type... types) {
+        boolean generic = false;
+        for (java.lang.reflect.Type type : types) {
+            if (!(type instanceof Class)) {
+                generic = true;
+                break;
+            }
+        }
+
+        if (!generic) {
+            return "";
+        }
+
+        StringBuilder buf = new StringBuilder(" <");
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) {
+                buf.append(';');
+            }
+            buf.append(getTypeName(types[i]));
+        }
+        return buf.append('>').toString();
+    }
+
+    /**
+     * Adds the superclasses and interfaces of the given class, including
+     * their type arguments, to the given set.
+     */
+    private static void addSupertypes(Class<?> clazz, Set<String> supertypes) {
+        java.lang.reflect.Type superclass = clazz.getGenericSuperclass();
+        if (superclass != null) {
+            supertypes.add("extends " + getTypeName(superclass));
+            addSupertypes(clazz.getSuperclass(), supertypes);
+        }
+
+        for (java.lang.reflect.Type type : clazz.getGenericInterfaces()) {
+            supertypes.add("implements " + getTypeName(type));
+        }
+        for (Class<?> type : clazz.getInterfaces()) {
+            addSupertypes(type, supertypes);
+        }
+    }
+
+    private static String getTypeName(java.lang.reflect.Type type) {
+        if (type instanceof Class) {
+            return ((Class<?>) type).getName();
+        }
+        return type.toString();
+    }
+
+    private static String join(Set<String> members) {
+        StringBuilder buf = new StringBuilder();
+        for (String member : members) {
+            if (buf.length() > 0) {
+                buf.append(',');
+            }
+            buf.append(member);
+        }
+        return buf.toString();
+    }
+
+    private static int getConstantSize(int tag) throws IOException {
+        switch (tag) {
+        case 7: case 8: case 16: case 19: case 20:
+            return 2;
+        case 15:
+            return 3;
+        case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+            return 4;
+        case 5: case 6:
+            return 8;
+        default:
+            throw new IOException("Unknown constant pool tag: " + tag);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Cached parse tree and class file of a template.
+     */
+    static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String mSourceHash;
+        private final String mParserKey;
+        private final byte[] mParseTree;
+
+        private String mSettings;
+        private String mContextName;
+        private byte[] mClassFile;
+        private Map<String, String> mReferences;
+        private Map<String, String> mInlined;
+
+        Entry(String sourceHash, String parserKey, Template tree)
+            throws IOException {
+
+            mSourceHash = sourceHash;
+            mParserKey = parserKey;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(tree);
+            out.close();
+            mParseTree = bytes.toByteArray();
+        }
+
+        private Entry(Entry entry) {
+            mSourceHash = entry.mSourceHash;
+            mParserKey = entry.mParserKey;
+            mParseTree = entry.mParseTree;
+        }
+
+        String getSourceHash() {
+            return mSourceHash;
+        }
+
+        boolean matches(String sourceHash, String parserKey) {
+            return mSourceHash.equals(sourceHash) &&
+                mParserKey.equals(parserKey);
+        }
+
+        /**
+         * Returns a new copy of the cached parse tree, as returned by the
+         * parser.
+         */
+        Template getParseTree(final ClassLoader loader) throws IOException {
+            ObjectInputStream in = new ObjectInputStream
+                (new ByteArrayInputStream(mParseTree)) {
+                protected Class<?> resolveClass(ObjectStreamClass desc)
+                    throws IOException, ClassNotFoundException {
+
+                    if (loader != null) {
+                        try {
+                            return Class.forName(desc.getName(), false, loader);
+                        }
+                        catch (ClassNotFoundException e) {
+                        }
+                    }
+                    return super.resolveClass(desc);
+                }
+            };
+
+            try {
+                return (Template)in.readObject();
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException(e.toString());
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Returns a copy of this entry with the given class file.
+         *
+         * @param settings compiler settings the class file depends on
+         * @param contextName name of the runtime context class
+         * @param references descriptions of the classes and members
+         * referenced by the class file
+         * @param inlined source hashes of the templates inlined into the
+         * class file
+         */
+        Entry withClassFile(String settings, String contextName,
+                            byte[] classFile, Map<String, String> references,
+                            Map<String, String> inlined) {
+            Entry entry = new Entry(this);
+            entry.mSettings = settings;
+            entry.mContextName = contextName;
+            entry.mClassFile = classFile;
+            entry.mReferences = new TreeMap<String, String>(references);
+            entry.mInlined = new TreeMap<String, String>(inlined);
+            return entry;
+        }
+
+        boolean hasClassFile(String settings) {
+            return mClassFile != null && mSettings.equals(settings);
+        }
+
+        String getContextName() {
+            return mContextName;
+        }
+
+        byte[] getClassFile() {
+            return mClassFile;
+        }
+
+        /**
+         * Returns the descriptions of the referenced classes and members,
+         * with the runtime context class renamed.
+         */
+        Map<String, String> getReferences(String contextName) {
+            if (contextName.equals(mContextName)) {
+                return Collections.unmodifiableMap(mReferences);
+            }
+
+            String fromDesc = 'L' + mContextName.replace('.', '/') + ';';
+            String toDesc = 'L' + contextName.replace('.', '/') + ';';
+
+            Map<String, String> references = new TreeMap<String, String>();
+            for (Map.Entry<String, String> entry : mReferences.entrySet()) {
+                String[] parts = entry.getKey().split(" ");
+                String key = entry.getKey();
+                if (parts[1].equals(mContextName)) {
+                    key = parts[0] + ' ' + contextName;
+                    if (parts.length > 2) {
+                        key = key + ' ' + parts[2];
+                    }
+                }
+                references.put(key, entry.getValue().replace(fromDesc, toDesc));
+            }
+            return references;
+        }
+
+        Map<String, String> getInlined() {
+            return Collections.unmodifiableMap(mInlined);
+        }
+    }
+}
@@ -157,7 +157,7 @@ public class CompiledTemplate extends CompilationUnit {
      * This method is called by JavaClassGenerator during the compile phase. It overrides the
      * method in CompilationUnit and returns just the reflected template signature.
      */
-    public Template getParseTree() {
+    public synchronized Template getParseTree() {
         getTemplateClass();
         if (findExecuteMethod() == null)
             throw new IllegalArgumentException("Cannot locate compiled template entry point.");
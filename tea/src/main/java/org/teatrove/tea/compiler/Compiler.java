@@ -17,12 +17,15 @@
 package org.teatrove.tea.compiler;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.NotSerializableException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -30,12 +33,32 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.teatrove.tea.parsetree.Statement;
 import org.teatrove.tea.parsetree.Template;
+import org.teatrove.tea.parsetree.TemplateCallExpression;
+import org.teatrove.tea.parsetree.TreeWalker;
+import org.teatrove.tea.parsetree.Variable;
+import org.teatrove.tea.runtime.Substitution;
+import org.teatrove.trove.classfile.MethodDesc;
+import org.teatrove.trove.classfile.TypeDesc;
 import org.teatrove.trove.io.SourceReader;
 import org.teatrove.trove.util.ClassInjector;
 import org.teatrove.trove.util.StatusEvent;
@@ -55,6 +78,9 @@ import org.teatrove.trove.util.StatusListener;
 public class Compiler {
     
     protected static final String TEMPLATE_PKG = "org.teatrove.tea.templates";
+
+    private static final int DEFAULT_CLASS_FILE_VERSION = 50;
+    private static final int MAX_CLASS_FILE_VERSION = 65;
     
     // Maps qualified names to CompilationProviders
     private Map<String, CompilationProvider> mTemplateProviderMap;
@@ -67,7 +93,29 @@ public class Compiler {
         new HashMap<String, CompilationUnit>();
 
     // Set of names for CompilationUnits that have already been compiled.
-    private final Set<String> mCompiled = new HashSet<String>();
+    private final Set<String> mCompiled =
+        Collections.synchronizedSet(new HashSet<String>());
+
+    // Names of CompilationUnits owned by a parallel compile, and the subset
+    // of those that have been parsed but not yet type checked.
+    private final Set<String> mScheduled =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> mParsedOnly =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Copies of the type checked parse trees of templates small enough to
+    // be inlined into their callers, kept until the compile completes.
+    private final Map<String, Template> mInlineableTrees =
+        new ConcurrentHashMap<String, Template>();
+
+    // CompilationUnits being compiled by the current thread, which receive
+    // all compile events dispatched while they are active.
+    private final ThreadLocal<List<CompilationUnit>> mActiveUnits =
+        new ThreadLocal<List<CompilationUnit>>() {
+            protected List<CompilationUnit> initialValue() {
+                return new ArrayList<CompilationUnit>();
+            }
+        };
 
     // List of compilation providers
     private final List<CompilationProvider> mCompilationProviders = 
@@ -97,10 +145,25 @@ public class Compiler {
     protected File mRootDestDir;
     protected ClassInjector mInjector;
     protected String mEncoding;
+    protected String mOutputEncoding;
     protected long mPrecompiledTolerance;
     
     private boolean mGenerateCode = true;
     private boolean mExceptionGuardian = false;
+    private int mParallelism = 1;
+    private int mInlineThreshold;
+    private boolean mAssumePureLookups;
+    private int mClassFileVersion = DEFAULT_CLASS_FILE_VERSION;
+
+    private CompileCache mCompileCache;
+
+    // Cache entries of the templates parsed by this Compiler, and the
+    // descriptions of the classes and members that cached class files refer
+    // to, which are shared by all templates.
+    private final Map<String, CompileCache.Entry> mCacheEntries =
+        new ConcurrentHashMap<String, CompileCache.Entry>();
+    private final Map<String, String> mReferenceDescriptions =
+        new ConcurrentHashMap<String, String>();
 
     private ClassLoader mClassLoader;
 
@@ -272,23 +335,31 @@ public class Compiler {
     }
 
     private void dispatchCompileError(CompileEvent e) {
-        mErrorCount++;
-
         synchronized (mCompileListeners) {
+            mErrorCount++;
             for (int i = 0; i < mCompileListeners.size(); i++) {
                 mCompileListeners.elementAt(i).compileError(e);
             }
         }
+
+        List<CompilationUnit> units = mActiveUnits.get();
+        for (int i = 0; i < units.size(); i++) {
+            units.get(i).compileError(e);
+        }
     }
 
     private void dispatchCompileWarning(CompileEvent e) {
-        mWarningCount++;
-
         synchronized (mCompileListeners) {
+            mWarningCount++;
             for (int i = 0; i < mCompileListeners.size(); i++) {
                 mCompileListeners.elementAt(i).compileWarning(e);
             }
         }
+
+        List<CompilationUnit> units = mActiveUnits.get();
+        for (int i = 0; i < units.size(); i++) {
+            units.get(i).compileWarning(e);
+        }
     }
     
     /**
@@ -342,6 +413,180 @@ public class Compiler {
         return mExceptionGuardian;
     }
 
+    /**
+     * Sets the number of threads used to compile templates. When greater
+     * than one, templates that do not call each other are parsed, type
+     * checked and code generated concurrently. A template is only type
+     * checked once the templates it calls have been, and templates that call
+     * each other recursively are compiled together by a single thread. The
+     * default setting is one, which compiles sequentially.
+     *
+     * @param threads The number of compiler threads, at least one
+     */
+    public void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException
+                ("Parallelism must be at least one: " + threads);
+        }
+        mParallelism = threads;
+    }
+
+    /**
+     * Returns the number of threads used to compile templates. The default
+     * setting is one.
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Sets the maximum size of templates that are inlined into the templates
+     * that call them, measured in statements and non-trivial expressions.
+     * The size of a template is measured on its source as written, so a
+     * call is inlined regardless of which templates are compiled together.
+     * Templates called by an inlined template are called, not inlined.
+     * Inlined templates are recorded as dependencies of their callers, which
+     * must be recompiled whenever an inlined template changes. Inlined calls
+     * are not reported to the invocation observer. The default setting is
+     * zero, which disables inlining.
+     *
+     * @param threshold The maximum size of inlined templates, or zero
+     * @see TemplateCallInliner
+     */
+    public void setInlineThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException
+                ("Inline threshold must not be negative: " + threshold);
+        }
+        mInlineThreshold = threshold;
+    }
+
+    /**
+     * Returns the maximum size of templates that are inlined into the
+     * templates that call them. The default setting is zero, which disables
+     * inlining.
+     */
+    public int getInlineThreshold() {
+        return mInlineThreshold;
+    }
+
+    /**
+     * When enabled, all property and array lookups are assumed to be free of
+     * side effects, and a lookup chain that is evaluated more than once
+     * within a block is stored in a local variable. When disabled, only
+     * lookups whose read methods are annotated {@link org.teatrove.tea.Pure}
+     * are stored. Lookups that are assumed to be free of side effects may
+     * also be moved out of foreach loops. The default setting is false.
+     *
+     * @see CommonLookupEliminator
+     * @see LoopInvariantHoister
+     */
+    public void setAssumePureLookups(boolean flag) {
+        mAssumePureLookups = flag;
+    }
+
+    /**
+     * Returns true if all property and array lookups are assumed to be free
+     * of side effects. The default setting is false.
+     */
+    public boolean isAssumePureLookups() {
+        return mAssumePureLookups;
+    }
+
+    /**
+     * Sets the major class file version of generated template classes. For
+     * version 51 and later, stack map frames are computed for every method
+     * and exception handlers do not use subroutines, allowing the generated
+     * classes to be verified by the type checking verifier. The default
+     * version is 50.
+     *
+     * @param version The major class file version, from 50 to 65
+     * @throws IllegalArgumentException if the version is not supported
+     */
+    public void setClassFileVersion(int version) {
+        if (version < DEFAULT_CLASS_FILE_VERSION ||
+            version > MAX_CLASS_FILE_VERSION) {
+            throw new IllegalArgumentException
+                ("Unsupported class file version: " + version);
+        }
+        mClassFileVersion = version;
+    }
+
+    /**
+     * Returns the major class file version of generated template classes.
+     * The default version is 50.
+     */
+    public int getClassFileVersion() {
+        return mClassFileVersion;
+    }
+
+    /**
+     * Sets the cache of parse trees and class files used by this Compiler.
+     * A template whose source is unchanged is not parsed again, and its
+     * previous class file is reused if it was compiled with the same settings
+     * and everything it refers to is unchanged. Templates are otherwise
+     * compiled normally. Passing null disables caching, which is the default.
+     *
+     * @param cache The cache to use, or null to disable
+     * @see CompileCache
+     */
+    public void setCompileCache(CompileCache cache) {
+        mCompileCache = cache;
+    }
+
+    /**
+     * Returns the cache of parse trees and class files used by this
+     * Compiler, or null if none.
+     */
+    public CompileCache getCompileCache() {
+        return mCompileCache;
+    }
+
+    /**
+     * Returns a copy of the type checked parse tree of a template that can
+     * be inlined into its callers, or null if none. A template called by
+     * another is type checked before its caller is compiled, so the tree is
+     * available regardless of whether, or in what order, the called template
+     * is itself compiled. Trees are released once the compile completes.
+     */
+    Template getInlineableTree(String name) {
+        return mInlineableTrees.get(name);
+    }
+
+    /**
+     * Sets the character encoding that template output is written in. When
+     * set, literal text is encoded into bytes when the template class is
+     * initialized, and passed to contexts that implement
+     * {@link org.teatrove.tea.runtime.EncodedOutputReceiver} rather than
+     * encoded on every execution. Literal text is printed as usual to other
+     * contexts. ISO-8859-1 keeps the low 8 bits of each char, as
+     * {@link org.teatrove.trove.io.FastCharToByteBuffer} does. Passing null
+     * disables pre-encoding.
+     *
+     * @param encoding The output encoding, or null to disable
+     *
+     * @throws IllegalArgumentException if the encoding is not supported
+     */
+    public void setOutputEncoding(String encoding) {
+        if (encoding != null) {
+            if (!Charset.isSupported(encoding)) {
+                throw new IllegalArgumentException
+                    ("Unsupported output encoding: " + encoding);
+            }
+            encoding = Charset.forName(encoding).name();
+        }
+        mOutputEncoding = encoding;
+    }
+
+    /**
+     * Returns the canonical name of the output encoding that literal text is
+     * pre-encoded with, or null if pre-encoding is disabled. The default
+     * setting is null.
+     */
+    public String getOutputEncoding() {
+        return mOutputEncoding;
+    }
+
     /**
      * Sets the ClassLoader to use to load classes with. If set to null,
      * then classes are loaded using Class.forName.
@@ -426,7 +671,8 @@ public class Compiler {
         if (mTemplateProviderMap == null) {
             try { getAllTemplateNames(true); }
             catch (IOException ioe) { 
-                mTemplateProviderMap = new HashMap<String, CompilationProvider>();
+                mTemplateProviderMap = Collections.synchronizedMap
+                    (new HashMap<String, CompilationProvider>());
             }
         }
     }
@@ -456,15 +702,17 @@ public class Compiler {
         
         if (mTemplateProviderMap == null) {
             synchronized (this) {
-                mTemplateProviderMap = new HashMap<String, CompilationProvider>();
+                Map<String, CompilationProvider> providerMap =
+                    new HashMap<String, CompilationProvider>();
                 for (CompilationProvider provider : mCompilationProviders) {
                     String[] templates = provider.getKnownTemplateNames(recurse);
                     for (String template : templates) {
-                        if (!mTemplateProviderMap.containsKey(template)) {
-                            mTemplateProviderMap.put(template, provider);
+                        if (!providerMap.containsKey(template)) {
+                            providerMap.put(template, provider);
                         }
                     }
                 }
+                mTemplateProviderMap = Collections.synchronizedMap(providerMap);
             }
         }
         
@@ -544,36 +792,71 @@ public class Compiler {
     }
     
     protected String[] compile0(String[] names) throws IOException {
-        synchronized (mParseTreeMap) {
-            for (int i=0; i<names.length; i++) {
-                if(Thread.interrupted()) {
-                    break;
+        if (mParallelism > 1 && names.length > 1) {
+            synchronized (mScheduled) {
+                try {
+                    new ParallelCompile(names).compile();
+                } finally {
+                    releaseInlineableTrees();
                 }
-                dispatchCompileStatus(new StatusEvent(this, i, names.length,
-                        names[i]));
-                CompilationUnit unit = getCompilationUnit(names[i], null);
-                if (unit == null) {
-                    String msg = mFormatter.format("not.found", names[i]);
-                    dispatchCompileError(new CompileEvent(this, 
-                        CompileEvent.Type.ERROR, msg, (SourceInfo) null, null));
-                } else if (!mCompiled.contains(names[i]) &&
-                        unit.shouldCompile()) {
-                    mParseTreeMap.remove(names[i]);
-                    getParseTree(unit);
+            }
+        }
+        else {
+            synchronized (mParseTreeMap) {
+                try {
+                    compileEach(names);
+                } finally {
+                    releaseInlineableTrees();
                 }
             }
         }
 
-        names = new String[mCompiled.size()];
-        Iterator<String> it = mCompiled.iterator();
-        int i = 0;
-        while (it.hasNext()) {
-            names[i++] = it.next();
+        synchronized (mCompiled) {
+            names = new String[mCompiled.size()];
+            Iterator<String> it = mCompiled.iterator();
+            int i = 0;
+            while (it.hasNext()) {
+                names[i++] = it.next();
+            }
         }
 
         return names;
     }
 
+    private void compileEach(String[] names) throws IOException {
+        for (int i=0; i<names.length; i++) {
+            if(Thread.interrupted()) {
+                break;
+            }
+            dispatchCompileStatus(new StatusEvent(this, i,
+                    names.length, names[i]));
+            CompilationUnit unit = getCompilationUnit(names[i], null);
+            if (unit == null) {
+                String msg = mFormatter.format("not.found", names[i]);
+                dispatchCompileError(new CompileEvent(this, 
+                    CompileEvent.Type.ERROR, msg, (SourceInfo) null,
+                    null));
+            } else if (!mCompiled.contains(names[i]) &&
+                    unit.shouldCompile()) {
+                removeTree(names[i]);
+                getParseTree(unit);
+            }
+        }
+    }
+
+    /**
+     * Releases the parse trees kept for inlining. The signatures of those
+     * templates are removed as well, so that a later compile by this
+     * Compiler parses them again and inlines them just as a new Compiler
+     * would.
+     */
+    private void releaseInlineableTrees() {
+        for (String name : mInlineableTrees.keySet()) {
+            removeTree(name);
+        }
+        mInlineableTrees.clear();
+    }
+
     public int getErrorCount() {
         return mErrorCount;
     }
@@ -612,25 +895,27 @@ public class Compiler {
         if (fqName == null)
             return null;
 
-        CompilationUnit unit = mCompilationUnitMap.get(fqName);
-        if (unit == null) {
-            if (!compiled) {
-                unit = createCompilationUnit(fqName);
-                if (unit != null)
-                    mCompilationUnitMap.put(fqName, unit);
-            } else {
-                unit = new CompiledTemplate(name, this, from);
-                // if the CompiledTemplate class was precompiled (is valid) return the unit, otherwise return null to signify 'not found'
-                if( ((CompiledTemplate)unit).isValid() ) {
-                    mCompilationUnitMap.put(fqName, unit);
+        synchronized (mCompilationUnitMap) {
+            CompilationUnit unit = mCompilationUnitMap.get(fqName);
+            if (unit == null) {
+                if (!compiled) {
+                    unit = createCompilationUnit(fqName);
+                    if (unit != null)
+                        mCompilationUnitMap.put(fqName, unit);
                 } else {
-                    // TODO:  flag the template class for removal
-                    unit = null;
+                    unit = new CompiledTemplate(name, this, from);
+                    // if the CompiledTemplate class was precompiled (is valid) return the unit, otherwise return null to signify 'not found'
+                    if( ((CompiledTemplate)unit).isValid() ) {
+                        mCompilationUnitMap.put(fqName, unit);
+                    } else {
+                        // TODO:  flag the template class for removal
+                        unit = null;
+                    }
                 }
             }
-        }
 
-        return unit;
+            return unit;
+        }
     }
 
     /**
@@ -899,39 +1184,70 @@ public class Compiler {
      * generated.
      */
     public Template getParseTree(CompilationUnit unit) {
+        // Units owned by a parallel compile are only compiled by the thread
+        // that owns them, and only after the units they call. The parse tree
+        // map is still locked for each access, since the map passed to the
+        // constructor need not be thread-safe.
+        if (mScheduled.contains(unit.getName())) {
+            return getParseTree0(unit);
+        }
+
         synchronized (mParseTreeMap) {
             return getParseTree0(unit);
         }
     }
 
+    private Template getTree(String name) {
+        synchronized (mParseTreeMap) {
+            return mParseTreeMap.get(name);
+        }
+    }
+
+    private void putTree(String name, Template tree) {
+        synchronized (mParseTreeMap) {
+            mParseTreeMap.put(name, tree);
+        }
+    }
+
+    private void removeTree(String name) {
+        synchronized (mParseTreeMap) {
+            mParseTreeMap.remove(name);
+        }
+    }
+
     private Template getParseTree0(CompilationUnit unit) {
         String name = unit.getName();
-        Template tree = mParseTreeMap.get(name);
-        if (tree != null) {
+        Template tree = getTree(name);
+        if (tree != null && !mParsedOnly.remove(name)) {
             return tree;
         }
 
+        List<CompilationUnit> activeUnits = mActiveUnits.get();
+        mInlineableTrees.remove(name);
+        Template inlineable = null;
+
         try {
             // Parse and type check the parse tree.
 
             // Direct all compile events into the CompilationUnit.
-            // Remove the unit as an CompileListener in the finally block
+            // Remove the unit from the active units in the finally block
             // at the end of this method.
-            addCompileListener(unit);
+            activeUnits.add(unit);
 
-            try {
-                Scanner s = createScanner(createSourceReader(unit), unit);
-                s.addCompileListener(mCompileListener);
-                Parser p = createParser(s, unit);
-                p.addCompileListener(mCompileListener);
-                tree = p.parse();
-                mParseTreeMap.put(name, tree);
-                s.close();
-            } catch (IOException e) {
-                uncaughtException(e);
-                String msg = mFormatter.format("read.error", e.toString());
-                dispatchCompileError(new CompileEvent(this, 
-                    CompileEvent.Type.ERROR, msg, (SourceInfo) null, unit));
+            if (tree == null) {
+                try {
+                    tree = parse(unit);
+                } catch (IOException e) {
+                    uncaughtException(e);
+                    String msg = mFormatter.format("read.error", e.toString());
+                    dispatchCompileError(new CompileEvent(this, 
+                        CompileEvent.Type.ERROR, msg, (SourceInfo) null, unit));
+                    tree = getTree(name);
+                    return tree;
+                }
+            }
+
+            if (reuseClassFile(unit, tree)) {
                 return tree;
             }
 
@@ -940,10 +1256,16 @@ public class Compiler {
             tc.addCompileListener(mCompileListener);
             tc.typeCheck();
 
-            if (mCompiled.contains(name) || !unit.shouldCompile()) {
+            // Callers inline the template as written, whether or not it is
+            // compiled itself, so the tree is copied before it is optimized.
+            if (mInlineThreshold > 0 && unit.getErrorCount() == 0 &&
+                TemplateCallInliner.isInlineable(tree, mInlineThreshold)) {
+                inlineable = (Template)tree.clone();
+            }
+
+            if (mCompiled.contains(name) || !unit.shouldCompile() ||
+                !mCompiled.add(name)) {
                 return tree;
-            } else {
-                mCompiled.add(name);
             }
 
             // Code generate the CompilationUnit only if no errors and
@@ -954,18 +1276,43 @@ public class Compiler {
                 try {
                     out = unit.getOutputStream();
                     if (out != null) {
-                        tree = (Template)new BasicOptimizer(tree).optimize();
-                        mParseTreeMap.put(name, tree);
+                        if (mInlineThreshold > 0) {
+                            tree = new TemplateCallInliner(this, tree).inline();
+                        }
+                        BasicOptimizer optimizer = new BasicOptimizer(tree);
+                        tree = (Template)optimizer.optimize();
+                        tree = new CommonLookupEliminator
+                            (tree, mAssumePureLookups).eliminate();
+                        tree = new LoopInvariantHoister
+                            (tree, mAssumePureLookups).hoist();
+                        putTree(name, tree);
 
                         CodeGenerator codegen = createCodeGenerator(unit);
                         codegen.addCompileListener(mCompileListener);
-                        codegen.writeTo(out);
+                        ByteArrayOutputStream classFile = null;
+                        if (mCompileCache != null) {
+                            classFile = new ByteArrayOutputStream(4096);
+                            codegen.writeTo(classFile);
+                            classFile.writeTo(out);
+                        }
+                        else {
+                            codegen.writeTo(out);
+                        }
                         out.flush();
                         out.close();
                         
                         // sync times so class file matches last modified of
                         // source file to ensure times are in sync
                         unit.syncTimes();
+
+                        // Folded calls aren't referenced by the class file,
+                        // so it can't be checked against their classes.
+                        // Templates inlined into their callers are always
+                        // type checked, so their class files aren't reused.
+                        if (classFile != null && !optimizer.isCallFolded() &&
+                            inlineable == null) {
+                            storeClassFile(unit, tree, classFile.toByteArray());
+                        }
                     }
                 } catch (Throwable e) {
                     // attempt to close stream
@@ -999,7 +1346,12 @@ public class Compiler {
             dispatchCompileError(new CompileEvent(this, 
                 CompileEvent.Type.ERROR, msg, (SourceInfo) null, unit));
         } finally {
-            removeCompileListener(unit);
+            activeUnits.remove(activeUnits.size() - 1);
+            // The tree is only offered for inlining once compiled, so a
+            // template never inlines itself.
+            if (inlineable != null) {
+                mInlineableTrees.put(name, inlineable);
+            }
             // Conserve memory by removing the bulk of the parse tree after
             // compilation. This preserves the signature for templates that
             // may need to call this one.
@@ -1012,4 +1364,709 @@ public class Compiler {
         return tree;
     }
 
+    /**
+     * Parses the given unit and puts the parse tree into the parse tree map.
+     * The caller must direct compile events into the unit.
+     */
+    private Template parse(CompilationUnit unit) throws IOException {
+        String name = unit.getName();
+        String hash = null;
+        if (mCompileCache != null) {
+            hash = CompileCache.hash(unit.getReader());
+            CompileCache.Entry entry = mCompileCache.get(name);
+            if (entry != null && entry.matches(hash, getClass().getName())) {
+                Template tree = null;
+                try {
+                    tree = entry.getParseTree(getClass().getClassLoader());
+                } catch (IOException e) {
+                    // Parse the source instead.
+                }
+                if (tree != null) {
+                    mCacheEntries.put(name, entry);
+                    putTree(name, tree);
+                    return tree;
+                }
+            }
+        }
+
+        int errorCount = unit.getErrorCount();
+        int warningCount = unit.getWarningCount();
+
+        Scanner s = createScanner(createSourceReader(unit), unit);
+        s.addCompileListener(mCompileListener);
+        Parser p = createParser(s, unit);
+        p.addCompileListener(mCompileListener);
+        Template tree = p.parse();
+        putTree(name, tree);
+        s.close();
+
+        // Only cache parse trees that are free of errors and warnings, since
+        // a cached parse tree reports none.
+        if (hash != null && tree != null &&
+            unit.getErrorCount() == errorCount &&
+            unit.getWarningCount() == warningCount) {
+            try {
+                CompileCache.Entry entry =
+                    new CompileCache.Entry(hash, getClass().getName(), tree);
+                mCacheEntries.put(name, entry);
+                mCompileCache.put(name, entry);
+            } catch (NotSerializableException e) {
+                // Not cached.
+            }
+        }
+
+        return tree;
+    }
+
+    /**
+     * Writes the class file cached for the given unit instead of type
+     * checking the unit and generating code, if the class file was generated
+     * with the same settings and everything it refers to is unchanged. Only
+     * the template signature is type checked. Returns false if the unit
+     * must be compiled normally.
+     */
+    private boolean reuseClassFile(CompilationUnit unit, Template tree) {
+
+        String name = unit.getName();
+        CompileCache.Entry entry = mCacheEntries.get(name);
+        if (entry == null || !mGenerateCode || mCompiled.contains(name) ||
+            !unit.shouldCompile() ||
+            (mPreserveTree != null && mPreserveTree.contains(name)) ||
+            !entry.hasClassFile(getCacheSettings())) {
+            return false;
+        }
+
+        // Resolve the parameter types, without reporting errors. The unit is
+        // compiled normally if they cannot be resolved.
+        Statement stmt = tree.getStatement();
+        TypeChecker tc = createTypeChecker(unit);
+        tree.setStatement(null);
+        try {
+            tc.new Visitor().check(tree);
+        } finally {
+            tree.setStatement(stmt);
+        }
+        if (tc.getErrorCount() > 0 || tc.getWarningCount() > 0) {
+            return false;
+        }
+
+        // Every template called must resolve to the template called or
+        // inlined by the class file.
+        Class<?> context = getRuntimeContext();
+        Map<String, String> references =
+            entry.getReferences(context.getName());
+        Map<String, String> inlined = entry.getInlined();
+        for (String target : findCalls(tree)) {
+            CompilationUnit callee = getCompilationUnit(target, unit);
+            if (callee == null) {
+                return false;
+            }
+            String className = callee.getName();
+            if (callee.getTargetPackage() != null) {
+                className = callee.getTargetPackage() + '.' + className;
+            }
+            if (!references.containsKey("method " + className + " execute") &&
+                !inlined.containsKey(callee.getName())) {
+                return false;
+            }
+        }
+
+        for (Map.Entry<String, String> reference : references.entrySet()) {
+            if (!reference.getValue().equals
+                (describeReference(reference.getKey()))) {
+                return false;
+            }
+        }
+
+        for (Map.Entry<String, String> template : inlined.entrySet()) {
+            CompilationUnit callee = getCompilationUnit(template.getKey());
+            if (callee == null || mActiveUnits.get().contains(callee)) {
+                return false;
+            }
+            getParseTree(callee);
+            CompileCache.Entry calleeEntry = mCacheEntries.get(callee.getName());
+            if (calleeEntry == null ||
+                !calleeEntry.getSourceHash().equals(template.getValue())) {
+                return false;
+            }
+        }
+
+        byte[] classFile;
+        try {
+            classFile = CompileCache.rename(entry.getClassFile(),
+                                            entry.getContextName(),
+                                            context.getName());
+        } catch (IOException e) {
+            return false;
+        }
+
+        // The return type is not known without type checking the statement,
+        // and so it is read from the class file, along with the parameter
+        // types it was compiled with.
+        Method execute = getExecuteMethod(classFile, unit.getClassName());
+        if (execute == null) {
+            return false;
+        }
+
+        Variable[] params = tree.getParams();
+        Class<?>[] paramTypes = execute.getParameterTypes();
+        int count = params.length + (tree.hasSubstitutionParam() ? 2 : 1);
+        if (paramTypes.length != count || paramTypes[0] != context) {
+            return false;
+        }
+        for (int i = 0; i < params.length; i++) {
+            if (params[i].getType() == null || !paramTypes[i + 1].getName()
+                .equals(params[i].getType().getNaturalClass().getName())) {
+                return false;
+            }
+        }
+
+        if (!mCompiled.add(name)) {
+            return false;
+        }
+
+        OutputStream out = null;
+        try {
+            out = unit.getOutputStream();
+            out.write(classFile);
+            out.close();
+        } catch (IOException e) {
+            if (out != null) {
+                try { out.close(); }
+                catch (IOException err) { uncaughtException(err); }
+            }
+            unit.resetOutputStream();
+            mCompiled.remove(name);
+            return false;
+        }
+        unit.syncTimes();
+
+        if (execute.getReturnType() == void.class) {
+            tree.setReturnType(Type.VOID_TYPE);
+        } else {
+            tree.setReturnType(new Type(execute.getReturnType(),
+                                        execute.getGenericReturnType()));
+        }
+
+        // Only the signature is needed by the templates that call this one,
+        // and the statement is not type checked.
+        tree.setStatement(null);
+        return true;
+    }
+
+    /**
+     * Caches the class file generated for the given unit, if it compiled
+     * without errors or warnings and everything it refers to can be
+     * described.
+     */
+    private void storeClassFile(CompilationUnit unit, Template tree,
+                                byte[] classFile) throws IOException {
+
+        String name = unit.getName();
+        CompileCache.Entry entry = mCacheEntries.get(name);
+        if (entry == null ||
+            unit.getErrorCount() > 0 || unit.getWarningCount() > 0) {
+            return;
+        }
+
+        Map<String, String> references = new HashMap<String, String>();
+        for (String reference : CompileCache.getReferences(classFile)) {
+            String description = describeReference(reference);
+            if (description == null) {
+                return;
+            }
+            references.put(reference, description);
+        }
+
+        Map<String, String> inlined = new HashMap<String, String>();
+        for (String className : TemplateCallInliner.getInlinedTemplates(tree)) {
+            String calleeName = getTemplateName(className);
+            CompileCache.Entry calleeEntry =
+                (calleeName == null) ? null : mCacheEntries.get(calleeName);
+            if (calleeEntry == null) {
+                return;
+            }
+            inlined.put(calleeName, calleeEntry.getSourceHash());
+        }
+
+        entry = entry.withClassFile(getCacheSettings(),
+                                    getRuntimeContext().getName(),
+                                    classFile, references, inlined);
+        mCacheEntries.put(name, entry);
+        mCompileCache.put(name, entry);
+    }
+
+    /**
+     * Returns a description of what a class or member referred to by a
+     * cached class file currently resolves to, or null if it cannot be
+     * resolved.
+     *
+     * @see CompileCache#getReferences
+     */
+    private String describeReference(String reference) {
+        String[] parts = reference.split(" ");
+        String templateName = getTemplateName(parts[1]);
+        if (templateName != null) {
+            // Templates called in turn by the called template are not yet
+            // compiled, and so calls are only described once compiled.
+            CompilationUnit callee = getCompilationUnit(templateName);
+            if (callee == null || mActiveUnits.get().contains(callee)) {
+                return null;
+            }
+            if (parts[0].equals("class")) {
+                return "class";
+            }
+
+            Template tree = getParseTree(callee);
+            if (tree == null || callee.getErrorCount() > 0 ||
+                tree.getReturnType() == null || !parts[0].equals("method")) {
+                return null;
+            }
+
+            Variable[] params = tree.getParams();
+            TypeDesc[] paramTypes = new TypeDesc
+                [params.length + (tree.hasSubstitutionParam() ? 2 : 1)];
+            paramTypes[0] = TypeDesc.forClass(getRuntimeContext());
+            for (int i = 0; i < params.length; i++) {
+                paramTypes[i + 1] =
+                    TypeDesc.forClass(params[i].getType().getNaturalClass());
+            }
+            if (tree.hasSubstitutionParam()) {
+                paramTypes[paramTypes.length - 1] =
+                    TypeDesc.forClass(Substitution.class);
+            }
+
+            return "static " + parts[2] + MethodDesc.forArguments
+                (TypeDesc.forClass(tree.getReturnType().getNaturalClass()),
+                 paramTypes);
+        }
+
+        String description = mReferenceDescriptions.get(reference);
+        if (description == null) {
+            Class<?> context = getRuntimeContext();
+            Class<?> clazz = context;
+            try {
+                if (!parts[1].equals(context.getName())) {
+                    clazz = loadClass(parts[1]);
+
+                    // Functions are resolved against the runtime context,
+                    // even when declared by a superclass.
+                    if (parts[0].equals("method") &&
+                        !parts[2].equals("<init>") &&
+                        clazz.isAssignableFrom(context)) {
+                        clazz = context;
+                    }
+                }
+                if (clazz == context && parts[0].equals("class")) {
+                    // The functions of the runtime context are described
+                    // by reference, and a context replaced by a subclass
+                    // only differs by its supertypes.
+                    description = "class";
+                }
+                else {
+                    description = CompileCache.describe(reference, clazz);
+                }
+            } catch (ClassNotFoundException e) {
+                // Not resolved.
+            } catch (LinkageError e) {
+                // Not resolved.
+            }
+
+            if (description == null) {
+                description = "";
+            }
+            mReferenceDescriptions.put(reference, description);
+        }
+
+        return (description.length() == 0) ? null : description;
+    }
+
+    /**
+     * Returns the name of the template with source that the given class
+     * is generated from, or null if none.
+     */
+    private String getTemplateName(String className) {
+        String prefix = getRootPackage();
+        if (prefix != null && prefix.length() > 0) {
+            prefix = prefix + '.';
+            if (!className.startsWith(prefix)) {
+                return null;
+            }
+            className = className.substring(prefix.length());
+        }
+        return sourceExists(className) ? className : null;
+    }
+
+    /**
+     * Returns the settings that generated class files depend on.
+     */
+    private String getCacheSettings() {
+        return getRootPackage() + ';' + mClassFileVersion + ';' +
+            mExceptionGuardian + ';' + mOutputEncoding + ';' +
+            mInlineThreshold + ';' + mAssumePureLookups + ';' +
+            new TreeSet<String>(mImports) + ';' +
+            JavaClassGenerator.isProfilingEnabled(getRuntimeContext());
+    }
+
+    /**
+     * Defines the given class file in a new class loader, only to read the
+     * signature of its execute method. Returns null if it cannot be read.
+     */
+    private Method getExecuteMethod(final byte[] classFile,
+                                    final String className) {
+        final Class<?> context = getRuntimeContext();
+        ClassLoader parent = getClassLoader();
+        if (parent == null) {
+            parent = context.getClassLoader();
+        }
+
+        ClassLoader loader = new ClassLoader(parent) {
+            protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+
+                if (name.equals(context.getName())) {
+                    return context;
+                }
+                if (name.equals(className)) {
+                    synchronized (this) {
+                        Class<?> clazz = findLoadedClass(name);
+                        if (clazz == null) {
+                            clazz = defineClass
+                                (name, classFile, 0, classFile.length);
+                        }
+                        return clazz;
+                    }
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+
+        try {
+            Class<?> clazz = loader.loadClass(className);
+            for (Method method : clazz.getMethods()) {
+                if (method.getName().equals
+                    (JavaClassGenerator.EXECUTE_METHOD_NAME)) {
+                    return method;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // Not readable.
+        } catch (LinkageError e) {
+            // Not readable.
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the names of the templates called by the given parse tree.
+     */
+    private static Set<String> findCalls(Template tree) {
+        final Set<String> calls = new LinkedHashSet<String>();
+        tree.accept(new TreeWalker() {
+            public Object visit(TemplateCallExpression node) {
+                calls.add(node.getTarget().getName());
+                return super.visit(node);
+            }
+        });
+        return calls;
+    }
+
+    /**
+     * Compiles a set of templates using multiple threads. Every template
+     * that may be reached through template calls is parsed first, which is
+     * enough to discover the call graph. Templates are then type checked and
+     * code generated in call order: each group of templates that call each
+     * other recursively is compiled by one thread, once all the templates the
+     * group calls have been compiled. Templates that do not depend on each
+     * other are therefore compiled concurrently, and no thread waits on
+     * another unless it needs a called template's signature.
+     */
+    private class ParallelCompile {
+        private final String[] mNames;
+
+        // Units to compile, in the order they were found.
+        private final Map<String, CompilationUnit> mUnits =
+            new LinkedHashMap<String, CompilationUnit>();
+
+        // Maps unit names to the names of the scheduled units they call.
+        private final Map<String, Set<String>> mCalls =
+            new HashMap<String, Set<String>>();
+
+        // Names of the units explicitly requested to be compiled.
+        private final Set<String> mRequested = new HashSet<String>();
+
+        private final AtomicInteger mProgress = new AtomicInteger();
+
+        private ExecutorService mExecutor;
+        private CountDownLatch mRemaining;
+
+        ParallelCompile(String[] names) {
+            mNames = names;
+        }
+
+        void compile() throws IOException {
+            mExecutor = Executors.newFixedThreadPool
+                (mParallelism, new CompilerThreadFactory());
+            try {
+                parseAll();
+                compileGroups(findGroups());
+            } catch (InterruptedException e) {
+                // Stop compiling, just as a sequential compile does.
+            } finally {
+                mExecutor.shutdownNow();
+                mScheduled.clear();
+                mParsedOnly.clear();
+            }
+        }
+
+        private void parseAll() throws InterruptedException {
+            List<CompilationUnit> pending = new ArrayList<CompilationUnit>();
+
+            for (int i=0; i<mNames.length; i++) {
+                String name = mNames[i];
+                CompilationUnit unit = getCompilationUnit(name, null);
+                if (unit == null) {
+                    String msg = mFormatter.format("not.found", name);
+                    dispatchCompileError(new CompileEvent(Compiler.this, 
+                        CompileEvent.Type.ERROR, msg, (SourceInfo) null, null));
+                } else if (!mCompiled.contains(name) && unit.shouldCompile() &&
+                           !mUnits.containsKey(name)) {
+                    removeTree(name);
+                    mRequested.add(name);
+                    schedule(unit, pending);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                List<Callable<Object>> tasks =
+                    new ArrayList<Callable<Object>>(pending.size());
+                for (final CompilationUnit unit : pending) {
+                    tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            preParse(unit);
+                            return null;
+                        }
+                    });
+                }
+
+                List<Future<Object>> results = mExecutor.invokeAll(tasks);
+                for (Future<Object> result : results) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        uncaughtException(e.getCause());
+                    }
+                }
+
+                // Schedule called templates that have no parse tree yet.
+                List<CompilationUnit> called = new ArrayList<CompilationUnit>();
+                for (CompilationUnit unit : pending) {
+                    Set<String> calls = new LinkedHashSet<String>();
+                    Template tree = getTree(unit.getName());
+                    if (tree != null) {
+                        for (String target : findCalls(tree)) {
+                            CompilationUnit callee =
+                                getCompilationUnit(target, unit);
+                            if (callee == null ||
+                                callee instanceof CompiledTemplate) {
+                                continue;
+                            }
+
+                            String calleeName = callee.getName();
+                            if (!mUnits.containsKey(calleeName) &&
+                                getTree(calleeName) == null) {
+                                schedule(callee, called);
+                            }
+                            if (mUnits.containsKey(calleeName)) {
+                                calls.add(calleeName);
+                            }
+                        }
+                    }
+                    mCalls.put(unit.getName(), calls);
+                }
+
+                pending = called;
+            }
+        }
+
+        private void schedule(CompilationUnit unit,
+                              List<CompilationUnit> pending) {
+            mUnits.put(unit.getName(), unit);
+            mScheduled.add(unit.getName());
+            pending.add(unit);
+        }
+
+        private void preParse(CompilationUnit unit) {
+            List<CompilationUnit> activeUnits = mActiveUnits.get();
+            activeUnits.add(unit);
+            try {
+                if (parse(unit) != null) {
+                    mParsedOnly.add(unit.getName());
+                }
+            } catch (IOException e) {
+                uncaughtException(e);
+                String msg = mFormatter.format("read.error", e.toString());
+                dispatchCompileError(new CompileEvent(Compiler.this, 
+                    CompileEvent.Type.ERROR, msg, (SourceInfo) null, unit));
+            } catch (Throwable e) {
+                uncaughtException(e);
+                String msg = mFormatter.format("internal.error", e.toString());
+                dispatchCompileError(new CompileEvent(Compiler.this, 
+                    CompileEvent.Type.ERROR, msg, (SourceInfo) null, unit));
+            } finally {
+                activeUnits.remove(activeUnits.size() - 1);
+            }
+        }
+
+        /**
+         * Groups the units into strongly connected components of the call
+         * graph, using Tarjan's algorithm. Groups are returned such that
+         * called groups come before their callers.
+         */
+        private List<Group> findGroups() {
+            Map<String, Group> groups = new HashMap<String, Group>();
+            List<Group> ordered = new ArrayList<Group>();
+
+            Map<String, Integer> index = new HashMap<String, Integer>();
+            Map<String, Integer> lowLink = new HashMap<String, Integer>();
+            List<String> stack = new ArrayList<String>();
+            Set<String> onStack = new HashSet<String>();
+
+            for (String name : mUnits.keySet()) {
+                if (!index.containsKey(name)) {
+                    connect(name, index, lowLink, stack, onStack,
+                            groups, ordered);
+                }
+            }
+
+            for (Group group : ordered) {
+                for (CompilationUnit unit : group.mMembers) {
+                    for (String callee : mCalls.get(unit.getName())) {
+                        Group called = groups.get(callee);
+                        if (called != group && called.mCallers.add(group)) {
+                            group.mWaiting.incrementAndGet();
+                        }
+                    }
+                }
+            }
+
+            return ordered;
+        }
+
+        private void connect(String name, Map<String, Integer> index,
+                             Map<String, Integer> lowLink, List<String> stack,
+                             Set<String> onStack, Map<String, Group> groups,
+                             List<Group> ordered) {
+            int next = index.size();
+            index.put(name, next);
+            lowLink.put(name, next);
+            stack.add(name);
+            onStack.add(name);
+
+            for (String callee : mCalls.get(name)) {
+                if (!index.containsKey(callee)) {
+                    connect(callee, index, lowLink, stack, onStack,
+                            groups, ordered);
+                    lowLink.put(name, Math.min(lowLink.get(name),
+                                               lowLink.get(callee)));
+                } else if (onStack.contains(callee)) {
+                    lowLink.put(name, Math.min(lowLink.get(name),
+                                               index.get(callee)));
+                }
+            }
+
+            if (lowLink.get(name).equals(index.get(name))) {
+                Set<String> members = new HashSet<String>();
+                String member;
+                do {
+                    member = stack.remove(stack.size() - 1);
+                    onStack.remove(member);
+                    members.add(member);
+                } while (!member.equals(name));
+
+                // Compile members in the order they were found.
+                Group group = new Group();
+                for (Map.Entry<String, CompilationUnit> entry :
+                         mUnits.entrySet()) {
+                    if (members.contains(entry.getKey())) {
+                        group.mMembers.add(entry.getValue());
+                        groups.put(entry.getKey(), group);
+                    }
+                }
+                ordered.add(group);
+            }
+        }
+
+        private void compileGroups(List<Group> groups)
+            throws InterruptedException {
+
+            // Find the groups that call nothing before starting any, since
+            // finished groups start their callers.
+            List<Group> ready = new ArrayList<Group>();
+            for (Group group : groups) {
+                if (group.mWaiting.get() == 0) {
+                    ready.add(group);
+                }
+            }
+
+            mRemaining = new CountDownLatch(groups.size());
+            for (Group group : ready) {
+                mExecutor.execute(group);
+            }
+            mRemaining.await();
+        }
+
+        /**
+         * Units that call each other recursively, compiled by one thread.
+         */
+        private class Group implements Runnable {
+            final List<CompilationUnit> mMembers =
+                new ArrayList<CompilationUnit>();
+
+            // Groups that call this one, and the number of groups this one
+            // is still waiting on.
+            final Set<Group> mCallers = new LinkedHashSet<Group>();
+            final AtomicInteger mWaiting = new AtomicInteger();
+
+            public void run() {
+                try {
+                    for (CompilationUnit unit : mMembers) {
+                        String name = unit.getName();
+                        if (mRequested.contains(name)) {
+                            dispatchCompileStatus(new StatusEvent
+                                (Compiler.this, mProgress.getAndIncrement(),
+                                 mNames.length, name));
+                        }
+                        // Units may have been compiled by a recursive call.
+                        if (mParsedOnly.contains(name)) {
+                            getParseTree(unit);
+                        }
+                    }
+                } finally {
+                    for (Group caller : mCallers) {
+                        if (caller.mWaiting.decrementAndGet() == 0) {
+                            try {
+                                mExecutor.execute(caller);
+                            } catch (RejectedExecutionException e) {
+                                // Compile was interrupted.
+                            }
+                        }
+                    }
+                    mRemaining.countDown();
+                }
+            }
+        }
+    }
+
+    private static class CompilerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger cThreadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread
+                (r, "Tea Compiler " + cThreadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
@@ -21,6 +21,10 @@ import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.TypeVariable;
 import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.teatrove.trove.util.ClassLoaderCache;
 
 /**
  * 
@@ -28,11 +32,26 @@ import java.lang.reflect.WildcardType;
  */
 public class Generics {
 
+    // Cached in place of a null result.
+    private static final Type NOT_FOUND = new Type(Void.class);
+
+    // Resolved types, shared by all threads.
+    private static final ClassLoaderCache<List<java.lang.reflect.Type>, Type>
+        cFoundTypes =
+        new ClassLoaderCache<List<java.lang.reflect.Type>, Type>();
+
+    private static final ClassLoaderCache<java.lang.reflect.Type, Type>
+        cIterationTypes =
+        new ClassLoaderCache<java.lang.reflect.Type, Type>();
+
+    private static final ClassLoaderCache<java.lang.reflect.Type, Type>
+        cValueTypes =
+        new ClassLoaderCache<java.lang.reflect.Type, Type>();
+
     private Generics() {
         super();
     }
 
-    @SuppressWarnings("rawtypes")
     public static Type findType(Type type, Type... parents) {
 
         // ignore if no parent type
@@ -40,6 +59,31 @@ public class Generics {
             return null;
         }
 
+        // the result only depends on the generic type and on the classes
+        // and generic types of the parents
+        List<java.lang.reflect.Type> key =
+            new ArrayList<java.lang.reflect.Type>(parents.length * 2 + 1);
+        key.add(type.getGenericClass());
+        for (Type parent : parents) {
+            key.add(parent.getObjectClass());
+            key.add(parent.getGenericClass());
+        }
+
+        java.lang.reflect.Type[] types =
+            key.toArray(new java.lang.reflect.Type[key.size()]);
+        Type result = cFoundTypes.get(key, types);
+        if (result == null) {
+            result = createFoundType(type, parents);
+            result = cFoundTypes.putIfAbsent
+                (key, result == null ? NOT_FOUND : result, types);
+        }
+
+        return (result == NOT_FOUND) ? null : result;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Type createFoundType(Type type, Type... parents) {
+
         // get generic types and verify type variable
         java.lang.reflect.Type ttype = type.getGenericClass();
         if (!(ttype instanceof TypeVariable)) {
@@ -228,8 +272,22 @@ public class Generics {
         return getIterationType(type.getGenericClass());
     }
 
-    @SuppressWarnings("rawtypes")
     public static Type getIterationType(java.lang.reflect.Type generic) {
+        if (generic == null) {
+            return Type.OBJECT_TYPE;
+        }
+
+        Type result = cIterationTypes.get(generic, generic);
+        if (result == null) {
+            result = cIterationTypes.putIfAbsent
+                (generic, createIterationType(generic), generic);
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Type createIterationType(java.lang.reflect.Type generic) {
 
         // handle parameterized cases (List<E>)
         if (generic instanceof ParameterizedType) {
@@ -292,8 +350,22 @@ public class Generics {
         return getValueType(type.getGenericClass());
     }
 
-    @SuppressWarnings("rawtypes")
     public static Type getValueType(java.lang.reflect.Type generic) {
+        if (generic == null) {
+            return Type.OBJECT_TYPE;
+        }
+
+        Type result = cValueTypes.get(generic, generic);
+        if (result == null) {
+            result = cValueTypes.putIfAbsent
+                (generic, createValueType(generic), generic);
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Type createValueType(java.lang.reflect.Type generic) {
 
         // handle parameterized cases (List<E>)
         if (generic instanceof ParameterizedType) {
@@ -34,6 +34,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 
 import org.teatrove.tea.parsetree.AndExpression;
 import org.teatrove.tea.parsetree.ArithmeticExpression;
@@ -85,10 +87,13 @@ import org.teatrove.tea.parsetree.TypeName;
 import org.teatrove.tea.parsetree.Variable;
 import org.teatrove.tea.parsetree.VariableRef;
 import org.teatrove.tea.runtime.Context;
+import org.teatrove.tea.runtime.EncodedOutputReceiver;
+import org.teatrove.tea.runtime.InlinedTemplates;
 import org.teatrove.tea.runtime.Substitution;
 import org.teatrove.tea.runtime.SubstitutionId;
 import org.teatrove.tea.runtime.Truthful;
 import org.teatrove.tea.runtime.WrapperTypeConversionUtil;
+import org.teatrove.trove.classfile.Annotation;
 import org.teatrove.trove.classfile.ClassFile;
 import org.teatrove.trove.classfile.CodeBuilder;
 import org.teatrove.trove.classfile.Label;
@@ -253,12 +258,35 @@ public class JavaClassGenerator extends CodeGenerator {
     private List<Object> mInitializerStatements =
         new ArrayList<Object>();
 
+    // Canonical output encoding to pre-encode literal text with, or null if
+    // literals are printed as Strings.
+    private String mOutputEncoding;
+
+    // True if the runtime context type is an EncodedOutputReceiver. If not,
+    // the context is checked with instanceof where literals are printed.
+    private boolean mEncodedContext;
+
+    // Subroutines may only be used by class file versions before 51.
+    private int mClassFileVersion;
+
+    // Maps literal Strings to the static byte array fields that hold their
+    // pre-encoded form. Fields are initialized in order of first use.
+    private Map<String, String> mEncodedLiterals =
+        new LinkedHashMap<String, String>();
+
     private MessageFormatter mFormatter;
 
     public JavaClassGenerator(CompilationUnit unit) {
         super(unit.getParseTree());
         mUnit = unit;
         mFormatter = MessageFormatter.lookup(this);
+
+        Compiler c = unit.getCompiler();
+        if (c != null && c.getOutputEncoding() != null) {
+            mOutputEncoding = c.getOutputEncoding();
+            mEncodedContext = EncodedOutputReceiver.class.isAssignableFrom
+                (unit.getRuntimeContext());
+        }
     }
 
     @SuppressWarnings("unused")
@@ -365,6 +393,15 @@ public class JavaClassGenerator extends CodeGenerator {
         ClassFile classFile = new ClassFile(className);
         classFile.getModifiers().setFinal(true);
 
+        Compiler c = mUnit.getCompiler();
+        if (c != null) {
+            classFile.setVersion(c.getClassFileVersion(), 0);
+            if (c.getClassLoader() != null) {
+                classFile.setClassLoader(c.getClassLoader());
+            }
+        }
+        mClassFileVersion = classFile.getMajorVersion();
+
         String sourceFile = mUnit.getSourcePath();
         if (sourceFile != null) {
             classFile.setSourceFile(sourceFile);
@@ -398,11 +435,35 @@ public class JavaClassGenerator extends CodeGenerator {
         });
 
         generateTemplate(t, className, classFile);
+        generateInlinedTemplates(t, classFile);
 
         classFile.writeTo(out);
         out.flush();
     }
 
+    /**
+     * Records the templates inlined into the given template in an
+     * {@link InlinedTemplates} annotation, so that they are known to be
+     * dependencies even though they are not called.
+     */
+    protected void generateInlinedTemplates(Template t, ClassFile classFile) {
+        Set<String> inlined = TemplateCallInliner.getInlinedTemplates(t);
+        if (inlined.isEmpty()) {
+            return;
+        }
+
+        Annotation ann = classFile.addRuntimeVisibleAnnotation
+            (TypeDesc.forClass(InlinedTemplates.class));
+
+        Annotation.MemberValue[] values =
+            new Annotation.MemberValue[inlined.size()];
+        int i = 0;
+        for (String name : inlined) {
+            values[i++] = ann.makeMemberValue(name);
+        }
+        ann.putMemberValue("value", values);
+    }
+
     protected void generateTemplateParameters(Template t, ClassFile classFile) {
 
         // Build the static getTemplateParameterNames method.
@@ -696,7 +757,8 @@ public class JavaClassGenerator extends CodeGenerator {
 
         // Build static initializer, if required.
 
-        if (mInitializerStatements.size() > 0) {
+        if (mInitializerStatements.size() > 0 ||
+            mEncodedLiterals.size() > 0) {
             mi = classFile.addInitializer();
             builder = new CodeBuilder(mi);
 
@@ -707,6 +769,44 @@ public class JavaClassGenerator extends CodeGenerator {
                 gen.generateNormalFormat(builder, stmt);
             }
 
+            // Encode the literals the same way as the runtime buffers do,
+            // so that the bytes match what would have been appended.
+            // ISO-8859-1 keeps the low 8 bits of each char, as
+            // FastCharToByteBuffer does, rather than replacing unmappable
+            // chars. Other encodings replace them, as an OutputStreamWriter
+            // does.
+            TypeDesc byteArrayDesc = TypeDesc.BYTE.toArrayType();
+            TypeDesc[] getBytesParams = { TypeDesc.STRING };
+            TypeDesc[] getLowBytesParams = {
+                TypeDesc.INT, TypeDesc.INT, byteArrayDesc, TypeDesc.INT
+            };
+            boolean lowBytes = "ISO-8859-1".equals(mOutputEncoding);
+
+            for (Map.Entry<String, String> entry :
+                     mEncodedLiterals.entrySet()) {
+                String literal = entry.getKey();
+                if (lowBytes) {
+                    builder.loadConstant(literal.length());
+                    builder.newObject(byteArrayDesc);
+                    builder.storeStaticField(entry.getValue(), byteArrayDesc);
+                    builder.loadConstant(literal);
+                    builder.loadConstant(0);
+                    builder.loadConstant(literal.length());
+                    builder.loadStaticField(entry.getValue(), byteArrayDesc);
+                    builder.loadConstant(0);
+                    builder.invokeVirtual(String.class.getName(), "getBytes",
+                                          null, getLowBytesParams);
+                }
+                else {
+                    builder.loadConstant(literal);
+                    builder.loadConstant(mOutputEncoding);
+                    builder.invokeVirtual(String.class.getName(), "getBytes",
+                                          byteArrayDesc, getBytesParams);
+                    builder.storeStaticField
+                        (entry.getValue(), byteArrayDesc);
+                }
+            }
+
             builder.returnVoid();
         }
 
@@ -724,6 +824,32 @@ public class JavaClassGenerator extends CodeGenerator {
             TypeDesc td = makeDesc(v);
             classFile.addField(flags, v.getName(), td).markSynthetic();
         }
+
+        if (mEncodedLiterals.size() > 0) {
+            flags = new Modifiers();
+            flags.setPrivate(true);
+            flags.setStatic(true);
+            flags.setFinal(true);
+            TypeDesc byteArrayDesc = TypeDesc.BYTE.toArrayType();
+            for (String fieldName : mEncodedLiterals.values()) {
+                classFile.addField(flags, fieldName, byteArrayDesc)
+                    .markSynthetic();
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the static field that holds the pre-encoded form
+     * of the given literal, defining a new field if required. Field names
+     * begin with '$', which cannot conflict with a template variable.
+     */
+    private String getEncodedLiteralField(String literal) {
+        String fieldName = mEncodedLiterals.get(literal);
+        if (fieldName == null) {
+            fieldName = "$literal$" + mEncodedLiterals.size();
+            mEncodedLiterals.put(literal, fieldName);
+        }
+        return fieldName;
     }
 
     private class Visitor implements NodeVisitor {
@@ -989,6 +1115,33 @@ public class JavaClassGenerator extends CodeGenerator {
                 return;
             }
 
+            TypeDesc throwableDesc = makeDesc(Throwable.class);
+            TypeDesc threadDesc = makeDesc(Thread.class);
+
+            LocalVariable exception =
+                mBuilder.createLocalVariable("e", throwableDesc);
+            LocalVariable thread =
+                mBuilder.createLocalVariable("t", threadDesc);
+
+            if (mClassFileVersion >= 51) {
+                // Subroutines are not allowed, so the exception is passed to
+                // ThreadGroup.uncaughtException within each handler.
+                for (int i=0; i<size; i++) {
+                    GuardHandler gh = mExceptionGuardHandlers.get(i);
+                    mBuilder.exceptionHandler(gh.tryStart, gh.tryEnd,
+                                              "java.lang.RuntimeException");
+                    mBuilder.storeLocal(exception);
+                    generateUncaughtException(exception, thread);
+
+                    if (gh.replacement != null) {
+                        generate(gh.replacement);
+                    }
+
+                    mBuilder.branch(gh.tryEnd);
+                }
+                return;
+            }
+
             Label dumpException = mBuilder.createLabel();
 
             for (int i=0; i<size; i++) {
@@ -1007,19 +1160,8 @@ public class JavaClassGenerator extends CodeGenerator {
 
             dumpException.setLocation();
 
-            // Generate code to pass caught exception to
-            // ThreadGroup.uncaughtException.
-
-            TypeDesc throwableDesc = makeDesc(Throwable.class);
-            TypeDesc threadDesc = makeDesc(Thread.class);
-            TypeDesc threadGroupDesc = makeDesc(ThreadGroup.class);
-
-            LocalVariable exception =
-                mBuilder.createLocalVariable("e", throwableDesc);
             LocalVariable retAddr =
                 mBuilder.createLocalVariable("addr", TypeDesc.OBJECT);
-            LocalVariable thread =
-                mBuilder.createLocalVariable("t", threadDesc);
 
             // Capture return address.
             mBuilder.storeLocal(retAddr);
@@ -1027,6 +1169,21 @@ public class JavaClassGenerator extends CodeGenerator {
             // Assume caller has placed exception on stack.
             mBuilder.storeLocal(exception);
 
+            generateUncaughtException(exception, thread);
+
+            mBuilder.ret(retAddr);
+        }
+
+        /**
+         * Generates code to pass a caught exception to
+         * ThreadGroup.uncaughtException.
+         */
+        private void generateUncaughtException(LocalVariable exception,
+                                               LocalVariable thread) {
+            TypeDesc throwableDesc = makeDesc(Throwable.class);
+            TypeDesc threadDesc = makeDesc(Thread.class);
+            TypeDesc threadGroupDesc = makeDesc(ThreadGroup.class);
+
             mBuilder.invokeStatic("java.lang.Thread", "currentThread",
                                   threadDesc);
             mBuilder.storeLocal(thread);
@@ -1038,8 +1195,6 @@ public class JavaClassGenerator extends CodeGenerator {
             mBuilder.invokeVirtual
                 ("java.lang.ThreadGroup", "uncaughtException", null,
                  new TypeDesc[]{threadDesc, throwableDesc});
-
-            mBuilder.ret(retAddr);
         }
 
         //
@@ -1325,6 +1480,17 @@ public class JavaClassGenerator extends CodeGenerator {
         public Object visit(ExpressionStatement node) {
             Method receiver = node.getReceiverMethod();
 
+            if (isEncodedLiteral(node)) {
+                generateEncodedLiteral
+                    (receiver, (StringLiteral)node.getExpression());
+                return null;
+            }
+
+            if (isPrintedConcatenation(node)) {
+                generatePrintedConcatenation(receiver, node.getExpression());
+                return null;
+            }
+
             if (receiver != null &&
                 !Modifier.isStatic(receiver.getModifiers())) {
                 generateContext();
@@ -1333,22 +1499,26 @@ public class JavaClassGenerator extends CodeGenerator {
             generate(node.getExpression());
 
             if (receiver != null) {
-                mBuilder.invoke(receiver);
-
-                Class<?> retType = receiver.getReturnType();
-                if (retType != null && retType != void.class) {
-                    if (makeDesc(retType).isDoubleWord()) {
-                        mBuilder.pop2();
-                    }
-                    else {
-                        mBuilder.pop();
-                    }
-                }
+                generateReceiverCall(receiver);
             }
 
             return null;
         }
 
+        private void generateReceiverCall(Method receiver) {
+            mBuilder.invoke(receiver);
+
+            Class<?> retType = receiver.getReturnType();
+            if (retType != null && retType != void.class) {
+                if (makeDesc(retType).isDoubleWord()) {
+                    mBuilder.pop2();
+                }
+                else {
+                    mBuilder.pop();
+                }
+            }
+        }
+
         public Object visit(ReturnStatement node) {
             Expression expr = node.getExpression();
 
@@ -2625,6 +2795,145 @@ public class JavaClassGenerator extends CodeGenerator {
             }
         }
 
+        /**
+         * Returns true if the given statement prints a non-empty String
+         * literal that can be emitted in pre-encoded form. The receiver must
+         * accept the literal unconverted, so that the runtime fallback of
+         * printing the String is equivalent.
+         */
+        private boolean isEncodedLiteral(ExpressionStatement node) {
+            if (mOutputEncoding == null) {
+                return false;
+            }
+
+            Expression expr = node.getExpression();
+            if (!(expr instanceof StringLiteral) ||
+                !(expr.getValue() instanceof String) ||
+                ((String)expr.getValue()).length() == 0) {
+                return false;
+            }
+
+            Method receiver = node.getReceiverMethod();
+            return receiver != null &&
+                !Modifier.isStatic(receiver.getModifiers()) &&
+                receiver.getParameterTypes()[0].isAssignableFrom(String.class);
+        }
+
+        /**
+         * Returns true if the given statement prints a concatenation that
+         * can instead be printed one operand at a time, without building the
+         * concatenated String. The type checker already splits up most
+         * printed concatenations into separate statements, but not those
+         * enclosed in parenthesis. The receiver must accept a String
+         * unconverted.
+         */
+        private boolean isPrintedConcatenation(ExpressionStatement node) {
+            Method receiver = node.getReceiverMethod();
+            return receiver != null &&
+                unwrap(node.getExpression()) instanceof ConcatenateExpression &&
+                receiver.getParameterTypes()[0].isAssignableFrom(String.class);
+        }
+
+        /**
+         * Prints each operand of the concatenation with its own receiver
+         * call. Every operand has already been converted into a non-null
+         * String, so the output is the same as printing the concatenated
+         * result.
+         */
+        private void generatePrintedConcatenation(Method receiver,
+                                                  Expression expr) {
+            List<Expression> operands = new ArrayList<Expression>();
+            addConcatenatedOperands(expr, operands);
+
+            boolean isStatic = Modifier.isStatic(receiver.getModifiers());
+            boolean encoded = mOutputEncoding != null && !isStatic;
+
+            for (Expression operand : operands) {
+                if (operand instanceof StringLiteral &&
+                    operand.getValue() instanceof String) {
+
+                    String literal = (String)operand.getValue();
+                    if (literal.length() == 0) {
+                        continue;
+                    }
+                    else if (encoded) {
+                        generateEncodedLiteral
+                            (receiver, (StringLiteral)operand);
+                        continue;
+                    }
+                }
+
+                if (!isStatic) {
+                    generateContext();
+                }
+                generate(operand);
+                generateReceiverCall(receiver);
+            }
+        }
+
+        private void addConcatenatedOperands(Expression expr,
+                                             List<Expression> operands) {
+            Expression unwrapped = unwrap(expr);
+            if (unwrapped instanceof ConcatenateExpression) {
+                ConcatenateExpression concat =
+                    (ConcatenateExpression)unwrapped;
+                addConcatenatedOperands(concat.getLeftExpression(), operands);
+                addConcatenatedOperands(concat.getRightExpression(), operands);
+            }
+            else {
+                operands.add(expr);
+            }
+        }
+
+        private Expression unwrap(Expression expr) {
+            while (expr instanceof ParenExpression) {
+                expr = ((ParenExpression)expr).getExpression();
+            }
+            return expr;
+        }
+
+        private void generateEncodedLiteral(Method receiver,
+                                            StringLiteral node) {
+            String literal = (String)node.getValue();
+            TypeDesc byteArrayDesc = TypeDesc.BYTE.toArrayType();
+            TypeDesc receiverDesc =
+                TypeDesc.forClass(EncodedOutputReceiver.class);
+
+            // Contexts that are not known to be EncodedOutputReceivers are
+            // checked, and otherwise print the literal as usual.
+            Label printLabel = null;
+            Label endLabel = null;
+            generateContext();
+            if (!mEncodedContext) {
+                printLabel = mBuilder.createLabel();
+                endLabel = mBuilder.createLabel();
+                mBuilder.instanceOf(receiverDesc);
+                mBuilder.ifZeroComparisonBranch(printLabel, "==");
+                generateContext();
+                mBuilder.checkCast(receiverDesc);
+            }
+
+            mBuilder.loadConstant(literal);
+            mBuilder.loadStaticField
+                (getEncodedLiteralField(literal), byteArrayDesc);
+            mBuilder.loadConstant(mOutputEncoding);
+
+            TypeDesc[] params = {
+                TypeDesc.STRING, byteArrayDesc, TypeDesc.STRING
+            };
+            mBuilder.invokeInterface(EncodedOutputReceiver.class.getName(),
+                                     "writeEncoded", null, params);
+
+            if (!mEncodedContext) {
+                mBuilder.branch(endLabel);
+                printLabel.setLocation();
+                generateContext();
+                mBuilder.loadConstant(literal);
+                generateReceiverCall(receiver);
+                endLabel.setLocation();
+            }
+        }
+
         private void generateBranch(Expression expr, Label label,
                                     boolean whenTrue) {
             generateBranch(expr, label, whenTrue, false);
@@ -3889,6 +4198,7 @@ public class JavaClassGenerator extends CodeGenerator {
         private void generateForeachArray(ForeachStatement node) {
             Expression range = node.getRange();
             Statement init = node.getInitializer();
+            Statement invariants = node.getInvariants();
             Statement body = node.getBody();
 
             // Holds the loop index value.
@@ -3937,6 +4247,18 @@ public class JavaClassGenerator extends CodeGenerator {
                 mBuilder.storeLocal(indexLocal);
             }
 
+            if (invariants != null && body != null) {
+                // Skip the invariants if the array is empty.
+                if (!node.isReverse()) {
+                    mBuilder.loadLocal(endIndexLocal);
+                }
+                else {
+                    mBuilder.loadLocal(indexLocal);
+                }
+                mBuilder.ifZeroComparisonBranch(endLabel, "<=");
+                generate(invariants);
+            }
+
             Label checkLabel = mBuilder.createLabel();
             mBuilder.branch(checkLabel);
 
@@ -3994,32 +4316,18 @@ public class JavaClassGenerator extends CodeGenerator {
         private void generateForeachIterator(final ForeachStatement node) {
             Expression range = node.getRange();
             Statement init = node.getInitializer();
+            Statement invariants = node.getInvariants();
             Statement body = node.getBody();
 
-            // Allow Maps and Sets to be reverse iterable - Wrap it in an ArrayList
-            // This is a stack optimization to avoid creating a local variable
-            if (! "java.util.List".equals(range.getType().getNaturalClass().getName()) &&
-                    node.isReverse()) {
-                mBuilder.newObject(makeDesc(java.util.ArrayList.class));
-                mBuilder.dup();
-            }
+            final boolean reverse = node.isReverse();
+            boolean isMap =
+                Map.class.isAssignableFrom(range.getType().getNaturalClass());
 
-            // Put the range onto the stack
+            // Holds the range, which is replaced with the key Set of a Map.
+            LocalVariable rangeLocal = mBuilder.createLocalVariable
+                (null, makeDesc(range.getType(), false));
             generate(range);
-
-            // Convert the Map to a Set
-            if ("java.util.Map".equals(range.getType().getNaturalClass().getName()))
-                mBuilder.invokeInterface("java.util.Map", "keySet",
-                    makeDesc(java.util.Set.class));
-
-
-            // Allow Maps and Sets to be reverse iterable - invoke constructor on ArrayList.
-            // The overall cost for this is only incurred for Sets/Maps
-            if (! "java.util.List".equals(range.getType().getNaturalClass().getName()) &&
-                    node.isReverse()) {
-                mBuilder.invokeConstructor("java.util.ArrayList",
-                    new TypeDesc[] { makeDesc(java.util.Collection.class) });
-            }
+            mBuilder.storeLocal(rangeLocal);
 
             // Generate init right after the range is evaluated.
             if (init != null) {
@@ -4027,39 +4335,174 @@ public class JavaClassGenerator extends CodeGenerator {
             }
 
             Label endLabel = mBuilder.createLabel();
-            Label notNullLabel = mBuilder.createLabel();
 
             if (range.getType().isNullable()) {
                 // If range is null, just skip past the loop, avoiding a
                 // NullPointerException.
-                mBuilder.dup();
-                mBuilder.ifNullBranch(notNullLabel, false);
-                mBuilder.pop();
-                mBuilder.branch(endLabel);
+                mBuilder.loadLocal(rangeLocal);
+                mBuilder.ifNullBranch(endLabel, true);
             }
 
-            notNullLabel.setLocation();
+            // Convert the Map to a Set
+            if (isMap) {
+                LocalVariable keysLocal =
+                    mBuilder.createLocalVariable(null, makeDesc(Set.class));
+                mBuilder.loadLocal(rangeLocal);
+                mBuilder.invokeInterface("java.util.Map", "keySet",
+                    makeDesc(Set.class));
+                mBuilder.storeLocal(keysLocal);
+                rangeLocal = keysLocal;
+            }
+
+            // Lists that support fast random access are iterated by index,
+            // and everything else by an iterator, each in a loop of its own
+            // so that the choice is made once and not on every iteration.
+            // Loops whose body can't be generated twice always use an
+            // iterator (see isRepeatable). The indexed loop reads the size
+            // of the List only once, and so it doesn't detect concurrent
+            // modification as an iterator would: elements added during the
+            // loop are not visited, and removing elements leads to an
+            // IndexOutOfBoundsException instead of a
+            // ConcurrentModificationException.
+            boolean indexed = isRepeatable(invariants) && isRepeatable(body);
+            boolean iterated = true;
+
+            TypeDesc listDesc = makeDesc(List.class);
+            TypeDesc iteratorDesc = makeDesc
+                (reverse ? ListIterator.class : Iterator.class);
+
+            LocalVariable listLocal =
+                mBuilder.createLocalVariable(null, listDesc);
+            Label iterateLabel = mBuilder.createLabel();
+
+            if (!reverse) {
+                if (indexed && !isMap) {
+                    mBuilder.loadLocal(rangeLocal);
+                    mBuilder.instanceOf(makeDesc(RandomAccess.class));
+                    mBuilder.ifZeroComparisonBranch(iterateLabel, "==");
+                    mBuilder.loadLocal(rangeLocal);
+                    mBuilder.instanceOf(listDesc);
+                    mBuilder.ifZeroComparisonBranch(iterateLabel, "==");
+                    mBuilder.loadLocal(rangeLocal);
+                    mBuilder.checkCast(listDesc);
+                    mBuilder.storeLocal(listLocal);
+                    generateForeachLoop(node, listLocal, null, endLabel);
+                    mBuilder.branch(endLabel);
+                }
 
-            // TODO: if array, this fails to iterate
-            
-            TypeDesc td;
-            if (!node.isReverse()) {
-                td = makeDesc(Iterator.class);
+                iterateLabel.setLocation();
+                mBuilder.loadLocal(rangeLocal);
                 mBuilder.invokeInterface
-                    ("java.lang.Iterable", "iterator", td);
+                    ("java.lang.Iterable", "iterator", iteratorDesc);
             }
             else {
+                // Lists are iterated backwards in place, but Maps and Sets
+                // must be copied into a List first.
+                Label copyLabel = mBuilder.createLabel();
+                Label indexedLabel = mBuilder.createLabel();
+
+                if (!isMap) {
+                    mBuilder.loadLocal(rangeLocal);
+                    mBuilder.instanceOf(listDesc);
+                    mBuilder.ifZeroComparisonBranch(copyLabel, "==");
+                    mBuilder.loadLocal(rangeLocal);
+                    mBuilder.checkCast(listDesc);
+                    mBuilder.storeLocal(listLocal);
+                    if (indexed) {
+                        mBuilder.loadLocal(rangeLocal);
+                        mBuilder.instanceOf(makeDesc(RandomAccess.class));
+                        mBuilder.ifZeroComparisonBranch(indexedLabel, "!=");
+                    }
+                    mBuilder.branch(iterateLabel);
+                }
+
+                copyLabel.setLocation();
+                mBuilder.newObject(makeDesc(ArrayList.class));
                 mBuilder.dup();
-                mBuilder.invokeInterface
-                    ("java.util.Collection", "size", TypeDesc.INT);
-                td = makeDesc(ListIterator.class);
-                mBuilder.invokeInterface
-                    ("java.util.List", "listIterator", td, cIntParam);
+                mBuilder.loadLocal(rangeLocal);
+                mBuilder.checkCast(makeDesc(Collection.class));
+                mBuilder.invokeConstructor("java.util.ArrayList",
+                    new TypeDesc[] { makeDesc(Collection.class) });
+                mBuilder.storeLocal(listLocal);
+
+                if (indexed) {
+                    indexedLabel.setLocation();
+                    generateForeachLoop(node, listLocal, null, endLabel);
+
+                    // Only Lists without random access remain.
+                    iterated = !isMap;
+                    if (iterated) {
+                        mBuilder.branch(endLabel);
+                    }
+                }
+
+                if (iterated) {
+                    iterateLabel.setLocation();
+                    mBuilder.loadLocal(listLocal);
+                    mBuilder.dup();
+                    mBuilder.invokeInterface
+                        ("java.util.List", "size", TypeDesc.INT);
+                    mBuilder.invokeInterface
+                        ("java.util.List", "listIterator",
+                         iteratorDesc, cIntParam);
+                }
+            }
+
+            if (iterated) {
+                LocalVariable iteratorLocal =
+                    mBuilder.createLocalVariable(null, iteratorDesc);
+                mBuilder.storeLocal(iteratorLocal);
+                generateForeachLoop(node, null, iteratorLocal, endLabel);
             }
 
-            final LocalVariable iteratorLocal =
-                mBuilder.createLocalVariable(null, td);
-            mBuilder.storeLocal(iteratorLocal);
+            endLabel.setLocation();
+        }
+
+        /**
+         * Generates a foreach loop over the elements of a List by index if
+         * listLocal is not null, or else over the elements of the iterator.
+         */
+        private void generateForeachLoop(final ForeachStatement node,
+                                         final LocalVariable listLocal,
+                                         final LocalVariable iteratorLocal,
+                                         Label endLabel) {
+            Statement invariants = node.getInvariants();
+            Statement body = node.getBody();
+            final boolean reverse = node.isReverse();
+
+            LocalVariable indexLocal = null;
+            LocalVariable endIndexLocal = null;
+
+            if (listLocal != null) {
+                indexLocal = mBuilder.createLocalVariable(null, TypeDesc.INT);
+                if (!reverse) {
+                    endIndexLocal =
+                        mBuilder.createLocalVariable(null, TypeDesc.INT);
+                    mBuilder.loadConstant(0);
+                    mBuilder.storeLocal(indexLocal);
+                    mBuilder.loadLocal(listLocal);
+                    mBuilder.invokeInterface
+                        ("java.util.List", "size", TypeDesc.INT);
+                    mBuilder.storeLocal(endIndexLocal);
+                }
+                else {
+                    mBuilder.loadLocal(listLocal);
+                    mBuilder.invokeInterface
+                        ("java.util.List", "size", TypeDesc.INT);
+                    mBuilder.storeLocal(indexLocal);
+                }
+            }
+
+            if (invariants != null && body != null) {
+                // Skip the invariants if there are no elements.
+                Label nonEmptyLabel = mBuilder.createLabel();
+                generateForeachHasNext(reverse, iteratorLocal,
+                                       indexLocal, endIndexLocal,
+                                       nonEmptyLabel);
+                mBuilder.branch(endLabel);
+                nonEmptyLabel.setLocation();
+                generate(invariants);
+            }
 
             Label checkLabel = mBuilder.createLabel();
             mBuilder.branch(checkLabel);
@@ -4072,19 +4515,37 @@ public class JavaClassGenerator extends CodeGenerator {
             // Feed the loop variable with a value.
             final VariableRef loopVarRef = node.getLoopVariable();
             final Class<?> loopVarClass = loopVarRef.getType().getNaturalClass();
+            final LocalVariable index = indexLocal;
 
             storeToVariable(loopVarRef.getVariable(), new Runnable() {
                 public void run() {
-                    mBuilder.loadLocal(iteratorLocal);
-                    if (!node.isReverse()) {
-                        mBuilder.invokeInterface("java.util.Iterator", "next",
-                                                 TypeDesc.OBJECT);
+                    if (listLocal == null) {
+                        mBuilder.loadLocal(iteratorLocal);
+                        if (!reverse) {
+                            mBuilder.invokeInterface("java.util.Iterator",
+                                                     "next", TypeDesc.OBJECT);
+                        }
+                        else {
+                            mBuilder.invokeInterface("java.util.ListIterator",
+                                                     "previous",
+                                                     TypeDesc.OBJECT);
+                        }
+                    }
+                    else if (!reverse) {
+                        mBuilder.loadLocal(listLocal);
+                        mBuilder.loadLocal(index);
+                        mBuilder.invokeInterface("java.util.List", "get",
+                                                 TypeDesc.OBJECT, cIntParam);
+                        mBuilder.integerIncrement(index, 1);
                     }
                     else {
-                        mBuilder.invokeInterface("java.util.ListIterator",
-                                                 "previous",
-                                                 TypeDesc.OBJECT);
+                        mBuilder.integerIncrement(index, -1);
+                        mBuilder.loadLocal(listLocal);
+                        mBuilder.loadLocal(index);
+                        mBuilder.invokeInterface("java.util.List", "get",
+                                                 TypeDesc.OBJECT, cIntParam);
                     }
+
                     if (loopVarClass != Object.class) {
                         mBuilder.checkCast(makeDesc(loopVarRef.getType()));
                     }
@@ -4099,28 +4560,86 @@ public class JavaClassGenerator extends CodeGenerator {
             continueLabel.setLocation();
 
             checkLabel.setLocation();
-            mBuilder.loadLocal(iteratorLocal);
-
-            td = TypeDesc.BOOLEAN;
+            generateForeachHasNext(reverse, iteratorLocal,
+                                   indexLocal, endIndexLocal, startLabel);
+        }
 
-            if (!node.isReverse()) {
-                mBuilder.invokeInterface("java.util.Iterator",
-                                         "hasNext", td);
+        /**
+         * Branches to the given label if the foreach iteration has more
+         * elements, using the List index if indexLocal is not null, or else
+         * the iterator.
+         */
+        private void generateForeachHasNext(boolean reverse,
+                                            LocalVariable iteratorLocal,
+                                            LocalVariable indexLocal,
+                                            LocalVariable endIndexLocal,
+                                            Label label) {
+            if (indexLocal != null) {
+                mBuilder.loadLocal(indexLocal);
+                if (!reverse) {
+                    mBuilder.loadLocal(endIndexLocal);
+                    mBuilder.ifComparisonBranch(label, "<");
+                }
+                else {
+                    mBuilder.ifZeroComparisonBranch(label, ">");
+                }
             }
             else {
-                mBuilder.invokeInterface("java.util.ListIterator",
-                                         "hasPrevious", td);
+                mBuilder.loadLocal(iteratorLocal);
+                if (!reverse) {
+                    mBuilder.invokeInterface("java.util.Iterator",
+                                             "hasNext", TypeDesc.BOOLEAN);
+                }
+                else {
+                    mBuilder.invokeInterface("java.util.ListIterator",
+                                             "hasPrevious", TypeDesc.BOOLEAN);
+                }
+                mBuilder.ifZeroComparisonBranch(label, "!=");
             }
+        }
 
-            mBuilder.ifZeroComparisonBranch(startLabel, "!=");
+        /**
+         * Returns true if code may be generated more than once for the given
+         * statement, which is not the case if it contains substitution
+         * blocks. Nested loops are also excluded, since repeating them at
+         * every level would multiply the size of the generated code.
+         */
+        private boolean isRepeatable(Statement stmt) {
+            if (stmt == null) {
+                return true;
+            }
 
-            endLabel.setLocation();
+            final boolean[] repeatable = { true };
+            stmt.accept(new TreeWalker() {
+                public Object visit(ForeachStatement node) {
+                    repeatable[0] = false;
+                    return null;
+                }
+
+                public Object visit(FunctionCallExpression node) {
+                    if (node.getSubstitutionParam() != null) {
+                        repeatable[0] = false;
+                        return null;
+                    }
+                    return super.visit(node);
+                }
+
+                public Object visit(TemplateCallExpression node) {
+                    if (node.getSubstitutionParam() != null) {
+                        repeatable[0] = false;
+                        return null;
+                    }
+                    return super.visit(node);
+                }
+            });
+            return repeatable[0];
         }
 
         private void generateForeachRange(ForeachStatement node) {
             Expression range = node.getRange();
             Expression endRange = node.getEndRange();
             Statement init = node.getInitializer();
+            Statement invariants = node.getInvariants();
             Statement body = node.getBody();
 
             // Holds the value to compare against for when the index has
@@ -4177,6 +4696,16 @@ public class JavaClassGenerator extends CodeGenerator {
                 generate(init);
             }
 
+            Label endLabel = null;
+            if (invariants != null && body != null) {
+                // Skip the invariants if the range is empty.
+                endLabel = mBuilder.createLabel();
+                generateRangeCheck(loopVar, endIndexLocal, endIndexValue,
+                                   longRange, endLabel,
+                                   node.isReverse() ? "<" : ">");
+                generate(invariants);
+            }
+
             Label checkLabel = mBuilder.createLabel();
             mBuilder.branch(checkLabel);
 
@@ -4206,29 +4735,46 @@ public class JavaClassGenerator extends CodeGenerator {
 
             // Build check.
             checkLabel.setLocation();
+            generateRangeCheck(loopVar, endIndexLocal, endIndexValue,
+                               longRange, startLabel, choice);
+
+            if (endLabel != null) {
+                endLabel.setLocation();
+            }
+        }
+
+        /**
+         * Branches to the given label if the loop variable compares to the
+         * end index as given by the choice.
+         */
+        private void generateRangeCheck(Variable loopVar,
+                                        LocalVariable endIndexLocal,
+                                        long endIndexValue,
+                                        boolean longRange,
+                                        Label label, String choice) {
             loadFromVariable(loopVar);
 
             if (endIndexLocal != null) {
                 mBuilder.loadLocal(endIndexLocal);
                 if (longRange) {
                     mBuilder.math(Opcode.LCMP);
-                    mBuilder.ifZeroComparisonBranch(startLabel, choice);
+                    mBuilder.ifZeroComparisonBranch(label, choice);
                 }
                 else {
-                    mBuilder.ifComparisonBranch(startLabel, choice);
+                    mBuilder.ifComparisonBranch(label, choice);
                 }
             }
             else if (longRange) {
                 mBuilder.loadConstant(endIndexValue);
                 mBuilder.math(Opcode.LCMP);
-                mBuilder.ifZeroComparisonBranch(startLabel, choice);
+                mBuilder.ifZeroComparisonBranch(label, choice);
             }
             else if (endIndexValue != 0) {
                 mBuilder.loadConstant((int)endIndexValue);
-                mBuilder.ifComparisonBranch(startLabel, choice);
+                mBuilder.ifComparisonBranch(label, choice);
             }
             else {
-                mBuilder.ifZeroComparisonBranch(startLabel, choice);
+                mBuilder.ifZeroComparisonBranch(label, choice);
             }
         }
 
@@ -4761,7 +5307,14 @@ public class JavaClassGenerator extends CodeGenerator {
      * to the MergedClass.
      */
     private boolean isProfilingEnabled() {
-        Class<?> mergedClass = mUnit.getRuntimeContext();
+        return isProfilingEnabled(mUnit.getRuntimeContext());
+    }
+
+    /**
+     * Returns true if template calls are profiled for the given runtime
+     * context.
+     */
+    static boolean isProfilingEnabled(Class<?> mergedClass) {
         boolean profilingEnabled = true;
 
         try {
@@ -0,0 +1,440 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.compiler;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.teatrove.tea.parsetree.AndExpression;
+import org.teatrove.tea.parsetree.ArrayLookup;
+import org.teatrove.tea.parsetree.AssignmentStatement;
+import org.teatrove.tea.parsetree.BinaryExpression;
+import org.teatrove.tea.parsetree.Block;
+import org.teatrove.tea.parsetree.BreakStatement;
+import org.teatrove.tea.parsetree.ContinueStatement;
+import org.teatrove.tea.parsetree.Expression;
+import org.teatrove.tea.parsetree.Expression.Conversion;
+import org.teatrove.tea.parsetree.ExpressionStatement;
+import org.teatrove.tea.parsetree.ForeachStatement;
+import org.teatrove.tea.parsetree.FunctionCallExpression;
+import org.teatrove.tea.parsetree.IfStatement;
+import org.teatrove.tea.parsetree.Literal;
+import org.teatrove.tea.parsetree.Lookup;
+import org.teatrove.tea.parsetree.NegateExpression;
+import org.teatrove.tea.parsetree.NotExpression;
+import org.teatrove.tea.parsetree.OrExpression;
+import org.teatrove.tea.parsetree.ParenExpression;
+import org.teatrove.tea.parsetree.SpreadExpression;
+import org.teatrove.tea.parsetree.Statement;
+import org.teatrove.tea.parsetree.StatementList;
+import org.teatrove.tea.parsetree.Template;
+import org.teatrove.tea.parsetree.TemplateCallExpression;
+import org.teatrove.tea.parsetree.TernaryExpression;
+import org.teatrove.tea.parsetree.TreeMutator;
+import org.teatrove.tea.parsetree.TreeWalker;
+import org.teatrove.tea.parsetree.TypeExpression;
+import org.teatrove.tea.parsetree.Variable;
+import org.teatrove.tea.parsetree.VariableRef;
+
+/**
+ * The LoopInvariantHoister moves expressions out of foreach loop bodies when
+ * they produce the same value on every iteration, storing each in a local
+ * variable that is assigned by the loop's {@link
+ * ForeachStatement#getInvariants invariants}. Invariants are only computed
+ * if the loop body executes at least once.
+ *
+ * <p>An expression is invariant if it only reads variables that are not
+ * assigned within the loop, and if it only calls methods that are free of
+ * side effects: lookups that {@link CommonLookupEliminator#isPure are pure},
+ * and functions that are annotated {@link org.teatrove.tea.Pure}. Only
+ * expressions that the body evaluates unconditionally on every iteration
+ * are moved, up to the first statement that may break out of or continue
+ * the loop. Conversions to strings depend upon the context's current
+ * format, and so they are only moved out of loops that call no other
+ * functions or templates.
+ *
+ * <p>Templates that generate substitutions, or that guard statements against
+ * exceptions, are left unchanged.
+ */
+public class LoopInvariantHoister {
+    private Template mTree;
+    private boolean mAssumePure;
+    private int mVariableCount;
+
+    public LoopInvariantHoister(Template tree, boolean assumePure) {
+        mTree = tree;
+        mAssumePure = assumePure;
+    }
+
+    public Template hoist() {
+        Statement stmt = mTree.getStatement();
+        if (stmt == null || !CommonLookupEliminator.isEligible(mTree)) {
+            return mTree;
+        }
+
+        // Inner loops are visited first, and so their invariants are only
+        // moved as far as the inner loop.
+        stmt.accept(new TreeWalker() {
+            public Object visit(ForeachStatement node) {
+                super.visit(node);
+                hoist(node);
+                return null;
+            }
+        });
+
+        return mTree;
+    }
+
+    private void hoist(ForeachStatement node) {
+        Block body = node.getBody();
+        if (body == null || body.getStatements() == null) {
+            return;
+        }
+
+        Hoister hoister = new Hoister(CommonLookupEliminator.getAssigned(node),
+                                      isFormatStable(body));
+
+        List<Statement> stmts = new ArrayList<Statement>();
+        addStatements(stmts, body);
+        for (Statement stmt : stmts) {
+            hoister.hoist(stmt);
+            if (isExitPossible(stmt)) {
+                break;
+            }
+        }
+
+        List<Statement> invariants = hoister.mInvariants;
+        if (invariants.isEmpty()) {
+            return;
+        }
+
+        if (node.getInvariants() != null) {
+            invariants.add(0, node.getInvariants());
+        }
+
+        if (invariants.size() == 1) {
+            node.setInvariants(invariants.get(0));
+        }
+        else {
+            node.setInvariants
+                (new StatementList(node.getSourceInfo(),
+                                   invariants.toArray
+                                   (new Statement[invariants.size()])));
+        }
+    }
+
+    /**
+     * Adds the statements that execute in order on every iteration, not
+     * including those of nested blocks.
+     */
+    private static void addStatements(List<Statement> list, StatementList stmt) {
+        Statement[] stmts = stmt.getStatements();
+        if (stmts == null) {
+            return;
+        }
+
+        for (int i=0; i<stmts.length; i++) {
+            if (stmts[i] instanceof StatementList &&
+                !(stmts[i] instanceof Block)) {
+                addStatements(list, (StatementList)stmts[i]);
+            }
+            else if (stmts[i] != null) {
+                list.add(stmts[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given statement may end the current iteration.
+     */
+    private static boolean isExitPossible(Statement stmt) {
+        final boolean[] exit = new boolean[1];
+        stmt.accept(new TreeWalker() {
+            public Object visit(BreakStatement node) {
+                exit[0] = true;
+                return null;
+            }
+
+            public Object visit(ContinueStatement node) {
+                exit[0] = true;
+                return null;
+            }
+        });
+        return exit[0];
+    }
+
+    /**
+     * Returns true if the given loop body calls no functions or templates,
+     * other than pure functions, which might change the context's format.
+     */
+    private static boolean isFormatStable(Block body) {
+        final boolean[] stable = { true };
+        body.accept(new TreeWalker() {
+            public Object visit(FunctionCallExpression node) {
+                if (!CommonLookupEliminator.isPure
+                    (node.getCalledMethod(), false)) {
+                    stable[0] = false;
+                }
+                return super.visit(node);
+            }
+
+            public Object visit(TemplateCallExpression node) {
+                stable[0] = false;
+                return null;
+            }
+        });
+        return stable[0];
+    }
+
+    /**
+     * Replaces the non-trivial invariant expressions that a statement
+     * evaluates unconditionally with variables assigned by invariant
+     * statements.
+     */
+    private class Hoister extends TreeMutator {
+        final List<Statement> mInvariants = new ArrayList<Statement>();
+
+        private final Set<String> mAssigned;
+        private final boolean mFormatStable;
+
+        Hoister(Set<String> assigned, boolean formatStable) {
+            mAssigned = assigned;
+            mFormatStable = formatStable;
+        }
+
+        void hoist(Statement stmt) {
+            if (stmt instanceof ExpressionStatement) {
+                ExpressionStatement es = (ExpressionStatement)stmt;
+                es.setExpression(visitExpression(es.getExpression()));
+            }
+            else if (stmt instanceof AssignmentStatement) {
+                AssignmentStatement as = (AssignmentStatement)stmt;
+                as.setRValue(visitExpression(as.getRValue()));
+            }
+            else if (stmt instanceof IfStatement) {
+                IfStatement is = (IfStatement)stmt;
+                is.setCondition(visitExpression(is.getCondition()));
+            }
+            else if (stmt instanceof ForeachStatement) {
+                ForeachStatement fs = (ForeachStatement)stmt;
+                fs.setRange(visitExpression(fs.getRange()));
+                if (fs.getEndRange() != null) {
+                    fs.setEndRange(visitExpression(fs.getEndRange()));
+                }
+            }
+        }
+
+        protected Expression visitExpression(Expression expr) {
+            if (expr != null && !isTrivial(expr) && isInvariant(expr, true)) {
+                return replace(expr);
+            }
+            return super.visitExpression(expr);
+        }
+
+        // Only the operands that are always evaluated are visited.
+
+        public Object visit(AndExpression node) {
+            node.setLeftExpression(visitExpression(node.getLeftExpression()));
+            return node;
+        }
+
+        public Object visit(OrExpression node) {
+            node.setLeftExpression(visitExpression(node.getLeftExpression()));
+            return node;
+        }
+
+        public Object visit(TernaryExpression node) {
+            node.setCondition(visitExpression(node.getCondition()));
+            return node;
+        }
+
+        public Object visit(SpreadExpression node) {
+            return node;
+        }
+
+        public Object visit(ArrayLookup node) {
+            if (node.isNullSafe()) {
+                node.setExpression(visitExpression(node.getExpression()));
+                return node;
+            }
+            return super.visit(node);
+        }
+
+        public Object visit(FunctionCallExpression node) {
+            if (node.getExpression() != null) {
+                node.setExpression(visitExpression(node.getExpression()));
+            }
+            if (!node.isNullSafe()) {
+                node.getParams().accept(this);
+            }
+            return node;
+        }
+
+        public Object visit(TemplateCallExpression node) {
+            node.getParams().accept(this);
+            return node;
+        }
+
+        /**
+         * Moves the unconverted value of the given expression into a new
+         * invariant variable, returning a reference that applies the same
+         * conversions.
+         */
+        private Expression replace(Expression expr) {
+            SourceInfo info = expr.getSourceInfo();
+            List<Conversion> conversions =
+                new ArrayList<Conversion>(expr.getConversionChain());
+
+            Type type = expr.getInitialType();
+            expr.setType(type);
+
+            Variable var = new Variable(info, "invariant$" + mVariableCount++,
+                                        type);
+            VariableRef lvalue = new VariableRef(info, var.getName());
+            lvalue.setVariable(var);
+            mInvariants.add(new AssignmentStatement(info, lvalue, expr));
+
+            VariableRef ref = new VariableRef(info, var.getName());
+            ref.setVariable(var);
+            for (int i=1; i<conversions.size(); i++) {
+                Conversion conversion = conversions.get(i);
+                ref.forceConversion(conversion.getToType(),
+                                    conversion.isCastPreferred());
+            }
+            return ref;
+        }
+
+        private boolean isTrivial(Expression expr) {
+            return expr instanceof Literal || expr instanceof VariableRef ||
+                expr instanceof TypeExpression ||
+                expr instanceof ParenExpression || expr.isValueKnown();
+        }
+
+        /**
+         * @param root when true, the conversions applied to the expression
+         * are not moved along with it
+         */
+        private boolean isInvariant(Expression expr, boolean root) {
+            if (expr == null) {
+                return true;
+            }
+
+            if (!root && !mFormatStable && isFormatDependent(expr)) {
+                return false;
+            }
+
+            if (expr instanceof Literal || expr instanceof TypeExpression) {
+                return true;
+            }
+            else if (expr instanceof VariableRef) {
+                Variable var = ((VariableRef)expr).getVariable();
+                return var != null && !var.isField() &&
+                    !mAssigned.contains(var.getName());
+            }
+            else if (expr instanceof ParenExpression) {
+                return isInvariant
+                    (((ParenExpression)expr).getExpression(), root);
+            }
+            else if (expr instanceof Lookup) {
+                Lookup lookup = (Lookup)expr;
+                Expression inner = lookup.getExpression();
+                Field field = lookup.getReadProperty();
+                Method method = lookup.getReadMethod();
+                if (field != null) {
+                    return Modifier.isFinal(field.getModifiers());
+                }
+                if (method == null) {
+                    if (inner.getType() == null ||
+                        !inner.getType().getObjectClass().isArray()) {
+                        return false;
+                    }
+                }
+                else if (!CommonLookupEliminator.isPure(method, mAssumePure)) {
+                    return false;
+                }
+                return isInvariant(inner, false);
+            }
+            else if (expr instanceof ArrayLookup) {
+                ArrayLookup lookup = (ArrayLookup)expr;
+                return CommonLookupEliminator.isPure
+                    (lookup.getReadMethod(), mAssumePure) &&
+                    isInvariant(lookup.getExpression(), false) &&
+                    isInvariant(lookup.getLookupIndex(), false);
+            }
+            else if (expr instanceof FunctionCallExpression) {
+                FunctionCallExpression call = (FunctionCallExpression)expr;
+                if (!CommonLookupEliminator.isPure
+                    (call.getCalledMethod(), false) ||
+                    call.getSubstitutionParam() != null ||
+                    call.getInitializer() != null ||
+                    !isInvariant(call.getExpression(), false)) {
+                    return false;
+                }
+                Expression[] params = call.getParams().getExpressions();
+                for (int i=0; i<params.length; i++) {
+                    if (!isInvariant(params[i], false)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            else if (expr instanceof BinaryExpression) {
+                BinaryExpression binary = (BinaryExpression)expr;
+                return isInvariant(binary.getLeftExpression(), false) &&
+                    isInvariant(binary.getRightExpression(), false);
+            }
+            else if (expr instanceof NotExpression) {
+                return isInvariant
+                    (((NotExpression)expr).getExpression(), false);
+            }
+            else if (expr instanceof NegateExpression) {
+                return isInvariant
+                    (((NegateExpression)expr).getExpression(), false);
+            }
+            else if (expr instanceof TernaryExpression) {
+                TernaryExpression ternary = (TernaryExpression)expr;
+                return isInvariant(ternary.getCondition(), false) &&
+                    isInvariant(ternary.getThenPart(), false) &&
+                    isInvariant(ternary.getElsePart(), false);
+            }
+
+            return false;
+        }
+
+        /**
+         * Returns true if the given expression is converted to a string in
+         * a way that depends upon the context's current format.
+         */
+        private boolean isFormatDependent(Expression expr) {
+            for (Conversion conversion : expr.getConversionChain()) {
+                Type from = conversion.getFromType();
+                Type to = conversion.getToType();
+                if (from != null &&
+                    to.getObjectClass() == String.class &&
+                    (from.getObjectClass() != String.class ||
+                     (from.isNullable() && !to.isNullable()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -54,7 +54,7 @@ class MessageFormatter {
         return lookup(user.getClass());
     }
 
-    private static MessageFormatter lookup(Class<?> clazz) {
+    private static synchronized MessageFormatter lookup(Class<?> clazz) {
         MessageFormatter formatter = cMessageFormatters.get(clazz);
         if (formatter == null) {
             String className = clazz.getName();
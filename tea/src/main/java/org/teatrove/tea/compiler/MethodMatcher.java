@@ -18,6 +18,9 @@ package org.teatrove.tea.compiler;
 
 import java.beans.IntrospectionException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import org.teatrove.trove.util.ClassLoaderCache;
 
 /**
  * This class finds methods that best fit a given description. The compiler
@@ -27,7 +30,43 @@ import java.lang.reflect.Method;
  */
 public class MethodMatcher {
     public static final int AMBIGUOUS = -1;
-    
+
+    // Results of matching the public methods of classes, shared by all
+    // threads.
+    private static final ClassLoaderCache<Key, Result> cMatchCache =
+        new ClassLoaderCache<Key, Result>();
+
+    /**
+     * Same as {@link #match(Method[], String, Type...)}, except the methods
+     * must be those returned by the getMethods method of the given class.
+     * Results are cached, and so matching the same name and parameter types
+     * again does not inspect the methods.
+     */
+    public static int match(Class<?> clazz, Method[] methods,
+                            String name, Type... params) {
+        Class<?>[] classes = new Class<?>[params.length + 1];
+        boolean[] nulls = new boolean[params.length];
+        classes[0] = clazz;
+        for (int i = 0; i < params.length; i++) {
+            classes[i + 1] = params[i].getNaturalClass();
+            nulls[i] = params[i] == Type.NULL_TYPE;
+        }
+
+        Key key = new Key(name, classes, nulls);
+        Result result = cMatchCache.get(key, classes);
+        if (result == null) {
+            int count = match(methods, name, params);
+            Method[] candidates = new Method[Math.max(count, 0)];
+            System.arraycopy(methods, 0, candidates, 0, candidates.length);
+            result = cMatchCache.putIfAbsent
+                (key, new Result(count, candidates), classes);
+        }
+
+        System.arraycopy(result.candidates, 0, methods, 0,
+                         result.candidates.length);
+        return result.count;
+    }
+
     /**
      * The best result candidates are stored in the Method array passed in.
      * The int returned indicates the number of candidates in the array. Zero
@@ -283,4 +322,49 @@ public class MethodMatcher {
             this.vararg = vararg;
         }
     }
+
+    /**
+     * Key of a cached result, which depends on the natural classes of the
+     * parameter types and on which of them are the null type.
+     */
+    private static class Key {
+        private final String name;
+        private final Class<?>[] classes;
+        private final boolean[] nulls;
+        private final int hashCode;
+
+        private Key(String name, Class<?>[] classes, boolean[] nulls) {
+            this.name = name;
+            this.classes = classes;
+            this.nulls = nulls;
+            this.hashCode = (name == null ? 0 : name.hashCode()) * 31 +
+                Arrays.hashCode(classes);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+            return hashCode == key.hashCode &&
+                (name == null ? key.name == null : name.equals(key.name)) &&
+                Arrays.equals(classes, key.classes) &&
+                Arrays.equals(nulls, key.nulls);
+        }
+    }
+
+    private static class Result {
+        private final int count;
+        private final Method[] candidates;
+
+        private Result(int count, Method[] candidates) {
+            this.count = count;
+            this.candidates = candidates;
+        }
+    }
 }
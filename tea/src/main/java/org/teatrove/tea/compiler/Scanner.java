@@ -17,19 +17,25 @@
 package org.teatrove.tea.compiler;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
-import java.util.Stack;
 import org.teatrove.trove.io.SourceReader;
 
 /**
  * A Scanner breaks up a source file into its basic elements, called
  * {@link Token Tokens}. Add an {@link CompileListener} to capture any syntax
  * errors detected by the Scanner.
+ * <p>
+ * A Scanner is not thread-safe. The source of a plain {@link SourceReader} is
+ * read into a {@link SourceBuffer} on first use and scanned from there.
  *
  * @author Brian S O'Neill
  */
 public class Scanner {
     private SourceReader mSource;
+    private SourceBuffer mBuffer;
+    private boolean mLoaded;
     private CompilationUnit mUnit;
 
     private boolean mEmitSpecial;
@@ -38,7 +44,7 @@ public class Scanner {
     private StringBuilder mWord = new StringBuilder(20);
 
     /** The scanner supports any amount of lookahead. */
-    private Stack<Token> mLookahead = new Stack<Token>();
+    private List<Token> mLookahead = new ArrayList<Token>();
     
     private Token mEOFToken;
 
@@ -82,9 +88,9 @@ public class Scanner {
     }
 
     private void error(String str) {
-        error(str, new SourceInfo(mSource.getLineNumber(),
-                                  mSource.getStartPosition(),
-                                  mSource.getEndPosition()));
+        error(str, new SourceInfo(getLineNumber(),
+                                  getStartPosition(),
+                                  getEndPosition()));
     }
 
     /**
@@ -100,29 +106,33 @@ public class Scanner {
     /**
      * Returns EOF as the last token.
      */
-    public synchronized Token readToken() throws IOException {
-        if (mLookahead.empty()) {
+    public Token readToken() throws IOException {
+        int size = mLookahead.size();
+        if (size == 0) {
             return scanToken();
         }
         else {
-            return mLookahead.pop();
+            return mLookahead.remove(size - 1);
         }
     }
 
     /** 
      * Returns EOF as the last token.
      */
-    public synchronized Token peekToken() throws IOException {
-        if (mLookahead.empty()) {
-            return mLookahead.push(scanToken());
+    public Token peekToken() throws IOException {
+        int size = mLookahead.size();
+        if (size == 0) {
+            Token token = scanToken();
+            mLookahead.add(token);
+            return token;
         }
         else {
-            return mLookahead.peek();
+            return mLookahead.get(size - 1);
         }
     }
 
-    public synchronized void unreadToken(Token token) throws IOException {
-        mLookahead.push(token);
+    public void unreadToken(Token token) throws IOException {
+        mLookahead.add(token);
     }
 
     public void close() throws IOException {
@@ -133,13 +143,65 @@ public class Scanner {
         return mErrorCount;
     }
 
+    private void load() throws IOException {
+        mLoaded = true;
+        mBuffer = SourceBuffer.load(mSource);
+    }
+
+    private int read() throws IOException {
+        if (!mLoaded) {
+            load();
+        }
+        return (mBuffer != null) ? mBuffer.read() : mSource.read();
+    }
+
+    private int peek() throws IOException {
+        if (!mLoaded) {
+            load();
+        }
+        return (mBuffer != null) ? mBuffer.peek() : mSource.peek();
+    }
+
+    private void unread() throws IOException {
+        if (mBuffer != null) {
+            mBuffer.unread();
+        }
+        else {
+            mSource.unread();
+        }
+    }
+
+    private int getLineNumber() {
+        return (mBuffer != null) ?
+            mBuffer.getLineNumber() : mSource.getLineNumber();
+    }
+
+    private int getStartPosition() {
+        return (mBuffer != null) ?
+            mBuffer.getStartPosition() : mSource.getStartPosition();
+    }
+
+    private int getEndPosition() {
+        return (mBuffer != null) ?
+            mBuffer.getEndPosition() : mSource.getEndPosition();
+    }
+
+    private void ignoreTags(boolean ignore) {
+        if (mBuffer != null) {
+            mBuffer.ignoreTags(ignore);
+        }
+        else {
+            mSource.ignoreTags(ignore);
+        }
+    }
+
     private Token scanToken() throws IOException {
         int c;
         int peek;
         
         int startPos;
 
-        while ((c = mSource.read()) != -1) {
+        while ((c = read()) != -1) {
             switch (c) {
 
             case SourceReader.ENTER_TEXT:
@@ -156,7 +218,7 @@ public class Scanner {
 
                 if (mEmitSpecial) {
                     if (t.getStringValue().length() > 0) {
-                        mLookahead.push(t);
+                        mLookahead.add(t);
                     }
                     return enter;
                 }
@@ -201,21 +263,21 @@ public class Scanner {
                 return makeToken(Token.QUESTION);
 
             case '.':
-                peek = mSource.peek();
+                peek = peek();
 
                 if (peek >= '0' && peek <= '9') {
                     error("number.decimal.start");
                     return scanNumber(c);
                 }
                 else if (peek == '.') {
-                    startPos = mSource.getStartPosition();
+                    startPos = getStartPosition();
                     // read the second '.'
-                    mSource.read();
+                    read();
 
-                    peek = mSource.peek();
+                    peek = peek();
                     if (peek == '.') {
                         // read the third '.'
-                        mSource.read();
+                        read();
                         return makeToken(Token.ELLIPSIS, startPos);
                     }
                     else {
@@ -227,11 +289,11 @@ public class Scanner {
                 }
                 
             case '#':
-                peek = mSource.peek();
+                peek = peek();
                 
                 if (peek == '#') {
-                    startPos = mSource.getStartPosition();
-                    mSource.read();
+                    startPos = getStartPosition();
+                    read();
                     return makeToken(Token.DOUBLE_HASH, startPos);
                 }
                 else {
@@ -239,9 +301,9 @@ public class Scanner {
                 }
                 
             case '!':
-                if (mSource.peek() == '=') {
-                    startPos = mSource.getStartPosition();
-                    mSource.read();
+                if (peek() == '=') {
+                    startPos = getStartPosition();
+                    read();
                     return makeToken(Token.NE, startPos);
                 }
                 else {
@@ -250,11 +312,11 @@ public class Scanner {
                 }
                 
             case '<':
-                if (mSource.peek() == '=') {
-                    startPos = mSource.getStartPosition();
-                    mSource.read();
-                    if (mSource.peek() == '>') {
-                        mSource.read();
+                if (peek() == '=') {
+                    startPos = getStartPosition();
+                    read();
+                    if (peek() == '>') {
+                        read();
                         return makeToken(Token.SPACESHIP, startPos);
                     }
                     else {
@@ -266,9 +328,9 @@ public class Scanner {
                 }
                 
             case '>':
-                if (mSource.peek() == '=') {
-                    startPos = mSource.getStartPosition();
-                    mSource.read();
+                if (peek() == '=') {
+                    startPos = getStartPosition();
+                    read();
                     return makeToken(Token.GE, startPos);
                 }
                 else {
@@ -276,14 +338,14 @@ public class Scanner {
                 }
 
             case '=':
-                if (mSource.peek() == '=') {
-                    startPos = mSource.getStartPosition();
-                    mSource.read();
+                if (peek() == '=') {
+                    startPos = getStartPosition();
+                    read();
                     return makeToken(Token.EQ, startPos);
                 }
-                if (mSource.peek() == '>') {
-                    startPos = mSource.getStartPosition();
-                    mSource.read();
+                if (peek() == '>') {
+                    startPos = getStartPosition();
+                    read();
                     return makeToken(Token.EQUAL_GREATER, startPos);
                 }
                 else {
@@ -300,9 +362,9 @@ public class Scanner {
                 return makeToken(Token.MINUS);
                 
             case '*':
-                if (mSource.peek() == '.') {
-                    startPos = mSource.getStartPosition();
-                    mSource.read();
+                if (peek() == '.') {
+                    startPos = getStartPosition();
+                    read();
                     return makeToken(Token.SPREAD, startPos);
                 }
                 else {
@@ -313,14 +375,14 @@ public class Scanner {
                 return makeToken(Token.MOD);
                 
             case '/':
-                startPos = mSource.getStartPosition();
-                peek = mSource.peek();
+                startPos = getStartPosition();
+                peek = peek();
 
                 if (peek == '*') {
-                    mSource.read();
-                    mSource.ignoreTags(true);
+                    read();
+                    ignoreTags(true);
                     t = scanMultiLineComment(startPos);
-                    mSource.ignoreTags(false);
+                    ignoreTags(false);
                     if (mEmitSpecial) {
                         return t;
                     }
@@ -329,7 +391,7 @@ public class Scanner {
                     }
                 }
                 else if (peek == '/') {
-                    mSource.read();
+                    read();
                     t = scanOneLineComment(startPos);
                     if (mEmitSpecial) {
                         return t;
@@ -344,9 +406,9 @@ public class Scanner {
                 
             case '\"':
             case '\'':
-                mSource.ignoreTags(true);
+                ignoreTags(true);
                 t = scanString(c);
-                mSource.ignoreTags(false);
+                ignoreTags(false);
                 return t;
                 
             case '0': case '1': case '2': case '3': case '4': 
@@ -400,17 +462,17 @@ public class Scanner {
     private Token scanText(int c) throws IOException {
         // Read first character in text so that source info does not include
         // tags.
-        c = mSource.read();
+        c = read();
 
-        int startLine = mSource.getLineNumber();
-        int startPos = mSource.getStartPosition();
-        int endPos = mSource.getEndPosition();
+        int startLine = getLineNumber();
+        int startPos = getStartPosition();
+        int endPos = getEndPosition();
         StringBuilder buf = new StringBuilder(256);
 
         while (c != -1) {
             if (c == SourceReader.ENTER_CODE) {
                 if (mEmitSpecial) {
-                    mLookahead.push(makeStringToken(Token.ENTER_CODE,
+                    mLookahead.add(makeStringToken(Token.ENTER_CODE,
                                                     mSource.getBeginTag()));
                 }
                 break;
@@ -422,11 +484,11 @@ public class Scanner {
                 buf.append((char)c);
             }
 
-            if (mSource.peek() < 0) {
-                endPos = mSource.getEndPosition();
+            if (peek() < 0) {
+                endPos = getEndPosition();
             }
 
-            c = mSource.read();
+            c = read();
         }
 
         if (c == -1) {
@@ -452,11 +514,11 @@ public class Scanner {
     
     private Token scanString(int delimiter) throws IOException {
         int c;
-        int startLine = mSource.getLineNumber();
-        int startPos = mSource.getStartPosition();
+        int startLine = getLineNumber();
+        int startPos = getStartPosition();
         mWord.setLength(0);
         
-        while ( (c = mSource.read()) != -1 ) {
+        while ( (c = read()) != -1 ) {
             if (c == delimiter) {
                 break;
             }
@@ -467,7 +529,7 @@ public class Scanner {
             }
             
             if (c == '\\') {
-                int next = mSource.read();
+                int next = read();
                 switch (next) {
                 case '0':
                     c = '\0';
@@ -512,7 +574,7 @@ public class Scanner {
 
         Token t = new StringToken(startLine,
                                   startPos, 
-                                  mSource.getEndPosition(),
+                                  getEndPosition(),
                                   Token.STRING,
                                   mWord.toString()); 
         
@@ -521,8 +583,8 @@ public class Scanner {
 
     // The first character has already been scanned when this is called.
     private Token scanNumber(int c) throws IOException {
-        int startLine = mSource.getLineNumber();
-        int startPos = mSource.getStartPosition();
+        int startLine = getLineNumber();
+        int startPos = getStartPosition();
         mWord.setLength(0);
         
         int errorPos = -1;
@@ -538,18 +600,18 @@ public class Scanner {
         int type = 0; 
 
         if (c == '0') {
-            if (mSource.peek() == 'x' || mSource.peek() == 'X') {
+            if (peek() == 'x' || peek() == 'X') {
                 type = 1;
-                mSource.read(); // absorb the 'x'
-                c = mSource.read(); // get the first digit after the 'x'
+                read(); // absorb the 'x'
+                c = read(); // get the first digit after the 'x'
             }
         }
 
-        for (; c != -1; c = mSource.read()) {
+        for (; c != -1; c = read()) {
             if (c == '.') {
-                int peek = mSource.peek();
+                int peek = peek();
                 if (peek == '.') {
-                    mSource.unread();
+                    unread();
                     break;
                 }
                 else {
@@ -563,7 +625,7 @@ public class Scanner {
                         type = 6;
                     }
                     else if (errorPos < 0) {
-                        errorPos = mSource.getStartPosition();
+                        errorPos = getStartPosition();
                     }
 
                     continue;
@@ -575,7 +637,7 @@ public class Scanner {
 
                 if (type == 2 || type == 3 || type == 4 || type == 5) {
                     if (errorPos < 0) {
-                        errorPos = mSource.getStartPosition();
+                        errorPos = getStartPosition();
                     }
                 }
 
@@ -604,9 +666,9 @@ public class Scanner {
                     if (type == 0 || type == 6) {
                         mWord.append((char)c);
                         type = 7;
-                        int peek = mSource.peek();
+                        int peek = peek();
                         if (peek == '+' || peek == '-') {
-                            mWord.append((char)mSource.read());
+                            mWord.append((char)read());
                         }
                         continue;
                     }
@@ -615,7 +677,7 @@ public class Scanner {
                 mWord.append((char)c);
 
                 if (errorPos < 0) {
-                    errorPos = mSource.getStartPosition();
+                    errorPos = getStartPosition();
                 }
 
                 continue;
@@ -631,7 +693,7 @@ public class Scanner {
                 else {
                     mWord.append((char)c);
                     if (errorPos < 0) {
-                        errorPos = mSource.getStartPosition();
+                        errorPos = getStartPosition();
                     }
                 }
 
@@ -642,17 +704,17 @@ public class Scanner {
                 mWord.append((char)c);
 
                 if (errorPos < 0) {
-                    errorPos = mSource.getStartPosition();
+                    errorPos = getStartPosition();
                 }
             }
             else {
-                mSource.unread();
+                unread();
                 break;
             }
         }
         
         String str = mWord.toString();
-        int endPos = mSource.getEndPosition();
+        int endPos = getEndPosition();
         Token token;
 
         if (errorPos >= 0) {
@@ -759,15 +821,15 @@ public class Scanner {
 
     // The first character has already been scanned when this is called.
     private Token scanIdentifier(int c) throws IOException {
-        int startLine = mSource.getLineNumber();
-        int startPos = mSource.getStartPosition();
-        int endPos = mSource.getEndPosition();
+        int startLine = getLineNumber();
+        int startPos = getStartPosition();
+        int endPos = getEndPosition();
         mWord.setLength(0);
         
         mWord.append((char)c);
 
     loop:
-        while ( (c = mSource.peek()) != -1 ) {
+        while ( (c = peek()) != -1 ) {
             switch (c) {
             case 'a': case 'b': case 'c': case 'd': case 'e':
             case 'f': case 'g': case 'h': case 'i': case 'j':
@@ -783,15 +845,15 @@ public class Scanner {
             case 'Z': case '_': case '$':
             case '0': case '1': case '2': case '3': case '4': 
             case '5': case '6': case '7': case '8': case '9':
-                mSource.read();
-                endPos = mSource.getEndPosition();
+                read();
+                endPos = getEndPosition();
                 mWord.append((char)c);
                 continue loop;
             }
                 
             if (Character.isLetterOrDigit((char)c)) {
-                mSource.read();
-                endPos = mSource.getEndPosition();
+                read();
+                endPos = getEndPosition();
                 mWord.append((char)c);
             }
             else {
@@ -819,20 +881,20 @@ public class Scanner {
     // called.
     private Token scanOneLineComment(int startPos) throws IOException {
         int c;
-        int startLine = mSource.getLineNumber();
-        int endPos = mSource.getEndPosition();
+        int startLine = getLineNumber();
+        int endPos = getEndPosition();
         mWord.setLength(0);
         mWord.append('/').append('/');
 
-        while ( (c = mSource.peek()) != -1 ) {
+        while ( (c = peek()) != -1 ) {
             if (c == '\r' || c == '\n') {
                 break;
             }
             
-            mSource.read();
+            read();
             mWord.append((char)c);
 
-            endPos = mSource.getEndPosition();
+            endPos = getEndPosition();
         }
 
         return new StringToken(startLine, startPos, endPos,
@@ -843,17 +905,17 @@ public class Scanner {
     // called.
     private Token scanMultiLineComment(int startPos) throws IOException {
         int c;
-        int startLine = mSource.getLineNumber();
+        int startLine = getLineNumber();
         mWord.setLength(0);
         mWord.append('/').append('*');
 
-        while ( (c = mSource.read()) != -1 ) {
+        while ( (c = read()) != -1 ) {
             mWord.append((char)c);
 
             if (c == '*') {
-                if (mSource.peek() == '/') {
+                if (peek() == '/') {
                     mWord.append('/');
-                    mSource.read();
+                    read();
                     break;
                 }
             }
@@ -863,28 +925,28 @@ public class Scanner {
             error("comment.eof");
         }
 
-        return new StringToken(startLine, startPos, mSource.getEndPosition(),
+        return new StringToken(startLine, startPos, getEndPosition(),
                                Token.COMMENT, mWord.toString());
     }
 
     private Token makeToken(int ID) {
-        return new Token(mSource.getLineNumber(), 
-                         mSource.getStartPosition(),
-                         mSource.getEndPosition(),
+        return new Token(getLineNumber(), 
+                         getStartPosition(),
+                         getEndPosition(),
                          ID);
     }
 
     private Token makeToken(int ID, int startPos) {
-        return new Token(mSource.getLineNumber(), 
+        return new Token(getLineNumber(), 
                          startPos,
-                         mSource.getEndPosition(),
+                         getEndPosition(),
                          ID);
     }
 
     private Token makeStringToken(int ID, String str) {
-        return new StringToken(mSource.getLineNumber(), 
-                               mSource.getStartPosition(),
-                               mSource.getEndPosition(),
+        return new StringToken(getLineNumber(), 
+                               getStartPosition(),
+                               getEndPosition(),
                                ID,
                                str);
     }
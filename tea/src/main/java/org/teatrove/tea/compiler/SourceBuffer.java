@@ -0,0 +1,418 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.compiler;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.teatrove.trove.io.SourceReader;
+
+/**
+ * Reads the characters of a {@link SourceReader} from an array holding its
+ * entire source. Line breaks, tags, unicode escapes, two character pushback
+ * and positions are all handled here, and the characters, line numbers and
+ * positions are the same as those of the SourceReader. This avoids passing
+ * every character through the chain of readers a SourceReader is built
+ * from.
+ *
+ * @see Scanner
+ */
+final class SourceBuffer {
+    // Pushback of the SourceReader, and of its unicode escape reader.
+    private static final int PUSHBACK = 2;
+    private static final int ESCAPE_PUSHBACK = 6;
+
+    /**
+     * Reads the entire source of the given SourceReader into a new
+     * SourceBuffer. Null is returned if the SourceReader is a subclass, which
+     * may read characters differently, if characters have already been read
+     * from it, or if a tag is longer than two characters. Once a
+     * SourceBuffer is returned, the SourceReader must not be read from
+     * anymore.
+     */
+    static SourceBuffer load(SourceReader in) throws IOException {
+        if (in.getClass() != SourceReader.class ||
+            in.getNextPosition() != 0 ||
+            !isSupportedTag(in.getBeginTag()) ||
+            !isSupportedTag(in.getEndTag())) {
+            return null;
+        }
+
+        // The first character is ENTER_CODE or ENTER_TEXT, unless it has
+        // already been read.
+        int first = in.read();
+        if (first != SourceReader.ENTER_CODE &&
+            first != SourceReader.ENTER_TEXT) {
+            in.unread();
+            return null;
+        }
+
+        Reader source = in.getOriginalSource();
+        char[] chars = new char[4096];
+        int length = 0;
+        int amt;
+        while ((amt = source.read(chars, length, chars.length - length)) >= 0) {
+            length += amt;
+            if (length == chars.length) {
+                char[] newChars = new char[chars.length * 2];
+                System.arraycopy(chars, 0, newChars, 0, length);
+                chars = newChars;
+            }
+        }
+
+        return new SourceBuffer(chars, length, in.getBeginTag(),
+                                in.getEndTag(), first);
+    }
+
+    /**
+     * A longer tag partially matched at the end of the source makes the
+     * reader chain lose a character, which is not replicated here.
+     */
+    private static boolean isSupportedTag(String tag) {
+        return tag == null || tag.length() <= 2;
+    }
+
+    private final char[] mChars;
+    private final int mLength;
+
+    // Tags, in the order a SourceReader matches them, and their codes.
+    private final char[][] mTags;
+    private final int[] mCodes;
+
+    // Index of the next character in mChars.
+    private int mIndex;
+
+    private boolean mTagsEnabled = true;
+    private boolean mUnicodeEnabled = true;
+    private boolean mEscaped;
+
+    private int mFirst;
+    private int mLine = 1;
+
+    // Characters read with tags converted, looked ahead for unicode escapes.
+    private final Pushback mEscapeBuffer = new Pushback(ESCAPE_PUSHBACK);
+
+    // Characters read with unicode escapes converted.
+    private final Pushback mBuffer = new Pushback(PUSHBACK);
+
+    private final char[] mHex = new char[4];
+
+    SourceBuffer(char[] chars, int length, String beginTag, String endTag,
+                 int first) {
+        mChars = chars;
+        mLength = length;
+        mFirst = first;
+
+        int count = 2;
+        boolean hasBegin = beginTag != null && beginTag.length() > 0;
+        boolean hasEnd = endTag != null && endTag.length() > 0;
+        if (hasBegin) {
+            count++;
+        }
+        if (hasEnd) {
+            count++;
+        }
+
+        mTags = new char[count][];
+        mCodes = new int[count];
+
+        // Convert different kinds of line breaks into the newline character.
+        int i = 0;
+        mTags[i] = new char[] { '\r', '\n' }; mCodes[i++] = '\n';
+        mTags[i] = new char[] { '\r' }; mCodes[i++] = '\n';
+
+        if (hasBegin) {
+            mTags[i] = beginTag.toCharArray();
+            mCodes[i++] = SourceReader.ENTER_CODE;
+        }
+        if (hasEnd) {
+            mTags[i] = endTag.toCharArray();
+            mCodes[i++] = SourceReader.ENTER_TEXT;
+        }
+    }
+
+    /**
+     * @see SourceReader#read
+     */
+    int read() throws IOException {
+        int c;
+
+        if (mFirst != 0) {
+            c = mFirst;
+            mFirst = 0;
+        }
+        else if (mBuffer.mPushback > 0) {
+            c = mBuffer.replay();
+        }
+        else {
+            c = readUnicode();
+            mBuffer.store(c, mEscapeBuffer.mPosition);
+        }
+
+        if (c == '\n') {
+            mLine++;
+        }
+        else if (c == SourceReader.ENTER_CODE) {
+            mUnicodeEnabled = true;
+        }
+        else if (c == SourceReader.ENTER_TEXT) {
+            mUnicodeEnabled = false;
+        }
+
+        return c;
+    }
+
+    /**
+     * @see SourceReader#peek
+     */
+    int peek() throws IOException {
+        int c = read();
+        unread();
+        return c;
+    }
+
+    /**
+     * @see SourceReader#unread
+     */
+    void unread() throws IOException {
+        int c = mBuffer.unread();
+        if (c == '\n') {
+            mLine--;
+        }
+        else if (c == SourceReader.ENTER_CODE) {
+            mUnicodeEnabled = false;
+        }
+        else if (c == SourceReader.ENTER_TEXT) {
+            mUnicodeEnabled = true;
+        }
+    }
+
+    int getLineNumber() {
+        return mLine;
+    }
+
+    /**
+     * @see SourceReader#getStartPosition
+     */
+    int getStartPosition() {
+        return mBuffer.getStartPosition();
+    }
+
+    /**
+     * @see SourceReader#getEndPosition
+     */
+    int getEndPosition() {
+        int e = mBuffer.mPosition - 1;
+        int start = getStartPosition();
+        return (e < start) ? start : e;
+    }
+
+    /**
+     * @see SourceReader#ignoreTags
+     */
+    void ignoreTags(boolean ignore) {
+        mTagsEnabled = !ignore;
+    }
+
+    /**
+     * Reads the next character, processing unicode escapes when enabled.
+     * An escape that is not well formed is read as a plain backslash.
+     */
+    private int readUnicode() throws IOException {
+        Pushback source = mEscapeBuffer;
+        int c = readEscape();
+
+        if (c != '\\' || !mUnicodeEnabled) {
+            mEscaped = false;
+            return c;
+        }
+
+        c = readEscape();
+
+        // Have scanned "\\"? (two backslashes)
+        if (c == '\\') {
+            mEscaped = !mEscaped;
+            source.unread();
+            return '\\';
+        }
+
+        // Have not scanned '\', 'u'? If previously escaped, then don't
+        // process unicode escape either.
+        if (c != 'u' || mEscaped) {
+            mEscaped = false;
+            source.unread();
+            return '\\';
+        }
+
+        int len = 0;
+        while (len < 4) {
+            if ((c = readEscape()) == -1) {
+                if (len == 0) {
+                    len = -1;
+                }
+                break;
+            }
+            mHex[len++] = (char)c;
+        }
+
+        if (len == 4) {
+            try {
+                return Integer.valueOf(new String(mHex, 0, 4), 16).intValue();
+            }
+            catch (NumberFormatException e) {
+                // If the number is not a parseable as hexadecimal, then
+                // treat this as a bad format and do not process the
+                // unicode escape.
+            }
+        }
+
+        // Unread the four hexadecimal characters and the leading 'u'.
+        for (int i = 0; i <= len; i++) {
+            source.unread();
+        }
+
+        return '\\';
+    }
+
+    /**
+     * Reads the next character with tags converted, which may have been
+     * looked ahead already.
+     */
+    private int readEscape() {
+        Pushback source = mEscapeBuffer;
+        if (source.mPushback > 0) {
+            return source.replay();
+        }
+
+        int c = readTag();
+        source.store(c, mIndex);
+        return c;
+    }
+
+    /**
+     * Reads the next character, converting line breaks and tags when
+     * enabled.
+     */
+    private int readTag() {
+        int index = mIndex;
+        if (index >= mLength) {
+            return -1;
+        }
+
+        char c = mChars[index];
+        if (mTagsEnabled) {
+        tags:
+            for (int i=0; i<mTags.length; i++) {
+                char[] tag = mTags[i];
+                if (tag[0] != c) {
+                    continue;
+                }
+
+                int end = index + tag.length;
+                if (end > mLength) {
+                    continue;
+                }
+
+                for (int j=1; j<tag.length; j++) {
+                    if (mChars[index + j] != tag[j]) {
+                        continue tags;
+                    }
+                }
+
+                mIndex = end;
+                return mCodes[i];
+            }
+        }
+
+        mIndex = index + 1;
+        return c;
+    }
+
+    /**
+     * Ring buffer of characters read and the positions following them, as
+     * kept by a {@link org.teatrove.trove.io.PushbackPositionReader}. The
+     * position is not advanced past the end of the source.
+     */
+    private static final class Pushback {
+        final int mMaxPushback;
+        final int[] mCharacters;
+        final int[] mPositions;
+        int mCursor;
+        int mPushback;
+        int mPosition;
+
+        Pushback(int pushback) {
+            // Two more are required for correct operation
+            mMaxPushback = pushback;
+            mCharacters = new int[pushback + 2];
+            mPositions = new int[pushback + 2];
+        }
+
+        int replay() {
+            mPushback--;
+            mPosition = mPositions[mCursor];
+            int c = mCharacters[mCursor++];
+            if (mCursor >= mCharacters.length) {
+                mCursor = 0;
+            }
+            return c;
+        }
+
+        void store(int c, int position) {
+            if (c != -1) {
+                mPosition = position;
+            }
+            mPositions[mCursor] = mPosition;
+            mCharacters[mCursor++] = c;
+            if (mCursor >= mCharacters.length) {
+                mCursor = 0;
+            }
+        }
+
+        /**
+         * Returns the character unread.
+         */
+        int unread() throws IOException {
+            if (++mPushback > mMaxPushback) {
+                throw new IOException
+                    (SourceReader.class.getName() + ": pushback exceeded " +
+                     mMaxPushback);
+            }
+
+            if ((--mCursor) < 0) {
+                mCursor += mCharacters.length;
+            }
+
+            if (mCursor > 0) {
+                mPosition = mPositions[mCursor - 1];
+            }
+            else {
+                mPosition = mPositions[mCharacters.length - 1];
+            }
+
+            return mCharacters[mCursor];
+        }
+
+        int getStartPosition() {
+            int back = mCursor - 2;
+            if (back < 0) {
+                back += mCharacters.length;
+            }
+            return mPositions[back];
+        }
+    }
+}
@@ -25,7 +25,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.StringTokenizer;
 
+import org.teatrove.tea.runtime.InlinedTemplates;
+import org.teatrove.trove.classfile.Annotation;
 import org.teatrove.trove.classfile.ClassFile;
+import org.teatrove.trove.classfile.ConstantUTFInfo;
 import org.teatrove.trove.classfile.MethodInfo;
 import org.teatrove.trove.classfile.TypeDesc;
 import org.teatrove.trove.classfile.CodeDisassembler;
@@ -109,6 +112,12 @@ public class TemplateCallExtractor {
 
             MethodInfo executeMethod = getTemplateExecuteMethod(new FileInputStream(templatePath));
 
+            // Templates inlined into this one are not called, but this
+            // template still depends on them.
+            String[] inlined = getTemplatesInlined(executeMethod.getClassFile());
+            for (int i = 0; i < inlined.length; i++)
+                templatesCalledMap.put(inlined[i], inlined[i]);
+
             // Search for embedded execute methods.
             CodeDisassembler cd = new CodeDisassembler(executeMethod);
             cd.disassemble(new CodeAssemblerPrinter(executeMethod
@@ -151,6 +160,35 @@ public class TemplateCallExtractor {
             new String[templatesCalledMap.keySet().size()]);
     }
 
+    /**
+     * Get the names of all templates inlined into a template, as recorded
+     * by its {@link InlinedTemplates} annotation.
+     */
+    public static String[] getTemplatesInlined(ClassFile classFile) {
+
+        TypeDesc inlinedType = TypeDesc.forClass(InlinedTemplates.class);
+        Annotation[] annotations = classFile.getRuntimeVisibleAnnotations();
+        for (int i = 0; i < annotations.length; i++) {
+            if (!inlinedType.equals(annotations[i].getType()))
+                continue;
+
+            Annotation.MemberValue value =
+                annotations[i].getMemberValues().get("value");
+            if (value == null ||
+                    value.getTag() != Annotation.MEMBER_TAG_ARRAY)
+                break;
+
+            Annotation.MemberValue[] names =
+                (Annotation.MemberValue[]) value.getValue();
+            String[] inlined = new String[names.length];
+            for (int j = 0; j < names.length; j++)
+                inlined[j] = ((ConstantUTFInfo) names[j].getValue()).
+                    getValue().replace('.', '/');
+            return inlined;
+        }
+        return new String[0];
+    }
+
     /**
      * Get the names of all application methods called within a template.
      */
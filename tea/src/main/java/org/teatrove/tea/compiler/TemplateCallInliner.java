@@ -0,0 +1,584 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.compiler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.teatrove.tea.parsetree.AndExpression;
+import org.teatrove.tea.parsetree.ArithmeticExpression;
+import org.teatrove.tea.parsetree.ArrayLookup;
+import org.teatrove.tea.parsetree.AssignmentStatement;
+import org.teatrove.tea.parsetree.Block;
+import org.teatrove.tea.parsetree.CallExpression;
+import org.teatrove.tea.parsetree.CompareExpression;
+import org.teatrove.tea.parsetree.ConcatenateExpression;
+import org.teatrove.tea.parsetree.ExceptionGuardStatement;
+import org.teatrove.tea.parsetree.Expression;
+import org.teatrove.tea.parsetree.Expression.Conversion;
+import org.teatrove.tea.parsetree.ExpressionStatement;
+import org.teatrove.tea.parsetree.ForeachStatement;
+import org.teatrove.tea.parsetree.FunctionCallExpression;
+import org.teatrove.tea.parsetree.IfStatement;
+import org.teatrove.tea.parsetree.Lookup;
+import org.teatrove.tea.parsetree.NewArrayExpression;
+import org.teatrove.tea.parsetree.OrExpression;
+import org.teatrove.tea.parsetree.RelationalExpression;
+import org.teatrove.tea.parsetree.ReturnStatement;
+import org.teatrove.tea.parsetree.Statement;
+import org.teatrove.tea.parsetree.StatementList;
+import org.teatrove.tea.parsetree.SubstitutionStatement;
+import org.teatrove.tea.parsetree.Template;
+import org.teatrove.tea.parsetree.TemplateCallExpression;
+import org.teatrove.tea.parsetree.TernaryExpression;
+import org.teatrove.tea.parsetree.TreeMutator;
+import org.teatrove.tea.parsetree.TreeWalker;
+import org.teatrove.tea.parsetree.Variable;
+import org.teatrove.tea.parsetree.VariableRef;
+
+/**
+ * The TemplateCallInliner replaces calls to small templates with the body
+ * of the called template. This removes the cost of the call and allows the
+ * {@link BasicOptimizer}, which runs afterwards, to optimize the called
+ * template's code together with the caller's.
+ *
+ * <p>Only calls made as a statement, or as the last statement of the
+ * caller, are inlined. The called template must be no larger than the
+ * Compiler's inline threshold, as type checked by the same Compiler; it need
+ * not be compiled itself. Templates that it calls are not inlined in turn.
+ * Templates that pass a substitution block, or that use fields, are never
+ * inlined. The parameters and local variables of the inlined
+ * template are renamed so that they cannot clash with the caller's.
+ *
+ * <p>A template that accepts a substitution block is inlined if it
+ * substitutes the block at most once and never within a loop. The caller's
+ * block is then lowered in place of the substitution, so it runs directly
+ * instead of through {@link org.teatrove.tea.runtime.Substitution}. A
+ * caller only passes blocks to templates in this way if all of its blocks
+ * can be lowered, since that lets it drop the fields and the per execution
+ * instance that substitution blocks otherwise require.
+ *
+ * <p>The names of the inlined templates are recorded as a property of the
+ * caller's parse tree, and from there in the generated class, so that the
+ * caller can be recompiled when an inlined template changes.
+ *
+ * @see Compiler#setInlineThreshold
+ */
+public class TemplateCallInliner {
+
+    /**
+     * Name of the parse tree property that holds the Set of fully qualified
+     * class names of the templates inlined into it.
+     */
+    public static final String INLINED_PROPERTY = "inlinedTemplates";
+
+    private Compiler mCompiler;
+    private Template mTree;
+    private Set<String> mInlined;
+    private int mVariableCount;
+
+    public TemplateCallInliner(Compiler compiler, Template tree) {
+        mCompiler = compiler;
+        mTree = tree;
+    }
+
+    public Template inline() {
+        if (mCompiler.getInlineThreshold() <= 0 ||
+            mTree.hasSubstitutionParam()) {
+            return mTree;
+        }
+
+        // A caller that generates sub-formats keeps its variables in fields.
+        Measure measure = new Measure();
+        mTree.accept(measure);
+        if (measure.mSubstitution) {
+            Lowerable lowerable = new Lowerable();
+            mTree.accept(lowerable);
+            if (!lowerable.mLowerable) {
+                return mTree;
+            }
+        }
+
+        Statement stmt = mTree.getStatement();
+        if (stmt != null) {
+            mTree.setStatement((Statement)stmt.accept(new Visitor()));
+        }
+
+        if (measure.mSubstitution) {
+            // Variables were only fields to be shared with the blocks.
+            mTree.accept(new TreeWalker() {
+                public Object visit(Variable node) {
+                    node.setField(false);
+                    return super.visit(node);
+                }
+
+                public Object visit(VariableRef node) {
+                    Variable var = node.getVariable();
+                    if (var != null) {
+                        var.setField(false);
+                    }
+                    return super.visit(node);
+                }
+            });
+        }
+
+        return mTree;
+    }
+
+    /**
+     * Returns true if the given type checked parse tree may be inlined into
+     * the templates that call it.
+     *
+     * @param tree the parse tree of the called template
+     * @param threshold the maximum size of the tree, in statements and
+     * non-trivial expressions
+     */
+    public static boolean isInlineable(Template tree, int threshold) {
+        if (tree.getStatement() == null) {
+            return false;
+        }
+
+        Measure measure = new Measure();
+        tree.accept(measure);
+        return measure.mInlineable && !measure.mSubstitution &&
+            measure.mSubstitutions <= 1 && measure.mSize <= threshold;
+    }
+
+    /**
+     * Returns the fully qualified class names of the templates inlined into
+     * the given parse tree, which is empty if none were inlined.
+     */
+    @SuppressWarnings("unchecked")
+    public static Set<String> getInlinedTemplates(Template tree) {
+        Set<String> inlined =
+            (Set<String>)tree.getProperty(INLINED_PROPERTY);
+        if (inlined == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(inlined);
+    }
+
+    /**
+     * Returns the parse tree to inline for the given call, or null if the
+     * call cannot be inlined.
+     */
+    private Template getInlineableTree(TemplateCallExpression call) {
+        Block subParam = call.getSubstitutionParam();
+        if ((subParam == null && call.getInitializer() != null) ||
+            call.getExpression() != null) {
+            return null;
+        }
+
+        CompilationUnit unit = call.getCalledTemplate();
+        if (unit == null || unit.getCompiler() != mCompiler) {
+            return null;
+        }
+
+        Template tree = mCompiler.getInlineableTree(unit.getName());
+        if (tree == null ||
+            tree.hasSubstitutionParam() != (subParam != null)) {
+            return null;
+        }
+
+        return tree;
+    }
+
+    /**
+     * Builds the statements that replace the given call. The arguments are
+     * assigned to renamed copies of the parameters, followed by the call's
+     * initializer and a copy of the called template's statements in which
+     * the return is replaced with the given replacer. The substitution, if
+     * any, is replaced with the call's block.
+     */
+    private Statement inline(TemplateCallExpression call, Template callee,
+                             Replacer replacer) {
+        SourceInfo info = call.getSourceInfo();
+        Renamer renamer = new Renamer();
+
+        Variable[] params = callee.getParams();
+        Expression[] args = call.getParams().getExpressions();
+        Statement init = call.getInitializer();
+        Statement[] stmts = new Statement
+            [params.length + (init == null ? 1 : 2)];
+
+        for (int i=0; i<params.length; i++) {
+            Variable param = (Variable)params[i].accept(renamer);
+            VariableRef ref = new VariableRef(info, param.getName());
+            ref.setVariable(param);
+            stmts[i] = new AssignmentStatement(info, ref, args[i]);
+        }
+
+        if (init != null) {
+            // Converts variables shared with the block, as before the call.
+            stmts[params.length] = init;
+        }
+
+        Statement body = (Statement)callee.getStatement().clone();
+        body = (Statement)body.accept(renamer);
+        replacer.mBlock = call.getSubstitutionParam();
+        stmts[stmts.length - 1] = (Statement)body.accept(replacer);
+
+        CompilationUnit unit = call.getCalledTemplate();
+        String name = unit.getName();
+        String targetPackage = unit.getTargetPackage();
+        if (targetPackage != null) {
+            name = targetPackage + '.' + name;
+        }
+
+        if (mInlined == null) {
+            mInlined = new TreeSet<String>(getInlinedTemplates(mTree));
+            mTree.setProperty(INLINED_PROPERTY, mInlined);
+        }
+        mInlined.add(name);
+
+        return new StatementList(info, stmts);
+    }
+
+    /**
+     * Applies the conversions of the replaced call to the expression that
+     * now produces its value.
+     */
+    private static void convert(TemplateCallExpression call, Expression expr) {
+        for (Conversion conversion : call.getConversionChain()) {
+            expr.convertTo(conversion.getToType(),
+                           conversion.isCastPreferred());
+        }
+    }
+
+    private class Visitor extends TreeMutator {
+        public Object visit(ExpressionStatement node) {
+            if (!(node.getExpression() instanceof TemplateCallExpression)) {
+                return super.visit(node);
+            }
+
+            final TemplateCallExpression call =
+                (TemplateCallExpression)node.getExpression();
+            Template callee = getInlineableTree(call);
+            if (callee == null) {
+                return super.visit(node);
+            }
+            visitSubstitutionParam(call);
+
+            // The value returned by the called template is passed to the
+            // receiver, if any, just as the result of the call would be.
+            final java.lang.reflect.Method receiver = node.getReceiverMethod();
+            return inline(call, callee, new Replacer() {
+                public Object visit(ReturnStatement node) {
+                    Expression expr = node.getExpression();
+                    if (expr == null) {
+                        return new StatementList
+                            (node.getSourceInfo(), new Statement[0]);
+                    }
+
+                    ExpressionStatement stmt = new ExpressionStatement(expr);
+                    if (receiver != null &&
+                        expr.getType().getNaturalClass() != void.class) {
+                        convert(call, expr);
+                        stmt.setReceiverMethod(receiver);
+                    }
+                    return stmt;
+                }
+            });
+        }
+
+        public Object visit(ReturnStatement node) {
+            if (!(node.getExpression() instanceof TemplateCallExpression)) {
+                return super.visit(node);
+            }
+
+            final TemplateCallExpression call =
+                (TemplateCallExpression)node.getExpression();
+            Template callee = getInlineableTree(call);
+            if (callee == null) {
+                return super.visit(node);
+            }
+            visitSubstitutionParam(call);
+
+            // The called template's return becomes the caller's.
+            return inline(call, callee, new Replacer() {
+                public Object visit(ReturnStatement node) {
+                    Expression expr = node.getExpression();
+                    if (expr != null) {
+                        convert(call, expr);
+                    }
+                    return node;
+                }
+            });
+        }
+
+        public Object visit(ExceptionGuardStatement node) {
+            // Leave guarded statements as they are, since an inlined template
+            // would otherwise be guarded as a single statement.
+            return node;
+        }
+
+        /**
+         * Inlines calls within the block before it is lowered.
+         */
+        private void visitSubstitutionParam(TemplateCallExpression call) {
+            Block subParam = call.getSubstitutionParam();
+            if (subParam != null) {
+                call.setSubstitutionParam((Block)subParam.accept(this));
+            }
+        }
+    }
+
+    /**
+     * Replaces the return statement of an inlined template, and its
+     * substitution with the block passed by the caller.
+     */
+    private static class Replacer extends TreeMutator {
+        Block mBlock;
+
+        public Object visit(SubstitutionStatement node) {
+            if (mBlock == null) {
+                return new StatementList
+                    (node.getSourceInfo(), new Statement[0]);
+            }
+            return mBlock;
+        }
+    }
+
+    /**
+     * Determines if every substitution block that a caller passes can be
+     * lowered, mirroring the calls that the Visitor inlines.
+     */
+    private class Lowerable extends TreeWalker {
+        boolean mLowerable = true;
+        private Set<CallExpression> mCalls = new HashSet<CallExpression>();
+
+        public Object visit(ExpressionStatement node) {
+            check(node.getExpression());
+            return super.visit(node);
+        }
+
+        public Object visit(ReturnStatement node) {
+            check(node.getExpression());
+            return super.visit(node);
+        }
+
+        public Object visit(ExceptionGuardStatement node) {
+            Measure measure = new Measure();
+            node.accept(measure);
+            if (measure.mSubstitution) {
+                mLowerable = false;
+            }
+            return node;
+        }
+
+        public Object visit(FunctionCallExpression node) {
+            if (node.getSubstitutionParam() != null) {
+                mLowerable = false;
+            }
+            return super.visit(node);
+        }
+
+        public Object visit(TemplateCallExpression node) {
+            if (node.getSubstitutionParam() != null &&
+                !mCalls.contains(node)) {
+                mLowerable = false;
+            }
+            return super.visit(node);
+        }
+
+        private void check(Expression expr) {
+            if (expr instanceof TemplateCallExpression) {
+                TemplateCallExpression call = (TemplateCallExpression)expr;
+                if (call.getSubstitutionParam() != null &&
+                    getInlineableTree(call) != null) {
+                    mCalls.add(call);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the variables of an inlined template with renamed copies.
+     * Variables that are equal share the same copy, and variables of the same
+     * name are given the same new name.
+     */
+    private class Renamer extends TreeMutator {
+        private Map<String, String> mNames = new HashMap<String, String>();
+        private Map<Variable, Variable> mVariables =
+            new HashMap<Variable, Variable>();
+
+        public Object visit(Variable node) {
+            Variable var = mVariables.get(node);
+            if (var == null) {
+                String name = mNames.get(node.getName());
+                if (name == null) {
+                    name = node.getName() + "$inline" + mVariableCount++;
+                    mNames.put(node.getName(), name);
+                }
+
+                var = (Variable)node.clone();
+                var.setName(name);
+                mVariables.put(node, var);
+            }
+            return var;
+        }
+
+        public Object visit(VariableRef node) {
+            super.visit(node);
+            Variable var = node.getVariable();
+            if (var != null) {
+                node.setName(var.getName());
+            }
+            return node;
+        }
+
+        public Object visit(IfStatement node) {
+            Variable[] vars = node.getMergedVariables();
+            if (vars != null) {
+                Variable[] newVars = new Variable[vars.length];
+                for (int i=0; i<vars.length; i++) {
+                    newVars[i] = (Variable)vars[i].accept(this);
+                }
+                node.setMergedVariables(newVars);
+            }
+            return super.visit(node);
+        }
+    }
+
+    /**
+     * Measures the size of a parse tree and determines if it has any
+     * features that prevent it from being inlined.
+     */
+    private static class Measure extends TreeWalker {
+        int mSize;
+        boolean mInlineable = true;
+        boolean mSubstitution;
+        int mSubstitutions;
+        private int mLoops;
+
+        public Object visit(Variable node) {
+            if (node.isField()) {
+                mInlineable = false;
+            }
+            return super.visit(node);
+        }
+
+        public Object visit(AssignmentStatement node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(ForeachStatement node) {
+            mSize++;
+            mLoops++;
+            super.visit(node);
+            mLoops--;
+            return null;
+        }
+
+        public Object visit(IfStatement node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(SubstitutionStatement node) {
+            mSubstitutions++;
+            if (mLoops > 0) {
+                mInlineable = false;
+            }
+            return super.visit(node);
+        }
+
+        public Object visit(ExpressionStatement node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(ExceptionGuardStatement node) {
+            if (node.getGuarded() instanceof ReturnStatement) {
+                mInlineable = false;
+            }
+            return super.visit(node);
+        }
+
+        public Object visit(NewArrayExpression node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(FunctionCallExpression node) {
+            visitCall(node);
+            return super.visit(node);
+        }
+
+        public Object visit(TemplateCallExpression node) {
+            visitCall(node);
+            return super.visit(node);
+        }
+
+        private void visitCall(CallExpression node) {
+            mSize++;
+            if (node.getSubstitutionParam() != null) {
+                mSubstitution = true;
+            }
+        }
+
+        public Object visit(Lookup node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(ArrayLookup node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(ConcatenateExpression node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(ArithmeticExpression node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(RelationalExpression node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(AndExpression node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(OrExpression node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(TernaryExpression node) {
+            mSize++;
+            return super.visit(node);
+        }
+
+        public Object visit(CompareExpression node) {
+            mSize++;
+            return super.visit(node);
+        }
+    }
+}
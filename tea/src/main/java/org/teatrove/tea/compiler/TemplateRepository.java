@@ -17,9 +17,14 @@
 package org.teatrove.tea.compiler;
 
 import java.beans.MethodDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
@@ -32,6 +37,7 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.jar.JarEntry;
@@ -52,9 +58,11 @@ import org.teatrove.trove.util.PropertyParser;
  * The TemplateRepository class manages metadata pertaining to the
  * caller/callee hierarchy.  This information is derived from the template
  * class files and does not rely on tea source code.  In order to reduce the
- * repository spin-up time, this data is stored in a file named <b>.templates.info</b>
- * and is updated as templates are successfully compiled.  This file is located
- * in the root directory where template classes are stored.
+ * repository spin-up time, this data is stored in a binary index file named
+ * <b>.templates.idx</b>, and records for templates that are successfully
+ * compiled are appended to it.  This file is located in the root directory
+ * where template classes are stored.  A <b>.templates.info</b> file written
+ * by earlier versions is read once and converted to the index.
  *
  */
 public class TemplateRepository {
@@ -73,10 +81,22 @@ public class TemplateRepository {
 
     public static final String REPOSITORY_FILENAME = ".templates.info";
 
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private TemplateRepositoryIndex mIndex;
+
+    // TemplateInfos read by getCallersNeedingRecompile, reused and then
+    // discarded by update.
+    private Map<String, TemplateInfo> mPendingInfoMap =
+        new HashMap<String, TemplateInfo>();
+
     private TemplateRepository(File rootClassesDir, String rootPackage) {
         mRootClassesDir = rootClassesDir;
         mRootPackage = rootPackage.replace('.', '/');
         mRootPackage = !mRootPackage.endsWith("/") ? mRootPackage += "/" : mRootPackage;
+        mIndex = new TemplateRepositoryIndex(
+            new File(rootClassesDir, TemplateRepositoryIndex.INDEX_FILENAME));
     }
 
     /**
@@ -100,7 +120,12 @@ public class TemplateRepository {
         mInstance = new TemplateRepository(rootClassesDir, rootPackage);
         try {
             long start = System.currentTimeMillis();
-            mInstance.loadRepositoryFile();
+            if (!mInstance.loadIndexFile()) {
+                // Convert the repository file of an earlier version.
+                mInstance.loadRepositoryFile();
+                mInstance.createRepositoryFile();
+                mInstance.deleteRepositoryFile();
+            }
             Syslog.info("Repository initialized.  Elapsed time " +
                 (System.currentTimeMillis() - start) + " ms.");
         }
@@ -110,6 +135,7 @@ public class TemplateRepository {
             try {
                 mInstance.getTemplateInfoForAllFiles();
                 mInstance.createRepositoryFile();
+                mInstance.deleteRepositoryFile();
             }
             catch (IOException ix) {
                 ix.printStackTrace();
@@ -161,6 +187,7 @@ public class TemplateRepository {
         TypeDesc mReturnType;
         TypeDesc[] mParameterTypes;
         String[] mDependents;
+        String[] mInlined;
         TemplateCallExtractor.AppMethodInfo[] mMethodsCalled;
         boolean mPrecompiled = false;
 
@@ -180,6 +207,8 @@ public class TemplateRepository {
             mParameterTypes = mi.getMethodDescriptor().getParameterTypes();
             mDependents = TemplateCallExtractor.getTemplatesCalled(
                 rootClassesDir.getAbsolutePath(), mi.getClassFile().getClassName());
+            mInlined = TemplateCallExtractor.getTemplatesInlined(
+                mi.getClassFile());
             if (mParameterTypes.length > 0) {
                 mMethodsCalled = TemplateCallExtractor.getAppMethodsCalled(
                     rootClassesDir.getAbsolutePath(), mi.getClassFile().getClassName(),
@@ -223,6 +252,14 @@ public class TemplateRepository {
                     depList.add(deps.nextToken().trim());
             }
             mDependents = depList.toArray(new String[depList.size()]);
+            ArrayList<String> inlinedList = new ArrayList<String>();
+            if (p.get("inlined") != null) {
+                StringTokenizer inlined = new StringTokenizer(
+                    (String) p.get("inlined"), ",", false);
+                while(inlined.hasMoreTokens())
+                    inlinedList.add(inlined.nextToken().trim());
+            }
+            mInlined = inlinedList.toArray(new String[inlinedList.size()]);
             ArrayList<TemplateCallExtractor.AppMethodInfo> methodList =
                 new ArrayList<TemplateCallExtractor.AppMethodInfo>();
             if (p.get("methodsCalled") != null) {
@@ -248,6 +285,59 @@ public class TemplateRepository {
             this(mi, lastModified, rootClassesDir, false);
         }
 
+        /**
+         * Construct a TemplateInfo from a record of the repository index.
+         *
+         * @param name The template name.
+         * @param in The record, positioned after the name.
+         */
+        TemplateInfo(String name, DataInput in) throws IOException {
+            mName = name;
+            mSourceFile = in.readBoolean() ? in.readUTF() : null;
+            mLastModified = in.readLong();
+            mReturnType = TypeDesc.forDescriptor(in.readUTF());
+            mParameterTypes = new TypeDesc[in.readInt()];
+            for (int i = 0; i < mParameterTypes.length; i++)
+                mParameterTypes[i] = TypeDesc.forDescriptor(in.readUTF());
+            mDependents = new String[in.readInt()];
+            for (int i = 0; i < mDependents.length; i++)
+                mDependents[i] = in.readUTF();
+            mInlined = new String[in.readInt()];
+            for (int i = 0; i < mInlined.length; i++)
+                mInlined[i] = in.readUTF();
+            mMethodsCalled =
+                new TemplateCallExtractor.AppMethodInfo[in.readInt()];
+            for (int i = 0; i < mMethodsCalled.length; i++)
+                mMethodsCalled[i] =
+                    new TemplateCallExtractor.AppMethodInfo(in.readUTF());
+            mPrecompiled = in.readBoolean();
+        }
+
+        /**
+         * Writes this TemplateInfo, except for its name, in the format read
+         * by the DataInput constructor.
+         */
+        void writeTo(DataOutput out) throws IOException {
+            out.writeBoolean(mSourceFile != null);
+            if (mSourceFile != null)
+                out.writeUTF(mSourceFile);
+            out.writeLong(mLastModified);
+            out.writeUTF(mReturnType.toString());
+            out.writeInt(mParameterTypes.length);
+            for (int i = 0; i < mParameterTypes.length; i++)
+                out.writeUTF(mParameterTypes[i].toString());
+            out.writeInt(mDependents.length);
+            for (int i = 0; i < mDependents.length; i++)
+                out.writeUTF(mDependents[i]);
+            out.writeInt(mInlined.length);
+            for (int i = 0; i < mInlined.length; i++)
+                out.writeUTF(mInlined[i]);
+            out.writeInt(mMethodsCalled.length);
+            for (int i = 0; i < mMethodsCalled.length; i++)
+                out.writeUTF(mMethodsCalled[i].toString());
+            out.writeBoolean(mPrecompiled);
+        }
+
 
         /**
          * Returns false if the template signatures do not match.  The
@@ -277,6 +367,20 @@ public class TemplateRepository {
 
         public String[] getDependents() { return mDependents; }
 
+        /**
+         * Returns the names of the templates inlined into this one, which
+         * are also included in its dependents.
+         */
+        public String[] getInlined() { return mInlined; }
+
+        public boolean isInlined(String templateName) {
+            for (int i = 0; i < mInlined.length; i++) {
+                if (mInlined[i].equals(templateName))
+                    return true;
+            }
+            return false;
+        }
+
         public long getLastModified() { return mLastModified; }
 
         public Date getLastModifiedDate() { return new Date(mLastModified); }
@@ -320,6 +424,15 @@ public class TemplateRepository {
                 }
                 buf.append("\n");
             }
+            if (mInlined.length > 0) {
+                buf.append(indent).append("inlined = ");
+                for (int i = 0; i < mInlined.length; i++) {
+                    buf.append(mInlined[i]);
+                    if (i < mInlined.length - 1)
+                        buf.append(", ");
+                }
+                buf.append("\n");
+            }
             if (mMethodsCalled.length > 0) {
                 buf.append(indent).append("methodsCalled = ");
                 for (int i = 0; i < mMethodsCalled.length; i++) {
@@ -424,24 +537,67 @@ public class TemplateRepository {
 
 
     /**
-     * Persist the current state of the repository to disk.
+     * Persist the current state of the repository to disk, replacing the
+     * index file with one holding a single record per template.
      */
     public synchronized void createRepositoryFile() throws IOException {
-        StringBuffer buf = new StringBuffer();
-        long lastModified = System.currentTimeMillis();
-        buf.append("lastModified = ").append(
-            mDateFmt.format(new Date(lastModified))).append("\n");
-        buf.append("templates {\n");
-        for (Iterator<String> i = mTemplateInfoMap.keySet().iterator(); i.hasNext(); )
-            buf.append((mTemplateInfoMap.get(i.next())).toString());
-        buf.append("}\n");
-        File repositoryFile = new File(mRootClassesDir,
-            REPOSITORY_FILENAME);
-        FileOutputStream out = new FileOutputStream(repositoryFile);
-        out.write(buf.toString().getBytes());
+        List<byte[]> records = new ArrayList<byte[]>(mTemplateInfoMap.size());
+        for (Iterator<TemplateInfo> i = mTemplateInfoMap.values().iterator(); i.hasNext(); )
+            records.add(createRecord(i.next()));
+        mIndex.rewrite(records);
+    }
+
+    /**
+     * Loads the current repository state from the index file.
+     *
+     * @return false if there is no usable index file
+     */
+    private boolean loadIndexFile() throws IOException {
+        List<byte[]> records = mIndex.read();
+        if (records == null)
+            return false;
+        checkLastModified(mIndex.getFile(), mIndex.getLastModified());
+
+        // Later records replace earlier ones for the same template.
+        for (Iterator<byte[]> i = records.iterator(); i.hasNext(); ) {
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(i.next()));
+            byte type = in.readByte();
+            String name = in.readUTF();
+            if (type == RECORD_PUT)
+                mTemplateInfoMap.put(name, new TemplateInfo(name, in));
+            else if (type == RECORD_REMOVE)
+                mTemplateInfoMap.remove(name);
+            else
+                throw new IOException("Unknown repository record: " + type);
+        }
+        buildAncestorMap();
+        return true;
+    }
+
+    /**
+     * Creates an index record that adds or replaces the given template.
+     */
+    private byte[] createRecord(TemplateInfo t) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_PUT);
+        out.writeUTF(t.getName());
+        t.writeTo(out);
         out.flush();
-        out.close();
-        repositoryFile.setLastModified(lastModified);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Creates an index record that removes the named template.
+     */
+    private byte[] createRemoveRecord(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_REMOVE);
+        out.writeUTF(name);
+        out.flush();
+        return bytes.toByteArray();
     }
 
     /**
@@ -453,16 +609,8 @@ public class TemplateRepository {
         File repositoryFile = new File(mRootClassesDir,
             REPOSITORY_FILENAME);
         p.parse(new FileReader(repositoryFile));
-        boolean isWindows = System.getProperty("os.name").startsWith("Windows");
-        long lastModified = mDateFmt.parse((String) m.get("lastModified")).
-            getTime();
-        if ((isWindows && repositoryFile.lastModified() != lastModified) ||
-                (!isWindows && Math.max(repositoryFile.lastModified(), lastModified) -
-                Math.min(repositoryFile.lastModified(), lastModified) >= 1000L)) {
-            String corruptMsg = "Repository corrupt.  Rebuild Needed.";
-            Syslog.error(corruptMsg);
-            throw new RuntimeException(corruptMsg);
-        }
+        checkLastModified(repositoryFile,
+            mDateFmt.parse((String) m.get("lastModified")).getTime());
         PropertyMap templateMap = m.subMap("templates");
 
         // Merge the TemplateInfos into existing mTemplateInfoMap
@@ -474,6 +622,33 @@ public class TemplateRepository {
         buildAncestorMap();
     }
 
+    /**
+     * Deletes the repository file of an earlier version once its contents
+     * have been converted to the index.
+     */
+    private void deleteRepositoryFile() {
+        File repositoryFile = new File(mRootClassesDir, REPOSITORY_FILENAME);
+        if (repositoryFile.exists() && !repositoryFile.delete())
+            Syslog.warn("Unable to delete " + repositoryFile);
+    }
+
+    /**
+     * Verifies that the given repository file has not been modified since
+     * it was written, by comparing its modification time with the time
+     * recorded in the file itself.  Some file systems only store times to
+     * the second, hence the tolerance outside of Windows.
+     */
+    private static void checkLastModified(File repositoryFile, long lastModified) {
+        boolean isWindows = System.getProperty("os.name").startsWith("Windows");
+        if ((isWindows && repositoryFile.lastModified() != lastModified) ||
+                (!isWindows && Math.max(repositoryFile.lastModified(), lastModified) -
+                Math.min(repositoryFile.lastModified(), lastModified) >= 1000L)) {
+            String corruptMsg = "Repository corrupt.  Rebuild Needed.";
+            Syslog.error(corruptMsg);
+            throw new RuntimeException(corruptMsg);
+        }
+    }
+
     /**
      * Create caller hierarchy.
      *
@@ -484,26 +659,54 @@ public class TemplateRepository {
     private void buildAncestorMap() {
         mAncestorMap = new HashMap<String, Map<String, TemplateInfo>>();
         mFunctionMap = new HashMap<String, Map<String, TemplateInfo>>();
-        for (Iterator<TemplateInfo> i = mTemplateInfoMap.values().iterator(); i.hasNext();) {
-            TemplateInfo t = i.next();
-            for (int j = 0; j < t.getDependents().length; j++) {
-                Map<String, TemplateInfo> parentMap =
-                    mAncestorMap.get(t.getDependents()[j]);
-                if (parentMap == null)
-                    parentMap = new HashMap<String, TemplateInfo>();
-                if (!parentMap.containsKey(t.getName()))
-                    parentMap.put(t.getName(), t);
+        for (Iterator<TemplateInfo> i = mTemplateInfoMap.values().iterator(); i.hasNext();)
+            addCallerEntries(i.next());
+    }
+
+    /**
+     * Add a template to the caller hierarchy.
+     */
+    private void addCallerEntries(TemplateInfo t) {
+        for (int j = 0; j < t.getDependents().length; j++) {
+            Map<String, TemplateInfo> parentMap =
+                mAncestorMap.get(t.getDependents()[j]);
+            if (parentMap == null) {
+                parentMap = new HashMap<String, TemplateInfo>();
                 mAncestorMap.put(t.getDependents()[j], parentMap);
             }
-            for (int j = 0; j < t.getAppMethodsCalled().length; j++) {
-                String sKey = t.getAppMethodsCalled()[j].toString();
-                Map<String, TemplateInfo> callMap = mFunctionMap.get(sKey);
-                if (callMap == null) {
-                    callMap = new HashMap<String, TemplateInfo>();
-                    mFunctionMap.put(sKey, callMap);
-                }
-                if (!callMap.containsKey(t.getName()))
-                    callMap.put(t.getName(), t);
+            parentMap.put(t.getName(), t);
+        }
+        for (int j = 0; j < t.getAppMethodsCalled().length; j++) {
+            String sKey = t.getAppMethodsCalled()[j].toString();
+            Map<String, TemplateInfo> callMap = mFunctionMap.get(sKey);
+            if (callMap == null) {
+                callMap = new HashMap<String, TemplateInfo>();
+                mFunctionMap.put(sKey, callMap);
+            }
+            callMap.put(t.getName(), t);
+        }
+    }
+
+    /**
+     * Remove a template from the caller hierarchy.
+     */
+    private void removeCallerEntries(TemplateInfo t) {
+        for (int j = 0; j < t.getDependents().length; j++) {
+            Map<String, TemplateInfo> parentMap =
+                mAncestorMap.get(t.getDependents()[j]);
+            if (parentMap != null) {
+                parentMap.remove(t.getName());
+                if (parentMap.isEmpty())
+                    mAncestorMap.remove(t.getDependents()[j]);
+            }
+        }
+        for (int j = 0; j < t.getAppMethodsCalled().length; j++) {
+            String sKey = t.getAppMethodsCalled()[j].toString();
+            Map<String, TemplateInfo> callMap = mFunctionMap.get(sKey);
+            if (callMap != null) {
+                callMap.remove(t.getName());
+                if (callMap.isEmpty())
+                    mFunctionMap.remove(sKey);
             }
         }
     }
@@ -584,8 +787,9 @@ public class TemplateRepository {
      * Retrieve the callers of a list of given template names
      * where the source file can be located (delegated to the compiler),
      * and the signature of given template(s) has changed since the last
-     * call to <b>update</b>.  The class file(s) of the corresponding
-     * template names returned are removed.
+     * call to <b>update</b>.  Callers that inlined a given template are
+     * retrieved whenever it has changed.  The class file(s) of the
+     * corresponding template names returned are removed.
      *
      * @param names The names of the templates to check.
      * @param compiler The compiler instance.
@@ -600,12 +804,17 @@ public class TemplateRepository {
             TemplateInfo tNew = getTemplateInfoForClassFile(getClassFileForName(templateName));
             if (tNew == null || !mTemplateInfoMap.containsKey(templateName))
                 continue;
+            synchronized (mPendingInfoMap) {
+                mPendingInfoMap.put(templateName, tNew);
+            }
             TemplateInfo tOld = mTemplateInfoMap.get(templateName);
-            // Don't bother if template signature hasn't changed.
-            if (tNew.equals(tOld))
-                continue;
+            // Callers only need recompiling if the template signature has
+            // changed, except for those that inlined the template.
+            boolean signatureChanged = !tNew.equals(tOld);
             TemplateInfo[] callers = getCallers(templateName);
             for (int j = 0; j < callers.length; j++) {
+                if (!signatureChanged && !callers[j].isInlined(templateName))
+                    continue;
                 String shortPath = callers[j].getName().
                     substring(mRootPackage.length()).replace('/','.');
                 if (!needsCompile.containsKey(shortPath) &&
@@ -621,26 +830,69 @@ public class TemplateRepository {
 
     /**
      * Synchronize the repository state with respect to the named template
-     * class file(s).  The dependency lists will be updated an the new
-     * repository file will be written to disk.
+     * class file(s).  The dependency lists will be updated and records for
+     * the changed templates will be appended to the repository file.
      *
      * @param templatesChanged The templates to update.
      */
     public synchronized void update(String[] templatesChanged) throws IOException {
         HashMap<String, String> updated = new HashMap<String, String>();
+        List<byte[]> records = new ArrayList<byte[]>();
         for (int i = 0; i < templatesChanged.length; i++) {
             String templateName = getFullyQualifiedTemplateName(templatesChanged[i]);
             if (!updated.containsKey(templateName)) {
-                TemplateInfo tUpdated = getTemplateInfoForClassFile(getClassFileForName(templateName));
-                if (tUpdated != null)
-                    mTemplateInfoMap.put(templateName, tUpdated);
-                else
+                TemplateInfo tUpdated = getUpdatedTemplateInfo(templateName);
+                TemplateInfo tOld = tUpdated != null ?
+                    mTemplateInfoMap.put(templateName, tUpdated) :
                     mTemplateInfoMap.remove(templateName);
+                if (tOld != null)
+                    removeCallerEntries(tOld);
+                if (tUpdated != null) {
+                    addCallerEntries(tUpdated);
+                    records.add(createRecord(tUpdated));
+                }
+                else if (tOld != null)
+                    records.add(createRemoveRecord(templateName));
                 updated.put(templateName, templateName);
             }
         }
-        buildAncestorMap();
-        createRepositoryFile();
+
+        // Compact the repository file once superseded records dominate.
+        if (mIndex.getRecordCount() + records.size() >
+                2 * mTemplateInfoMap.size() + 64) {
+            createRepositoryFile();
+        }
+        else if (records.size() > 0) {
+            try {
+                mIndex.append(records);
+            }
+            catch (IOException ix) {
+                Syslog.warn("Unable to append to repository file: " + ix);
+                createRepositoryFile();
+            }
+        }
+
+        // Metadata read for templates that were not compiled after all is
+        // not kept beyond the update.
+        synchronized (mPendingInfoMap) {
+            mPendingInfoMap.clear();
+        }
+    }
+
+    /**
+     * Get the metadata of the named template's current class file, reusing
+     * the metadata read by getCallersNeedingRecompile if the class file has
+     * not changed since.
+     */
+    private TemplateInfo getUpdatedTemplateInfo(String name) throws IOException {
+        File classFile = getClassFileForName(name);
+        TemplateInfo t;
+        synchronized (mPendingInfoMap) {
+            t = mPendingInfoMap.remove(name);
+        }
+        if (t != null && classFile.lastModified() == t.getLastModified())
+            return t;
+        return getTemplateInfoForClassFile(classFile);
     }
 
     /**
@@ -0,0 +1,250 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file backing the {@link TemplateRepository}. The file consists of
+ * a header followed by a log of records, each framed by its length and a
+ * CRC32 checksum. Records are only ever appended, so updating the index
+ * after a compile costs in proportion to the number of templates changed.
+ * Later records supersede earlier ones, and the file is rewritten in full
+ * when superseded records begin to dominate.
+ *
+ * <p>The file is memory-mapped when read. A record that is truncated or
+ * fails its checksum, such as after a crash during an append, ends the log;
+ * it and anything after it is overwritten by the next append.
+ *
+ * <p>The header records the time of the last write, and the file's
+ * modification time is set to match, so that a file changed by something
+ * other than the repository can be detected.
+ *
+ * @see TemplateRepository
+ */
+class TemplateRepositoryIndex {
+
+    public static final String INDEX_FILENAME = ".templates.idx";
+
+    private static final int MAGIC = 0x54656149;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 16;
+    private static final int LAST_MODIFIED_OFFSET = 8;
+
+    private final File mFile;
+
+    // Length of the valid portion of the file, where records are appended.
+    private long mLength;
+
+    // Number of records in the file, including superseded records.
+    private int mRecordCount;
+
+    // Time of the last write, as recorded in the header.
+    private long mLastModified;
+
+    TemplateRepositoryIndex(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the number of records in the file, including those that have
+     * been superseded by later records.
+     */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Returns the time of the last write as recorded in the file header,
+     * which should match the modification time of the file itself.
+     */
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Reads all valid records in the order they were written.
+     *
+     * @return the records, or null if the file does not exist or is not an
+     * index of a supported version
+     */
+    public List<byte[]> read() throws IOException {
+        mLength = 0;
+        mRecordCount = 0;
+        mLastModified = 0;
+
+        if (!mFile.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            long lastModified = buffer.getLong();
+
+            List<byte[]> records = new ArrayList<byte[]>();
+            CRC32 crc = new CRC32();
+            int valid = buffer.position();
+
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining() - 4) {
+                    break;
+                }
+
+                byte[] record = new byte[length];
+                buffer.get(record);
+
+                crc.reset();
+                crc.update(record, 0, length);
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+
+                records.add(record);
+                valid = buffer.position();
+            }
+
+            mLength = valid;
+            mRecordCount = records.size();
+            mLastModified = lastModified;
+            return records;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends the given records to the end of the valid portion of the file,
+     * creating the file if it was not successfully read.
+     */
+    public synchronized void append(List<byte[]> records) throws IOException {
+        if (mLength < HEADER_SIZE || !mFile.isFile()) {
+            rewrite(records);
+            return;
+        }
+
+        long lastModified = System.currentTimeMillis();
+        byte[] bytes = frame(records, 0L);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(mLength);
+            raf.write(bytes);
+            if (raf.length() > mLength + bytes.length) {
+                // Discard a corrupt tail left behind by a failed append.
+                raf.setLength(mLength + bytes.length);
+            }
+            raf.seek(LAST_MODIFIED_OFFSET);
+            raf.writeLong(lastModified);
+        }
+        finally {
+            raf.close();
+        }
+        mFile.setLastModified(lastModified);
+
+        mLength += bytes.length;
+        mRecordCount += records.size();
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Replaces the file with one containing only the given records.
+     */
+    public synchronized void rewrite(List<byte[]> records) throws IOException {
+        long lastModified = System.currentTimeMillis();
+        byte[] bytes = frame(records, lastModified);
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(mFile)) {
+            // Some platforms will not rename over an existing file.
+            mFile.delete();
+            if (!temp.renameTo(mFile)) {
+                temp.delete();
+                throw new IOException("Unable to replace " + mFile);
+            }
+        }
+        mFile.setLastModified(lastModified);
+
+        mLength = bytes.length;
+        mRecordCount = records.size();
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Frames the given records, preceded by a header if lastModified is
+     * non-zero.
+     */
+    private static byte[] frame(List<byte[]> records, long lastModified)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        if (lastModified != 0L) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lastModified);
+        }
+
+        CRC32 crc = new CRC32();
+        for (byte[] record : records) {
+            crc.reset();
+            crc.update(record, 0, record.length);
+
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeInt((int) crc.getValue());
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -93,15 +93,15 @@ public class Type implements java.io.Serializable {
     private final GenericType mGenericType;
     private final boolean mPrimitive;
 
-    private transient boolean mCheckedForArrayLookup;
+    private transient volatile boolean mCheckedForArrayLookup;
     private transient Type mArrayElementType;
     private transient Type[] mArrayIndexTypes;
     private transient Method[] mArrayAccessMethods;
-    private transient boolean mCheckedForIteration;
+    private transient volatile boolean mCheckedForIteration;
     private transient Type mIterationElementType;
-    private transient boolean mCheckedForKey;
+    private transient volatile boolean mCheckedForKey;
     private transient Type mKeyElementType;
-    private transient boolean mCheckedForValue;
+    private transient volatile boolean mCheckedForValue;
     private transient Type mValueElementType;
 
     public Type(Class<?> type) {
@@ -379,20 +379,23 @@ public class Type implements java.io.Serializable {
      * Otherwise, null is returned.
      */
     public Type getIterationElementType() throws IntrospectionException {
+        // Types may be shared by threads, so the element type is set before
+        // the flag that marks it as checked.
         if (!mCheckedForIteration) {
-            mCheckedForIteration = true;
-
-            if (mIterationElementType != null)
-                return mIterationElementType;
+            Type elementType = mIterationElementType;
+            if (elementType != null) {
+                mCheckedForIteration = true;
+                return elementType;
+            }
 
             if (mNaturalClass.isArray()) {
-                mIterationElementType = getArrayElementType();
+                elementType = getArrayElementType();
             }
             else if (Collection.class.isAssignableFrom(mNaturalClass) ||
                      Map.class.isAssignableFrom(mNaturalClass)) {
-                mIterationElementType = getIterationType(mGenericType);
-                if (mIterationElementType == null ||
-                    mIterationElementType == OBJECT_TYPE) {
+                elementType = getIterationType(mGenericType);
+                if (elementType == null ||
+                    elementType == OBJECT_TYPE) {
                     try {
                         Field field =
                             mNaturalClass.getField
@@ -400,7 +403,7 @@ public class Type implements java.io.Serializable {
                         if (field.getType() == Class.class &&
                             Modifier.isStatic(field.getModifiers())) {
 
-                            mIterationElementType =
+                            elementType =
                                 new Type((Class<?>) field.get(null));
                         }
                     }
@@ -413,49 +416,62 @@ public class Type implements java.io.Serializable {
                 }
             }
 
-            if (mIterationElementType == null) {
-                mIterationElementType = Type.OBJECT_TYPE;
+            if (elementType == null) {
+                elementType = Type.OBJECT_TYPE;
             }
+
+            mIterationElementType = elementType;
+            mCheckedForIteration = true;
         }
 
         return mIterationElementType;
     }
 
     public Type getKeyElementType() throws IntrospectionException {
+        // Set before the flag that marks it as checked, like the iteration
+        // element type.
         if (!mCheckedForKey) {
-            mCheckedForKey = true;
-
-            if (mKeyElementType == null) {
-                return mKeyElementType;
+            Type elementType = mKeyElementType;
+            if (elementType != null) {
+                mCheckedForKey = true;
+                return elementType;
             }
 
             if (Map.class.isAssignableFrom(mNaturalClass)) {
-                mKeyElementType = getKeyType(mGenericType);
+                elementType = getKeyType(mGenericType);
             }
 
-            if (mKeyElementType == null) {
-                mKeyElementType = Type.OBJECT_TYPE;
+            if (elementType == null) {
+                elementType = Type.OBJECT_TYPE;
             }
+
+            mKeyElementType = elementType;
+            mCheckedForKey = true;
         }
 
         return mKeyElementType;
     }
 
     public Type getValueElementType() throws IntrospectionException {
+        // Set before the flag that marks it as checked, like the iteration
+        // element type.
         if (!mCheckedForValue) {
-            mCheckedForValue = true;
-
-            if (mValueElementType == null) {
-                return mValueElementType;
+            Type elementType = mValueElementType;
+            if (elementType != null) {
+                mCheckedForValue = true;
+                return elementType;
             }
 
             if (Map.class.isAssignableFrom(mNaturalClass)) {
-                mValueElementType = getValueType(mGenericType);
+                elementType = getValueType(mGenericType);
             }
 
-            if (mValueElementType == null) {
-                mValueElementType = Type.OBJECT_TYPE;
+            if (elementType == null) {
+                elementType = Type.OBJECT_TYPE;
             }
+
+            mValueElementType = elementType;
+            mCheckedForValue = true;
         }
 
         return mValueElementType;
@@ -472,12 +488,11 @@ public class Type implements java.io.Serializable {
     }
 
     private void checkForArrayLookup() throws IntrospectionException {
-        mCheckedForArrayLookup = true;
-
         if (mGenericType.isArray()) {
             mArrayElementType = new Type(mGenericType.getComponentType());
             mArrayAccessMethods = EMPTY_METHOD_ARRAY;
             mArrayIndexTypes = new Type[] {INT_TYPE};
+            mCheckedForArrayLookup = true;
             return;
         }
 
@@ -490,24 +505,29 @@ public class Type implements java.io.Serializable {
                 (BeanAnalyzer.KEYED_PROPERTY_NAME);
 
             if (keyed == null) {
+                mCheckedForArrayLookup = true;
                 return;
             }
 
+            Method[] methods = keyed.getKeyedReadMethods();
+            int length = methods.length;
+            Type[] indexTypes = new Type[length];
+            for (int i=0; i<length; i++) {
+                Method m = methods[i];
+                indexTypes[i] =
+                    new Type(m.getReturnType(), m.getGenericReturnType());
+            }
+
             mArrayElementType =
                 new Type(keyed.getKeyedPropertyType().getRawType());
-            mArrayAccessMethods = keyed.getKeyedReadMethods();
+            mArrayAccessMethods = methods;
+            mArrayIndexTypes = indexTypes;
         }
         catch (ClassCastException e) {
-            return;
+            // not a keyed property
         }
 
-        int length = mArrayAccessMethods.length;
-        mArrayIndexTypes = new Type[length];
-        for (int i=0; i<length; i++) {
-            Method m = mArrayAccessMethods[i];
-            mArrayIndexTypes[i] =
-                new Type(m.getReturnType(), m.getGenericReturnType());
-        }
+        mCheckedForArrayLookup = true;
     }
 
     /**
@@ -1142,7 +1142,8 @@ public class TypeChecker {
                 Method[] methods = c.getRuntimeContextMethods();
                 String name = c.getRuntimeReceiver();
 
-                int cnt = MethodMatcher.match(methods, name, new Type[]{type});
+                int cnt = MethodMatcher.match
+                    (c.getRuntimeContext(), methods, name, new Type[]{type});
 
                 if (cnt < 1) {
                     error("expressionstatement.receiver",
@@ -1311,18 +1312,26 @@ public class TypeChecker {
                     actualTypes = types;
                 }
 
-                Method[] methods = new Method[0];
+                Class<?> clazz = null;
                 if (expr == null) {
-                    methods = compiler.getRuntimeContextMethods();
+                    clazz = compiler.getRuntimeContext();
                 }
                 else {
                     Type exprType = expr.getType();
                     if (exprType != null) {
-                        methods = exprType.getObjectClass().getMethods();
+                        clazz = exprType.getObjectClass();
                     }
                 }
 
-                int cnt = MethodMatcher.match(methods, name, actualTypes);
+                Method[] methods = new Method[0];
+                int cnt = 0;
+                if (clazz != null) {
+                    methods = (expr == null) ?
+                        compiler.getRuntimeContextMethods() :
+                        clazz.getMethods();
+                    cnt = MethodMatcher.match
+                        (clazz, methods, name, actualTypes);
+                }
                 if (cnt == MethodMatcher.AMBIGUOUS) {
                     error("functioncallexpression.ambiguous", name, node);
                     return null;
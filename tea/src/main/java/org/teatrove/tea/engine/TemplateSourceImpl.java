@@ -36,16 +36,19 @@ import java.util.TreeSet;
 import org.teatrove.tea.compiler.CompilationProvider;
 import org.teatrove.tea.compiler.CompilationUnit;
 import org.teatrove.tea.compiler.Compiler;
+import org.teatrove.tea.compiler.CompileCache;
 import org.teatrove.tea.compiler.CompileEvent;
 import org.teatrove.tea.compiler.SourceInfo;
 import org.teatrove.tea.compiler.TemplateRepository;
 import org.teatrove.tea.compiler.TemplateRepository.TemplateInfo;
 import org.teatrove.tea.runtime.Context;
+import org.teatrove.tea.runtime.TemplateBundle;
 import org.teatrove.tea.runtime.TemplateLoader;
 import org.teatrove.tea.util.FileCompilationProvider;
 import org.teatrove.tea.util.JarCompilationProvider;
 import org.teatrove.tea.util.ResourceCompilationProvider;
 import org.teatrove.tea.util.StringCompilationProvider;
+import org.teatrove.trove.classfile.TypeDesc;
 import org.teatrove.trove.io.LinePositionReader;
 import org.teatrove.trove.log.Log;
 import org.teatrove.trove.util.ClassInjector;
@@ -138,6 +141,13 @@ public class TemplateSourceImpl implements TemplateSource {
     private ReloadLock mReloading;
     private String[] mImports;
     private String mEncoding;
+    private String mOutputEncoding;
+    private int mCompileThreads = 1;
+    private int mInlineThreshold;
+    private boolean mAssumePureLookups;
+    private int mClassFileVersion = 50;
+    private CompileCache mCompileCache;
+    private TemplateBundle mBundle;
     private long mPrecompiledTolerance;
 
     // result fields
@@ -168,8 +178,32 @@ public class TemplateSourceImpl implements TemplateSource {
         }
         
         mEncoding = mProperties.getString("file.encoding", "ISO-8859-1");
+        mOutputEncoding = 
+            mProperties.getString("output.encoding", "ISO-8859-1");
         mPrecompiledTolerance = 
             mProperties.getInt("precompiled.tolerance", 1000);
+        mCompileThreads = Math.max(1, mProperties.getInt("compile.threads", 1));
+        mInlineThreshold = Math.max(0, mProperties.getInt("inline.threshold", 0));
+        mAssumePureLookups =
+            mProperties.getBoolean("assume.pure.lookups", false);
+        mClassFileVersion = mProperties.getInt("classfile.version", 50);
+
+        String cacheDir = mProperties.getString("compile.cache");
+        if (cacheDir != null && cacheDir.length() > 0) {
+            mCompileCache = new CompileCache(new File(cacheDir));
+        }
+
+        String bundle = mProperties.getString("bundle");
+        if (bundle != null && bundle.length() > 0) {
+            try {
+                mBundle = TemplateBundle.open(new File(bundle));
+                mLog.info("Using template bundle: " + mBundle);
+            }
+            catch (IOException e) {
+                mLog.error("Unable to open template bundle: " + bundle);
+                mLog.error(e);
+            }
+        }
     }
 
     public String[] getImports() {
@@ -526,6 +560,15 @@ public class TemplateSourceImpl implements TemplateSource {
         (
             injector, packagePrefix, outputDir, mEncoding, mPrecompiledTolerance
         );
+
+        if (mOutputEncoding != null && mOutputEncoding.length() > 0) {
+            compiler.setOutputEncoding(mOutputEncoding);
+        }
+        compiler.setParallelism(mCompileThreads);
+        compiler.setInlineThreshold(mInlineThreshold);
+        compiler.setAssumePureLookups(mAssumePureLookups);
+        compiler.setClassFileVersion(mClassFileVersion);
+        compiler.setCompileCache(mCompileCache);
         
         CompilationProvider[] providers = parseProviders(mProperties);
         if (providers != null) {
@@ -628,6 +671,13 @@ public class TemplateSourceImpl implements TemplateSource {
         Map<String, CompilationUnit> reloadedTemplates = 
             new TreeMap<String, CompilationUnit>();
 
+        if (mBundle != null) {
+            Results results = loadBundle(compileListener);
+            if (results != null) {
+                return results;
+            }
+        }
+
         if (injector == null) {
             injector = createClassInjector();
         }
@@ -696,6 +746,58 @@ public class TemplateSourceImpl implements TemplateSource {
         );
     }
 
+    /**
+     * Returns the templates of the bundle without compiling, or null if the
+     * bundle does not hold the templates of the configured package, or if
+     * any of them were compiled against a different runtime context.
+     */
+    private Results loadBundle(TemplateCompileListener compileListener)
+        throws Exception
+    {
+        Class<?> type = mConfig.getContextSource().getContextType();
+        String prefix = mConfig.getPackagePrefix();
+
+        String expected = (prefix == null) ? "" : prefix.trim();
+        if (expected.length() > 0 && !expected.endsWith(".")) {
+            expected = expected.concat(".");
+        }
+
+        if (!expected.equals(mBundle.getPackagePrefix())) {
+            mLog.error("Template bundle package \"" +
+                       mBundle.getPackagePrefix() +
+                       "\" does not match \"" + expected +
+                       "\", compiling templates instead");
+            return null;
+        }
+
+        // templates built against another context would fail to link
+        String context = '(' + TypeDesc.forClass(type).getDescriptor();
+        for (String name : mBundle.getTemplateNames()) {
+            String signature = mBundle.getSignature(name);
+            if (signature == null || !signature.startsWith(context)) {
+                mLog.error("Template bundle entry \"" + name +
+                           "\" does not match context " + type.getName() +
+                           ", compiling templates instead");
+                return null;
+            }
+        }
+
+        // classes are defined lazily from the bundle as templates are loaded
+        ClassInjector injector = new ClassInjector
+            (mBundle.createClassLoader(type.getClassLoader()));
+
+        mTemplateSourceFileInfo = new HashMap<String, TemplateSourceFileInfo>();
+
+        return new Results(
+            new TemplateCompilationResults(new TreeMap<String, CompilationUnit>(),
+                                           compileListener.getTemplateIssues()),
+            new TemplateAdapter(type, injector, prefix),
+            new Date(),
+            new TreeSet<String>(mBundle.getTemplateNames()),
+            new HashMap<String, Template>()
+        );
+    }
+
     /**
      * provides subclasses with access to modify the KnownTemplateNames
      */
@@ -47,6 +47,9 @@ public abstract class CallExpression extends Expression implements NullSafe {
 
     public Object clone() {
         CallExpression ce = (CallExpression)super.clone();
+        if (mExpression != null) {
+            ce.mExpression = (Expression)mExpression.clone();
+        }
         ce.mParams = (ExpressionList)mParams.clone();
         if (mInitializer != null) {
             ce.mInitializer = (Statement)mInitializer.clone();
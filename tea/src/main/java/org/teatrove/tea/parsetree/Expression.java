@@ -428,7 +428,9 @@ public class Expression extends Node {
         return conversions;
     }
 
-    public static class Conversion {
+    public static class Conversion implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
         private Type mFromType;
         private Type mToType;
         private boolean mPreferCast;
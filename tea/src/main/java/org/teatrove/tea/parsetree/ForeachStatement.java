@@ -41,6 +41,7 @@ public class ForeachStatement extends Statement {
     private Expression mEndRange;
     private boolean mReverse;
     private Statement mInitializer;
+    private Statement mInvariants;
     private Block mBody;
 
     public ForeachStatement(SourceInfo info,
@@ -66,11 +67,18 @@ public class ForeachStatement extends Statement {
         ForeachStatement fs = (ForeachStatement)super.clone();
         fs.mLoopVar = (VariableRef)mLoopVar.clone();
         fs.mRange = (Expression)mRange.clone();
-        fs.mEndRange = (Expression)mEndRange.clone();
+        if (mEndRange != null) {
+            fs.mEndRange = (Expression)mEndRange.clone();
+        }
         if (mInitializer != null) {
             fs.mInitializer = (Statement)mInitializer.clone();
         }
-        fs.mBody = (Block)mBody.clone();
+        if (mInvariants != null) {
+            fs.mInvariants = (Statement)mInvariants.clone();
+        }
+        if (mBody != null) {
+            fs.mBody = (Block)mBody.clone();
+        }
         return fs;
     }
 
@@ -103,6 +111,16 @@ public class ForeachStatement extends Statement {
         return mInitializer;
     }
 
+    /**
+     * Invariants are a section of code that executes once before the first
+     * iteration, and only if the loop body executes at least once. By
+     * default, it is null. An optimizer may define invariants to compute
+     * values that the body would otherwise compute on every iteration.
+     */
+    public Statement getInvariants() {
+        return mInvariants;
+    }
+
     public Block getBody() {
         return mBody;
     }
@@ -119,6 +137,10 @@ public class ForeachStatement extends Statement {
         mInitializer = stmt;
     }
 
+    public void setInvariants(Statement stmt) {
+        mInvariants = stmt;
+    }
+
     public void setBody(Block body) {
         mBody = body;
     }
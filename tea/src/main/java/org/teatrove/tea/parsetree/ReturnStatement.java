@@ -54,7 +54,9 @@ public class ReturnStatement extends Statement {
 
     public Object clone() {
         ReturnStatement rs = (ReturnStatement)super.clone();
-        rs.mExpr = (Expression)mExpr.clone();
+        if (mExpr != null) {
+            rs.mExpr = (Expression)mExpr.clone();
+        }
         return rs;
     }
 
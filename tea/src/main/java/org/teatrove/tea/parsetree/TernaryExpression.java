@@ -45,8 +45,12 @@ public class TernaryExpression extends Expression {
     public Object clone() {
         TernaryExpression expr = (TernaryExpression) super.clone();
         expr.mCondition = (Expression) mCondition.clone();
-        expr.mThenPart = (Expression) mThenPart.clone();
-        expr.mElsePart = (Expression) mElsePart.clone();
+        if (mThenPart != null) {
+            expr.mThenPart = (Expression) mThenPart.clone();
+        }
+        if (mElsePart != null) {
+            expr.mElsePart = (Expression) mElsePart.clone();
+        }
         return expr;
     }
 
@@ -133,6 +133,11 @@ public abstract class TreeMutator implements NodeVisitor {
             node.setInitializer((Statement)init.accept(this));
         }
 
+        Statement invariants = node.getInvariants();
+        if (invariants != null) {
+            node.setInvariants((Statement)invariants.accept(this));
+        }
+
         Block body = node.getBody();
         if (body != null) {
             node.setBody(visitBlock(body));
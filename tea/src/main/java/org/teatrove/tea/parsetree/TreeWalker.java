@@ -128,6 +128,11 @@ public abstract class TreeWalker implements NodeVisitor {
             init.accept(this);
         }
 
+        Statement invariants = node.getInvariants();
+        if (invariants != null) {
+            invariants.accept(this);
+        }
+
         Block body = node.getBody();
         if (body != null) {
             body.accept(this);
@@ -45,6 +45,10 @@ public class VariableRef extends Expression implements NullSafe {
         return mName;
     }
 
+    public void setName(String name) {
+        mName = name;
+    }
+
     public Variable getVariable() {
         return mVariable;
     }
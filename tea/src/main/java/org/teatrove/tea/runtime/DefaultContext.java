@@ -33,6 +33,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -83,13 +84,23 @@ public abstract class DefaultContext extends Writer
             Collections.synchronizedMap(new HashMap<Locale, Locale>(7));
 
         cDecimalFormatCache =
-            Collections.synchronizedMap(new HashMap<Object, DecimalFormat>(47));
+            new ConcurrentHashMap<Object, DecimalFormat>(47);
     }
 
     private Locale mLocale;
     private String mNullFormat = DEFAULT_NULL_FORMAT;
     private DecimalFormat mDecimalFormat;
 
+    // Arguments of the last numberFormat call that was looked up.
+    private String mNumberFormat;
+    private String mNumberFormatInfinity;
+    private String mNumberFormatNaN;
+    private Locale mNumberFormatLocale;
+
+    // Reused to print numbers without creating a String for each one.
+    private StringBuffer mNumberBuffer;
+    private char[] mNumberChars;
+
     // Fields used with date formatting.
     private DateTimeFormatter mDateTimeFormatter;
     private DateTimeZone mDateTimeZone;
@@ -198,38 +209,115 @@ public abstract class DefaultContext extends Writer
     }
 
     /**
+     * Prints the number like {@link #toString(Number)} would format it.
+     * Integers, longs, floats and doubles are printed through the
+     * corresponding primitive print method.
+     *
      * @hidden
      */
     public void print(Number n) throws Exception {
-        print(toString(n));
+        if (n == null) {
+            print(mNullFormat);
+        }
+        else if (n instanceof Integer) {
+            print(n.intValue());
+        }
+        else if (n instanceof Long) {
+            print(n.longValue());
+        }
+        else if (n instanceof Double) {
+            print(n.doubleValue());
+        }
+        else if (n instanceof Float) {
+            print(n.floatValue());
+        }
+        else {
+            print(toString(n));
+        }
     }
 
     /**
+     * Prints the number like {@link #toString(int)} would format it. The
+     * digits are passed to {@link #write(char[], int, int)}, so a context
+     * that writes characters directly prints numbers without creating a
+     * String for each one.
+     *
      * @hidden
      */
     public void print(int n) throws Exception {
-        print(toString(n));
+        if (mDecimalFormat == null) {
+            if (n <= LAST_INT_VALUE && n >= FIRST_INT_VALUE) {
+                print(INT_VALUES[n]);
+            }
+            else {
+                writeNumber(getNumberBuffer().append(n));
+            }
+        }
+        else {
+            writeNumber(mDecimalFormat.format(n, getNumberBuffer()));
+        }
     }
 
     /**
      * @hidden
      */
     public void print(float n) throws Exception {
-        print(toString(n));
+        if (mDecimalFormat == null) {
+            writeNumber(getNumberBuffer().append(n));
+        }
+        else {
+            writeNumber(mDecimalFormat.format(n, getNumberBuffer()));
+        }
     }
 
     /**
      * @hidden
      */
     public void print(long n) throws Exception {
-        print(toString(n));
+        if (mDecimalFormat == null) {
+            if (n <= LAST_INT_VALUE && n >= FIRST_INT_VALUE) {
+                print(INT_VALUES[(int)n]);
+            }
+            else {
+                writeNumber(getNumberBuffer().append(n));
+            }
+        }
+        else {
+            writeNumber(mDecimalFormat.format(n, getNumberBuffer()));
+        }
     }
 
     /**
      * @hidden
      */
     public void print(double n) throws Exception {
-        print(toString(n));
+        if (mDecimalFormat == null) {
+            writeNumber(getNumberBuffer().append(n));
+        }
+        else {
+            writeNumber(mDecimalFormat.format(n, getNumberBuffer()));
+        }
+    }
+
+    private StringBuffer getNumberBuffer() {
+        StringBuffer buffer = mNumberBuffer;
+        if (buffer == null) {
+            mNumberBuffer = buffer = new StringBuffer(32);
+        }
+        else {
+            buffer.setLength(0);
+        }
+        return buffer;
+    }
+
+    private void writeNumber(StringBuffer buffer) throws IOException {
+        int length = buffer.length();
+        char[] chars = mNumberChars;
+        if (chars == null || chars.length < length) {
+            mNumberChars = chars = new char[Math.max(32, length)];
+        }
+        buffer.getChars(0, length, chars, 0);
+        write(chars, 0, length);
     }
 
     /**
@@ -731,6 +819,17 @@ public abstract class DefaultContext extends Writer
             else {
                 mDecimalFormat = DecimalFormat.getInstance(mLocale);
             }
+            mNumberFormat = null;
+            mNumberFormatInfinity = null;
+            mNumberFormatNaN = null;
+            return;
+        }
+
+        // Templates often set the same format repeatedly, such as per row.
+        if (mDecimalFormat != null && mNumberFormatLocale == mLocale &&
+            equals(format, mNumberFormat) &&
+            equals(infinity, mNumberFormatInfinity) &&
+            equals(NaN, mNumberFormatNaN)) {
             return;
         }
 
@@ -757,6 +856,15 @@ public abstract class DefaultContext extends Writer
 
             cDecimalFormatCache.put(key, mDecimalFormat);
         }
+
+        mNumberFormat = format;
+        mNumberFormatInfinity = infinity;
+        mNumberFormatNaN = NaN;
+        mNumberFormatLocale = mLocale;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == b || (a != null && a.equals(b));
     }
 
     public String getNumberFormat() {
@@ -0,0 +1,46 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.runtime;
+
+/**
+ * An OutputReceiver that can accept literal template text which has already
+ * been encoded into bytes. When the compiler is given an output encoding,
+ * literal text is encoded once when the template class is initialized, and
+ * contexts that implement this interface receive the bytes instead of
+ * encoding the text on every execution.
+ *
+ * @see org.teatrove.tea.compiler.Compiler#setOutputEncoding
+ */
+public interface EncodedOutputReceiver extends OutputReceiver {
+    /**
+     * Receives literal template text along with its pre-encoded bytes. If
+     * the receiver's current encoding is not the same as the given encoding,
+     * the bytes must be ignored and the String printed instead.
+     *
+     * NOTE:  This method should <b>not</b> be called directly within a
+     * template.
+     *
+     * @param str the literal text
+     * @param bytes the literal text encoded using the given encoding, which
+     * must not be modified
+     * @param encoding canonical name of the charset used to encode the bytes
+     *
+     * @hidden
+     */
+    public void writeEncoded(String str, byte[] bytes, String encoding)
+        throws Exception;
+}
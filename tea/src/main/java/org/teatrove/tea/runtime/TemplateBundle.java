@@ -0,0 +1,467 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.teatrove.tea.compiler.JavaClassGenerator;
+
+/**
+ * A single archive of precompiled template classes, with an index of the
+ * templates, their signatures and the templates they call. A bundle is
+ * built from the class directory of a template package, and is loaded
+ * without a compiler: the archive is mapped into memory once, and classes
+ * are only defined as they are loaded.
+ *
+ * <p>To build a bundle, run:
+ * <pre>
+ * java org.teatrove.tea.runtime.TemplateBundle &lt;class directory&gt; &lt;package&gt; &lt;bundle file&gt;
+ * </pre>
+ *
+ * @see TemplateLoader
+ */
+public class TemplateBundle {
+    // "TEAB"
+    private static final int MAGIC = 0x54454142;
+    private static final int VERSION = 1;
+
+    /**
+     * Opens a bundle, mapping it into memory and reading its index.
+     */
+    public static TemplateBundle open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping remains valid once the file is closed.
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new TemplateBundle(file, buffer);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a bundle of all the classes in the given directory.
+     *
+     * @param classDir directory the templates of the package were compiled
+     * into, in which class files are placed by template name
+     * @param packagePrefix package of the templates, possibly empty
+     * @param file the bundle file to write
+     * @return the number of templates in the bundle
+     */
+    public static int write(File classDir, String packagePrefix, File file)
+        throws IOException {
+
+        packagePrefix = toPackage(packagePrefix);
+
+        Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+        gatherClasses(classes, classDir, "");
+
+        Map<String, String> signatures = new TreeMap<String, String>();
+        Map<String, Set<String>> references =
+            new TreeMap<String, Set<String>>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            Set<String> classRefs = new TreeSet<String>();
+            String signature = parseClassFile(entry.getValue(), classRefs);
+            if (signature != null) {
+                signatures.put(entry.getKey(), signature);
+            }
+            references.put(entry.getKey(), classRefs);
+        }
+
+        // Write the index, followed by the class files.
+        ByteArrayOutputStream index = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(index);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(packagePrefix);
+        out.writeInt(classes.size());
+
+        String internalPrefix = packagePrefix.replace('.', '/');
+        int offset = 0;
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            String name = entry.getKey();
+            out.writeUTF(name);
+            out.writeInt(offset);
+            out.writeInt(entry.getValue().length);
+            offset += entry.getValue().length;
+
+            String signature = signatures.get(name);
+            out.writeBoolean(signature != null);
+            if (signature == null) {
+                continue;
+            }
+            out.writeUTF(signature);
+
+            List<String> dependencies = new ArrayList<String>();
+            for (String ref : references.get(name)) {
+                if (ref.startsWith(internalPrefix)) {
+                    String dependency = ref.substring(internalPrefix.length())
+                        .replace('/', '.');
+                    if (!dependency.equals(name) &&
+                        signatures.containsKey(dependency)) {
+                        dependencies.add(dependency);
+                    }
+                }
+            }
+
+            out.writeInt(dependencies.size());
+            for (String dependency : dependencies) {
+                out.writeUTF(dependency);
+            }
+        }
+        out.flush();
+
+        File temp = File.createTempFile(file.getName(), ".tmp",
+                                        file.getAbsoluteFile().getParentFile());
+        DataOutputStream fout = new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            fout.writeInt(index.size());
+            index.writeTo(fout);
+            for (byte[] classFile : classes.values()) {
+                fout.write(classFile);
+            }
+        }
+        finally {
+            fout.close();
+        }
+
+        if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to write template bundle: " + file);
+        }
+
+        return signatures.size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("Usage: java " + TemplateBundle.class.getName() +
+                               " <class directory> <package> <bundle file>");
+            return;
+        }
+
+        int count = write(new File(args[0]), args[1], new File(args[2]));
+        System.out.println("Bundled " + count + " templates into " + args[2]);
+    }
+
+    private static String toPackage(String packagePrefix) {
+        if (packagePrefix == null) {
+            return "";
+        }
+
+        packagePrefix = packagePrefix.trim();
+        if (packagePrefix.length() > 0 && !packagePrefix.endsWith(".")) {
+            packagePrefix += '.';
+        }
+        return packagePrefix;
+    }
+
+    private static void gatherClasses(Map<String, byte[]> classes,
+                                      File dir, String prefix)
+        throws IOException {
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                gatherClasses(classes, file, prefix + name + '.');
+            }
+            else if (name.endsWith(".class")) {
+                name = name.substring(0, name.length() - 6);
+                classes.put(prefix + name, readFile(file));
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            new DataInputStream(in).readFully(bytes);
+        }
+        finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds the internal names of the classes the given class file refers to,
+     * and returns the descriptor of its static execute method, or null if it
+     * is not a template.
+     */
+    private static String parseClassFile(byte[] classFile, Set<String> classes)
+        throws IOException {
+
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(classFile));
+        in.readInt();
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classIndexes = new int[count];
+        int classCount = 0;
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case 1:
+                utf8[i] = in.readUTF();
+                break;
+            case 7:
+                classIndexes[classCount++] = in.readUnsignedShort();
+                break;
+            case 8: case 16:
+                in.readUnsignedShort();
+                break;
+            case 3: case 4: case 9: case 10: case 11: case 12: case 18:
+                in.readInt();
+                break;
+            case 5: case 6:
+                in.readLong();
+                i++;
+                break;
+            case 15:
+                in.readUnsignedByte();
+                in.readUnsignedShort();
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag: " + tag);
+            }
+        }
+
+        for (int i = 0; i < classCount; i++) {
+            classes.add(utf8[classIndexes[i]]);
+        }
+
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        in.skipBytes(in.readUnsignedShort() * 2);
+
+        skipMembers(in);
+
+        int methods = in.readUnsignedShort();
+        for (int i = 0; i < methods; i++) {
+            int access = in.readUnsignedShort();
+            String name = utf8[in.readUnsignedShort()];
+            String descriptor = utf8[in.readUnsignedShort()];
+            if (Modifier.isStatic(access) &&
+                JavaClassGenerator.EXECUTE_METHOD_NAME.equals(name)) {
+                return descriptor;
+            }
+            skipAttributes(in);
+        }
+
+        return null;
+    }
+
+    private static void skipMembers(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.skipBytes(6);
+            skipAttributes(in);
+        }
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.readUnsignedShort();
+            in.skipBytes(in.readInt());
+        }
+    }
+
+    private final File mFile;
+    private final ByteBuffer mBuffer;
+    private final String mPackagePrefix;
+
+    // Maps full class names to entries.
+    private final Map<String, Entry> mEntries;
+
+    // Maps template names to entries.
+    private final Map<String, Entry> mTemplates;
+
+    private TemplateBundle(File file, ByteBuffer buffer) throws IOException {
+        mFile = file;
+
+        int indexLength = buffer.getInt(0);
+        byte[] index = new byte[indexLength];
+        ByteBuffer indexBuffer = buffer.duplicate();
+        indexBuffer.position(4);
+        indexBuffer.get(index);
+
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(index));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a template bundle: " + file);
+        }
+
+        mPackagePrefix = in.readUTF();
+
+        int base = 4 + indexLength;
+        int count = in.readInt();
+        Map<String, Entry> entries = new TreeMap<String, Entry>();
+        Map<String, Entry> templates = new TreeMap<String, Entry>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int offset = base + in.readInt();
+            int length = in.readInt();
+
+            String signature = null;
+            String[] dependencies = null;
+            if (in.readBoolean()) {
+                signature = in.readUTF();
+                dependencies = new String[in.readInt()];
+                for (int j = 0; j < dependencies.length; j++) {
+                    dependencies[j] = in.readUTF();
+                }
+            }
+
+            if (offset + length > buffer.capacity()) {
+                throw new IOException("Truncated template bundle: " + file);
+            }
+
+            Entry entry = new Entry(offset, length, signature, dependencies);
+            entries.put(mPackagePrefix + name, entry);
+            if (signature != null) {
+                templates.put(name, entry);
+            }
+        }
+
+        mBuffer = buffer;
+        mEntries = entries;
+        mTemplates = templates;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the package of the templates, which is empty or ends with a
+     * '.' character.
+     */
+    public String getPackagePrefix() {
+        return mPackagePrefix;
+    }
+
+    /**
+     * Returns the full names of all the templates in this bundle.
+     */
+    public Set<String> getTemplateNames() {
+        return Collections.unmodifiableSet(mTemplates.keySet());
+    }
+
+    /**
+     * Returns the descriptor of the execute method of the given template,
+     * or null if the template is not in this bundle.
+     */
+    public String getSignature(String templateName) {
+        Entry entry = mTemplates.get(templateName);
+        return (entry == null) ? null : entry.mSignature;
+    }
+
+    /**
+     * Returns the names of the templates in this bundle that the given
+     * template calls, or null if the template is not in this bundle.
+     */
+    public String[] getDependencies(String templateName) {
+        Entry entry = mTemplates.get(templateName);
+        return (entry == null) ? null : entry.mDependencies.clone();
+    }
+
+    /**
+     * Returns a new ClassLoader that defines the classes of this bundle as
+     * they are loaded. Other classes are loaded from the given parent.
+     */
+    public ClassLoader createClassLoader(ClassLoader parent) {
+        return new Loader(parent);
+    }
+
+    public String toString() {
+        return "TemplateBundle[" + mFile + ", " + mTemplates.size() +
+            " templates]";
+    }
+
+    private static class Entry {
+        final int mOffset;
+        final int mLength;
+        final String mSignature;
+        final String[] mDependencies;
+
+        Entry(int offset, int length, String signature,
+              String[] dependencies) {
+            mOffset = offset;
+            mLength = length;
+            mSignature = signature;
+            mDependencies = dependencies;
+        }
+    }
+
+    private class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        protected Class<?> findClass(String name)
+            throws ClassNotFoundException {
+
+            Entry entry = mEntries.get(name);
+            if (entry == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            // Classes are defined directly from the mapped archive.
+            ByteBuffer bytes = mBuffer.duplicate();
+            bytes.position(entry.mOffset);
+            bytes.limit(entry.mOffset + entry.mLength);
+            return defineClass(name, bytes, (ProtectionDomain) null);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.tea.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.teatrove.trove.classfile.ClassFile;
+import org.teatrove.trove.classfile.CodeBuilder;
+import org.teatrove.trove.classfile.LocalVariable;
+import org.teatrove.trove.classfile.MethodInfo;
+import org.teatrove.trove.classfile.Modifiers;
+import org.teatrove.trove.classfile.TypeDesc;
+import org.teatrove.trove.util.ClassInjector;
+
+/**
+ * Invokes the static execute method of a compiled template. Invokers are
+ * auto-generated, binding directly to the execute method instead of going
+ * through reflection. Parameters are cast and unboxed to the exact types of
+ * the execute method, and the result is boxed if primitive.
+ *
+ * @see TemplateLoader
+ */
+public abstract class TemplateInvoker {
+    private static final boolean DEBUG;
+
+    private static int cCounter;
+
+    static {
+        DEBUG = Boolean.getBoolean
+            ("org.teatrove.tea.runtime.TemplateInvoker.DEBUG");
+    }
+
+    /**
+     * Returns a new TemplateInvoker for the given static execute method. The
+     * generated class is defined by the given injector, which must be able to
+     * load the class that declares the execute method. If the invoker cannot
+     * be generated, such as when the template class is not public, an invoker
+     * that uses reflection is returned instead.
+     *
+     * @param executeMethod static template execute method
+     * @param injector injector to define the invoker class with
+     */
+    public static TemplateInvoker forMethod(Method executeMethod,
+                                            ClassInjector injector) {
+        if (!Modifier.isStatic(executeMethod.getModifiers())) {
+            throw new IllegalArgumentException
+                ("Execute method must be static: " + executeMethod);
+        }
+
+        if (!Modifier.isPublic(executeMethod.getModifiers()) ||
+            !Modifier.isPublic
+                (executeMethod.getDeclaringClass().getModifiers())) {
+            return new Reflective(executeMethod);
+        }
+
+        try {
+            return generate(executeMethod, injector);
+        }
+        catch (LinkageError e) {
+            return new Reflective(executeMethod);
+        }
+        catch (SecurityException e) {
+            return new Reflective(executeMethod);
+        }
+    }
+
+    private static synchronized String nextClassName() {
+        return TemplateInvoker.class.getName() + '$' + (cCounter++);
+    }
+
+    private static TemplateInvoker generate(Method executeMethod,
+                                            ClassInjector injector) {
+        ClassFile cf = generateClassFile(nextClassName(), executeMethod);
+
+        if (DEBUG) {
+            try {
+                String name = cf.getClassName();
+                name = name.substring(name.lastIndexOf('.') + 1) + ".class";
+                System.out.println(name);
+                java.io.FileOutputStream out =
+                    new java.io.FileOutputStream(name);
+                cf.writeTo(out);
+                out.close();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            OutputStream stream = injector.getStream(cf.getClassName());
+            cf.writeTo(stream);
+            stream.close();
+        }
+        catch (IOException e) {
+            throw new InternalError(e.toString());
+        }
+
+        try {
+            Class<?> clazz = injector.loadClass(cf.getClassName());
+            return (TemplateInvoker)clazz.newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            throw new InternalError(e.toString());
+        }
+        catch (InstantiationException e) {
+            throw new InternalError(e.toString());
+        }
+        catch (IllegalAccessException e) {
+            throw new InternalError(e.toString());
+        }
+    }
+
+    private static ClassFile generateClassFile(String className,
+                                               Method executeMethod)
+    {
+        ClassFile cf = new ClassFile(className, TemplateInvoker.class);
+        cf.markSynthetic();
+
+        Modifiers publicAccess = new Modifiers();
+        publicAccess.setPublic(true);
+
+        MethodInfo ctor = cf.addConstructor(publicAccess);
+        ctor.markSynthetic();
+        CodeBuilder builder = new CodeBuilder(ctor);
+
+        builder.loadThis();
+        builder.invokeSuperConstructor();
+        builder.returnVoid();
+
+        TypeDesc objectType = TypeDesc.OBJECT;
+        TypeDesc[] params = {
+            TypeDesc.forClass(Context.class), objectType.toArrayType()
+        };
+
+        MethodInfo mi = cf.addMethod
+            (publicAccess, "invoke", objectType, params);
+        mi.markSynthetic();
+        builder = new CodeBuilder(mi);
+
+        LocalVariable contextVar = builder.getParameters()[0];
+        LocalVariable paramsVar = builder.getParameters()[1];
+
+        Class<?>[] types = executeMethod.getParameterTypes();
+
+        // The first parameter is always the context.
+        builder.loadLocal(contextVar);
+        if (types[0] != Context.class) {
+            builder.checkCast(TypeDesc.forClass(types[0]));
+        }
+
+        for (int i=1; i<types.length; i++) {
+            TypeDesc type = TypeDesc.forClass(types[i]);
+
+            builder.loadLocal(paramsVar);
+            builder.loadConstant(i - 1);
+            builder.loadFromArray(objectType);
+
+            if (type.isPrimitive()) {
+                TypeDesc objType = type.toObjectType();
+                builder.checkCast(objType);
+                builder.convert(objType, type);
+            }
+            else if (type != objectType) {
+                builder.checkCast(type);
+            }
+        }
+
+        builder.invoke(executeMethod);
+
+        TypeDesc returnType = TypeDesc.forClass(executeMethod.getReturnType());
+        if (returnType == TypeDesc.VOID) {
+            builder.loadNull();
+        }
+        else if (returnType.isPrimitive()) {
+            builder.convert(returnType, objectType);
+        }
+
+        builder.returnValue(objectType);
+
+        return cf;
+    }
+
+    protected TemplateInvoker() {
+    }
+
+    /**
+     * Invokes the template execute method, passing the given context and
+     * parameters. Any exception thrown by the template is thrown directly.
+     *
+     * @param context Must be assignable to the template context type
+     * @param parameters Must have same length and types as the template
+     * parameters, excluding the context
+     *
+     * @return the template result, or null if the template returns void
+     */
+    public abstract Object invoke(Context context, Object[] parameters)
+        throws Exception;
+
+    /**
+     * Invoker used when a direct binding cannot be generated.
+     */
+    private static class Reflective extends TemplateInvoker {
+        private final Method mExecuteMethod;
+
+        Reflective(Method executeMethod) {
+            mExecuteMethod = executeMethod;
+        }
+
+        public Object invoke(Context context, Object[] parameters)
+            throws Exception
+        {
+            int length = parameters.length;
+            Object[] args = new Object[1 + length];
+            args[0] = context;
+            for (int i=0; i<length; i++) {
+                args[i + 1] = parameters[i];
+            }
+
+            try {
+                return mExecuteMethod.invoke(null, args);
+            }
+            catch (InvocationTargetException e) {
+                Throwable t = e.getTargetException();
+                if (t instanceof Exception) {
+                    throw (Exception)t;
+                }
+                else if (t instanceof Error) {
+                    throw (Error)t;
+                }
+                else {
+                    throw e;
+                }
+            }
+        }
+    }
+}
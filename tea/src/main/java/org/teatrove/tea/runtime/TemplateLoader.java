@@ -17,8 +17,8 @@
 package org.teatrove.tea.runtime;
 
 import org.teatrove.tea.compiler.JavaClassGenerator;
+import org.teatrove.trove.util.ClassInjector;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
@@ -36,6 +36,9 @@ public class TemplateLoader {
     private ClassLoader mBaseLoader;
     private String mPackagePrefix;
 
+    // Defines the generated invokers for the loaded templates.
+    private ClassInjector mInvokerInjector;
+
     // Maps full template names to Templates.
     private Map<String, Template> mTemplates;
 
@@ -86,6 +89,22 @@ public class TemplateLoader {
         mTemplates = new HashMap<String, Template>();
     }
 
+    /**
+     * Returns the injector used to define template invokers. The injector
+     * delegates to the base ClassLoader so that generated invokers bind to
+     * the same template classes as this TemplateLoader.
+     */
+    protected synchronized ClassInjector getInvokerInjector() {
+        if (mInvokerInjector == null) {
+            ClassLoader parent = mBaseLoader;
+            if (parent == null) {
+                parent = getClass().getClassLoader();
+            }
+            mInvokerInjector = new ClassInjector(parent);
+        }
+        return mInvokerInjector;
+    }
+
     /**
      * Get or load a template by its full name. The full name of a template
      * has '.' characters to separate name parts, and it does not include a
@@ -198,6 +217,7 @@ public class TemplateLoader {
         private Class<?> mClass;
 
         private transient Method mExecuteMethod;
+        private transient TemplateInvoker mInvoker;
         private transient Class<?> mReturnType;
         private transient Type mGenericReturnType;
         private transient String[] mParameterNames;
@@ -251,30 +271,9 @@ public class TemplateLoader {
         public void execute(Context context, Object[] parameters)
             throws Exception
         {
-            int length = parameters.length;
-            Object[] args = new Object[1 + length];
-            args[0] = context;
-            for (int i=0; i<length; i++) {
-                args[i + 1] = parameters[i];
-            }
-
-            try {
-                Object ret = mExecuteMethod.invoke(null, args);
-                if (mReturnType != void.class) {
-                    context.print(ret);
-                }
-            }
-            catch (InvocationTargetException e) {
-                Throwable t = e.getTargetException();
-                if (t instanceof Exception) {
-                    throw (Exception)t;
-                }
-                else if (t instanceof Error) {
-                    throw (Error)t;
-                }
-                else {
-                    throw e;
-                }
+            Object ret = mInvoker.invoke(context, parameters);
+            if (mReturnType != void.class) {
+                context.print(ret);
             }
         }
 
@@ -338,6 +337,9 @@ public class TemplateLoader {
                      "for template \"" + getName() + "\"");
             }
 
+            mInvoker = TemplateInvoker.forMethod
+                (mExecuteMethod, getInvokerInjector());
+
             int length = methodParams.length - 1;
             mParameterNames = new String[length];
             mParameterTypes = new Class[length];
@@ -34,7 +34,7 @@ import java.util.Map;
 import java.util.Vector;
 
 import org.teatrove.trove.generics.GenericType;
-import org.teatrove.trove.util.IdentityMap;
+import org.teatrove.trove.util.ClassLoaderCache;
 
 /**
  * The JavaBean Introspector for Tea.
@@ -55,19 +55,20 @@ public class BeanAnalyzer {
      */
     public static final String ELEMENT_TYPE_FIELD_NAME = "ELEMENT_TYPE";
 
-    /** A cache of properties for classes. Maps classes to property maps. */
-    private static
-    Map<GenericType, Map<String, PropertyDescriptor>> cPropertiesCache;
+    // Maximum number of root types a cached property map may depend on.
+    private static final int MAX_ROOT_DEPTH = 8;
+
+    /**
+     * A cache of properties for generic types, shared by all threads. Maps
+     * the types a GenericType resolves against to property maps.
+     */
+    private static final
+    ClassLoaderCache<List<Type>, Map<String, PropertyDescriptor>>
+        cPropertiesCache =
+        new ClassLoaderCache<List<Type>, Map<String, PropertyDescriptor>>();
 
     static {
         Introspector.setBeanInfoSearchPath(new String[0]);
-        cPropertiesCache = createPropertiesCache();
-    }
-
-    @SuppressWarnings("unchecked")
-    private static Map<GenericType, Map<String, PropertyDescriptor>>
-    createPropertiesCache() {
-        return Collections.synchronizedMap(new IdentityMap(32768));
     }
 
     /**
@@ -99,8 +100,11 @@ public class BeanAnalyzer {
     getAllProperties(GenericType root)
         throws IntrospectionException {
 
+        List<Type> key = getCacheKey(root);
+        Type[] types = (key == null) ? null : key.toArray(new Type[0]);
+
         Map<String, PropertyDescriptor> properties =
-            cPropertiesCache.get(root);
+            (key == null) ? null : cPropertiesCache.get(key, types);
         if (properties == null) {
             GenericType rootType = root.getRootType();
             if (rootType == null) {
@@ -110,12 +114,36 @@ public class BeanAnalyzer {
             (
                 createProperties(rootType, root)
             );
-            cPropertiesCache.put(root, properties);
+            if (key != null) {
+                properties =
+                    cPropertiesCache.putIfAbsent(key, properties, types);
+            }
         }
 
         return properties;
     }
 
+    /**
+     * Returns the classes and generic types of the given type and of the
+     * root types it is resolved against, or null if there are too many to
+     * cache by.
+     */
+    private static List<Type> getCacheKey(GenericType type) {
+        List<Type> key = new ArrayList<Type>(4);
+        for (int i = 0; i < MAX_ROOT_DEPTH; i++) {
+            key.add(type.getType());
+            key.add(type.getGenericType());
+
+            GenericType rootType = type.getRootType();
+            if (rootType == null || rootType == type) {
+                return key;
+            }
+            type = rootType;
+        }
+
+        return null;
+    }
+
     private static Map<String, PropertyDescriptor>
     createProperties(GenericType root, GenericType type)
         throws IntrospectionException {
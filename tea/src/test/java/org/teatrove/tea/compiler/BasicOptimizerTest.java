@@ -0,0 +1,114 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+import org.teatrove.tea.Deterministic;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.tea.util.TestCompiler;
+
+public class BasicOptimizerTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.folded";
+
+    @Test
+    public void testDeterministicCalls() throws Exception {
+        FoldingContext.sCalls = 0;
+        TemplateLoader loader = createLoader();
+
+        // each call with constant arguments is made once while compiling
+        int calls = FoldingContext.sCalls;
+        assertEquals(6, calls);
+
+        assertEquals("USD|10|11|null", execute(loader, "a", "x"));
+        assertEquals("USD|10|11|null", execute(loader, "a", "y"));
+        assertEquals(calls, FoldingContext.sCalls);
+
+        // calls with unknown arguments are made as the template executes
+        assertEquals("X:Y", execute(loader, "b", "x"));
+        assertEquals(calls + 1, FoldingContext.sCalls);
+    }
+
+    @Test
+    public void testCallsNotFolded() throws Exception {
+        FoldingContext.sCalls = 0;
+        FoldingContext.sCounter = 0;
+        TemplateLoader loader = createLoader();
+
+        // the failing call is left to fail again at runtime, and the
+        // non-deterministic function is called every time
+        int calls = FoldingContext.sCalls;
+        assertEquals("1", execute(loader, "c"));
+        assertEquals("2", execute(loader, "c"));
+        assertEquals(calls + 2, FoldingContext.sCalls);
+
+        try {
+            execute(loader, "d");
+            fail("expected exception");
+        }
+        catch (IllegalStateException e) {
+            assertEquals("unknown", e.getMessage());
+        }
+    }
+
+    protected TemplateLoader createLoader() throws Exception {
+        Compiler compiler = createCompiler
+        (
+            PKG,
+            "a", "<% template a(String s) " +
+                 "upper('usd') '|' twice(5) '|' twice(5) + 1 '|' " +
+                 "upper(null) %>",
+            "b", "<% template b(String s) upper(s) ':' upper('y') %>",
+            "c", "<% template c() counter() %>",
+            "d", "<% template d() fail('unknown') %>"
+        );
+        compiler.setRuntimeContext(FoldingContext.class);
+        return compileAll(compiler);
+    }
+
+    @Override
+    public String execute(TemplateLoader loader, String name,
+                          Object... params) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        FoldingContext context = new FoldingContext(new PrintStream(output));
+        loader.getTemplate(name).execute(context, params);
+        return output.toString();
+    }
+
+    public static class FoldingContext extends TestCompiler.Context {
+        static int sCalls;
+        static int sCounter;
+
+        public FoldingContext(PrintStream out) {
+            super(out);
+        }
+
+        @Deterministic
+        public static String upper(String value) {
+            sCalls++;
+            return (value == null) ? null : value.toUpperCase();
+        }
+
+        @Deterministic
+        public static int twice(int value) {
+            sCalls++;
+            return value * 2;
+        }
+
+        @Deterministic
+        public static String fail(String message) {
+            sCalls++;
+            throw new IllegalStateException(message);
+        }
+
+        public static int counter() {
+            sCalls++;
+            return ++sCounter;
+        }
+    }
+}
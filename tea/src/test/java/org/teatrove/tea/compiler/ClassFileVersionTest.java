@@ -0,0 +1,71 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.trove.util.ClassInjector;
+
+public class ClassFileVersionTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.versions";
+
+    @Test
+    public void testStackMapFrames() throws Exception {
+        TemplateLoader legacy = createLoader(50, false);
+        TemplateLoader modern = createLoader(52, false);
+
+        Object[][] params = {
+            { Integer.valueOf(3), Arrays.asList("a", "b", "c"), "x" },
+            { Integer.valueOf(0), Arrays.asList(), null },
+            { Integer.valueOf(7), Arrays.asList("q"), "yz" }
+        };
+
+        for (Object[] values : params) {
+            assertEquals(execute(legacy, "a", values),
+                         execute(modern, "a", values));
+        }
+        assertEquals("1,2,3:a-b-c;3!x", execute(modern, "a", params[0]));
+        assertEquals("1,2,3,4,5,6,7:q;big!yz", execute(modern, "a", params[2]));
+    }
+
+    @Test
+    public void testExceptionGuardian() throws Exception {
+        TemplateLoader legacy = createLoader(50, true);
+        TemplateLoader modern = createLoader(52, true);
+
+        assertEquals(execute(legacy, "b", "abc"), execute(modern, "b", "abc"));
+        assertEquals("[3][]", execute(modern, "b", "abc"));
+        assertEquals("[][]", execute(modern, "b", (Object) null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedVersion() {
+        new Compiler(new ClassInjector(), PKG, null).setClassFileVersion(49);
+    }
+
+    protected TemplateLoader createLoader(int version, boolean guardian)
+        throws Exception {
+
+        Compiler compiler = createCompiler
+        (
+            PKG,
+            "a", "<% template a(Integer n, List items, String s) " +
+                 "foreach (i in 1..n) { i if (i < n) { ',' } } ':' " +
+                 "first = true " +
+                 "foreach (item in items) { " +
+                 "if (not first) { '-' } item; first = false } ';' " +
+                 "if (n > 5) { 'big' } else if (n > 0) { n } " +
+                 "if (s != null) { '!' s } else { '!' } %>",
+            "b", "<% template b(String s) " +
+                 "'[' s.length ']' '[' s.substring(5) ']' %>"
+        );
+        compiler.setClassFileVersion(version);
+        compiler.setExceptionGuardianEnabled(guardian);
+        assertEquals(version, compiler.getClassFileVersion());
+        return compileAll(compiler);
+    }
+}
@@ -0,0 +1,135 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.teatrove.tea.Pure;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+
+public class CommonLookupEliminatorTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.lookups";
+
+    @Test
+    public void testPureLookups() throws Exception {
+        TemplateLoader loader = createLoader(false);
+
+        Bean bean = new Bean(3);
+        assertEquals("3,3,3", execute(loader, "a", bean));
+        assertEquals(1, bean.mPureCount);
+        assertEquals(2, bean.mImpureCount);
+
+        // reassigned variables are looked up again
+        bean = new Bean(3);
+        assertEquals("3,5,5", execute(loader, "b", bean));
+        assertEquals(1, bean.mPureCount);
+        assertEquals(1, bean.getNext().mPureCount);
+
+        // stored lookups are reused within loops
+        bean = new Bean(2);
+        assertEquals("2,2,2,", execute(loader, "c", bean));
+        assertEquals(1, bean.mPureCount);
+
+        // lookups are not moved ahead of side effects
+        bean = new Bean(1);
+        assertEquals("4,2,2", execute(loader, "f", bean));
+        assertEquals(2, bean.mPureCount);
+    }
+
+    @Test
+    public void testAssumePureLookups() throws Exception {
+        TemplateLoader loader = createLoader(true);
+
+        Bean bean = new Bean(3);
+        assertEquals("3,3,3", execute(loader, "a", bean));
+        assertEquals(1, bean.mPureCount);
+        assertEquals(1, bean.mImpureCount);
+
+        // lookups that are only evaluated conditionally are not stored
+        bean = new Bean(1);
+        assertEquals("1", execute(loader, "d", bean));
+        assertEquals(2, bean.mImpureCount);
+    }
+
+    @Test
+    public void testOutputUnchanged() throws Exception {
+        TemplateLoader loader1 = createLoader(false);
+        TemplateLoader loader2 = createLoader(true);
+
+        String[] names = { "a", "b", "c", "d" };
+        for (String name : names) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(execute(loader1, name, new Bean(i)),
+                             execute(loader2, name, new Bean(i)));
+            }
+        }
+
+        String[][] arrays = { { }, { "x" }, { "x", "y" } };
+        for (String[] array : arrays) {
+            assertEquals(execute(loader1, "e", (Object) array),
+                         execute(loader2, "e", (Object) array));
+        }
+        assertEquals("2yy2", execute(loader2, "e", (Object) arrays[2]));
+    }
+
+    protected TemplateLoader createLoader(boolean assumePure)
+        throws Exception {
+
+        String bean = Bean.class.getName().replace('$', '.');
+        Compiler compiler = createCompiler
+        (
+            PKG,
+            "a", "<% template a(" + bean + " b) " +
+                 "b.pure ',' b.pure ',' b.impure + b.pure - b.impure %>",
+            "b", "<% template b(" + bean + " b) " +
+                 "b.pure ','; b = b.next; b.pure ',' b.pure %>",
+            "c", "<% template c(" + bean + " b) " +
+                 "b.pure ',' " +
+                 "foreach (i in 1..3) { if (i > 1) { b.pure ',' } } %>",
+            "d", "<% template d(" + bean + " b) " +
+                 "if (b.pure > 0 and b.impure > 0) { b.impure } " +
+                 "else { 'none' } %>",
+            "e", "<% template e(String[] s) " +
+                 "s.length if (s.length > 1) { s[1] s[1] s.length } %>",
+            "f", "<% template f(" + bean + " b) " +
+                 "b.increment + b.pure ',' b.pure ',' b.pure %>"
+        );
+        compiler.setAssumePureLookups(assumePure);
+        return compileAll(compiler);
+    }
+
+    public static class Bean {
+        private int mValue;
+        private Bean mNext;
+        int mPureCount;
+        int mImpureCount;
+
+        public Bean(int value) {
+            mValue = value;
+        }
+
+        @Pure
+        public int getPure() {
+            mPureCount++;
+            return mValue;
+        }
+
+        public int getImpure() {
+            mImpureCount++;
+            return mValue;
+        }
+
+        public int getIncrement() {
+            return ++mValue;
+        }
+
+        @Pure
+        public Bean getNext() {
+            if (mNext == null) {
+                mNext = new Bean(mValue + 2);
+            }
+            return mNext;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.tea.util.TestCompiler;
+import org.teatrove.trove.io.SourceReader;
+import org.teatrove.trove.util.ClassInjector;
+
+public class CompileCacheTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.cached";
+
+    @Test
+    public void testReuse() throws Exception {
+        CompileCache cache = new CompileCache();
+
+        CountingCompiler compiler = compile(cache, sources(), null);
+        assertEquals(set("a", "b", "c"), compiler.mParsed);
+        assertEquals(set("a", "b", "c"), compiler.mGenerated);
+
+        // nothing is parsed or generated again
+        compiler = compile(cache, sources(), null);
+        assertEquals(set(), compiler.mParsed);
+        assertEquals(set(), compiler.mGenerated);
+
+        TemplateLoader loader = new TemplateLoader(compiler.getInjector(), PKG);
+        assertEquals("a:b:null:c:[x]|c:[y]", execute(loader, "a", "x"));
+        assertEquals("c:[z]", execute(loader, "c", "z"));
+    }
+
+    @Test
+    public void testChangedSource() throws Exception {
+        CompileCache cache = new CompileCache();
+        compile(cache, sources(), null);
+
+        // the signature of c is unchanged, so its callers are reused
+        Map<String, String> sources = sources();
+        sources.put("c", "<% template c(String s) 'c:<' s '>' %>");
+        CountingCompiler compiler = compile(cache, sources, null);
+        assertEquals(set("c"), compiler.mParsed);
+        assertEquals(set("c"), compiler.mGenerated);
+
+        TemplateLoader loader = new TemplateLoader(compiler.getInjector(), PKG);
+        assertEquals("a:b:null:c:<x>|c:<y>", execute(loader, "a", "x"));
+    }
+
+    @Test
+    public void testChangedSignature() throws Exception {
+        CompileCache cache = new CompileCache();
+        compile(cache, sources(), null);
+
+        // the return type of c changes, so its callers are recompiled
+        Map<String, String> sources = sources();
+        sources.put("c", "<% template c(String s) s.length() %>");
+        CountingCompiler compiler = compile(cache, sources, null);
+        assertEquals(set("c"), compiler.mParsed);
+        assertEquals(set("a", "b", "c"), compiler.mGenerated);
+
+        TemplateLoader loader = new TemplateLoader(compiler.getInjector(), PKG);
+        assertEquals("a:b:null:1|1", execute(loader, "a", "x"));
+    }
+
+    @Test
+    public void testChangedContext() throws Exception {
+        CompileCache cache = new CompileCache();
+        compile(cache, sources(), null);
+
+        // only b calls the function overloaded by the new context
+        CountingCompiler compiler =
+            compile(cache, sources(), ExtendedContext.class);
+        assertEquals(set(), compiler.mParsed);
+        assertEquals(set("b"), compiler.mGenerated);
+
+        TemplateLoader loader = new TemplateLoader(compiler.getInjector(), PKG);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        loader.getTemplate("a").execute
+            (new ExtendedContext(new PrintStream(output)), new Object[] { "x" });
+        assertEquals("a:b:null:c:[x]|c:[y]", output.toString());
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        File dir = File.createTempFile("tea", "cache");
+        dir.delete();
+        try {
+            compile(new CompileCache(dir), sources(), null);
+            assertTrue(new File(dir, "a.tcache").exists());
+
+            CountingCompiler compiler =
+                compile(new CompileCache(dir), sources(), null);
+            assertEquals(set(), compiler.mParsed);
+            assertEquals(set(), compiler.mGenerated);
+
+            TemplateLoader loader =
+                new TemplateLoader(compiler.getInjector(), PKG);
+            assertEquals("a:b:null:c:[x]|c:[y]", execute(loader, "a", "x"));
+        }
+        finally {
+            new CompileCache(dir).clear();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testErrorsNotCached() throws Exception {
+        CompileCache cache = new CompileCache();
+        Map<String, String> sources = sources();
+        sources.put("c", "<% template c(String s) s.missing %>");
+
+        CountingCompiler compiler = compile(cache, sources, null);
+        assertTrue(compiler.getErrorCount() > 0);
+        assertNotNull(cache.get("c"));
+        assertNull(cache.get("c").getClassFile());
+        assertNull(cache.get("a").getClassFile());
+
+        // errors are reported again
+        compiler = compile(cache, sources, null);
+        assertTrue(compiler.getErrorCount() > 0);
+    }
+
+    @Test
+    public void testRename() throws Exception {
+        CompileCache cache = new CompileCache();
+        compile(cache, sources(), null);
+
+        byte[] classFile = cache.get("a").getClassFile();
+        String from = TestCompiler.Context.class.getName();
+        String to = ExtendedContext.class.getName();
+        Set<String> references = CompileCache.getReferences
+            (CompileCache.rename(classFile, from, to));
+        assertTrue(references.contains("class " + to));
+        assertTrue(references.contains("method " + PKG + ".b execute"));
+        assertTrue(!references.contains("class " + from));
+    }
+
+    @Test
+    public void testDescribeGenerics() throws Exception {
+        // descriptions differ only by type arguments
+        assertDiffer("method x getItems", Strings.class, Integers.class);
+        assertDiffer("method x setItems", Strings.class, Integers.class);
+        assertDiffer("field x items", Strings.class, Integers.class);
+        assertDiffer("method x <init>", Strings.class, Integers.class);
+        assertEquals(CompileCache.describe("method x getName", Strings.class),
+                     CompileCache.describe("method x getName",
+                                           Integers.class));
+
+        // supertypes of referenced classes, including inherited ones
+        assertDiffer("class x", Strings.class, Integers.class);
+        assertDiffer("class x", StringList.class, IntegerList.class);
+        assertTrue(CompileCache.describe("class x", StringList.class)
+                   .contains("implements java.util.RandomAccess"));
+    }
+
+    private static void assertDiffer(String reference,
+                                     Class<?> a, Class<?> b) {
+        String description = CompileCache.describe(reference, a);
+        assertNotNull(description);
+        assertTrue(!description.equals(CompileCache.describe(reference, b)));
+    }
+
+    protected Map<String, String> sources() {
+        Map<String, String> sources = new TreeMap<String, String>();
+        sources.put("a", "<% template a(String s) " +
+                         "'a:' call b(s) '|' call c('y') %>");
+        sources.put("b", "<% template b(String s) " +
+                         "'b:' getNullFormat() ':' call c(s) %>");
+        sources.put("c", "<% template c(String s) 'c:[' s ']' %>");
+        return sources;
+    }
+
+    protected CountingCompiler compile(CompileCache cache,
+                                       Map<String, String> sources,
+                                       Class<?> context)
+        throws Exception {
+
+        List<String> templates = new ArrayList<String>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            templates.add(source.getKey());
+            templates.add(source.getValue());
+        }
+
+        CountingCompiler compiler = new CountingCompiler(new ClassInjector());
+        setupCompiler
+            (compiler, templates.toArray(new String[templates.size()]));
+        if (context != null) {
+            compiler.setRuntimeContext(context);
+        }
+        compiler.setCompileCache(cache);
+        compiler.compileAll();
+        return compiler;
+    }
+
+    private static Set<String> set(String... values) {
+        Set<String> set = new TreeSet<String>();
+        for (String value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+
+    public static class ExtendedContext extends TestCompiler.Context {
+        public ExtendedContext(PrintStream out) {
+            super(out);
+        }
+
+        public String getNullFormat(String format) {
+            return format;
+        }
+    }
+
+    public static class Strings implements Comparable<Strings> {
+        public List<String> items;
+
+        public Strings(List<String> items) {
+            this.items = items;
+        }
+
+        public List<String> getItems() {
+            return items;
+        }
+
+        public void setItems(List<String> items) {
+            this.items = items;
+        }
+
+        public String getName() {
+            return "strings";
+        }
+
+        public int compareTo(Strings other) {
+            return 0;
+        }
+    }
+
+    public static class Integers implements Comparable<Integers> {
+        public List<Integer> items;
+
+        public Integers(List<Integer> items) {
+            this.items = items;
+        }
+
+        public List<Integer> getItems() {
+            return items;
+        }
+
+        public void setItems(List<Integer> items) {
+            this.items = items;
+        }
+
+        public String getName() {
+            return "integers";
+        }
+
+        public int compareTo(Integers other) {
+            return 0;
+        }
+    }
+
+    public static class StringList extends ArrayList<String> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    public static class IntegerList extends ArrayList<Integer> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class CountingCompiler extends Compiler {
+        final Set<String> mParsed = new TreeSet<String>();
+        final Set<String> mGenerated = new TreeSet<String>();
+
+        CountingCompiler(ClassInjector injector) {
+            super(injector, PKG, null);
+        }
+
+        protected Scanner createScanner(SourceReader reader,
+                                        CompilationUnit unit)
+            throws IOException {
+            mParsed.add(unit.getName());
+            return super.createScanner(reader, unit);
+        }
+
+        protected CodeGenerator createCodeGenerator(CompilationUnit unit)
+            throws IOException {
+            mGenerated.add(unit.getName());
+            return super.createCodeGenerator(unit);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.teatrove.tea.parsetree.Template;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.trove.util.ClassInjector;
+
+public class CompilerTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.templates";
+
+    private static final int INDEPENDENT = 20;
+
+    @Test
+    public void testParallelCompile() throws Exception {
+        ClassInjector injector = new ClassInjector();
+        Compiler compiler = createCompiler(injector, 4);
+        assertEquals(4, compiler.getParallelism());
+
+        Set<String> compiled =
+            new HashSet<String>(Arrays.asList(compiler.compileAll()));
+        assertEquals(INDEPENDENT + 5, compiled.size());
+        assertEquals(1, compiler.getErrorCount());
+
+        TemplateLoader loader = new TemplateLoader(injector, PKG);
+        assertEquals("b3ddd", execute(loader, "a", 3));
+        assertEquals("b5", execute(loader, "f7", 5));
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        ClassInjector sequential = new ClassInjector();
+        Compiler compiler = createCompiler(sequential, 1);
+        String[] expected = compiler.compileAll();
+        Arrays.sort(expected);
+        int expectedErrors = compiler.getErrorCount();
+
+        ClassInjector parallel = new ClassInjector();
+        compiler = createCompiler(parallel, 3);
+        String[] actual = compiler.compileAll();
+        Arrays.sort(actual);
+
+        assertEquals(Arrays.asList(expected), Arrays.asList(actual));
+        assertEquals(expectedErrors, compiler.getErrorCount());
+
+        TemplateLoader loader1 = new TemplateLoader(sequential, PKG);
+        TemplateLoader loader2 = new TemplateLoader(parallel, PKG);
+        assertEquals(execute(loader1, "a", 2), execute(loader2, "a", 2));
+    }
+
+    @Test
+    public void testParallelCompileWithOwnMap() throws Exception {
+        // the map passed to the compiler need not be thread-safe
+        for (int i = 0; i < 5; i++) {
+            ClassInjector injector = new ClassInjector();
+            Map<String, Template> trees = new HashMap<String, Template>();
+            Compiler compiler = createCompiler
+                (new Compiler(injector, PKG, null, null, 0, trees), 4);
+
+            assertEquals(INDEPENDENT + 5, compiler.compileAll().length);
+
+            TemplateLoader loader = new TemplateLoader(injector, PKG);
+            assertEquals("b3ddd", execute(loader, "a", 3));
+        }
+    }
+
+    @Test
+    public void testParallelism() {
+        Compiler compiler = new Compiler(new ClassInjector(), PKG, null);
+        assertEquals(1, compiler.getParallelism());
+
+        try {
+            compiler.setParallelism(0);
+            fail("expected illegal argument");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    protected Compiler createCompiler(ClassInjector injector, int threads) {
+        return createCompiler(new Compiler(injector, PKG, null), threads);
+    }
+
+    protected Compiler createCompiler(Compiler compiler, int threads) {
+        compiler.setParallelism(threads);
+
+        List<String> templates = new ArrayList<String>(Arrays.asList
+        (
+            "a", "<% template a(Integer n) call b(n); call c(n) %>",
+            "b", "<% template b(Integer n) 'b'; n %>",
+            "c", "<% template c(Integer n) if (n > 0) { call d(n - 1) } %>",
+            "d", "<% template d(Integer n) 'd'; call c(n) %>",
+            "e", "<% template e() undefined %>"
+        ));
+        for (int i = 0; i < INDEPENDENT; i++) {
+            templates.add("f" + i);
+            templates.add("<% template f" + i + "(Integer n) call b(n) %>");
+        }
+
+        return setupCompiler
+            (compiler, templates.toArray(new String[templates.size()]));
+    }
+}
@@ -0,0 +1,140 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+
+public class ForeachIterationTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.foreach";
+
+    @Test
+    public void testLists() throws Exception {
+        for (int version : new int[] { 50, 52 }) {
+            TemplateLoader loader = createLoader(version);
+
+            List<String> array = new ArrayList<String>();
+            List<String> linked = new LinkedList<String>();
+            for (String value : Arrays.asList("a", "b", "c", "d")) {
+                array.add(value);
+                linked.add(value);
+            }
+
+            assertEquals("a,b,c,d,|d,c,b,a,", execute(loader, "a", array));
+            assertEquals("a,b,c,d,|d,c,b,a,", execute(loader, "a", linked));
+            assertEquals("a,b,c,d,|d,c,b,a,",
+                         execute(loader, "b", array));
+            assertEquals("|", execute(loader, "a", new ArrayList<String>()));
+            assertEquals("|", execute(loader, "a", new LinkedList<String>()));
+            assertEquals("|", execute(loader, "a", (Object) null));
+
+            // the list is iterated in place
+            assertEquals(4, array.size());
+        }
+    }
+
+    @Test
+    public void testBreakAndContinue() throws Exception {
+        for (int version : new int[] { 50, 52 }) {
+            TemplateLoader loader = createLoader(version);
+
+            List<String> values = Arrays.asList("a", "b", "c", "d");
+            assertEquals("a,c,|d,b,", execute(loader, "c", values));
+            assertEquals("a,c,|d,b,",
+                         execute(loader, "c", new LinkedList<String>(values)));
+        }
+    }
+
+    @Test
+    public void testSetsAndMaps() throws Exception {
+        for (int version : new int[] { 50, 52 }) {
+            TemplateLoader loader = createLoader(version);
+
+            Collection<String> set = new LinkedHashSet<String>
+                (Arrays.asList("x", "y", "z"));
+            assertEquals("x,y,z,|z,y,x,", execute(loader, "d", set));
+
+            Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+            map.put("k1", Integer.valueOf(1));
+            map.put("k2", Integer.valueOf(2));
+            assertEquals("k1,k2,|k2,k1,", execute(loader, "e", map));
+            assertEquals("|", execute(loader, "e", (Object) null));
+        }
+    }
+
+    @Test
+    public void testPrimitiveArrays() throws Exception {
+        for (int version : new int[] { 50, 52 }) {
+            TemplateLoader loader = createLoader(version);
+
+            assertEquals("1,2,3,|3,2,1,|4.5,|6",
+                         execute(loader, "f", new int[] { 1, 2, 3 },
+                                 new long[] { 1L, 2L, 3L },
+                                 new double[] { 4.5 }));
+        }
+    }
+
+    @Test
+    public void testNestedLoops() throws Exception {
+        for (int version : new int[] { 50, 52 }) {
+            TemplateLoader loader = createLoader(version);
+
+            List<List<String>> rows = new ArrayList<List<String>>();
+            rows.add(Arrays.asList("a", "b"));
+            rows.add(new LinkedList<String>(Arrays.asList("c")));
+            assertEquals("a,b,;c,;|c,;b,a,;", execute(loader, "g", rows));
+            assertEquals("a,b,;c,;|c,;b,a,;",
+                         execute(loader, "g",
+                                 new LinkedList<List<String>>(rows)));
+        }
+    }
+
+    protected TemplateLoader createLoader(int version) throws Exception {
+        Compiler compiler = createCompiler
+        (
+            PKG,
+            "a", "<% template a(List<String> items) " +
+                 "foreach (item in items) { item ',' } '|' " +
+                 "foreach (item in items reverse) { item ',' } %>",
+            "b", "<% template b(java.util.ArrayList<String> items) " +
+                 "foreach (item in items) { item ',' } '|' " +
+                 "foreach (item in items reverse) { item ',' } %>",
+            "c", "<% template c(List<String> items) " +
+                 "foreach (item in items) { " +
+                 "if (item == 'b') { continue } if (item == 'd') { break } " +
+                 "item ',' } '|' " +
+                 "foreach (item in items reverse) { " +
+                 "if (item == 'c') { continue } if (item == 'a') { break } " +
+                 "item ',' } %>",
+            "d", "<% template d(java.util.Set<String> items) " +
+                 "foreach (item in items) { item ',' } '|' " +
+                 "foreach (item in items reverse) { item ',' } %>",
+            "e", "<% template e(Map<String, Integer> items) " +
+                 "foreach (item in items) { item ',' } '|' " +
+                 "foreach (item in items reverse) { item ',' } %>",
+            "f", "<% template f(int[] ints, long[] longs, double[] doubles) " +
+                 "foreach (i in ints) { i ',' } '|' " +
+                 "foreach (l in longs reverse) { l ',' } '|' " +
+                 "foreach (d in doubles) { d ',' } '|' " +
+                 "sum = 0; foreach (i in ints) { sum = sum + i } sum %>",
+            "g", "<% template g(List<List<String>> rows) " +
+                 "foreach (row in rows) { " +
+                 "foreach (item in row) { item ',' } ';' } '|' " +
+                 "foreach (row in rows reverse) { " +
+                 "foreach (item in row reverse) { item ',' } ';' } %>"
+        );
+        compiler.setClassFileVersion(version);
+        return compileAll(compiler);
+    }
+}
@@ -0,0 +1,167 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.teatrove.tea.Pure;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.tea.util.TestCompiler;
+
+public class LoopInvariantHoisterTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.invariants";
+
+    private TemplateLoader mLoader;
+    private ByteArrayOutputStream mOutput;
+    private Context mContext;
+
+    @Before
+    public void setup() throws Exception {
+        mLoader = createLoader();
+    }
+
+    @Test
+    public void testHoistedFromArray() throws Exception {
+        Bean bean = new Bean(3);
+        String[] items = { "a", "b" };
+        assertEquals("[x]a,3,[x]b,3,", executeTemplate("a", items, bean));
+        assertEquals(1, mContext.mLabelCount);
+        assertEquals(1, bean.mPureCount);
+
+        // invariants are not computed for empty loops
+        bean = new Bean(3);
+        assertEquals("", executeTemplate("a", new String[0], bean));
+        assertEquals(0, mContext.mLabelCount);
+        assertEquals(0, bean.mPureCount);
+        assertEquals("", executeTemplate("a", null, bean));
+        assertEquals(0, bean.mPureCount);
+    }
+
+    @Test
+    public void testHoistedFromIterator() throws Exception {
+        assertEquals("[y]c[y]b[y]a",
+                     executeTemplate("b", Arrays.asList("a", "b", "c")));
+        assertEquals(1, mContext.mLabelCount);
+
+        assertEquals("", executeTemplate("b", Collections.emptyList()));
+        assertEquals(0, mContext.mLabelCount);
+    }
+
+    @Test
+    public void testHoistedFromRange() throws Exception {
+        Bean bean = new Bean(2);
+        assertEquals("2x2x2x", executeTemplate("c", Integer.valueOf(3), bean));
+        assertEquals(1, bean.mPureCount);
+
+        bean = new Bean(2);
+        assertEquals("", executeTemplate("c", Integer.valueOf(0), bean));
+        assertEquals(0, bean.mPureCount);
+
+        // nested loops move invariants of the inner loop to the inner loop
+        bean = new Bean(4);
+        assertEquals("44,44,", executeTemplate("d", Integer.valueOf(2), bean));
+        assertEquals(2, bean.mPureCount);
+    }
+
+    @Test
+    public void testNotHoisted() throws Exception {
+        // conditionally evaluated
+        Bean bean = new Bean(3);
+        assertEquals("33", executeTemplate("e", Integer.valueOf(3), bean));
+        assertEquals(2, bean.mPureCount);
+
+        // assigned within the loop
+        bean = new Bean(3);
+        assertEquals("3,5,7,", executeTemplate("f", Integer.valueOf(3), bean));
+        assertEquals(1, bean.mPureCount);
+
+        // evaluated after a break
+        bean = new Bean(3);
+        assertEquals("33", executeTemplate("g", Integer.valueOf(3), bean));
+        assertEquals(2, bean.mPureCount);
+    }
+
+    protected TemplateLoader createLoader() throws Exception {
+        String bean = Bean.class.getName().replace('$', '.');
+        Compiler compiler = createCompiler
+        (
+            PKG,
+            "a", "<% template a(String[] items, " + bean + " b) " +
+                 "foreach (item in items) { label('x') & item ',' " +
+                 "b.pure ',' } %>",
+            "b", "<% template b(List items) " +
+                 "foreach (item in items reverse) { label('y') item } %>",
+            "c", "<% template c(Integer n, " + bean + " b) " +
+                 "foreach (i in 1..n) { touch() b.pure & 'x' } %>",
+            "d", "<% template d(Integer n, " + bean + " b) " +
+                 "foreach (i in 1..n) { " +
+                 "foreach (j in 1..2) { b.pure } ',' } %>",
+            "e", "<% template e(Integer n, " + bean + " b) " +
+                 "foreach (i in 1..n) { if (i > 1) { b.pure } } %>",
+            "f", "<% template f(Integer n, " + bean + " b) " +
+                 "foreach (i in 1..n) { b.pure ','; b = b.next } %>",
+            "g", "<% template g(Integer n, " + bean + " b) " +
+                 "foreach (i in 1..n) { if (i > 2) { break } b.pure } %>"
+        );
+        compiler.setRuntimeContext(Context.class);
+        return compileAll(compiler);
+    }
+
+    protected String executeTemplate(String name, Object... params)
+        throws Exception {
+
+        mOutput = new ByteArrayOutputStream(1024);
+        mContext = new Context(new PrintStream(mOutput));
+        mLoader.getTemplate(name).execute(mContext, params);
+        return mOutput.toString();
+    }
+
+    public static class Context extends TestCompiler.Context {
+        int mLabelCount;
+
+        public Context(PrintStream out) {
+            super(out);
+        }
+
+        @Pure
+        public String label(String value) {
+            mLabelCount++;
+            return '[' + value + ']';
+        }
+
+        public void touch() {
+            // not pure
+        }
+    }
+
+    public static class Bean {
+        private final int mValue;
+        private Bean mNext;
+        int mPureCount;
+
+        public Bean(int value) {
+            mValue = value;
+        }
+
+        @Pure
+        public int getPure() {
+            mPureCount++;
+            return mValue;
+        }
+
+        @Pure
+        public Bean getNext() {
+            if (mNext == null) {
+                mNext = new Bean(mValue + 2);
+            }
+            return mNext;
+        }
+    }
+}
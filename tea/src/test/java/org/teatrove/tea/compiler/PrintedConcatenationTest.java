@@ -0,0 +1,85 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.tea.util.TestCompiler;
+
+public class PrintedConcatenationTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.printed";
+
+    private TemplateLoader mLoader;
+    private Context mContext;
+
+    @Before
+    public void setup() throws Exception {
+        mLoader = createLoader();
+    }
+
+    @Test
+    public void testOperandsPrinted() throws Exception {
+        Object[] params = { "abc", Integer.valueOf(5), Double.valueOf(1.5) };
+        String expected = executeTemplate("b", params);
+
+        assertEquals("<abc>51.5.", expected);
+        assertEquals(expected, executeTemplate("a", params));
+        assertEquals(6, mContext.mPrintCount);
+    }
+
+    @Test
+    public void testNullOperands() throws Exception {
+        Object[] params = { null, null, null };
+        assertEquals(executeTemplate("b", params),
+                     executeTemplate("a", params));
+        assertEquals("<null>nullnull.", executeTemplate("a", params));
+    }
+
+    @Test
+    public void testNestedConcatenation() throws Exception {
+        assertEquals("abc5x.", executeTemplate("c", "abc", Integer.valueOf(5)));
+        assertEquals(4, mContext.mPrintCount);
+    }
+
+    protected TemplateLoader createLoader() throws Exception {
+        Compiler compiler = createCompiler
+        (
+            PKG,
+            "a", "<% template a(String s, Integer n, Double d) " +
+                 "('<' & s & '>' & n & d); '.' %>",
+            "b", "<% template b(String s, Integer n, Double d) " +
+                 "x = '<' & s & '>' & n & d; x; '.' %>",
+            "c", "<% template c(String s, Integer n) (s & (n & 'x')); '.' %>"
+        );
+        compiler.setRuntimeContext(Context.class);
+        return compileAll(compiler);
+    }
+
+    protected String executeTemplate(String name, Object... params)
+        throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        mContext = new Context(new PrintStream(output));
+        mLoader.getTemplate(name).execute(mContext, params);
+        return output.toString();
+    }
+
+    public static class Context extends TestCompiler.Context {
+        int mPrintCount;
+
+        public Context(PrintStream out) {
+            super(out);
+        }
+
+        public void print(Object obj) {
+            mPrintCount++;
+            super.print(obj);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.teatrove.trove.io.SourceReader;
+
+public class ScannerTest {
+
+    private static final String[] SOURCES = {
+        "",
+        "plain text only",
+        "text <% a = 1; b = 'str' %> more text <% c %>",
+        "<% template test(String a, Integer... b) a & b[0] %>\r\ntrailing\r\n",
+        "line 1\rline 2\r\nline 3\n<% x = \"tab\\t\\\"q\\\"\"\r\ny %>",
+        "<% a = '\\u0041\\u00412' & \"\\\\u0041\" & '\\u061' %>",
+        "\\u0041 in text <% \\u0061 = 1 \\u0025> after",
+        "<% 'string with %> in it' /* comment %> */ // line %>\n 1 %> t",
+        "<% 0x1F 017 1.5e10 2L 3.0f 4d .5 1..2 1...2 0xZ 1e %>",
+        "<% a == b != c <= d >= e => f ## g # h ... i %>",
+        "<% 'unterminated\n 'next' %>",
+        "<% /* unterminated comment",
+        "<% 'escape \\u",
+        "<% 'escape \\u12",
+        "<% x \\",
+        "<% '\\u'%>abc %>",
+        "\\u\t\"\\u\r",
+        "text ending in tag <%",
+        "text ending in end tag %>",
+        "<%%><%%>%><%",
+    };
+
+    @Test
+    public void testSources() throws Exception {
+        for (String source : SOURCES) {
+            assertSameTokens(source, "<%", "%>", false);
+            assertSameTokens(source, "<%", "%>", true);
+            assertSameTokens(source, null, null, false);
+        }
+    }
+
+    @Test
+    public void testRandomSources() throws Exception {
+        char[] chars = {
+            '<', '%', '>', '\\', 'u', '0', 'a', 'F', '\r', '\n', '\'', '"',
+            '/', '*', ' ', '1', '.', 'x', 'e', '#'
+        };
+
+        Random random = new Random(1234);
+        for (int i = 0; i < 2000; i++) {
+            int length = random.nextInt(40);
+            StringBuilder buf = new StringBuilder(length);
+            for (int j = 0; j < length; j++) {
+                buf.append(chars[random.nextInt(chars.length)]);
+            }
+
+            String source = buf.toString();
+            assertSameTokens(source, "<%", "%>", random.nextBoolean());
+            assertSameTokens(source, "<<", ">>", false);
+        }
+    }
+
+    @Test
+    public void testUnreadTokens() throws Exception {
+        Scanner scanner = new Scanner
+            (new SourceReader(new StringReader("<% a b c %>"), "<%", "%>"));
+
+        Token a = scanner.readToken();
+        Token b = scanner.peekToken();
+        assertEquals("b", b.getStringValue());
+        scanner.unreadToken(a);
+        assertEquals("a", scanner.readToken().getStringValue());
+        assertEquals("b", scanner.readToken().getStringValue());
+        assertEquals("c", scanner.peekToken().getStringValue());
+        assertEquals("c", scanner.readToken().getStringValue());
+        assertEquals(Token.EOF, scanner.readToken().getID());
+        assertEquals(Token.EOF, scanner.readToken().getID());
+    }
+
+    @Test
+    public void testPartiallyReadSource() throws Exception {
+        SourceReader reader =
+            new SourceReader(new StringReader("text <% a %>"), "<%", "%>");
+        assertEquals(SourceReader.ENTER_TEXT, reader.read());
+        assertEquals('t', reader.read());
+
+        // scanning continues from the current position of the reader
+        List<String> tokens = scan(new Scanner(reader));
+        assertTrue(tokens.get(0), tokens.get(0).startsWith("IDENT:ext:"));
+        assertEquals("ENTER_CODE:<%:0:0.0:line=1,start=5,end=6,detail=5",
+                     tokens.get(1));
+    }
+
+    protected void assertSameTokens(String source, String beginTag,
+                                    String endTag, boolean inCode)
+        throws Exception {
+
+        SourceReader fast = new SourceReader
+            (new StringReader(source), beginTag, endTag, inCode);
+
+        // A subclass of SourceReader is scanned through the reader itself.
+        SourceReader slow = new SourceReader
+            (new StringReader(source), beginTag, endTag, inCode) { };
+
+        assertEquals(source, scan(new Scanner(slow)),
+                     scan(new Scanner(fast)));
+    }
+
+    protected List<String> scan(Scanner scanner) throws IOException {
+        final List<String> tokens = new ArrayList<String>();
+
+        scanner.emitSpecialTokens(true);
+        scanner.addCompileListener(new CompileListener() {
+            public void compileError(CompileEvent e) {
+                tokens.add("error:" + e.getMessage() + e.getSourceInfo());
+            }
+
+            public void compileWarning(CompileEvent e) {
+                tokens.add("warning:" + e.getMessage() + e.getSourceInfo());
+            }
+        });
+
+        Token token;
+        do {
+            token = scanner.readToken();
+            tokens.add(token.getCode() + ':' + token.getStringValue() + ':' +
+                       token.getNumericType() + ':' +
+                       token.getDoubleValue() + ':' + token.getSourceInfo());
+        } while (token.getID() != Token.EOF);
+
+        return tokens;
+    }
+}
@@ -0,0 +1,195 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.teatrove.tea.runtime.InlinedTemplates;
+import org.teatrove.tea.runtime.Substitution;
+import org.teatrove.tea.runtime.TemplateLoader;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.trove.util.ClassInjector;
+
+public class TemplateCallInlinerTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.compiler.inlined";
+
+    @Test
+    public void testInlinedMatchesCalled() throws Exception {
+        ClassInjector called = new ClassInjector();
+        createCompiler(called, 0).compileAll();
+
+        ClassInjector inlined = new ClassInjector();
+        Compiler compiler = createCompiler(inlined, 100);
+        compiler.compileAll();
+        assertEquals(0, compiler.getErrorCount());
+
+        TemplateLoader loader1 = new TemplateLoader(called, PKG);
+        TemplateLoader loader2 = new TemplateLoader(inlined, PKG);
+        for (int n = 0; n < 4; n++) {
+            String expected = execute(loader1, "a", n);
+            assertEquals(expected, execute(loader2, "a", n));
+        }
+
+        assertEquals("5v1w1,6x51v1", execute(loader2, "a", 1));
+        assertEquals("6x", execute(loader2, "s", 3));
+    }
+
+    @Test
+    public void testInlinedTemplates() throws Exception {
+        ClassInjector injector = new ClassInjector();
+        createCompiler(injector, 100).compileAll();
+
+        List<String> inlined = getInlined(injector, "a");
+        assertTrue(inlined.contains(PKG + ".v"));
+        assertTrue(inlined.contains(PKG + ".w"));
+        assertTrue(inlined.contains(PKG + ".l"));
+        assertTrue(inlined.contains(PKG + ".r"));
+
+        assertEquals(Arrays.asList(PKG + ".l", PKG + ".x"),
+                     getInlined(injector, "y"));
+
+        // recursive calls are not inlined
+        assertNull(getInlined(injector, "r"));
+    }
+
+    @Test
+    public void testInlinedRegardlessOfOrder() throws Exception {
+        // called templates are inlined even if they are not compiled
+        ClassInjector injector = new ClassInjector();
+        Compiler compiler = createCompiler(injector, 100);
+        compiler.compile(new String[] { "y" });
+        assertEquals(Arrays.asList(PKG + ".l", PKG + ".x"),
+                     getInlined(injector, "y"));
+        assertNull(compiler.getInlineableTree("x"));
+
+        // or if they were compiled by an earlier compile
+        injector = new ClassInjector();
+        compiler = createCompiler(injector, 100);
+        compiler.compile(new String[] { "x", "l" });
+        assertNull(compiler.getInlineableTree("x"));
+        compiler.compile(new String[] { "y" });
+        assertEquals(Arrays.asList(PKG + ".l", PKG + ".x"),
+                     getInlined(injector, "y"));
+    }
+
+    @Test
+    public void testInlineThreshold() throws Exception {
+        ClassInjector injector = new ClassInjector();
+        createCompiler(injector, 1).compileAll();
+
+        List<String> inlined = getInlined(injector, "a");
+        assertNotNull(inlined);
+        assertTrue(inlined.contains(PKG + ".v"));
+        assertFalse(inlined.contains(PKG + ".l"));
+
+        injector = new ClassInjector();
+        createCompiler(injector, 0).compileAll();
+        assertNull(getInlined(injector, "a"));
+
+        try {
+            new Compiler(injector, PKG, null).setInlineThreshold(-1);
+            fail("expected illegal argument");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSubstitutionLowered() throws Exception {
+        ClassInjector called = new ClassInjector();
+        createSubstitutionCompiler(called, 0).compileAll();
+
+        ClassInjector inlined = new ClassInjector();
+        Compiler compiler = createSubstitutionCompiler(inlined, 100);
+        compiler.compileAll();
+        assertEquals(0, compiler.getErrorCount());
+
+        TemplateLoader loader1 = new TemplateLoader(called, PKG);
+        TemplateLoader loader2 = new TemplateLoader(inlined, PKG);
+        for (String name : new String[] { "b", "c", "d", "e" }) {
+            for (int n = 0; n < 3; n++) {
+                String expected = execute(loader1, name, n);
+                assertEquals(expected, execute(loader2, name, n));
+            }
+        }
+
+        assertEquals("[a12]", execute(loader2, "b", 1));
+        assertEquals("[qqr]qr", execute(loader2, "c", 1));
+
+        // callers whose blocks are all lowered no longer need an instance
+        assertFalse(isSubstitution(loader2, "b"));
+        assertFalse(isSubstitution(loader2, "c"));
+        assertFalse(isSubstitution(loader2, "d"));
+        assertTrue(getInlined(inlined, "d").contains(PKG + ".frame"));
+
+        // blocks substituted twice or within a loop are still passed
+        assertTrue(isSubstitution(loader2, "e"));
+        assertTrue(isSubstitution(loader1, "b"));
+    }
+
+    protected Compiler createSubstitutionCompiler(ClassInjector injector,
+                                                  int threshold) {
+        Compiler compiler = setupCompiler
+        (
+            new Compiler(injector, PKG, null),
+            "frame", "<% template frame(String t) {...} " +
+                     "'[' t if (t != null) { ... } ']' %>",
+            "twice", "<% template twice() {...} ... ... %>",
+            "loop", "<% template loop(Integer n) {...} " +
+                    "foreach (i in 1..n) { ... } %>",
+            "b", "<% template b(Integer n) i = n; " +
+                 "call frame('a') { i; n + 1 } %>",
+            "c", "<% template c(Integer n) s = 'q'; " +
+                 "call frame(s) { s = s & 'r'; s } s %>",
+            "d", "<% template d(Integer n) foreach (i in 0..n) { " +
+                 "call frame('o') { call frame(null) { i } i } } %>",
+            "e", "<% template e(Integer n) call twice() { n } " +
+                 "call loop(n) { 'l' } %>"
+        );
+        compiler.setInlineThreshold(threshold);
+        return compiler;
+    }
+
+    protected boolean isSubstitution(TemplateLoader loader, String name)
+        throws Exception {
+
+        return Substitution.class.isAssignableFrom
+            (loader.getTemplate(name).getTemplateClass());
+    }
+
+    protected Compiler createCompiler(ClassInjector injector, int threshold) {
+        Compiler compiler = setupCompiler
+        (
+            new Compiler(injector, PKG, null),
+            "a", "<% template a(Integer n) i = 5; i; call v(n); call w('w'); " +
+                 "call l(n); call x(3); i; call r(n); call v(n) %>",
+            "v", "<% template v(Integer n) 'v'; n %>",
+            "w", "<% template w(String s) if (s != null) { s } %>",
+            "l", "<% template l(Integer n) foreach (i in 1..n) { i ',' } %>",
+            "x", "<% template x(Integer n) i = n * 2; i 'x' %>",
+            "y", "<% template y(Integer n) call x(n) call l(n) %>",
+            "r", "<% template r(Integer n) if (n > 0) { n call r(n - 1) } %>",
+            "s", "<% template s(Integer n) call x(n) %>"
+        );
+        compiler.setInlineThreshold(threshold);
+        return compiler;
+    }
+
+    protected List<String> getInlined(ClassInjector injector, String name)
+        throws Exception {
+
+        Class<?> clazz = injector.loadClass(PKG + '.' + name);
+        InlinedTemplates inlined =
+            clazz.getAnnotation(InlinedTemplates.class);
+        return inlined == null ? null : Arrays.asList(inlined.value());
+    }
+}
@@ -0,0 +1,149 @@
+package org.teatrove.tea.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TemplateRepositoryIndexTest {
+
+    private File mFile;
+
+    @Before
+    public void setup() throws Exception {
+        mFile = File.createTempFile("templates", ".idx");
+        mFile.delete();
+    }
+
+    @After
+    public void teardown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        TemplateRepositoryIndex index = new TemplateRepositoryIndex(mFile);
+        assertNull(index.read());
+        assertEquals(0, index.getRecordCount());
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        TemplateRepositoryIndex index = new TemplateRepositoryIndex(mFile);
+        index.rewrite(records("a", "b"));
+        index.append(records("c"));
+        index.append(records("d", "e"));
+        assertEquals(5, index.getRecordCount());
+
+        index = new TemplateRepositoryIndex(mFile);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"),
+                     strings(index.read()));
+        assertEquals(5, index.getRecordCount());
+    }
+
+    @Test
+    public void testAppendCreatesFile() throws Exception {
+        TemplateRepositoryIndex index = new TemplateRepositoryIndex(mFile);
+        assertNull(index.read());
+        index.append(records("a"));
+
+        assertEquals(Arrays.asList("a"), strings(index.read()));
+    }
+
+    @Test
+    public void testRewrite() throws Exception {
+        TemplateRepositoryIndex index = new TemplateRepositoryIndex(mFile);
+        index.rewrite(records("a", "b", "c"));
+        index.rewrite(records("d"));
+        assertEquals(1, index.getRecordCount());
+
+        assertEquals(Arrays.asList("d"), strings(index.read()));
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception {
+        TemplateRepositoryIndex index = new TemplateRepositoryIndex(mFile);
+        index.rewrite(records("a", "b"));
+        long length = mFile.length();
+        index.append(records("c"));
+
+        // corrupt the payload of the last record
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(length + 4);
+        raf.write('x');
+        raf.close();
+
+        index = new TemplateRepositoryIndex(mFile);
+        assertEquals(Arrays.asList("a", "b"), strings(index.read()));
+
+        // the corrupt record is overwritten by the next append
+        index.append(records("d"));
+        index = new TemplateRepositoryIndex(mFile);
+        assertEquals(Arrays.asList("a", "b", "d"), strings(index.read()));
+    }
+
+    @Test
+    public void testTruncatedRecord() throws Exception {
+        TemplateRepositoryIndex index = new TemplateRepositoryIndex(mFile);
+        index.rewrite(records("a", "b"));
+        index.append(records("ccc"));
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        index = new TemplateRepositoryIndex(mFile);
+        assertEquals(Arrays.asList("a", "b"), strings(index.read()));
+        assertEquals(2, index.getRecordCount());
+    }
+
+    @Test
+    public void testLastModified() throws Exception {
+        TemplateRepositoryIndex index = new TemplateRepositoryIndex(mFile);
+        index.rewrite(records("a"));
+        assertEquals(index.getLastModified(), mFile.lastModified(), 1000L);
+
+        mFile.setLastModified(index.getLastModified() - 10000L);
+        index.append(records("b"));
+        assertEquals(index.getLastModified(), mFile.lastModified(), 1000L);
+
+        long lastModified = index.getLastModified();
+        index = new TemplateRepositoryIndex(mFile);
+        index.read();
+        assertEquals(lastModified, index.getLastModified());
+    }
+
+    @Test
+    public void testBadHeader() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.writeBytes("lastModified = 2011-01-01\n");
+        raf.close();
+
+        TemplateRepositoryIndex index = new TemplateRepositoryIndex(mFile);
+        assertNull(index.read());
+    }
+
+    protected List<byte[]> records(String... values) throws Exception {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (String value : values) {
+            records.add(value.getBytes("UTF-8"));
+        }
+        return records;
+    }
+
+    protected List<String> strings(List<byte[]> records) throws Exception {
+        List<String> values = new ArrayList<String>();
+        for (byte[] record : records) {
+            values.add(new String(record, "UTF-8"));
+        }
+        return values;
+    }
+}
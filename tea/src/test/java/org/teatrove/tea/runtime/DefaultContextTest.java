@@ -1,11 +1,15 @@
 package org.teatrove.tea.runtime;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Date;
+import java.math.BigDecimal;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import org.junit.Before;
@@ -39,6 +43,83 @@ public class DefaultContextTest {
         dump("composite", new DumperComposite());
     }
 
+    @Test
+    public void testPrintNumbers() throws Exception {
+        final StringBuilder output = new StringBuilder();
+        DefaultContext context = new DefaultContext() {
+            @Override
+            public void print(Object obj) throws Exception {
+                output.append(toString(obj));
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len)
+                throws IOException {
+                output.append(cbuf, off, len);
+            }
+        };
+
+        printNumbers(context, output);
+
+        context.numberFormat("#,##0.00");
+        printNumbers(context, output);
+
+        context.numberFormat("#,##0.00");
+        context.numberFormat("0.#", "inf", "nan");
+        printNumbers(context, output);
+
+        context.numberFormat(null);
+        printNumbers(context, output);
+
+        context.setLocale(Locale.GERMANY);
+        context.numberFormat("#,##0.00");
+        assertEquals("1.234,50", context.toString(1234.5));
+        printNumbers(context, output);
+
+        context.setLocale(Locale.US);
+        context.numberFormat("#,##0.00");
+        assertEquals("1,234.50", context.toString(1234.5));
+        printNumbers(context, output);
+    }
+
+    protected void printNumbers(DefaultContext context, StringBuilder output)
+        throws Exception {
+
+        int[] ints = { 0, 7, 99, 100, -1, -100, 123456, Integer.MIN_VALUE };
+        for (int value : ints) {
+            output.setLength(0);
+            context.print(value);
+            assertEquals(context.toString(value), output.toString());
+
+            output.setLength(0);
+            context.print((long) value * 100000L);
+            assertEquals(context.toString((long) value * 100000L),
+                         output.toString());
+        }
+
+        double[] doubles = { 0.0, -0.5, 1234.5678, 1e-7, 1e21,
+                             Double.NaN, Double.POSITIVE_INFINITY };
+        for (double value : doubles) {
+            output.setLength(0);
+            context.print(value);
+            assertEquals(context.toString(value), output.toString());
+
+            output.setLength(0);
+            context.print((float) value);
+            assertEquals(context.toString((float) value), output.toString());
+        }
+
+        Number[] numbers = { Integer.valueOf(42), Long.valueOf(-4200000000L),
+                             Double.valueOf(3.25), Float.valueOf(2.5f),
+                             Short.valueOf((short) 12), new BigDecimal("1.5"),
+                             null };
+        for (Number value : numbers) {
+            output.setLength(0);
+            context.print(value);
+            assertEquals(context.toString(value), output.toString());
+        }
+    }
+
     protected void dump(String type, Object value) {
         dump(type, value, false, false);
         dump(type, value, false, true);
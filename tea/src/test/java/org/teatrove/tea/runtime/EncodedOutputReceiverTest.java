@@ -0,0 +1,201 @@
+package org.teatrove.tea.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+
+import org.junit.Test;
+import org.teatrove.tea.compiler.Compiler;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.tea.util.TestCompiler;
+import org.teatrove.trove.io.DefaultByteBuffer;
+import org.teatrove.trove.io.FastCharToByteBuffer;
+import org.teatrove.trove.util.ClassInjector;
+
+public class EncodedOutputReceiverTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.runtime.encoded";
+
+    private static final String SOURCE =
+        "<% template literals(String a) %>h\u00e9llo <% a %> " +
+        "w\u00f6rld<% a; 'h\u00e9llo '; a %> h\u00e9llo";
+
+    private static final String EXPECTED =
+        "h\u00e9llo x w\u00f6rldxh\u00e9llo x h\u00e9llo";
+
+    @Test
+    public void testEncodedLiterals() throws Exception {
+        TemplateLoader loader = compile("UTF-8");
+
+        EncodedContext context = new EncodedContext("UTF-8");
+        loader.getTemplate("literals").execute(context, new Object[] { "x" });
+
+        assertEquals(EXPECTED, context.getOutput());
+        assertEquals(3, context.getEncodedCount());
+        assertEquals(0, context.getFallbackCount());
+    }
+
+    @Test
+    public void testSharedLiteralFields() throws Exception {
+        TemplateLoader loader = compile("UTF-8");
+
+        int count = 0;
+        Class<?> clazz = loader.getTemplate("literals").getTemplateClass();
+        for (Field field : clazz.getDeclaredFields()) {
+            if (field.getType() == byte[].class) {
+                count++;
+            }
+        }
+
+        // the first literal is emitted twice but encoded only once, and the
+        // last literal is the return value, which is printed as usual
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void testEncodingMismatch() throws Exception {
+        TemplateLoader loader = compile("UTF-8");
+
+        EncodedContext context = new EncodedContext("ISO-8859-1");
+        loader.getTemplate("literals").execute(context, new Object[] { "x" });
+
+        assertEquals(EXPECTED, context.getOutput());
+        assertEquals(0, context.getEncodedCount());
+        assertEquals(3, context.getFallbackCount());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        TemplateLoader loader = compile(null);
+
+        EncodedContext context = new EncodedContext("UTF-8");
+        loader.getTemplate("literals").execute(context, new Object[] { "x" });
+
+        assertEquals(EXPECTED, context.getOutput());
+        assertEquals(0, context.getEncodedCount());
+        assertEquals(0, context.getFallbackCount());
+    }
+
+    @Test
+    public void testUncheckedContext() throws Exception {
+        TemplateLoader loader =
+            compile("UTF-8", TestCompiler.Context.class, SOURCE);
+
+        // the context type is not an EncodedOutputReceiver, so the context
+        // is checked when literals are printed
+        EncodedContext context = new EncodedContext("UTF-8");
+        loader.getTemplate("literals").execute(context, new Object[] { "x" });
+
+        assertEquals(EXPECTED, context.getOutput());
+        assertEquals(3, context.getEncodedCount());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        loader.getTemplate("literals").execute
+        (
+            new TestCompiler.Context(new PrintStream(bytes, true, "UTF-8")),
+            new Object[] { "x" }
+        );
+        assertEquals(EXPECTED, bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void testLowBytes() throws Exception {
+        String literal = "caf\u00e9 \u20ac5 \u4e2d";
+        TemplateLoader loader = compile
+        (
+            "ISO-8859-1", EncodedContext.class,
+            "<% template literals(String a) %>" + literal + "<% a %>"
+        );
+
+        EncodedContext context = new EncodedContext("ISO-8859-1");
+        loader.getTemplate("literals").execute(context, new Object[] { "" });
+        assertEquals(1, context.getEncodedCount());
+
+        // the same bytes as the runtime buffers convert the literal into,
+        // rather than '?' for chars that ISO-8859-1 cannot map
+        FastCharToByteBuffer buffer = new FastCharToByteBuffer
+            (new DefaultByteBuffer(), "ISO-8859-1");
+        buffer.append(literal);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        buffer.writeTo(expected);
+
+        assertEquals(expected.toString("ISO-8859-1"),
+                     context.getOutput());
+    }
+
+    @Test
+    public void testOutputEncoding() throws Exception {
+        Compiler compiler = new Compiler(new ClassInjector(), PKG, null);
+        compiler.setOutputEncoding("utf8");
+        assertEquals("UTF-8", compiler.getOutputEncoding());
+
+        try {
+            compiler.setOutputEncoding("no-such-encoding");
+            fail("expected unsupported encoding");
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().indexOf("no-such-encoding") >= 0);
+        }
+    }
+
+    protected TemplateLoader compile(String outputEncoding) throws Exception {
+        return compile(outputEncoding, EncodedContext.class, SOURCE);
+    }
+
+    protected TemplateLoader compile(String outputEncoding,
+                                     Class<?> contextType, String source)
+        throws Exception {
+        Compiler compiler = createCompiler(PKG, "literals", source);
+        compiler.setRuntimeContext(contextType);
+        compiler.setOutputEncoding(outputEncoding);
+        return compileAll(compiler);
+    }
+
+    public static class EncodedContext extends TestCompiler.Context
+        implements EncodedOutputReceiver {
+
+        private final ByteArrayOutputStream mBytes;
+        private final String mEncoding;
+        private int mEncodedCount;
+        private int mFallbackCount;
+
+        public EncodedContext(String encoding) throws Exception {
+            this(new ByteArrayOutputStream(), encoding);
+        }
+
+        private EncodedContext(ByteArrayOutputStream bytes, String encoding)
+            throws Exception {
+            super(new PrintStream(bytes, true, encoding));
+            mBytes = bytes;
+            mEncoding = encoding;
+        }
+
+        public void writeEncoded(String str, byte[] bytes, String encoding)
+            throws Exception {
+            if (mEncoding.equals(encoding)) {
+                mEncodedCount++;
+                mBytes.write(bytes);
+            }
+            else {
+                mFallbackCount++;
+                print(str);
+            }
+        }
+
+        public String getOutput() throws Exception {
+            return mBytes.toString(mEncoding);
+        }
+
+        public int getEncodedCount() {
+            return mEncodedCount;
+        }
+
+        public int getFallbackCount() {
+            return mFallbackCount;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.teatrove.tea.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.teatrove.tea.compiler.Compiler;
+import org.teatrove.tea.engine.ContextSource;
+import org.teatrove.tea.engine.TemplateSourceConfig;
+import org.teatrove.tea.engine.TemplateSourceImpl;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.tea.util.TestCompiler;
+import org.teatrove.trove.log.Log;
+import org.teatrove.trove.util.ClassInjector;
+import org.teatrove.trove.util.PropertyMap;
+
+public class TemplateBundleTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.runtime.bundled";
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void init() throws Exception {
+        dir = File.createTempFile("tea", "bundle");
+        dir.delete();
+        dir.mkdirs();
+        file = File.createTempFile("tea", ".teab");
+
+        // class files are written without setting up the shared repository
+        Compiler compiler = new Compiler(new ClassInjector(), PKG, null) {
+            public File getRootDestDir() {
+                return dir;
+            }
+        };
+        setupCompiler(compiler,
+            "a", "<% template a(String s) 'a:' call sub.b(s, 2) %>",
+            "sub.b", "<% template b(String s, int n) " +
+                     "foreach (i in 1..n) { s } %>",
+            "c", "<% template c(int a) a + 1 %>"
+        );
+        compileAll(compiler);
+
+        assertEquals(3, TemplateBundle.write(dir, PKG, file));
+    }
+
+    @After
+    public void cleanup() {
+        delete(dir);
+        file.delete();
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        TemplateBundle bundle = TemplateBundle.open(file);
+        assertEquals(PKG + '.', bundle.getPackagePrefix());
+        assertEquals(new HashSet<String>(Arrays.asList("a", "c", "sub.b")),
+                     bundle.getTemplateNames());
+
+        assertEquals("(Lorg/teatrove/tea/util/TestCompiler$Context;" +
+                     "Ljava/lang/String;)V", bundle.getSignature("a"));
+        assertEquals("(Lorg/teatrove/tea/util/TestCompiler$Context;I)I",
+                     bundle.getSignature("c"));
+        assertNull(bundle.getSignature("d"));
+
+        assertEquals(Arrays.asList("sub.b"),
+                     Arrays.asList(bundle.getDependencies("a")));
+        assertEquals(0, bundle.getDependencies("sub.b").length);
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        TemplateBundle bundle = TemplateBundle.open(file);
+
+        // the bundle is loaded without the class files it was built from
+        delete(dir);
+
+        TemplateLoader loader = new TemplateLoader
+            (bundle.createClassLoader(getClass().getClassLoader()), PKG);
+        assertEquals("a:xx", execute(loader, "a", "x"));
+        assertEquals("yyy", execute(loader, "sub.b", "y", 3));
+        assertEquals("6", execute(loader, "c", 5));
+    }
+
+    @Test
+    public void testLazyDefinition() throws Exception {
+        TemplateBundle bundle = TemplateBundle.open(file);
+        ClassLoader loader =
+            bundle.createClassLoader(getClass().getClassLoader());
+
+        Class<?> c = loader.loadClass(PKG + ".c");
+        assertEquals(loader, c.getClassLoader());
+        assertTrue(c == loader.loadClass(PKG + ".c"));
+
+        try {
+            loader.loadClass(PKG + ".d");
+            fail("expected ClassNotFoundException");
+        }
+        catch (ClassNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testContextMismatch() throws Exception {
+        assertEquals(3, getKnownTemplateCount(TestCompiler.Context.class));
+
+        // templates are compiled instead, and there are no sources
+        assertEquals(0, getKnownTemplateCount(OtherContext.class));
+    }
+
+    private int getKnownTemplateCount(final Class<?> contextType)
+        throws Exception {
+
+        final PropertyMap properties = new PropertyMap();
+        properties.put("bundle", file.getPath());
+        properties.put("path", "file:" + dir.getPath());
+
+        final Log log = new Log("bundle", null);
+        log.setEnabled(false);
+
+        TemplateSourceImpl source = new TemplateSourceImpl();
+        source.init(new TemplateSourceConfig() {
+            public ContextSource getContextSource() {
+                return new ContextSource() {
+                    public Class<?> getContextType() {
+                        return contextType;
+                    }
+
+                    public Object createContext(Object param) {
+                        return null;
+                    }
+                };
+            }
+
+            public String getPackagePrefix() {
+                return PKG;
+            }
+
+            public boolean isExceptionGuardianEnabled() {
+                return false;
+            }
+
+            public PropertyMap getProperties() {
+                return properties;
+            }
+
+            public Log getLog() {
+                return log;
+            }
+        });
+
+        source.compileTemplates(null, false);
+        return source.getKnownTemplateCount();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static class OtherContext extends TestCompiler.Context {
+        public OtherContext(PrintStream out) {
+            super(out);
+        }
+    }
+}
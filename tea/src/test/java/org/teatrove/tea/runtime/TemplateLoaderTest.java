@@ -0,0 +1,75 @@
+package org.teatrove.tea.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.teatrove.tea.templates.AbstractTemplateTest;
+import org.teatrove.tea.util.TestCompiler;
+import org.teatrove.trove.util.ClassInjector;
+
+public class TemplateLoaderTest extends AbstractTemplateTest {
+
+    private static final String PKG = "org.teatrove.tea.runtime.templates";
+
+    private TemplateLoader loader;
+
+    @Before
+    public void init() throws Exception {
+        loader = compileAll(createCompiler
+        (
+            PKG,
+            "simple", "<% template simple(String a, int b, Integer c) " +
+                      "a; ':'; b; ':'; c %>",
+            "returns", "<% template returns(int a) a + 1 %>",
+            "failure", "<% template failure(String a) a.length() %>"
+        ));
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        assertEquals("test:5:7", execute(loader, "simple", "test", 5, 7));
+        assertEquals("null:0:null", execute(loader, "simple", null, 0, null));
+    }
+
+    @Test
+    public void testExecuteReturn() throws Exception {
+        assertEquals("6", execute(loader, "returns", 5));
+    }
+
+    @Test
+    public void testExecuteException() throws Exception {
+        try {
+            execute(loader, "failure", (Object) null);
+            fail("expected null pointer exception");
+        }
+        catch (NullPointerException e) {
+            // expected, thrown directly rather than wrapped
+        }
+    }
+
+    @Test
+    public void testGeneratedInvoker() throws Exception {
+        TemplateLoader.Template template = loader.getTemplate("simple");
+        Method execute = template.getTemplateClass().getMethod
+        (
+            "execute", template.getContextType(), String.class,
+            int.class, Integer.class
+        );
+
+        ClassInjector injector = loader.getInvokerInjector();
+        TemplateInvoker invoker = TemplateInvoker.forMethod(execute, injector);
+        assertSame(injector, invoker.getClass().getClassLoader());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        Context context = new TestCompiler.Context(new PrintStream(output));
+        assertEquals(2, invoker.invoke(context, new Object[] { "x", 1, 2 }));
+        assertEquals("x:1:", output.toString());
+    }
+}
@@ -1,5 +1,6 @@
 package org.teatrove.tea.templates;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
@@ -18,6 +19,7 @@ import org.teatrove.tea.compiler.Compiler;
 import org.teatrove.tea.engine.ContextSource;
 import org.teatrove.tea.engine.MergedContextSource;
 import org.teatrove.tea.runtime.Context;
+import org.teatrove.tea.runtime.TemplateLoader;
 import org.teatrove.tea.util.FileCompilationProvider;
 import org.teatrove.tea.util.StringCompilationProvider;
 import org.teatrove.tea.util.TestCompiler;
@@ -219,6 +221,57 @@ public abstract class AbstractTemplateTest {
         }
     }
 
+    /**
+     * Creates a compiler of the given templates, given as alternating names
+     * and sources, that compiles into a new class injector.
+     */
+    public Compiler createCompiler(String pkg, String... templates) {
+        return setupCompiler(new Compiler(new ClassInjector(), pkg, null),
+                             templates);
+    }
+
+    /**
+     * Adds the given templates, given as alternating names and sources, to
+     * the given compiler, which uses the test context and reports errors to
+     * the registered listeners.
+     */
+    public Compiler setupCompiler(Compiler compiler, String... templates) {
+        compiler.setRuntimeContext(TestCompiler.Context.class);
+        compiler.addCompileListener(createCompileListener());
+
+        StringCompilationProvider provider = new StringCompilationProvider();
+        for (int i = 0; i < templates.length; i += 2) {
+            provider.setTemplateSource(templates[i], templates[i + 1]);
+        }
+        compiler.addCompilationProvider(provider);
+
+        return compiler;
+    }
+
+    /**
+     * Compiles all templates of the given compiler, which must compile
+     * without errors, and returns a loader of them.
+     */
+    public TemplateLoader compileAll(Compiler compiler) throws Exception {
+        compiler.compileAll();
+        assertEquals(0, compiler.getErrorCount());
+        return new TemplateLoader(compiler.getInjector(),
+                                  compiler.getRootPackage());
+    }
+
+    /**
+     * Executes a template of the given loader with the test context.
+     */
+    public String execute(TemplateLoader loader, String template,
+                          Object... params)
+        throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        Context ctx = new TestCompiler.Context(new PrintStream(output));
+        loader.getTemplate(template).execute(ctx, params);
+        return output.toString();
+    }
+
     public String executeFile(String template, Object... params)
         throws Exception {
 
@@ -21,6 +21,9 @@ import java.io.OutputStream;
 import java.io.Writer;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.zip.CRC32;
 import javax.servlet.ServletOutputStream;
@@ -30,6 +33,7 @@ import org.teatrove.teaservlet.io.CharToByteBuffer;
 import org.teatrove.teaservlet.io.InternedCharToByteBuffer;
 import org.teatrove.trove.io.ByteData;
 import org.teatrove.trove.io.ByteBuffer;
+import org.teatrove.trove.io.ChannelByteData;
 import org.teatrove.trove.io.DefaultByteBuffer;
 import org.teatrove.trove.io.ByteBufferOutputStream;
 import org.teatrove.trove.io.CharToByteBufferWriter;
@@ -43,6 +47,15 @@ import org.teatrove.tea.runtime.Substitution;
 /**
  * A HttpServletResponse wrapper that tracks whether a redirect or error will
  * be sent to the client.
+ * <p>
+ * Output is normally buffered until {@link #finish}, so that the response
+ * can be sent with a Content-Length. A streaming response instead writes
+ * its output to the client in chunks once the buffered output reaches a
+ * limit, with the length left to the servlet container.
+ * <p>
+ * When response compression is enabled, responses of allowed content types
+ * are sent with gzip encoding to clients that accept it. Compressed
+ * segments of detached data are copied into the compressed response as is.
  *
  * @author Reece Wilton, Brian S O'Neill
  */
@@ -78,7 +91,7 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
 
     protected final HttpServletResponse mResponse;
     protected final Log mLog;
-    protected final CharToByteBuffer mBuffer;
+    protected final FastCharToByteBuffer mBuffer;
 
     // Bit 0: When set, response redirect or error.
     // Bit 1: When set, response finished.
@@ -93,17 +106,77 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
 
     private int mCompressedSegments;
 
+    private StreamingBuffer mStreamingBuffer;
+    // Uncompressed count of bytes written to the client before finish.
+    private long mStreamedLength;
+    // CRC of the streamed bytes, when streaming with gzip encoding.
+    private CRC32 mStreamedCRC;
+
+    // When set, the whole response is deflated as it is written.
+    private Deflater mDeflater;
+    private DeflaterOutputStream mDeflaterOut;
+    private OutputStream mDeflaterSplicer;
+
+    // Set when a Content-Encoding or Vary header for it has been set.
+    private boolean mEncoded;
+    private boolean mVary;
+
     ApplicationResponseImpl(HttpServletResponse response, 
                             TeaServletEngineImpl engine)
         throws IOException
     {
-        this(response, engine, new DefaultByteBuffer());
+        this(response, engine, 0);
+    }
+
+    /**
+     * @param sizeHint expected count of bytes in the response, which
+     * presizes its buffers, or 0 if unknown
+     */
+    ApplicationResponseImpl(HttpServletResponse response, 
+                            TeaServletEngineImpl engine,
+                            int sizeHint)
+        throws IOException
+    {
+        this(response, engine, new DefaultByteBuffer(true, sizeHint),
+             sizeHint);
+    }
+
+    /**
+     * Creates a streaming response, which starts writing output to the
+     * client once the given threshold of bytes is buffered, and then every
+     * time another chunk of bytes is buffered.
+     */
+    ApplicationResponseImpl(HttpServletResponse response,
+                            TeaServletEngineImpl engine,
+                            int threshold, int chunkSize, int sizeHint)
+        throws IOException
+    {
+        this(response, engine,
+             new StreamingBuffer(threshold, chunkSize, sizeHint), sizeHint);
+    }
+
+    private ApplicationResponseImpl(HttpServletResponse response,
+                                    TeaServletEngineImpl engine,
+                                    StreamingBuffer sb, int sizeHint)
+        throws IOException
+    {
+        this(response, engine, (ByteBuffer)sb, sizeHint);
+        sb.setResponse(this);
+        mStreamingBuffer = sb;
     }
 
     ApplicationResponseImpl(HttpServletResponse response, 
                             TeaServletEngineImpl engine,
                             ByteBuffer bb)
         throws IOException
+    {
+        this(response, engine, bb, 0);
+    }
+
+    private ApplicationResponseImpl(HttpServletResponse response, 
+                                    TeaServletEngineImpl engine,
+                                    ByteBuffer bb, int sizeHint)
+        throws IOException
     {
         super(response);
         mResponse = response;
@@ -113,7 +186,7 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
         if (encoding == null) {
             encoding = "ISO-8859-1";
         }
-        mBuffer = new FastCharToByteBuffer(bb, encoding);
+        mBuffer = new FastCharToByteBuffer(bb, encoding, sizeHint);
     }
     
     public ServletOutputStream getOutputStream() {
@@ -159,6 +232,22 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
         }
     }
 
+    public void setHeader(String name, String value) {
+        checkEncodingHeader(name);
+        super.setHeader(name, value);
+    }
+
+    public void addHeader(String name, String value) {
+        checkEncodingHeader(name);
+        super.addHeader(name, value);
+    }
+
+    private void checkEncodingHeader(String name) {
+        if ("Content-Encoding".equalsIgnoreCase(name)) {
+            mEncoded = true;
+        }
+    }
+
     public void setBufferSize(int size) {
         // Ignore.
     }
@@ -169,26 +258,24 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
 
     /**
      * Flush the internal buffer to the output stream and clear the internal
-     * buffer to allow new data to be written.  If the stream was marked for
-     * compression, then an I/O exception is thrown as compressed streams may
-     * not be sent down early to the connection.
+     * buffer to allow new data to be written. If compressed segments were
+     * added before the first flush, the rest of the response is sent with
+     * gzip encoding. Compressed segments added after it are sent
+     * uncompressed.
      */
     public void flushBuffer() throws IOException {
-        if (mCompressedSegments != 0) {
-            throw new IOException("cannot flush a compressed buffer");
-        }
-        
-        // marked the stream as having been previously flushed to avoid
-        // attempting to compress the stream after the fact
-        mFlushed = true;
-        
-        // write the internal buffer to the output stream and then clear any
-        // data in the internal buffer to avoid duplicated data.
-        ByteBuffer bytes = mBuffer;
-        OutputStream out = super.getOutputStream();
-        bytes.writeTo(out);
-        bytes.clear();
-        
+        mBuffer.drain();
+        if (mStreamingBuffer != null) {
+            mStreamingBuffer.stream();
+        }
+        else {
+            // write the internal buffer to the output stream and then clear
+            // any data in the internal buffer to avoid duplicated data.
+            ByteBuffer bytes = mBuffer;
+            writeChunk(bytes);
+            bytes.clear();
+        }
+
         super.flushBuffer();
     }
 
@@ -197,7 +284,23 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
     }
 
     public boolean isCommitted() {
-        return false;
+        return mFlushed;
+    }
+
+    /**
+     * Returns true if this response writes its output to the client in
+     * chunks, before it is finished.
+     */
+    public boolean isStreaming() {
+        return mStreamingBuffer != null;
+    }
+
+    /**
+     * Returns the total count of bytes written to this response so far,
+     * including bytes already written to the client.
+     */
+    public long getByteCount() throws IOException {
+        return mStreamedLength + mBuffer.getByteCount();
     }
 
     public void reset() {
@@ -212,17 +315,42 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
 
     public void sendError(int statusCode, String msg) throws IOException {
         mState |= 1;
-        super.sendError(statusCode, msg);
+        if (mFlushed) {
+            truncate("error " + statusCode);
+        }
+        else {
+            super.sendError(statusCode, msg);
+        }
     }
 
     public void sendError(int statusCode) throws IOException {
         mState |= 1;
-        super.sendError(statusCode);
+        if (mFlushed) {
+            truncate("error " + statusCode);
+        }
+        else {
+            super.sendError(statusCode);
+        }
     }
 
     public void sendRedirect(String location) throws IOException {
         mState |= 1;
-        super.sendRedirect(location);
+        if (mFlushed) {
+            truncate("redirect to " + location);
+        }
+        else {
+            super.sendRedirect(location);
+        }
+    }
+
+    // Called when an error or redirect can no longer be sent because part
+    // of the response was already written. The rest of the output is
+    // discarded, and a gzip encoded response is left without its trailer,
+    // so that clients can tell the response is incomplete.
+    private void truncate(String reason) {
+        mLog.warn("Cannot send " + reason + ", response has already been " +
+                  "partially written to the client and is truncated");
+        releaseDeflater();
     }
 
     public boolean isRedirectOrError() {
@@ -298,6 +426,11 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
 
     public void finish() throws IOException {
         if (mState != 0) {
+            if ((mState & 2) == 0) {
+                // Output of a redirect or error is discarded.
+                mState |= 2;
+                release();
+            }
             return;
         }
 
@@ -308,17 +441,53 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
         long length = bytes.getByteCount();
 
         try {
+            if (mFlushed) {
+                // Part of the response was already written without a
+                // length, so the container ends it with chunked encoding.
+                writeChunk(bytes);
+                if (mDeflaterOut != null) {
+                    mDeflaterOut.finish();
+                }
+                else if (mStreamedCRC != null) {
+                    out.write(FINAL_BLANK_HEADER);
+                }
+                if (mStreamedCRC != null) {
+                    writeInt(out, (int)mStreamedCRC.getValue());
+                    writeInt(out, (int)mStreamedLength);
+                }
+                return;
+            }
+
+            if (length <= Integer.MAX_VALUE && isDeflatable(length)) {
+                // Deflated into a buffer first so the response keeps its
+                // length. Markup usually deflates to under a quarter.
+                DefaultByteBuffer compressed =
+                    new DefaultByteBuffer(true, (int)(length >> 2));
+                OutputStream cout = new ByteBufferOutputStream(compressed);
+                startDeflater(cout);
+                cout.write(GZIP_HEADER);
+                bytes.writeTo(mDeflaterSplicer);
+                mDeflaterOut.finish();
+                writeInt(cout, computeCRC(bytes));
+                writeInt(cout, (int)length);
+
+                super.setContentLength((int)compressed.getByteCount());
+                writeTo(compressed, out);
+                compressed.release();
+                return;
+            }
+
             if (mCompressedSegments == 0 || length > 0xffffffffL) {
                 if (!mFlushed && length <= Integer.MAX_VALUE) {
                     super.setContentLength((int)length);
                 }
-                bytes.writeTo(out);
+                writeTo(bytes, out);
                 return;
             }
             
             // Write out response using GZIP compressed encoding.
 
-            setHeader("Content-Encoding", "gzip");
+            setGzipHeaders();
             
             LengthComputer lc =
                 new LengthComputer(mCompressedSegments * 2 + 1);
@@ -352,6 +521,17 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
             catch (IOException e) {
                 mLog.warn(e);
             }
+            release();
+        }
+    }
+
+    // Returns the deflater and buffers to their pools once the response is
+    // finished.
+    private void release() {
+        releaseDeflater();
+        mBuffer.release();
+        if (mStreamingBuffer != null) {
+            mStreamingBuffer.release();
         }
     }
 
@@ -370,9 +550,127 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
         mBuffer.appendSurrogate(new CompressedData(compressed, original));
     }
 
+    // Writes buffered output to the client before the response is finished.
+    // If the response is compressible, it is deflated from the first write
+    // on, regardless of the minimum size, since more output may follow.
+    // Otherwise, if compressed segments were buffered before the first
+    // write, the response is sent with gzip encoding, as a series of stored
+    // and pre-compressed deflate blocks.
+    void writeChunk(ByteData bytes) throws IOException {
+        if ((mState & 1) != 0) {
+            // Output is discarded after a redirect or error.
+            return;
+        }
+
+        OutputStream out = super.getOutputStream();
+
+        if (!mFlushed) {
+            // marked the stream as having been previously flushed to avoid
+            // attempting to compress the stream after the fact
+            mFlushed = true;
+            if (isDeflatable(Long.MAX_VALUE)) {
+                startDeflater(out);
+            }
+            if (mDeflaterOut != null || mCompressedSegments != 0) {
+                setGzipHeaders();
+                mStreamedCRC = new CRC32();
+                out.write(GZIP_HEADER);
+            }
+        }
+
+        mStreamedLength += bytes.getByteCount();
+
+        if (mStreamedCRC == null) {
+            writeTo(bytes, out);
+        }
+        else if (mDeflaterOut != null) {
+            bytes.writeTo(mDeflaterSplicer);
+            mDeflaterOut.flush();
+            updateCRC(mStreamedCRC, bytes);
+        }
+        else {
+            LengthComputer lc =
+                new LengthComputer(mCompressedSegments * 2 + 1);
+            bytes.writeTo(lc);
+            lc.nextSegment(false);
+            bytes.writeTo(new FinalOut(out, lc.mSegments));
+            updateCRC(mStreamedCRC, bytes);
+        }
+
+        out.flush();
+    }
+
+    // Writes the bytes to the container's stream. When the stream also
+    // implements WritableByteChannel, the buffered chunks are handed to it
+    // in gathering writes without copying, and files are transferred by
+    // their channel. The servlet API doesn't require this of a stream, so
+    // any other stream is written to as a plain OutputStream.
+    private static void writeTo(ByteData bytes, OutputStream out)
+        throws IOException
+    {
+        if (out instanceof WritableByteChannel &&
+            bytes instanceof ChannelByteData) {
+            ((ChannelByteData)bytes).writeTo((WritableByteChannel)out);
+        }
+        else {
+            bytes.writeTo(out);
+        }
+    }
+
+    // Returns true if the whole response should be deflated: the content
+    // type is compressible, the client accepts gzip encoding, and the
+    // response is at least the minimum size. Sets the Vary header for any
+    // compressible content type, since its encoding then depends on the
+    // Accept-Encoding header of the request.
+    private boolean isDeflatable(long length) {
+        TeaServletEngineImpl engine = mTeaServletEngine;
+        if (mEncoded || !engine.isCompressible(getContentType())) {
+            return false;
+        }
+
+        setVaryHeader();
+
+        return length >= engine.getCompressionMinimum() && mRequest != null &&
+            mRequest.isCompressionAccepted();
+    }
+
+    // Starts deflating the whole response into the given stream.
+    private void startDeflater(OutputStream out) {
+        setGzipHeaders();
+        mDeflater = DeflaterPool.get
+            (mTeaServletEngine.getCompressionLevel(), true);
+        mDeflaterOut = new DeflaterOutputStream(out, mDeflater, 4096);
+        mDeflaterSplicer = new Splicer(mDeflaterOut, out);
+    }
+
+    private void releaseDeflater() {
+        if (mDeflater != null) {
+            DeflaterPool.put(mDeflater);
+            mDeflater = null;
+        }
+    }
+
+    private void setGzipHeaders() {
+        setHeader("Content-Encoding", "gzip");
+        setVaryHeader();
+    }
+
+    private void setVaryHeader() {
+        if (!mVary) {
+            mVary = true;
+            addHeader("Vary", "Accept-Encoding");
+        }
+    }
+
     private int computeCRC(ByteData bytes) throws IOException {
-        final CRC32 crc = new CRC32();
+        CRC32 crc = new CRC32();
+        updateCRC(crc, bytes);
+        return (int)crc.getValue();
+    }
 
+    private static void updateCRC(final CRC32 crc, ByteData bytes)
+        throws IOException
+    {
         OutputStream out = new OutputStream() {
             public void write(int b) {
                 crc.update(b);
@@ -388,7 +686,127 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
         };
 
         bytes.writeTo(out);
-        return (int)crc.getValue();
+    }
+
+    /**
+     * Buffers the output of a streaming response. Once the buffered bytes
+     * reach the limit, they are written to the client and a new buffer
+     * takes their place. Capture buffers are moved to the new buffer, so
+     * captured output is unaffected.
+     */
+    private static class StreamingBuffer
+        implements ByteBuffer, ChannelByteData
+    {
+        private final int mChunkSize;
+        private int mLimit;
+        private ApplicationResponseImpl mResponse;
+        private DefaultByteBuffer mBuffer;
+        private List<ByteBuffer> mCaptureBuffers;
+
+        StreamingBuffer(int threshold, int chunkSize, int sizeHint) {
+            mLimit = threshold;
+            mChunkSize = chunkSize;
+            mBuffer = new DefaultByteBuffer
+                (true, sizeHint > 0 ? Math.min(sizeHint, threshold) : 0);
+        }
+
+        void setResponse(ApplicationResponseImpl response) {
+            mResponse = response;
+        }
+
+        // Writes the buffered bytes to the client and starts a new buffer.
+        void stream() throws IOException {
+            DefaultByteBuffer chunk = mBuffer;
+            DefaultByteBuffer next = new DefaultByteBuffer(true, mChunkSize);
+            if (mCaptureBuffers != null) {
+                int size = mCaptureBuffers.size();
+                for (int i=0; i<size; i++) {
+                    ByteBuffer capture = mCaptureBuffers.get(i);
+                    chunk.removeCaptureBuffer(capture);
+                    next.addCaptureBuffer(capture);
+                }
+            }
+
+            mBuffer = next;
+            mLimit = mChunkSize;
+
+            try {
+                mResponse.writeChunk(chunk);
+            }
+            finally {
+                chunk.reset();
+                chunk.release();
+            }
+        }
+
+        void release() {
+            mBuffer.release();
+        }
+
+        public long getByteCount() throws IOException {
+            return mBuffer.getByteCount();
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            mBuffer.writeTo(out);
+        }
+
+        public void writeTo(WritableByteChannel channel) throws IOException {
+            mBuffer.writeTo(channel);
+        }
+
+        public void reset() throws IOException {
+            mBuffer.reset();
+        }
+
+        public void clear() throws IOException {
+            mBuffer.clear();
+        }
+
+        public long getBaseByteCount() throws IOException {
+            return mBuffer.getBaseByteCount();
+        }
+
+        public void append(byte b) throws IOException {
+            mBuffer.append(b);
+            if (mBuffer.getBaseByteCount() >= mLimit) {
+                stream();
+            }
+        }
+
+        public void append(byte[] bytes) throws IOException {
+            append(bytes, 0, bytes.length);
+        }
+
+        public void append(byte[] bytes, int offset, int length)
+            throws IOException
+        {
+            mBuffer.append(bytes, offset, length);
+            if (mBuffer.getBaseByteCount() >= mLimit) {
+                stream();
+            }
+        }
+
+        public void appendSurrogate(ByteData s) throws IOException {
+            mBuffer.appendSurrogate(s);
+        }
+
+        public void addCaptureBuffer(ByteBuffer buffer) throws IOException {
+            if (mCaptureBuffers == null) {
+                mCaptureBuffers = new ArrayList<ByteBuffer>();
+            }
+            mCaptureBuffers.add(buffer);
+            mBuffer.addCaptureBuffer(buffer);
+        }
+
+        public void removeCaptureBuffer(ByteBuffer buffer)
+            throws IOException
+        {
+            if (mCaptureBuffers != null) {
+                mCaptureBuffers.remove(buffer);
+            }
+            mBuffer.removeCaptureBuffer(buffer);
+        }
     }
 
     private static class CompressedData implements ByteData {
@@ -421,7 +839,7 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
     }
 
     private interface Segmented {
-        void nextSegment(boolean preCompressed);
+        void nextSegment(boolean preCompressed) throws IOException;
     }
 
     // Output is discarded, but is used to compute final content length of
@@ -476,6 +894,49 @@ class ApplicationResponseImpl extends HttpServletResponseWrapper
         }
     }
 
+    // Deflates uncompressed data and copies pre-compressed data as is. A
+    // full flush before each pre-compressed segment aligns the output to a
+    // byte boundary, and keeps the deflater from referring back past it.
+    private static class Splicer extends OutputStream implements Segmented {
+        private final DeflaterOutputStream mDeflaterOut;
+        private final OutputStream mFinOut;
+        private boolean mPreCompressed;
+
+        Splicer(DeflaterOutputStream dout, OutputStream out) {
+            mDeflaterOut = dout;
+            mFinOut = out;
+        }
+
+        public void write(int b) throws IOException {
+            if (mPreCompressed) {
+                mFinOut.write(b);
+            }
+            else {
+                mDeflaterOut.write(b);
+            }
+        }
+
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mPreCompressed) {
+                mFinOut.write(b, off, len);
+            }
+            else if (len > 0) {
+                mDeflaterOut.write(b, off, len);
+            }
+        }
+
+        public void nextSegment(boolean preCompressed) throws IOException {
+            if (preCompressed) {
+                mDeflaterOut.fullFlush();
+            }
+            mPreCompressed = preCompressed;
+        }
+    }
+
     // Writes uncompressed and pre-compressed data joined together.
     // Uncompressed data is formed into blocks.
     private static class FinalOut extends OutputStream implements Segmented {
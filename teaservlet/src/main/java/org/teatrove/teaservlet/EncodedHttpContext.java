@@ -0,0 +1,28 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.teaservlet;
+
+import org.teatrove.tea.runtime.EncodedOutputReceiver;
+
+/**
+ * The context type that the TeaServlet merges into template contexts. It
+ * adds the {@link EncodedOutputReceiver} methods to {@link HttpContext}, so
+ * that templates write pre-encoded literal text directly into the response
+ * buffer. Other HttpContext implementations need not implement it.
+ */
+public interface EncodedHttpContext extends HttpContext, EncodedOutputReceiver {
+}
@@ -39,6 +39,12 @@ class FastCharToByteBuffer extends org.teatrove.trove.io.FastCharToByteBuffer
         super(buffer, enc);
     }
 
+    public FastCharToByteBuffer(org.teatrove.trove.io.ByteBuffer buffer, String enc,
+                                int sizeHint)
+	{
+        super(buffer, enc, sizeHint);
+    }
+
     public void appendSurrogate(org.teatrove.teaservlet.io.ByteData s)
 		throws IOException
 	{
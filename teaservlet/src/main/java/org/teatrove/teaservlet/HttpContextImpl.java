@@ -27,6 +27,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.util.AbstractList;
 import java.util.Date;
 import java.util.Enumeration;
@@ -57,7 +58,7 @@ import org.teatrove.trove.net.HttpClient;
  * @author Reece Wilton, Brian S O'Neill
  */
 class HttpContextImpl extends org.teatrove.tea.runtime.DefaultContext
-implements HttpContext {
+implements EncodedHttpContext {
 
     private static final int FILE_SPILLOVER = 65000;
 
@@ -80,6 +81,12 @@ implements HttpContext {
 
     private boolean mOutputOverridePermitted;
 
+    // Result of the last comparison of a buffer encoding against the
+    // encoding of pre-encoded literal text.
+    private String mLastBufferEncoding;
+    private String mLastLiteralEncoding;
+    private boolean mLiteralEncodingMatches;
+
     // Default is 10,000 milliseconds.
     private long mURLTimeout = 10000;
     
@@ -169,6 +176,61 @@ implements HttpContext {
         }
     }
 
+    /**
+     * This method is called when the template outputs literal text that
+     * was encoded when the template was compiled. The bytes are appended
+     * directly if the buffer uses the same encoding, otherwise the text is
+     * printed as usual.
+     *
+     * @hidden
+     */
+    public void writeEncoded(String str, byte[] bytes, String encoding)
+        throws Exception
+    {
+        if ((mOutputOverridePermitted || mBuffer == null)
+            && mOutputReceiver != null) {
+            mOutputReceiver.print(str);
+        }
+        else if (mBuffer != null) {
+            if (isBufferEncoding(encoding)) {
+                mBuffer.append(bytes);
+            }
+            else {
+                mBuffer.append(toString(str));
+            }
+        }
+    }
+
+    private boolean isBufferEncoding(String encoding) throws IOException {
+        String bufferEncoding = mBuffer.getEncoding();
+        if (bufferEncoding != mLastBufferEncoding ||
+            encoding != mLastLiteralEncoding) {
+
+            boolean matches;
+            if (bufferEncoding == null) {
+                matches = false;
+            }
+            else if (bufferEncoding.equals(encoding)) {
+                matches = true;
+            }
+            else {
+                // Buffers may report historical names such as "ISO8859_1".
+                try {
+                    matches = Charset.forName(bufferEncoding)
+                        .equals(Charset.forName(encoding));
+                }
+                catch (IllegalArgumentException e) {
+                    matches = false;
+                }
+            }
+
+            mLastBufferEncoding = bufferEncoding;
+            mLastLiteralEncoding = encoding;
+            mLiteralEncodingMatches = matches;
+        }
+        return mLiteralEncodingMatches;
+    }
+
     public void overrideOutput(boolean overridePermitted) {
         mOutputOverridePermitted = overridePermitted;
     }
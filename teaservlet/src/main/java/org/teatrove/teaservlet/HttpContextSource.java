@@ -41,7 +41,7 @@ public class HttpContextSource implements DynamicContextSource {
     }
 
     public Class getContextType() {
-        return HttpContext.class;
+        return EncodedHttpContext.class;
     }
 
     public Object createContext(Class expected, Object obj) 
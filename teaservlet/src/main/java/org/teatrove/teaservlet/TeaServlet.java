@@ -86,9 +86,29 @@ import org.teatrove.trove.util.resources.ResourceFactory;
  * <li>template.classes - directory to save compiled templates
  * <li>template.default - the default name for templates
  * <li>template.file.encoding - character encoding of template source files
+ * <li>template.compile.threads - number of threads used to compile templates (default 1)
+ * <li>template.inline.threshold - maximum size of templates inlined into their callers (default 0, which disables inlining)
+ * <li>template.assume.pure.lookups - when true, repeated property lookups are evaluated once even if their methods are not annotated {@link org.teatrove.tea.Pure} (default false)
+ * <li>template.classfile.version - major class file version of compiled templates, 51 or later adds stack map frames (default 50)
+ * <li>template.compile.cache - directory in which parse trees and class files of compiled templates are cached, so that unchanged templates are not recompiled when the application context changes (default none)
+ * <li>template.bundle - template bundle file built by {@link org.teatrove.tea.runtime.TemplateBundle}, whose precompiled templates are served without compiling any templates (default none)
+ * <li>template.output.encoding - character encoding that literal template text is pre-encoded in (default ISO-8859-1, empty to disable)
  * <li>template.exception.guardian - when true, runtime exceptions during template execution don't abort page output
+ * <li>template.streaming.templates - comma separated names of templates whose output is written to the client in chunks as it is produced, instead of being buffered until the template finishes, names ending with '*' match any template starting with the name
+ * <li>template.streaming.threshold - count of bytes of buffered output after which the output of any template is streamed in chunks (default 0, which disables it)
+ * <li>template.streaming.chunk - count of bytes of output buffered between writes when streaming (default 16384)
+ * <li>compression.enabled - when true, responses are sent with gzip encoding to clients that accept it, requires the native library of {@link org.teatrove.trove.util.Deflater} (default false)
+ * <li>compression.level - deflate compression level from 1 to 9 (default 6)
+ * <li>compression.minimum - count of bytes below which responses are not compressed, unless they are streamed (default 1024)
+ * <li>compression.types - comma separated content types of responses that are compressed, types ending with '*' match any type starting with the type (default text/html, text/plain, text/css, text/xml, text/javascript, application/javascript, application/json, application/xml)
  * <li>autocompile - when true, will compile the template when it is requested if the template has been updated (just like JSP!)
  * <li>autocompile.recurse - when true (default), will compile any sub-template that has changed regardless of if the requested template has changed.  Only meaningful if autocompile=true
+ * <li>warmup.enabled - when true, the most requested templates are executed with recently recorded parameters before the servlet reports it is running, and before reloaded templates are used (default false)
+ * <li>warmup.templates - number of the most requested templates to warm up, using the parameters sampled when stats.parameterSamples is set (default 20)
+ * <li>warmup.iterations - maximum number of times each template is executed while warming up (default 10000)
+ * <li>warmup.timeout - maximum milliseconds spent warming up (default 60000)
+ * <li>warmup.paths - comma separated request paths, with optional query strings, that are always warmed up
+ * <li>stats.parameterSamples - number of recent parameter sets kept as strings for each template to warm up with, which may hold personal data from requests (default 0, none are kept)
  * <li>separator.query - override the query separator of '?'
  * <li>separator.parameter - override the parameter separator of '&'
  * <li>separator.value - override the parameter separator of '='
@@ -155,6 +175,7 @@ public class TeaServlet extends HttpServlet {
     private TeaServletStatusListener mPluginListener;
     private TeaServletStatusListener mApplicationListener;
     private TeaServletStatusListener mTemplateListener;
+    private TeaServletStatusListener mWarmupListener;
     
     private Future<Boolean> mInitializer;
     
@@ -293,6 +314,15 @@ public class TeaServlet extends HttpServlet {
             }
             
             mStartupFile = mProperties.getString("startup.file");
+
+            // exercise the templates before reporting that we are running
+            if (mWarmupListener != null) {
+                TemplateWarmup warmup = new TemplateWarmup
+                    (TeaServlet.this, mProperties.subMap("warmup"), mLog);
+                warmup.warmup(engine, engine.getTemplateSource(),
+                              mWarmupListener);
+                engine.setTemplateWarmup(warmup);
+            }
                     
             config.getServletContext().log("TeaServlet complete...");
         }
@@ -400,6 +430,12 @@ public class TeaServlet extends HttpServlet {
                 writer.print("{");
                     printStatus(writer, mTemplateListener);
                 writer.print("}");
+
+                if (mWarmupListener != null) {
+                    writer.print(",{");
+                        printStatus(writer, mWarmupListener);
+                    writer.print("}");
+                }
             
             writer.print("]");
         writer.print("}");
@@ -665,6 +701,9 @@ public class TeaServlet extends HttpServlet {
         mPluginListener = new TeaServletStatusListener(2, "plugins");
         mApplicationListener = new TeaServletStatusListener(3, "applications");
         mTemplateListener = new TeaServletStatusListener(4, "templates");
+        if (mProperties.getBoolean("warmup.enabled", false)) {
+            mWarmupListener = new TeaServletStatusListener(5, "warmup");
+        }
     }
     
     private void discoverProperties() throws ServletException {
@@ -997,50 +1036,7 @@ public class TeaServlet extends HttpServlet {
 	            }
 
 	            // Fill in the parameters to pass to the template.
-	            Class<?>[] paramTypes = template.getParameterTypes();
-	            if (paramTypes.length == 0) {
-	                params = NO_PARAMS;
-	            }
-	            else {
-	                params = new Object[paramTypes.length];
-	                String[] paramNames = template.getParameterNames();
-	                for (int i=0; i<paramNames.length; i++) {
-	                    String paramName = paramNames[i];
-	                    if (paramName == null) {
-	                        continue;
-	                    }
-	                
-	                    Class<?> paramType = paramTypes[i];
-	                
-	                    if (!paramType.isArray()) {
-	                        String value = appRequest.getParameter(paramName);
-	                        if (value == null || paramType == String.class) {
-	                            params[i] = value;
-	                        }
-	                        else {
-	                            params[i] = convertParameter(value, paramType);
-	                        }
-	                    }
-	                    else {
-	                        String[] values =
-	                            appRequest.getParameterValues(paramName);
-	                        if (values == null || paramType == String[].class) {
-	                            params[i] = values;
-	                        }
-	                        else {
-	                            paramType = paramType.getComponentType();
-	                            Object converted =
-	                                Array.newInstance(paramType, values.length);
-	                            params[i] = converted;
-	                            for (int j=0; j<values.length; j++) {
-	                                Array.set
-	                                    (converted, j,
-	                                     convertParameter(values[j], paramType));
-	                            }
-	                        }
-	                    }
-	                }
-	            }
+	            params = createParameters(appRequest, template);
 	
 	            startTime = System.currentTimeMillis();
 	            try {
@@ -1142,7 +1138,14 @@ public class TeaServlet extends HttpServlet {
 	            }
 	          
 	        }
-	        contentLength = appResponse.getResponseBuffer().getByteCount();
+	        if (appResponse instanceof ApplicationResponseImpl) {
+	            // includes output already streamed to the client
+	            contentLength =
+	                ((ApplicationResponseImpl)appResponse).getByteCount();
+	        }
+	        else {
+	            contentLength = appResponse.getResponseBuffer().getByteCount();
+	        }
 	        appResponse.finish();
 	        if (templateStats != null) {
     	        templateStats.decrementServicing();
@@ -1156,6 +1159,59 @@ public class TeaServlet extends HttpServlet {
 		return true;
     }
 
+    /**
+     * Converts the parameters of the given request to the parameters of the
+     * given template.
+     */
+    Object[] createParameters(ApplicationRequest appRequest,
+                              Template template) {
+        Class<?>[] paramTypes = template.getParameterTypes();
+        if (paramTypes.length == 0) {
+            return NO_PARAMS;
+        }
+
+        Object[] params = new Object[paramTypes.length];
+        String[] paramNames = template.getParameterNames();
+        for (int i=0; i<paramNames.length; i++) {
+            String paramName = paramNames[i];
+            if (paramName == null) {
+                continue;
+            }
+
+            Class<?> paramType = paramTypes[i];
+
+            if (!paramType.isArray()) {
+                String value = appRequest.getParameter(paramName);
+                if (value == null || paramType == String.class) {
+                    params[i] = value;
+                }
+                else {
+                    params[i] = convertParameter(value, paramType);
+                }
+            }
+            else {
+                String[] values =
+                    appRequest.getParameterValues(paramName);
+                if (values == null || paramType == String[].class) {
+                    params[i] = values;
+                }
+                else {
+                    paramType = paramType.getComponentType();
+                    Object converted =
+                        Array.newInstance(paramType, values.length);
+                    params[i] = converted;
+                    for (int j=0; j<values.length; j++) {
+                        Array.set
+                            (converted, j,
+                             convertParameter(values[j], paramType));
+                    }
+                }
+            }
+        }
+
+        return params;
+    }
+
 
     private void logVersionInfo(Class<?> clazz, String title, Log log) {
         Package pack = clazz.getPackage();
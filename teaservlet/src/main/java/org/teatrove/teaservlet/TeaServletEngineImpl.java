@@ -18,11 +18,15 @@ package org.teatrove.teaservlet;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -38,8 +42,12 @@ import org.teatrove.tea.engine.TemplateSource;
 import org.teatrove.teaservlet.assets.AssetEngine;
 import org.teatrove.teaservlet.management.HttpContextManagement;
 import org.teatrove.teaservlet.management.HttpContextManagementMBean;
+import org.teatrove.teaservlet.stats.TeaServletRequestStats;
 import org.teatrove.trove.log.Log;
 import org.teatrove.trove.log.LogEvent;
+import org.teatrove.trove.util.ClassLoaderCache;
+import org.teatrove.trove.util.Deflater;
+import org.teatrove.trove.util.DeflaterPool;
 import org.teatrove.trove.util.PropertyMap;
 import org.teatrove.trove.util.StatusEvent;
 import org.teatrove.trove.util.StatusListener;
@@ -55,6 +63,10 @@ public class TeaServletEngineImpl implements TeaServletEngine {
 
     private static final boolean DEBUG = false;
 
+    // Set once the native library of the deflater failed to load, so that
+    // it is reported only once however often engines are started.
+    private static volatile boolean cDeflaterUnavailable;
+
     // fields needed for implementing the TeaServletEngine interface
     private Log mLog;
     private PropertyMap mProperties;
@@ -67,10 +79,25 @@ public class TeaServletEngineImpl implements TeaServletEngine {
     private List mLogEvents;
     private boolean mProfilingEnabled;
 
+    // Templates whose responses are always streamed, and name prefixes of
+    // templates that are.
+    private Set<String> mStreamingTemplates;
+    private List<String> mStreamingPrefixes;
+    private int mStreamingThreshold;
+    private int mStreamingChunkSize;
+
+    // Content types of responses that are compressed, and prefixes of
+    // content types that are, or null if responses are not compressed.
+    private Set<String> mCompressionTypes;
+    private List<String> mCompressionPrefixes;
+    private int mCompressionLevel;
+    private int mCompressionMinimum;
+
     private PluginContext mPluginContext;
     
     private StatusListener mTemplateListener;
     private StatusListener mApplicationListener;
+    private TemplateWarmup mTemplateWarmup;
 
     private boolean mInitialized;
     private Exception mInitializationException;
@@ -128,6 +155,8 @@ public class TeaServletEngineImpl implements TeaServletEngine {
             setPluginContext(plug);
             setAssetEngine(servletContext, properties);
             setProfilingEnabled(properties);
+            setStreaming(properties);
+            setCompression(properties);
             mApplicationDepot = new ApplicationDepot(this);
             
             // Initialize the HttpContext JMX angent
@@ -224,6 +253,156 @@ public class TeaServletEngineImpl implements TeaServletEngine {
         mProfilingEnabled = properties.getBoolean("profiling.enabled", true);
     }
     
+    private void setStreaming(PropertyMap properties) {
+        mStreamingTemplates = new HashSet<String>();
+        mStreamingPrefixes = new ArrayList<String>();
+
+        String templates =
+            properties.getString("template.streaming.templates");
+        if (templates != null) {
+            StringTokenizer st = new StringTokenizer(templates, ", ");
+            while (st.hasMoreTokens()) {
+                String name = st.nextToken();
+                if (name.endsWith("*")) {
+                    mStreamingPrefixes.add
+                        (name.substring(0, name.length() - 1));
+                }
+                else {
+                    mStreamingTemplates.add(name);
+                }
+            }
+        }
+
+        mStreamingThreshold =
+            properties.getInt("template.streaming.threshold", 0);
+        mStreamingChunkSize =
+            properties.getInt("template.streaming.chunk", 16384);
+    }
+
+    /**
+     * Returns the expected count of bytes in the response of the given
+     * template, from the average of its recent responses, or 0 if unknown.
+     * Responses are only averaged when the TeaServlet instrumentation is
+     * enabled.
+     */
+    private int getSizeHint(Template template) {
+        if (template == null) {
+            return 0;
+        }
+        long estimate = TeaServletRequestStats.getInstance()
+            .getContentLengthEstimate(template.getName());
+        return (int)Math.min(estimate, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the count of bytes buffered before the response of the given
+     * template starts streaming, or 0 if it is buffered until finished.
+     */
+    private int getStreamingThreshold(Template template) {
+        if (template != null) {
+            String name = template.getName();
+            if (mStreamingTemplates.contains(name)) {
+                return mStreamingChunkSize;
+            }
+            int size = mStreamingPrefixes.size();
+            for (int i=0; i<size; i++) {
+                if (name.startsWith(mStreamingPrefixes.get(i))) {
+                    return mStreamingChunkSize;
+                }
+            }
+        }
+        return mStreamingThreshold;
+    }
+
+    private void setCompression(PropertyMap properties) {
+        mCompressionTypes = null;
+        mCompressionPrefixes = null;
+        if (!properties.getBoolean("compression.enabled", false)) {
+            return;
+        }
+
+        mCompressionLevel = properties.getInt
+            ("compression.level", Deflater.DEFAULT_COMPRESSION);
+        mCompressionMinimum = properties.getInt("compression.minimum", 1024);
+
+        if (cDeflaterUnavailable) {
+            return;
+        }
+        try {
+            // the deflater requires a native library
+            DeflaterPool.put(DeflaterPool.get(mCompressionLevel, true));
+        }
+        catch (LinkageError e) {
+            // the first failure is an UnsatisfiedLinkError, and later ones
+            // are a NoClassDefFoundError
+            cDeflaterUnavailable = true;
+            mLog.warn("Response compression is disabled, the native " +
+                      "deflater library can't be loaded: " + e);
+            return;
+        }
+
+        Set<String> types = new HashSet<String>();
+        List<String> prefixes = new ArrayList<String>();
+        StringTokenizer st = new StringTokenizer
+            (properties.getString("compression.types",
+                                  "text/html, text/plain, text/css, " +
+                                  "text/xml, text/javascript, " +
+                                  "application/javascript, " +
+                                  "application/json, application/xml"),
+             ", ");
+        while (st.hasMoreTokens()) {
+            String type = st.nextToken().toLowerCase();
+            if (type.endsWith("*")) {
+                prefixes.add(type.substring(0, type.length() - 1));
+            }
+            else {
+                types.add(type);
+            }
+        }
+
+        mCompressionTypes = types;
+        mCompressionPrefixes = prefixes;
+    }
+
+    /**
+     * Returns true if responses of the given content type are compressed
+     * for clients that accept it.
+     */
+    boolean isCompressible(String contentType) {
+        if (mCompressionTypes == null || contentType == null) {
+            return false;
+        }
+
+        int index = contentType.indexOf(';');
+        if (index >= 0) {
+            contentType = contentType.substring(0, index);
+        }
+        contentType = contentType.trim().toLowerCase();
+
+        if (mCompressionTypes.contains(contentType)) {
+            return true;
+        }
+        int size = mCompressionPrefixes.size();
+        for (int i=0; i<size; i++) {
+            if (contentType.startsWith(mCompressionPrefixes.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    /**
+     * Returns the count of bytes below which buffered responses are not
+     * compressed.
+     */
+    int getCompressionMinimum() {
+        return mCompressionMinimum;
+    }
+
     public StatusListener getTemplateListener() {
         return mTemplateListener;
     }
@@ -240,6 +419,14 @@ public class TeaServletEngineImpl implements TeaServletEngine {
         mApplicationListener = listener;
     }
     
+    TemplateWarmup getTemplateWarmup() {
+        return mTemplateWarmup;
+    }
+
+    void setTemplateWarmup(TemplateWarmup warmup) {
+        mTemplateWarmup = warmup;
+    }
+
     public TeaServletTransaction createTransaction
         (HttpServletRequest request, HttpServletResponse response)
         throws IOException {
@@ -252,10 +439,20 @@ public class TeaServletEngineImpl implements TeaServletEngine {
          boolean lookupTemplate)
         throws IOException {
 
+        return createTransaction(request, response, lookupTemplate,
+                                 getTemplateSource());
+    }
 
-        try {
+    /**
+     * Creates a transaction whose templates come from the given template
+     * source, which may not be in use yet.
+     */
+    TeaServletTransaction createTransaction
+        (HttpServletRequest request, HttpServletResponse response,
+         boolean lookupTemplate, TeaServletTemplateSource templateSrc)
+        throws IOException {
 
-            TeaServletTemplateSource templateSrc = getTemplateSource();
+        try {
 
             TeaServletContextSource contextSrc = (TeaServletContextSource)
                 templateSrc.getContextSource();
@@ -289,8 +486,17 @@ public class TeaServletEngineImpl implements TeaServletEngine {
             }
 
             // Wrap the user's http response.
-            ApplicationResponse appResponse =
-                new ApplicationResponseImpl(response, this);
+            ApplicationResponse appResponse;
+            int threshold = getStreamingThreshold(template);
+            int sizeHint = getSizeHint(template);
+            if (threshold > 0) {
+                appResponse = new ApplicationResponseImpl
+                    (response, this, threshold, mStreamingChunkSize, sizeHint);
+            }
+            else {
+                appResponse =
+                    new ApplicationResponseImpl(response, this, sizeHint);
+            }
 
 
             ApplicationRequest appRequest =
@@ -396,13 +602,29 @@ public class TeaServletEngineImpl implements TeaServletEngine {
         TemplateCompilationResults results =
             templateSrc.compileTemplates(null, all);
 
+        // Exercise the new templates before they take any traffic
+        TemplateWarmup warmup = mTemplateWarmup;
+        if (warmup != null) {
+            warmup.warmup(this, templateSrc, null);
+        }
+
         // The new context source and template source are ready for
         // use, set the member variables
+        ContextSource oldContextSource;
         synchronized(this) {
+            oldContextSource = mApplicationDepot.getContextSource();
             mApplicationDepot.setContextSource(contextSource);
             mTemplateSource = templateSrc;
         }
 
+        // Discard the cached introspection of the replaced context
+        if (oldContextSource != null && oldContextSource != contextSource) {
+            Class<?> oldContextType = oldContextSource.getContextType();
+            if (oldContextType != null) {
+                ClassLoaderCache.invalidate(oldContextType.getClassLoader());
+            }
+        }
+
         // Return the compilation results
         return results;
     }
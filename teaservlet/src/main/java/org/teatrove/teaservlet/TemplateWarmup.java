@@ -0,0 +1,615 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.teaservlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.teatrove.tea.engine.ContextCreationException;
+import org.teatrove.tea.engine.Template;
+import org.teatrove.teaservlet.stats.TeaServletRequestStats;
+import org.teatrove.teaservlet.stats.TemplateStats;
+import org.teatrove.trove.log.Log;
+import org.teatrove.trove.util.PropertyMap;
+import org.teatrove.trove.util.StatusEvent;
+import org.teatrove.trove.util.StatusListener;
+
+/**
+ * Exercises templates before they take traffic, so that they are compiled
+ * by the JIT compiler instead of being interpreted for the first requests.
+ * Requests are replayed with the configured paths, and with the parameters
+ * recently recorded in the {@link TemplateStats} of the most requested
+ * templates. Parameters are only recorded when the stats are configured to
+ * sample them, since they may hold personal data from requests. The output
+ * of replayed requests is discarded and they are not recorded in the stats.
+ * <p>
+ * The warmup accepts the following properties:
+ * <ul>
+ * <li>enabled - when true, templates are warmed up at startup and before
+ * reloaded templates are used (default false)
+ * <li>templates - number of the most requested templates replayed with
+ * sampled parameters (default 20)
+ * <li>iterations - maximum number of times each template is executed
+ * (default 10000)
+ * <li>timeout - maximum milliseconds spent warming up (default 60000)
+ * <li>paths - comma separated request paths, with optional query strings,
+ * that are always replayed
+ * </ul>
+ * Templates are executed at least a fifth of the iterations, and then until
+ * the JIT compiler has been idle for a while.
+ */
+class TemplateWarmup {
+    // Number of executions between checks of the JIT compiler.
+    private static final int ROUND = 100;
+
+    // Number of rounds without compilation after which a template is warm.
+    private static final int QUIET_ROUNDS = 5;
+
+    private static final ServletOutputStream DISCARD =
+        new ServletOutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        };
+
+    private final TeaServlet mServlet;
+    private final Log mLog;
+    private final int mTemplates;
+    private final int mIterations;
+    private final long mTimeout;
+    private final String[] mPaths;
+
+    TemplateWarmup(TeaServlet servlet, PropertyMap properties, Log log) {
+        mServlet = servlet;
+        mLog = log;
+        mTemplates = Math.max(0, properties.getInt("templates", 20));
+        mIterations = Math.max(1, properties.getInt("iterations", 10000));
+        mTimeout = Math.max(0, properties.getInt("timeout", 60000));
+
+        List<String> paths = new ArrayList<String>();
+        String value = properties.getString("paths");
+        if (value != null) {
+            for (String path : value.split(",")) {
+                path = path.trim();
+                if (path.length() > 0) {
+                    paths.add(path);
+                }
+            }
+        }
+        mPaths = paths.toArray(new String[paths.size()]);
+    }
+
+    /**
+     * Replays requests against the templates of the given template source.
+     *
+     * @param listener optional listener notified as each template is warmed
+     */
+    void warmup(TeaServletEngineImpl engine,
+                TeaServletTemplateSource templateSrc,
+                StatusListener listener) {
+
+        List<WarmupRequest> requests = createRequests(templateSrc);
+        int count = requests.size();
+
+        if (listener != null) {
+            listener.statusStarted(new StatusEvent(this, 0, count, null));
+        }
+
+        long start = System.currentTimeMillis();
+        long deadline = start + mTimeout;
+        long executions = 0;
+        for (int i = 0; i < count; i++) {
+            WarmupRequest request = requests.get(i);
+            if (listener != null) {
+                listener.statusUpdate
+                    (new StatusEvent(this, i, count, request.mPath));
+            }
+
+            // share the remaining time between the remaining requests
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                mLog.warn("Template warmup timed out after " + i + " of " +
+                          count + " requests");
+                break;
+            }
+
+            long end = now + (deadline - now) / (count - i);
+            executions += warmup(engine, templateSrc, request, end);
+        }
+
+        if (listener != null) {
+            listener.statusCompleted
+                (new StatusEvent(this, count, count, null));
+        }
+
+        mLog.info("Warmed up " + count + " template requests with " +
+                  executions + " executions in " +
+                  (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Returns the configured requests, followed by the recorded requests of
+     * the most requested templates.
+     */
+    private List<WarmupRequest> createRequests
+        (TeaServletTemplateSource templateSrc) {
+
+        List<WarmupRequest> requests = new ArrayList<WarmupRequest>();
+        for (String path : mPaths) {
+            requests.add(parseRequest(path));
+        }
+
+        TemplateStats[] stats =
+            TeaServletRequestStats.getInstance().getTemplateStats();
+        if (stats == null || mTemplates == 0) {
+            return requests;
+        }
+
+        stats = stats.clone();
+        Arrays.sort(stats, new Comparator<TemplateStats>() {
+            public int compare(TemplateStats a, TemplateStats b) {
+                long countA = a.getServicedCount();
+                long countB = b.getServicedCount();
+                return countA > countB ? -1 : (countA < countB ? 1 : 0);
+            }
+        });
+
+        int added = 0;
+        for (int i = 0; i < stats.length && added < mTemplates; i++) {
+            String name = stats[i].getFullTemplateName();
+            Object[][] samples = stats[i].getParameterSamples();
+            if (samples.length == 0) {
+                continue;
+            }
+
+            Template template;
+            try {
+                template = templateSrc.getTemplate(name);
+            }
+            catch (Exception e) {
+                template = null;
+            }
+            if (template == null) {
+                continue;
+            }
+
+            WarmupRequest request =
+                new WarmupRequest('/' + name.replace('.', '/'));
+            String[] names = template.getParameterNames();
+            for (Object[] sample : samples) {
+                request.mParameters.add(toParameters(names, sample));
+            }
+
+            requests.add(request);
+            added++;
+        }
+
+        return requests;
+    }
+
+    /**
+     * Executes the template of the given request until it is warm or the
+     * given time is reached, returning the number of executions.
+     */
+    private int warmup(TeaServletEngineImpl engine,
+                       TeaServletTemplateSource templateSrc,
+                       WarmupRequest request, long end) {
+
+        int minimum = Math.max(1, mIterations / 5);
+        long compilationTime = getCompilationTime();
+        int quiet = 0;
+
+        int executions = 0;
+        while (executions < mIterations) {
+            for (int i = 0; i < ROUND && executions < mIterations; i++) {
+                Map<String, String[]> params = request.mParameters.get
+                    (executions % request.mParameters.size());
+
+                try {
+                    if (!execute(engine, templateSrc, request.mPath, params)) {
+                        return executions;
+                    }
+                }
+                catch (Exception e) {
+                    mLog.warn("Unable to warm up template for " +
+                              request.mPath);
+                    mLog.warn(e);
+                    return executions;
+                }
+
+                executions++;
+            }
+
+            if (System.currentTimeMillis() >= end) {
+                break;
+            }
+
+            long time = getCompilationTime();
+            if (time >= 0) {
+                quiet = (time == compilationTime) ? quiet + 1 : 0;
+                compilationTime = time;
+                if (quiet >= QUIET_ROUNDS && executions >= minimum) {
+                    break;
+                }
+            }
+        }
+
+        return executions;
+    }
+
+    /**
+     * Executes the template for the given path once, returning false if the
+     * request did not execute a template or ended in an error.
+     */
+    private boolean execute(TeaServletEngineImpl engine,
+                            TeaServletTemplateSource templateSrc,
+                            String path, Map<String, String[]> params)
+        throws Exception {
+
+        Response response = new Response();
+        TeaServletTransaction transaction = engine.createTransaction
+            (createProxy(HttpServletRequest.class, new Request(path, params)),
+             createProxy(HttpServletResponse.class, response),
+             true, templateSrc);
+        if (transaction == null) {
+            return false;
+        }
+
+        ApplicationRequest appRequest = transaction.getRequest();
+        ApplicationResponse appResponse = transaction.getResponse();
+
+        Template template = (Template) appRequest.getTemplate();
+        if (template == null) {
+            mLog.warn("No template to warm up for " + path);
+            return false;
+        }
+
+        appRequest.setAttribute(TeaServlet.class.getName(), mServlet);
+        Object[] args = mServlet.createParameters(appRequest, template);
+        try {
+            template.execute(appResponse.getHttpContext(), args);
+        }
+        catch (ContextCreationException e) {
+            throw (Exception) e.getUndeclaredThrowable();
+        }
+        catch (AbortTemplateException e) {
+            // the template completed
+        }
+
+        appResponse.finish();
+
+        if (response.mStatus >= 400) {
+            mLog.warn("Template warmup for " + path + " returned status " +
+                      response.mStatus);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static WarmupRequest parseRequest(String path) {
+        int index = path.indexOf('?');
+        if (index < 0) {
+            WarmupRequest request = new WarmupRequest(path);
+            request.mParameters.add(new HashMap<String, String[]>());
+            return request;
+        }
+
+        WarmupRequest request = new WarmupRequest(path.substring(0, index));
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        for (String pair : path.substring(index + 1).split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+
+            int split = pair.indexOf('=');
+            String name = split < 0 ? pair : pair.substring(0, split);
+            String value = split < 0 ? "" : pair.substring(split + 1);
+
+            String[] values = params.get(name);
+            if (values == null) {
+                values = new String[] { value };
+            }
+            else {
+                values = Arrays.copyOf(values, values.length + 1);
+                values[values.length - 1] = value;
+            }
+            params.put(name, values);
+        }
+
+        request.mParameters.add(params);
+        return request;
+    }
+
+    /**
+     * Converts recorded template parameters back to request parameters.
+     */
+    private static Map<String, String[]> toParameters(String[] names,
+                                                      Object[] values) {
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        int count = Math.min(names.length, values.length);
+        for (int i = 0; i < count; i++) {
+            Object value = values[i];
+            if (names[i] == null || value == null) {
+                continue;
+            }
+
+            if (value.getClass().isArray()) {
+                String[] strings = new String[Array.getLength(value)];
+                for (int j = 0; j < strings.length; j++) {
+                    strings[j] = String.valueOf(Array.get(value, j));
+                }
+                params.put(names[i], strings);
+            }
+            else {
+                params.put(names[i], new String[] { String.valueOf(value) });
+            }
+        }
+        return params;
+    }
+
+    private static long getCompilationTime() {
+        CompilationMXBean bean = ManagementFactory.getCompilationMXBean();
+        if (bean == null || !bean.isCompilationTimeMonitoringSupported()) {
+            return -1L;
+        }
+        return bean.getTotalCompilationTime();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T createProxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance
+            (TemplateWarmup.class.getClassLoader(), new Class<?>[] { type },
+             handler);
+    }
+
+    /**
+     * Returns the default value of the given return type.
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == long.class) {
+            return Long.valueOf(-1L);
+        }
+        if (type == int.class) {
+            return Integer.valueOf(-1);
+        }
+        return Array.get(Array.newInstance(type, 1), 0);
+    }
+
+    private static class WarmupRequest {
+        final String mPath;
+        final List<Map<String, String[]>> mParameters =
+            new ArrayList<Map<String, String[]>>();
+
+        WarmupRequest(String path) {
+            mPath = path;
+        }
+    }
+
+    /**
+     * Answers the methods of a GET request for a path, without headers,
+     * cookies or a session.
+     */
+    private static class Request implements InvocationHandler {
+        private final String mPath;
+        private final Map<String, String[]> mParameters;
+        private final Map<String, Object> mAttributes =
+            new HashMap<String, Object>();
+
+        Request(String path, Map<String, String[]> parameters) {
+            mPath = path;
+            mParameters = parameters;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getPathInfo".equals(name) || "getRequestURI".equals(name)) {
+                return mPath;
+            }
+            else if ("getServletPath".equals(name) ||
+                     "getContextPath".equals(name)) {
+                return "";
+            }
+            else if ("getRequestURL".equals(name)) {
+                return new StringBuffer("http://localhost").append(mPath);
+            }
+            else if ("getMethod".equals(name)) {
+                return "GET";
+            }
+            else if ("getProtocol".equals(name)) {
+                return "HTTP/1.1";
+            }
+            else if ("getScheme".equals(name)) {
+                return "http";
+            }
+            else if ("getServerName".equals(name) ||
+                     "getRemoteHost".equals(name) ||
+                     "getLocalName".equals(name)) {
+                return "localhost";
+            }
+            else if ("getRemoteAddr".equals(name) ||
+                     "getLocalAddr".equals(name)) {
+                return "127.0.0.1";
+            }
+            else if ("getServerPort".equals(name) ||
+                     "getLocalPort".equals(name)) {
+                return Integer.valueOf(80);
+            }
+            else if ("getParameter".equals(name)) {
+                String[] values = mParameters.get(args[0]);
+                return (values == null || values.length == 0) ?
+                    null : values[0];
+            }
+            else if ("getParameterValues".equals(name)) {
+                String[] values = mParameters.get(args[0]);
+                return (values == null) ? null : values.clone();
+            }
+            else if ("getParameterNames".equals(name)) {
+                return Collections.enumeration(mParameters.keySet());
+            }
+            else if ("getParameterMap".equals(name)) {
+                return Collections.unmodifiableMap(mParameters);
+            }
+            else if ("getQueryString".equals(name)) {
+                return getQueryString();
+            }
+            else if ("getAttribute".equals(name)) {
+                return mAttributes.get(args[0]);
+            }
+            else if ("setAttribute".equals(name)) {
+                mAttributes.put((String) args[0], args[1]);
+                return null;
+            }
+            else if ("removeAttribute".equals(name)) {
+                mAttributes.remove(args[0]);
+                return null;
+            }
+            else if ("getAttributeNames".equals(name)) {
+                return Collections.enumeration
+                    (new ArrayList<String>(mAttributes.keySet()));
+            }
+            else if ("getHeaders".equals(name) ||
+                     "getHeaderNames".equals(name)) {
+                return Collections.enumeration(Collections.emptyList());
+            }
+            else if ("getLocale".equals(name)) {
+                return Locale.getDefault();
+            }
+            else if ("getLocales".equals(name)) {
+                return Collections.enumeration
+                    (Collections.singletonList(Locale.getDefault()));
+            }
+            else if ("toString".equals(name)) {
+                return "WarmupRequest[" + mPath + "]";
+            }
+            else if ("hashCode".equals(name)) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            else if ("equals".equals(name)) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+
+            return defaultValue(method.getReturnType());
+        }
+
+        private String getQueryString() {
+            if (mParameters.isEmpty()) {
+                return null;
+            }
+
+            StringBuilder query = new StringBuilder();
+            for (Map.Entry<String, String[]> entry : mParameters.entrySet()) {
+                for (String value : entry.getValue()) {
+                    if (query.length() > 0) {
+                        query.append('&');
+                    }
+                    query.append(entry.getKey()).append('=').append(value);
+                }
+            }
+            return query.toString();
+        }
+    }
+
+    /**
+     * Discards the output of a response, keeping its status.
+     */
+    private static class Response implements InvocationHandler {
+        int mStatus = HttpServletResponse.SC_OK;
+        private String mContentType;
+        private PrintWriter mWriter;
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws IOException {
+
+            String name = method.getName();
+            if ("getOutputStream".equals(name)) {
+                return DISCARD;
+            }
+            else if ("getWriter".equals(name)) {
+                if (mWriter == null) {
+                    mWriter = new PrintWriter(new OutputStreamWriter
+                        ((OutputStream) DISCARD, "ISO-8859-1"));
+                }
+                return mWriter;
+            }
+            else if ("getCharacterEncoding".equals(name)) {
+                return "ISO-8859-1";
+            }
+            else if ("setContentType".equals(name)) {
+                mContentType = (String) args[0];
+                return null;
+            }
+            else if ("getContentType".equals(name)) {
+                return mContentType;
+            }
+            else if ("sendError".equals(name) || "setStatus".equals(name)) {
+                mStatus = ((Integer) args[0]).intValue();
+                return null;
+            }
+            else if ("sendRedirect".equals(name)) {
+                mStatus = HttpServletResponse.SC_MOVED_TEMPORARILY;
+                return null;
+            }
+            else if (name.startsWith("encode")) {
+                return args[0];
+            }
+            else if ("getLocale".equals(name)) {
+                return Locale.getDefault();
+            }
+            else if ("getBufferSize".equals(name)) {
+                return Integer.valueOf(0);
+            }
+            else if ("toString".equals(name)) {
+                return "WarmupResponse[" + mStatus + "]";
+            }
+            else if ("hashCode".equals(name)) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            else if ("equals".equals(name)) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+
+            return defaultValue(method.getReturnType());
+        }
+    }
+}
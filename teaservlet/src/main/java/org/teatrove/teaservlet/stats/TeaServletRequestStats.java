@@ -35,12 +35,14 @@ public class TeaServletRequestStats {
 
 	public static final int DEFAULT_RAW_WINDOW_SIZE = 100;
 	public static final int DEFAULT_AGGREGATE_WINDOW_SIZE = 50;
+	public static final int DEFAULT_PARAMETER_SAMPLES = 0;
 
     private static TeaServletRequestStats mInstance = null;
     private Map<String, TemplateStats> mStatsMap = new ConcurrentHashMap<String, TemplateStats>(100);
 
     private int mRawWindowSize = DEFAULT_RAW_WINDOW_SIZE;
     private int mAggregateWindowSize = DEFAULT_AGGREGATE_WINDOW_SIZE;
+    private int mParameterSamples = DEFAULT_PARAMETER_SAMPLES;
 
     /**
      * Returns a static instance of TeaServletRequestStats.
@@ -65,6 +67,8 @@ public class TeaServletRequestStats {
 	    		("rawWindowSize", DEFAULT_RAW_WINDOW_SIZE);
 	    	mAggregateWindowSize = properties.getInt
 	    		("aggregateWindowSize", DEFAULT_AGGREGATE_WINDOW_SIZE);
+	    	mParameterSamples = properties.getInt
+	    		("parameterSamples", DEFAULT_PARAMETER_SAMPLES);
 	    	reset();
     	}
     }
@@ -79,7 +83,8 @@ public class TeaServletRequestStats {
     public TemplateStats getStats(String fullTemplateName) {
         TemplateStats stats = (TemplateStats) mStatsMap.get(fullTemplateName);
         if (stats == null) {
-            stats = new TemplateStats(fullTemplateName, mRawWindowSize, mAggregateWindowSize);
+            stats = new TemplateStats(fullTemplateName, mRawWindowSize, mAggregateWindowSize,
+                                      mParameterSamples);
             mStatsMap.put(fullTemplateName, stats);
         }
         return stats;
@@ -115,12 +120,26 @@ public class TeaServletRequestStats {
     	//System.out.println(fullTemplateName + ", " + (stopTime-startTime) + ", " + contentLength);
         TemplateStats stats = (TemplateStats) mStatsMap.get(fullTemplateName);
         if (stats == null) {
-            stats = new TemplateStats(fullTemplateName, mRawWindowSize, mAggregateWindowSize);
+            stats = new TemplateStats(fullTemplateName, mRawWindowSize, mAggregateWindowSize,
+                                      mParameterSamples);
             mStatsMap.put(fullTemplateName, stats);
         }
         stats.log(startTime, stopTime, contentLength, params);
     }
 
+    /**
+     * Returns the estimated content length of the given template, or 0 if
+     * no requests of it have been logged. Unlike {@link #getStats}, no
+     * statistics are created for the template.
+     * 
+     * @param fullTemplateName the full name of the template.
+     * @return the estimated content length.
+     */
+    public long getContentLengthEstimate(String fullTemplateName) {
+        TemplateStats stats = mStatsMap.get(fullTemplateName);
+        return stats == null ? 0L : stats.getContentLengthEstimate();
+    }
+
     /**
      * Returns the template name -> template stats map.
      * 
@@ -178,6 +197,31 @@ public class TeaServletRequestStats {
     	reset();
     }
 
+    /**
+     * Returns the number of recent parameter sets kept for each template.
+     * 
+     * Sampling is disabled by default, since the parameters may hold
+     * personal data from requests.
+     * 
+     * @return the number of parameter samples.
+     */
+    public int getParameterSamples() {
+    	return mParameterSamples;
+    }
+    
+    /**
+     * Sets the number of recent parameter sets kept for each template, which
+     * template warmup replays. The parameters are kept as strings.
+     * 
+     * Resets all statistics.
+     * 
+     * @param parameterSamples the number of samples, or 0 to keep none
+     */
+    public void setParameterSamples(int parameterSamples) {
+    	mParameterSamples = parameterSamples;
+    	reset();
+    }
+
     /**
      * Resets all raw data and aggregate interval statistics.
      */
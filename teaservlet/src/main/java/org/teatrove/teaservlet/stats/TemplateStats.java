@@ -16,6 +16,7 @@
 
 package org.teatrove.teaservlet.stats;
 
+import java.lang.reflect.Array;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
@@ -42,6 +43,11 @@ import java.util.concurrent.atomic.AtomicLong;
  * In both cases for raw data and the aggregate intervals when the window
  * size is reached the newest data overwrites the oldest data.
  * 
+ * When parameter sampling is enabled, the parameters of the most recent
+ * invocations are also kept, as strings, so that template warmup can
+ * replay them. Since they may hold personal data from requests, sampling
+ * is disabled unless a number of samples is given.
+ * 
  * @author Scott Jappinen
  */
 public class TemplateStats {
@@ -55,6 +61,7 @@ public class TemplateStats {
 	protected long mPeakServiceDuration = 0L;
 	protected long mCumulativeServiceTime = 0L;
 	protected long mServicedCount = 0L;
+	protected volatile long mContentLengthEstimate = 0L;
 	
 	protected int mRawWindowSize = 0;
 	protected int mAggregateWindowSize = 0;
@@ -67,7 +74,19 @@ public class TemplateStats {
 	
 	protected List<Milestone> mMilestones = null;
 	
+	protected int mCurrentParametersIndex = 0;
+	protected Object[][] mParameters;
+	
 	public TemplateStats(String fullTemplateName, int rawWindowSize, int aggregateWindowSize) {
+		this(fullTemplateName, rawWindowSize, aggregateWindowSize, 0);
+	}
+	
+	/**
+	 * @param parameterSamples the number of recent parameter sets kept, or
+	 *    0 to keep none.
+	 */
+	public TemplateStats(String fullTemplateName, int rawWindowSize, int aggregateWindowSize,
+	                     int parameterSamples) {
 		assert(fullTemplateName != null);
 		assert(rawWindowSize > 0);
 		assert(aggregateWindowSize > 0);
@@ -92,6 +111,8 @@ public class TemplateStats {
 			mAggregateIntervals[i] = new AggregateInterval();
 		
 		mMilestones = new ArrayList<Milestone>();
+		
+		mParameters = new Object[Math.max(0, parameterSamples)][];
 	}
 
 	/** Log a template request.
@@ -109,6 +130,19 @@ public class TemplateStats {
         	mPeakServiceDuration = elapsedTime;
         }
         mServicedCount++;
+        if (mServicedCount == 1L) {
+            mContentLengthEstimate = contentLength;
+        }
+        else {
+            // each request moves the estimate an eighth of the way
+            mContentLengthEstimate +=
+                (contentLength - mContentLengthEstimate) >> 3;
+        }
+		if (params != null && mParameters.length > 0) {
+			mParameters[mCurrentParametersIndex] = copyParameters(params);
+			mCurrentParametersIndex =
+				(mCurrentParametersIndex + 1) % mParameters.length;
+		}
 		if (mCurrentRawIndex == mRawWindowSize - 1) {
 			long aggregateStartTime = -1;
 			if (mCurrentAggregateIndex == 0) {
@@ -130,6 +164,47 @@ public class TemplateStats {
 		}
 	}
 	
+	/**
+	 * Returns the most recent parameters the template was called with,
+	 * newest first. Each parameter is a String, a String array for array
+	 * parameters, or null.
+	 * 
+	 * @return the parameter sets, which are empty unless sampling is enabled.
+	 */
+	public synchronized Object[][] getParameterSamples() {
+		List<Object[]> result = new ArrayList<Object[]>(mParameters.length);
+		for (int i = 1; i <= mParameters.length; i++) {
+			int index = (mCurrentParametersIndex - i + mParameters.length) %
+				mParameters.length;
+			if (mParameters[index] != null) {
+				result.add(mParameters[index]);
+			}
+		}
+		return result.toArray(new Object[result.size()][]);
+	}
+	
+	/**
+	 * Copies the given parameters as strings, so that samples don't keep the
+	 * objects of a request reachable.
+	 */
+	private static Object[] copyParameters(Object[] params) {
+		Object[] copy = new Object[params.length];
+		for (int i = 0; i < params.length; i++) {
+			Object value = params[i];
+			if (value != null && value.getClass().isArray()) {
+				String[] strings = new String[Array.getLength(value)];
+				for (int j = 0; j < strings.length; j++) {
+					strings[j] = String.valueOf(Array.get(value, j));
+				}
+				copy[i] = strings;
+			}
+			else if (value != null) {
+				copy[i] = String.valueOf(value);
+			}
+		}
+		return copy;
+	}
+	
 	/**
 	 * Returns the name of the template these stats are for.
 	 * 
@@ -169,6 +244,17 @@ public class TemplateStats {
     	return mServicedCount;
     }
 
+    /**
+     * Returns an exponentially weighted average of the content length of
+     * this template, favoring recent requests, or 0 if it has not been
+     * called since reset or startup. Response buffers are presized from it.
+     * 
+     * @return the estimated content length.
+     */
+    public long getContentLengthEstimate() {
+        return mContentLengthEstimate;
+    }
+
     /**
      * Returns the total time in ms. that this template has been service
      * since system start or reset.
@@ -646,8 +732,12 @@ public class TemplateStats {
 		mPeakServiceDuration = 0L;
 		mCumulativeServiceTime = 0L;
 		mServicedCount = 0L;
+		mContentLengthEstimate = 0L;
 		
 		mCurrentRawIndex = 0;
 		mCurrentAggregateIndex = 0;
+		
+		mParameters = new Object[mParameters.length][];
+		mCurrentParametersIndex = 0;
     }
 }
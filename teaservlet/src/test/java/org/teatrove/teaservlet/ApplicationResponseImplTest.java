@@ -0,0 +1,618 @@
+package org.teatrove.teaservlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.teatrove.tea.engine.Template;
+import org.teatrove.teaservlet.stats.TeaServletRequestStats;
+import org.teatrove.trove.io.ChunkPool;
+import org.teatrove.trove.io.ByteData;
+import org.teatrove.trove.io.DefaultByteBuffer;
+import org.teatrove.trove.io.FileByteData;
+import org.teatrove.trove.log.Log;
+import org.teatrove.trove.log.LogEvent;
+import org.teatrove.trove.log.LogListener;
+import org.teatrove.trove.util.Deflater;
+import org.teatrove.trove.util.DeflaterPool;
+import org.teatrove.trove.util.PropertyMap;
+
+public class ApplicationResponseImplTest {
+
+    private static final String A = text(500);
+    private static final String B = text(300);
+    private static final String C = text(200);
+
+    private ByteArrayOutputStream body;
+    private List<String> events;
+    private List<String> warnings;
+    private String contentType;
+    private TeaServletEngineImpl engine;
+
+    @Before
+    public void init() throws Exception {
+        body = new ByteArrayOutputStream();
+        events = new ArrayList<String>();
+        warnings = new ArrayList<String>();
+        contentType = "text/html; charset=ISO-8859-1";
+        engine = createEngine();
+    }
+
+    @Test
+    public void testBuffered() throws Exception {
+        ApplicationResponseImpl response =
+            new ApplicationResponseImpl(createResponse(), engine);
+        response.getResponseBuffer().append(A);
+        assertEquals(0, body.size());
+
+        response.finish();
+        assertEquals(A, body.toString("ISO-8859-1"));
+        assertTrue(events.contains("setContentLength[" + A.length() + "]"));
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(), engine, 1000, 1000, 0);
+        assertTrue(response.isStreaming());
+
+        response.getResponseBuffer().append(A);
+        assertTrue(body.size() > 0);
+        assertTrue(response.isCommitted());
+
+        // captured output is unaffected by chunks written in between
+        DefaultByteBuffer capture = new DefaultByteBuffer();
+        response.getResponseBuffer().addCaptureBuffer(capture);
+        response.getResponseBuffer().append(B);
+        response.getResponseBuffer().removeCaptureBuffer(capture);
+        assertEquals(B.length(), capture.getByteCount());
+
+        assertEquals(A.length() + B.length(), response.getByteCount());
+        response.finish();
+
+        assertEquals(A + B, body.toString("ISO-8859-1"));
+        assertFalse(events.toString().contains("setContentLength"));
+    }
+
+    @Test
+    public void testStreamingCompressedSegments() throws Exception {
+        // compressed segments before the first write switch to gzip
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(), engine, 100000, 1000, 0);
+        response.getResponseBuffer().append("head");
+        appendCompressed(response, C);
+        response.getResponseBuffer().append(A);
+        response.flushBuffer();
+        response.getResponseBuffer().append(B);
+        appendCompressed(response, C);
+        response.finish();
+
+        assertEquals("head" + C + A + B + C, gunzip(body.toByteArray()));
+    }
+
+    @Test
+    public void testCompressedSegmentsAfterFlush() throws Exception {
+        // compressed segments after the first plain write are sent plain
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(), engine, 100, 100, 0);
+        response.getResponseBuffer().append(A);
+        appendCompressed(response, C);
+        response.finish();
+
+        assertEquals(A + C, body.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void testErrorAfterFlush() throws Exception {
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(), engine, 100, 100, 0);
+        response.getResponseBuffer().append(A);
+        int written = body.size();
+
+        response.getResponseBuffer().append("x");
+        response.sendError(500);
+        assertTrue(response.isRedirectOrError());
+        response.getResponseBuffer().append(B);
+        response.finish();
+
+        assertEquals(written, body.size());
+        assertFalse(events.toString().contains("sendError"));
+        assertEquals(1, warnings.size());
+        assertTrue(warnings.get(0).startsWith("Cannot send error 500"));
+    }
+
+    @Test
+    public void testRedirectAfterFlush() throws Exception {
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(), engine, 100, 100, 0);
+        response.getResponseBuffer().append(A);
+        int written = body.size();
+
+        response.sendRedirect("/elsewhere");
+        response.getResponseBuffer().append(B);
+        response.finish();
+
+        assertEquals(written, body.size());
+        assertFalse(events.toString().contains("sendRedirect"));
+        assertEquals(1, warnings.size());
+        assertTrue(warnings.get(0)
+                   .startsWith("Cannot send redirect to /elsewhere"));
+    }
+
+    @Test
+    public void testErrorBeforeFlush() throws Exception {
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(), engine, 100000, 1000, 0);
+        response.getResponseBuffer().append(A);
+        response.sendError(404);
+        response.finish();
+
+        assertEquals(0, body.size());
+        assertTrue(events.contains("sendError[404]"));
+        assertTrue(warnings.isEmpty());
+    }
+
+    @Test
+    public void testSizeHint() throws Exception {
+        TeaServletRequestStats stats = TeaServletRequestStats.getInstance();
+        stats.reset();
+        Template template = createTemplate("hello");
+        assertEquals(0, getSizeHint(template));
+
+        // the hint is the average content length of the template
+        stats.log("hello", 0L, 1L, 4000L, null);
+        stats.log("hello", 0L, 1L, 4800L, null);
+        assertEquals(4100, getSizeHint(template));
+        stats.reset();
+
+        // a presized response draws a first chunk that holds it
+        int size = ChunkPool.getChunkSize(4100);
+        byte[] chunk = ChunkPool.get(size);
+        ChunkPool.put(chunk);
+        ApplicationResponseImpl response =
+            new ApplicationResponseImpl(createResponse(), engine, 4100);
+        response.getResponseBuffer().append(A.substring(0, 4000));
+        assertTrue(chunk != ChunkPool.get(size));
+
+        response.getResponseBuffer().append(A.substring(4000));
+        response.finish();
+        assertEquals(A, body.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void testStreamingSizeHint() throws Exception {
+        // the first streaming chunk is presized up to the threshold
+        byte[] chunk = ChunkPool.get(2048);
+        ChunkPool.put(chunk);
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(), engine, 2000, 4000, 4100);
+        response.getResponseBuffer().append(A.substring(0, 1500));
+        assertTrue(chunk != ChunkPool.get(2048));
+        assertEquals(0, body.size());
+
+        response.getResponseBuffer().append(A.substring(1500));
+        response.finish();
+        assertEquals(A, body.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void testChannel() throws Exception {
+        File file = File.createTempFile("tea", "response");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(C.getBytes("ISO-8859-1"));
+            out.close();
+
+            // buffered chunks go out in gathering writes, and the file
+            // through its channel
+            ApplicationResponseImpl response = new ApplicationResponseImpl
+                (createResponse(new ChannelStream()), engine);
+            response.getResponseBuffer().append(A + A + A);
+            response.getResponseBuffer()
+                .appendSurrogate(new FileByteData(file));
+            response.getResponseBuffer().append(B);
+            response.finish();
+
+            assertEquals(A + A + A + C + B, body.toString("ISO-8859-1"));
+            assertTrue(events.contains("gather"));
+            assertFalse(events.contains("write"));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStreamingChannel() throws Exception {
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(new ChannelStream()), engine, 100, 100, 0);
+        response.getResponseBuffer().append(A);
+        assertTrue(body.size() > 0);
+        response.getResponseBuffer().append(B);
+        response.finish();
+
+        assertEquals(A + B, body.toString("ISO-8859-1"));
+        assertTrue(events.contains("gather"));
+        assertFalse(events.contains("write"));
+    }
+
+    @Test
+    public void testDeflated() throws Exception {
+        ApplicationResponseImpl response = createResponse(null, true);
+        response.getResponseBuffer().append(A);
+        byte[] segment = appendCompressed(response, C);
+        response.getResponseBuffer().append(A);
+        response.finish();
+
+        assertEquals(A + C + A, gunzip(body.toByteArray()));
+        assertTrue(body.size() < (A + C + A).length() / 3);
+        assertTrue(events.contains("setContentLength[" + body.size() + "]"));
+        assertTrue(events.contains("setHeader[Content-Encoding, gzip]"));
+        assertTrue(events.contains("addHeader[Vary, Accept-Encoding]"));
+
+        // the segment is copied as is, after a full flush aligns the output
+        // and keeps the text after it from referring back past it
+        assertTrue(indexOf(body.toByteArray(), segment) > 0);
+    }
+
+    @Test
+    public void testStreamingDeflated() throws Exception {
+        engine = createEngine("true", null);
+        ApplicationResponseImpl response = new ApplicationResponseImpl
+            (createResponse(), engine, 1000, 1000, 0);
+        response.setRequestAndHttpContext(null, createRequest(true));
+
+        response.getResponseBuffer().append(A);
+        assertTrue(body.size() > 0);
+        byte[] segment = appendCompressed(response, C);
+        response.getResponseBuffer().append(B);
+        appendCompressed(response, C);
+        response.getResponseBuffer().append(A);
+        response.finish();
+
+        assertEquals(A + C + B + C + A, gunzip(body.toByteArray()));
+        assertTrue(indexOf(body.toByteArray(), segment) > 0);
+        assertFalse(events.toString().contains("setContentLength"));
+    }
+
+    @Test
+    public void testNotAccepted() throws Exception {
+        ApplicationResponseImpl response = createResponse(null, false);
+        response.getResponseBuffer().append(A);
+        response.finish();
+
+        assertEquals(A, body.toString("ISO-8859-1"));
+        assertTrue(events.contains("addHeader[Vary, Accept-Encoding]"));
+        assertFalse(events.toString().contains("Content-Encoding"));
+    }
+
+    @Test
+    public void testBelowMinimum() throws Exception {
+        ApplicationResponseImpl response = createResponse(null, true);
+        response.getResponseBuffer().append("tiny");
+        response.finish();
+
+        assertEquals("tiny", body.toString("ISO-8859-1"));
+        assertTrue(events.contains("addHeader[Vary, Accept-Encoding]"));
+        assertFalse(events.toString().contains("Content-Encoding"));
+    }
+
+    @Test
+    public void testContentTypes() throws Exception {
+        contentType = "image/png";
+        ApplicationResponseImpl response = createResponse(null, true);
+        response.getResponseBuffer().append(A);
+        response.finish();
+
+        assertEquals(A, body.toString("ISO-8859-1"));
+        assertFalse(events.toString().contains("Vary"));
+
+        init();
+        contentType = "image/png";
+        response = createResponse("text/html, image/*", true);
+        response.getResponseBuffer().append(A);
+        response.finish();
+
+        assertEquals(A, gunzip(body.toByteArray()));
+    }
+
+    @Test
+    public void testOwnEncoding() throws Exception {
+        ApplicationResponseImpl response = createResponse(null, true);
+        response.setHeader("Content-Encoding", "identity");
+        response.getResponseBuffer().append(A);
+        response.finish();
+
+        assertEquals(A, body.toString("ISO-8859-1"));
+        assertFalse(events.toString().contains("Vary"));
+    }
+
+    @Test
+    public void testDeflaterUnavailable() throws Exception {
+        assumeTrue(!isDeflaterAvailable());
+
+        // compression is turned off, and reported once at most, since
+        // another test may have reported it already
+        TeaServletEngineImpl first = createEngine();
+        TeaServletEngineImpl second = createEngine();
+        PropertyMap properties = new PropertyMap();
+        properties.put("compression.enabled", "true");
+        setCompression(first, properties);
+        setCompression(second, properties);
+
+        assertFalse(first.isCompressible("text/html"));
+        assertFalse(second.isCompressible("text/html"));
+        assertTrue(warnings.size() <= 1);
+    }
+
+    // Creates a buffered response with compression enabled.
+    private ApplicationResponseImpl createResponse(String types,
+                                                   boolean accepted)
+        throws Exception
+    {
+        engine = createEngine("true", types);
+        ApplicationResponseImpl response =
+            new ApplicationResponseImpl(createResponse(), engine);
+        response.setRequestAndHttpContext(null, createRequest(accepted));
+        return response;
+    }
+
+    private TeaServletEngineImpl createEngine(String enabled, String types)
+        throws Exception
+    {
+        // whole responses are deflated by the trove Deflater, which needs
+        // its native library
+        assumeTrue(isDeflaterAvailable());
+
+        PropertyMap properties = new PropertyMap();
+        properties.put("compression.enabled", enabled);
+        if (types != null) {
+            properties.put("compression.types", types);
+        }
+
+        TeaServletEngineImpl engine = createEngine();
+        setCompression(engine, properties);
+        return engine;
+    }
+
+    private static void setCompression(TeaServletEngineImpl engine,
+                                       PropertyMap properties)
+        throws Exception
+    {
+        Method method = TeaServletEngineImpl.class.getDeclaredMethod
+            ("setCompression", PropertyMap.class);
+        method.setAccessible(true);
+        method.invoke(engine, properties);
+    }
+
+    private static boolean isDeflaterAvailable() {
+        try {
+            DeflaterPool.put
+                (DeflaterPool.get(Deflater.DEFAULT_COMPRESSION, true));
+            return true;
+        }
+        catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private int getSizeHint(Template template) throws Exception {
+        Method method = TeaServletEngineImpl.class.getDeclaredMethod
+            ("getSizeHint", Template.class);
+        method.setAccessible(true);
+        return ((Integer) method.invoke(engine, template)).intValue();
+    }
+
+    private Template createTemplate(final String name) {
+        return (Template) Proxy.newProxyInstance
+            (ApplicationResponseImplTest.class.getClassLoader(),
+             new Class<?>[] { Template.class },
+             new InvocationHandler() {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args) {
+                    if ("getName".equals(method.getName())) {
+                        return name;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private ApplicationRequest createRequest(final boolean accepted) {
+        return (ApplicationRequest) Proxy.newProxyInstance
+            (ApplicationResponseImplTest.class.getClassLoader(),
+             new Class<?>[] { ApplicationRequest.class },
+             new InvocationHandler() {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args) {
+                    if ("isCompressionAccepted".equals(method.getName())) {
+                        return Boolean.valueOf(accepted);
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private TeaServletEngineImpl createEngine() throws Exception {
+        Log log = new Log("test", null);
+        log.addLogListener(new LogListener() {
+            public void logMessage(LogEvent e) {
+                if (e.getType() == LogEvent.WARN_TYPE) {
+                    warnings.add(e.getMessage());
+                }
+            }
+
+            public void logException(LogEvent e) {
+                warnings.add(String.valueOf(e.getException()));
+            }
+        });
+
+        TeaServletEngineImpl engine = new TeaServletEngineImpl();
+        Field field = TeaServletEngineImpl.class.getDeclaredField("mLog");
+        field.setAccessible(true);
+        field.set(engine, log);
+        return engine;
+    }
+
+    private HttpServletResponse createResponse() {
+        return createResponse(new ServletOutputStream() {
+            public void write(int b) {
+                body.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                body.write(b, off, len);
+            }
+        });
+    }
+
+    private HttpServletResponse createResponse(final ServletOutputStream out) {
+        return (HttpServletResponse) Proxy.newProxyInstance
+            (ApplicationResponseImplTest.class.getClassLoader(),
+             new Class<?>[] { HttpServletResponse.class },
+             new InvocationHandler() {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args) {
+                    String name = method.getName();
+                    if ("getOutputStream".equals(name)) {
+                        return out;
+                    }
+                    else if ("getCharacterEncoding".equals(name)) {
+                        return "ISO-8859-1";
+                    }
+                    else if ("getContentType".equals(name)) {
+                        return contentType;
+                    }
+                    events.add(name + (args == null ? "" :
+                                       Arrays.asList(args).toString()));
+                    return null;
+                }
+            });
+    }
+
+    // Container stream that is also a channel. Writes through the stream
+    // are recorded, and channel writes are partial, as they may be for a
+    // socket.
+    private class ChannelStream extends ServletOutputStream
+        implements GatheringByteChannel
+    {
+        public void write(int b) {
+            events.add("write");
+            body.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            events.add("write");
+            body.write(b, off, len);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public int write(java.nio.ByteBuffer src) {
+            int length = Math.min(src.remaining(), 1000);
+            byte[] bytes = new byte[length];
+            src.get(bytes);
+            body.write(bytes, 0, length);
+            return length;
+        }
+
+        public long write(java.nio.ByteBuffer[] srcs, int offset,
+                          int length) {
+            events.add("gather");
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                count += write(srcs[i]);
+                if (srcs[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return count;
+        }
+
+        public long write(java.nio.ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+    }
+
+    // Appends the text as a detached segment, compressed into raw deflate
+    // blocks that end on a byte boundary, and returns the compressed bytes.
+    private static byte[] appendCompressed(ApplicationResponseImpl response,
+                                           String text)
+        throws IOException
+    {
+        byte[] bytes = text.getBytes("ISO-8859-1");
+        java.util.zip.Deflater deflater = new java.util.zip.Deflater(6, true);
+        deflater.setInput(bytes);
+        byte[] out = new byte[bytes.length + 1024];
+        int length = deflater.deflate
+            (out, 0, out.length, java.util.zip.Deflater.SYNC_FLUSH);
+        deflater.end();
+
+        response.appendCompressed(bytes(out, length),
+                                  bytes(bytes, bytes.length));
+        return Arrays.copyOf(out, length);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        search: for (int i = 0; i <= bytes.length - part.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (bytes[i + j] != part[j]) {
+                    continue search;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static ByteData bytes(byte[] bytes, int length)
+        throws IOException
+    {
+        DefaultByteBuffer buffer = new DefaultByteBuffer();
+        buffer.append(bytes, 0, length);
+        return buffer;
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        GZIPInputStream in =
+            new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+    private static String text(int lines) {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            buffer.append("line ").append(i).append('\n');
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package org.teatrove.teaservlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.teatrove.teaservlet.stats.TeaServletRequestStats;
+import org.teatrove.teaservlet.stats.TemplateStats;
+import org.teatrove.trove.log.Log;
+import org.teatrove.trove.log.LogEvent;
+import org.teatrove.trove.log.LogListener;
+
+public class TemplateWarmupTest {
+
+    private static File dir;
+
+    private Log log;
+    private List<String> messages;
+    private TeaServlet servlet;
+
+    // the template repository is bound to the first classes directory used
+    // in the VM, so the directory is shared by all tests
+    @BeforeClass
+    public static void createTemplates() throws Exception {
+        dir = File.createTempFile("tea", "warmup");
+        dir.delete();
+        new File(dir, "classes").mkdirs();
+
+        Writer out = new FileWriter(new File(dir, "hello.tea"));
+        out.write("<% template hello(String name, Integer count) " +
+                  "'Hello ' name ' ' count %>");
+        out.close();
+    }
+
+    @AfterClass
+    public static void deleteTemplates() {
+        delete(dir);
+    }
+
+    @Before
+    public void init() {
+        messages = new ArrayList<String>();
+        TeaServletRequestStats.getInstance().reset();
+    }
+
+    @After
+    public void cleanup() {
+        if (servlet != null) {
+            servlet.destroy();
+        }
+        TeaServletRequestStats.getInstance().setParameterSamples(0);
+    }
+
+    @Test
+    public void testPaths() throws Exception {
+        Map<String, String> params = new TreeMap<String, String>();
+        params.put("warmup.paths", "/hello?name=x&count=2, /missing");
+        params.put("warmup.iterations", "10");
+        servlet = start(params);
+
+        assertLogged("No template to warm up for /missing");
+        assertLogged("Warmed up 2 template requests with 10 executions");
+
+        // replayed requests are not recorded
+        assertEquals(0, TeaServletRequestStats.getInstance()
+                     .getStats("hello").getServicedCount());
+    }
+
+    @Test
+    public void testParameterSamples() throws Exception {
+        TemplateStats stats = new TemplateStats("hello", 10, 10);
+        stats.log(0L, 1L, 10L, new Object[] { "x", Integer.valueOf(2) });
+        assertEquals(0, stats.getParameterSamples().length);
+
+        stats = new TemplateStats("hello", 10, 10, 2);
+        StringBuilder name = new StringBuilder("x");
+        stats.log(0L, 1L, 10L, new Object[] { name, null });
+        stats.log(0L, 1L, 10L, new Object[] { "y", new int[] { 1, 2 } });
+        stats.log(0L, 1L, 10L, new Object[] { "z", Integer.valueOf(3) });
+
+        // newest first, copied as strings
+        Object[][] samples = stats.getParameterSamples();
+        assertEquals(2, samples.length);
+        assertEquals("z", samples[0][0]);
+        assertEquals("3", samples[0][1]);
+        assertEquals("y", samples[1][0]);
+        assertEquals("[1, 2]",
+                     java.util.Arrays.toString((String[]) samples[1][1]));
+    }
+
+    @Test
+    public void testSampledTemplates() throws Exception {
+        Map<String, String> params = new TreeMap<String, String>();
+        params.put("warmup.iterations", "10");
+        params.put("stats.parameterSamples", "4");
+        servlet = start(params);
+        assertLogged("Warmed up 0 template requests");
+
+        // the servlet resets the stats when it starts, so sample afterwards
+        TeaServletRequestStats.getInstance().log
+            ("hello", 0L, 1L, 10L, new Object[] { "x", Integer.valueOf(2) });
+        messages.clear();
+
+        TeaServletEngineImpl engine = (TeaServletEngineImpl) servlet.getEngine();
+        new TemplateWarmup(servlet, servlet.getProperties().subMap("warmup"), log)
+            .warmup(engine, engine.getTemplateSource(), null);
+        assertLogged("Warmed up 1 template requests with 10 executions");
+    }
+
+    private void assertLogged(String prefix) {
+        for (String message : messages) {
+            if (message != null && message.startsWith(prefix)) {
+                return;
+            }
+        }
+        fail(prefix + " not in " + messages);
+    }
+
+    private TeaServlet start(Map<String, String> params) throws Exception {
+        params.put("template.path", "file:" + dir.getPath());
+        params.put("template.classes",
+                   "file:" + new File(dir, "classes").getPath());
+        params.put("warmup.enabled", "true");
+
+        log = new Log("warmup", null);
+        log.addLogListener(new LogListener() {
+            public void logMessage(LogEvent e) {
+                messages.add(e.getMessage());
+            }
+
+            public void logException(LogEvent e) {
+                messages.add(String.valueOf(e.getException()));
+            }
+        });
+
+        ServletContext context = createProxy
+            (ServletContext.class, new Attributes("org.teatrove.trove.log.Log",
+                                                   log));
+        ServletConfig config = createProxy
+            (ServletConfig.class, new Config(context, params));
+
+        TeaServlet servlet = new TeaServlet();
+        servlet.init(config);
+        return servlet;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T createProxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance
+            (TemplateWarmupTest.class.getClassLoader(),
+             new Class<?>[] { type }, handler);
+    }
+
+    private static class Attributes implements InvocationHandler {
+        private final String mName;
+        private final Object mValue;
+
+        Attributes(String name, Object value) {
+            mName = name;
+            mValue = value;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("getAttribute".equals(method.getName())) {
+                return mName.equals(args[0]) ? mValue : null;
+            }
+            else if ("getAttributeNames".equals(method.getName()) ||
+                     "getInitParameterNames".equals(method.getName())) {
+                return Collections.enumeration(Collections.emptyList());
+            }
+            return null;
+        }
+    }
+
+    private static class Config implements InvocationHandler {
+        private final ServletContext mContext;
+        private final Map<String, String> mParams;
+
+        Config(ServletContext context, Map<String, String> params) {
+            mContext = context;
+            mParams = params;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getServletContext".equals(name)) {
+                return mContext;
+            }
+            else if ("getServletName".equals(name)) {
+                return "warmup";
+            }
+            else if ("getInitParameter".equals(name)) {
+                return mParams.get(args[0]);
+            }
+            else if ("getInitParameterNames".equals(name)) {
+                return Collections.enumeration(mParams.keySet());
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.teatrove.teaservlet.stats;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TemplateStatsTest {
+
+    @Test
+    public void testContentLengthEstimate() {
+        TemplateStats stats = new TemplateStats("hello", 10, 10);
+        assertEquals(0L, stats.getContentLengthEstimate());
+
+        // the first request sets the estimate
+        stats.log(0L, 1L, 8000L, null);
+        assertEquals(8000L, stats.getContentLengthEstimate());
+
+        // each later request moves it an eighth of the way
+        stats.log(0L, 1L, 16000L, null);
+        assertEquals(9000L, stats.getContentLengthEstimate());
+        stats.log(0L, 1L, 1000L, null);
+        assertEquals(8000L, stats.getContentLengthEstimate());
+
+        stats.reset();
+        assertEquals(0L, stats.getContentLengthEstimate());
+    }
+
+    @Test
+    public void testRequestStatsEstimate() {
+        TeaServletRequestStats requestStats =
+            TeaServletRequestStats.getInstance();
+        requestStats.reset();
+        assertEquals(0L, requestStats.getContentLengthEstimate("hello"));
+
+        requestStats.log("hello", 0L, 1L, 4000L, null);
+        assertEquals(4000L, requestStats.getContentLengthEstimate("hello"));
+
+        requestStats.reset();
+    }
+}
@@ -36,6 +36,7 @@ public abstract class Attribute {
     final static String LINE_NUMBER_TABLE = "LineNumberTable";
     final static String LOCAL_VARIABLE_TABLE = "LocalVariableTable";
     final static String SOURCE_FILE = "SourceFile";
+    final static String STACK_MAP_TABLE = "StackMapTable";
     final static String SYNTHETIC = "Synthetic";
     final static String SIGNATURE = "Signature";
     final static String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
@@ -56,9 +56,17 @@ public class ClassFile {
     private static final int JDK1_1_MAJOR_VERSION = 50;
     private static final int JDK1_1_MINOR_VERSION = 0;
 
+    private static final int MIN_MAJOR_VERSION = 45;
+    private static final int MAX_MAJOR_VERSION = 65;
+
+    /** Class files of this version and later require a StackMapTable. */
+    private static final int STACK_MAP_MAJOR_VERSION = 51;
+
     private int mMajorVersion = JDK1_1_MAJOR_VERSION;
     private int mMinorVersion = JDK1_1_MINOR_VERSION;
 
+    private ClassLoader mClassLoader;
+
     private final String mClassName;
     private final String mSuperClassName;
     private String mInnerClassName;
@@ -719,6 +727,9 @@ public class ClassFile {
         access.setStatic(true);
         inner.mInnerClassName = innerClassName;
         inner.mOuterClass = this;
+        inner.mMajorVersion = mMajorVersion;
+        inner.mMinorVersion = mMinorVersion;
+        inner.mClassLoader = mClassLoader;
 
         if (mInnerClasses == null) {
             mInnerClasses = new ArrayList<ClassFile>();
@@ -798,16 +809,20 @@ public class ClassFile {
     }
 
     /**
-     * Sets the version to use when writing the generated ClassFile. Currently,
-     * only version 45, 3 is supported, and is set by default.
+     * Sets the version to use when writing the generated ClassFile. By
+     * default, version 50, 0 is used. Major versions 45 through 65 are
+     * supported. For version 51 and later, a StackMapTable is computed for
+     * each method built with a CodeBuilder when the ClassFile is written,
+     * which requires that no subroutines (jsr and ret) are used.
      *
      * @exception IllegalArgumentException when the version isn't supported
+     * @see #setClassLoader
      */
     public void setVersion(int major, int minor)
         throws IllegalArgumentException {
 
-        if (major != JDK1_1_MAJOR_VERSION ||
-            minor != JDK1_1_MINOR_VERSION) {
+        if (major < MIN_MAJOR_VERSION || major > MAX_MAJOR_VERSION ||
+            minor < 0 || minor > 65535) {
 
             throw new IllegalArgumentException("Version " + major + ", " +
                                                minor + " is not supported");
@@ -817,6 +832,44 @@ public class ClassFile {
         mMinorVersion = minor;
     }
 
+    /**
+     * Returns the major version to use when writing the generated ClassFile.
+     */
+    public int getMajorVersion() {
+        return mMajorVersion;
+    }
+
+    /**
+     * Returns the minor version to use when writing the generated ClassFile.
+     */
+    public int getMinorVersion() {
+        return mMinorVersion;
+    }
+
+    /**
+     * Sets the ClassLoader used to find the common superclass of types that
+     * are merged when computing a StackMapTable. The class being generated
+     * does not need to be loadable. If set to null, the context ClassLoader
+     * of the current thread is used.
+     */
+    public void setClassLoader(ClassLoader loader) {
+        mClassLoader = loader;
+    }
+
+    /**
+     * Returns the ClassLoader used to find the common superclass of types
+     * that are merged when computing a StackMapTable.
+     */
+    public ClassLoader getClassLoader() {
+        ClassLoader loader = mClassLoader;
+        if (loader == null) {
+            loader = Thread.currentThread().getContextClassLoader();
+            if (loader == null) {
+                loader = ClassFile.class.getClassLoader();
+            }
+        }
+        return loader;
+    }
 
     /**
      * Returns all the runtime invisible annotations defined for this class
@@ -910,6 +963,17 @@ public class ClassFile {
         dout.writeShort(mMinorVersion);
         dout.writeShort(mMajorVersion);
 
+        if (mMajorVersion >= STACK_MAP_MAJOR_VERSION) {
+            // Frames refer to class constants, and so they must be computed
+            // before the constant pool is written.
+            for (int i=0; i<mMethods.size(); i++) {
+                CodeAttr code = mMethods.get(i).getCodeAttr();
+                if (code != null) {
+                    code.buildStackMapTable();
+                }
+            }
+        }
+
         mCp.writeTo(dout);
 
         int modifier = mModifiers.getModifier();
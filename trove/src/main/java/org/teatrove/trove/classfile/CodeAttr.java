@@ -36,6 +36,7 @@ public class CodeAttr extends Attribute {
     
     private LineNumberTableAttr mLineNumberTable;
     private LocalVariableTableAttr mLocalVariableTable;
+    private StackMapTableAttr mStackMapTable;
 
     CodeAttr(ConstantPool cp) {
         super(cp, CODE);
@@ -106,10 +107,39 @@ public class CodeAttr extends Attribute {
             }
             mLocalVariableTable = (LocalVariableTableAttr)attr;
         }
+        else if (attr instanceof StackMapTableAttr) {
+            if (mStackMapTable != null) {
+                mAttributes.remove(mStackMapTable);
+            }
+            mStackMapTable = (StackMapTableAttr)attr;
+        }
 
         mAttributes.add(attr);
     }
     
+    /**
+     * Computes the StackMapTable attribute required by class file version
+     * 51 and later, if the CodeBuffer is a CodeBuilder. Any previously
+     * computed StackMapTable is replaced. This must be called before the
+     * ConstantPool is written, since frames refer to class constants.
+     */
+    void buildStackMapTable() {
+        if (!(mCodeBuffer instanceof CodeBuilder)) {
+            return;
+        }
+
+        StackMapTableAttr attr =
+            ((CodeBuilder)mCodeBuffer).buildStackMapTable();
+
+        if (attr != null) {
+            addAttribute(attr);
+        }
+        else if (mStackMapTable != null) {
+            mAttributes.remove(mStackMapTable);
+            mStackMapTable = null;
+        }
+    }
+
     public Attribute[] getAttributes() {
         Attribute[] attrs = new Attribute[mAttributes.size()];
         return (Attribute[])mAttributes.toArray(attrs);
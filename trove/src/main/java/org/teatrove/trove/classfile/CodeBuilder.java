@@ -138,6 +138,15 @@ public class CodeBuilder implements CodeBuffer, CodeAssembler {
         return mInstructions.getExceptionHandlers();
     }
 
+    /**
+     * Computes the StackMapTable attribute for the code built so far,
+     * removing any unreachable code. Returns null if no frames are required.
+     */
+    StackMapTableAttr buildStackMapTable() {
+        return new StackMapBuilder(mInstructions, mClassFile, mName,
+                                   mThisReference, mParameters).build();
+    }
+
     private void addCode(int stackAdjust, byte opcode) {
         mInstructions.new CodeInstruction(stackAdjust, new byte[] {opcode});
     }
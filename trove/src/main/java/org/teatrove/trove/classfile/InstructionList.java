@@ -44,7 +44,8 @@ class InstructionList implements CodeBuffer {
 
     boolean mResolved = false;
 
-    private List mExceptionHandlers = new ArrayList(4);
+    private List<ExceptionHandler> mExceptionHandlers =
+        new ArrayList<ExceptionHandler>(4);
     private List mLocalVariables = new ArrayList();
 
     private int mMaxStack;
@@ -117,7 +118,7 @@ class InstructionList implements CodeBuffer {
 
         ExceptionHandler[] handlers =
             new ExceptionHandler[mExceptionHandlers.size()];
-        return (ExceptionHandler[])mExceptionHandlers.toArray(handlers);
+        return mExceptionHandlers.toArray(handlers);
     }
 
     public void addExceptionHandler(ExceptionHandler handler) {
@@ -169,7 +170,6 @@ class InstructionList implements CodeBuffer {
 
     private void resolve0() {
         mMaxStack = 0;
-        mMaxLocals = 0;
 
         Instruction instr;
 
@@ -182,19 +182,7 @@ class InstructionList implements CodeBuffer {
         }
 
         // Assign variable numbers using the simplest technique.
-
-        int size = mLocalVariables.size();
-        for (int i=0; i<size; i++) {
-            LocalVariableImpl var = (LocalVariableImpl)mLocalVariables.get(i);
-            if (var.getNumber() < 0) {
-                var.setNumber(mMaxLocals);
-            }
-
-            int max = var.getNumber() + (var.isDoubleWord() ? 2 : 1);
-            if (max > mMaxLocals) {
-                mMaxLocals = max;
-            }
-        }
+        assignLocalNumbers();
 
 
         // Perform variable flow analysis for each local variable, in order to
@@ -288,9 +276,9 @@ class InstructionList implements CodeBuffer {
         stackResolve(0, mFirst, subAdjustMap);
 
         // Continue flow analysis into exception handler entry points.
-        Iterator it = mExceptionHandlers.iterator();
+        Iterator<ExceptionHandler> it = mExceptionHandlers.iterator();
         while (it.hasNext()) {
-            ExceptionHandler handler = (ExceptionHandler)it.next();
+            ExceptionHandler handler = it.next();
             Instruction enter = (Instruction)handler.getCatchLocation();
             stackResolve(1, enter, subAdjustMap);
         }
@@ -356,6 +344,37 @@ class InstructionList implements CodeBuffer {
         mResolved = true;
     }
 
+    /**
+     * Assigns variable numbers to all local variables which don't have one,
+     * using the simplest technique, and returns the maximum number of locals.
+     */
+    int assignLocalNumbers() {
+        mMaxLocals = 0;
+
+        int size = mLocalVariables.size();
+        for (int i=0; i<size; i++) {
+            LocalVariableImpl var = (LocalVariableImpl)mLocalVariables.get(i);
+            if (var.getNumber() < 0) {
+                var.setNumber(mMaxLocals);
+            }
+
+            int max = var.getNumber() + (var.isDoubleWord() ? 2 : 1);
+            if (max > mMaxLocals) {
+                mMaxLocals = max;
+            }
+        }
+
+        return mMaxLocals;
+    }
+
+    /**
+     * Returns the modifiable list of exception handlers, without resolving
+     * the instructions.
+     */
+    List<ExceptionHandler> getExceptionHandlerList() {
+        return mExceptionHandlers;
+    }
+
     private void addBytes(byte[] code) {
         growBuffer(code.length);
         System.arraycopy(code, 0, mByteCodes, mBufferLength, code.length);
@@ -1154,6 +1173,14 @@ class InstructionList implements CodeBuffer {
             return mIsSub;
         }
 
+        /**
+         * Returns true if this conditional branch was too far from its target,
+         * and so it was reversed to hop over an inserted goto_w instruction.
+         */
+        public boolean hasShortHop() {
+            return mHasShortHop;
+        }
+
         public byte[] getBytes() {
             if (!isResolved() || mHasShortHop) {
                 return mBytes;
@@ -1238,6 +1265,10 @@ class InstructionList implements CodeBuffer {
             mInfo = info;
         }
 
+        public ConstantInfo getConstantInfo() {
+            return mInfo;
+        }
+
         public byte[] getBytes() {
             int index = mInfo.getIndex();
 
@@ -1305,6 +1336,10 @@ class InstructionList implements CodeBuffer {
             mWideOnly = wideOnly;
         }
 
+        public ConstantInfo getConstantInfo() {
+            return mInfo;
+        }
+
         public boolean isFlowThrough() {
             return true;
         }
@@ -0,0 +1,1231 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.trove.classfile;
+
+import java.util.*;
+
+/**
+ * Computes the StackMapTable attribute for the instructions of a
+ * CodeBuilder, as required by class files of version 51 and later. The
+ * types of all locals and stack entries are determined by data flow
+ * analysis, and a frame is produced for every branch target, exception
+ * handler and instruction following an unconditional transfer of control.
+ * Unreachable instructions are removed, since the verifier requires frames
+ * for them too. Subroutines (jsr and ret) are not supported.
+ *
+ * <p>Where two paths merge with different object types, the common
+ * superclass is found by loading the classes from the ClassFile's
+ * ClassLoader. If a class cannot be loaded or is an interface, the merged
+ * type is java.lang.Object.
+ *
+ * @see StackMapTableAttr
+ */
+class StackMapBuilder {
+    private static final Integer TOP = StackMapTableAttr.TOP;
+    private static final Integer INTEGER = StackMapTableAttr.INTEGER;
+    private static final Integer FLOAT = StackMapTableAttr.FLOAT;
+    private static final Integer DOUBLE = StackMapTableAttr.DOUBLE;
+    private static final Integer LONG = StackMapTableAttr.LONG;
+    private static final Integer NULL = StackMapTableAttr.NULL;
+    private static final Integer UNINITIALIZED_THIS =
+        StackMapTableAttr.UNINITIALIZED_THIS;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String THROWABLE = "java/lang/Throwable";
+
+    private final InstructionList mInstructions;
+    private final ClassFile mClassFile;
+    private final ConstantPool mCp;
+    private final boolean mConstructor;
+    private final LocalVariable mThisReference;
+    private final LocalVariable[] mParameters;
+
+    private final String mThisName;
+    private final Map<String, String> mSuperclasses =
+        new HashMap<String, String>();
+    private final Map<String, ConstantClassInfo> mClassInfos =
+        new HashMap<String, ConstantClassInfo>();
+
+    // Instructions in list order, and the frames at their entry.
+    private InstructionList.Instruction[] mInstrs;
+    private Map<Location, Integer> mIndexes;
+    private Frame[] mFrames;
+
+    // Exception handler ranges, as instruction indexes.
+    private ExceptionHandler[] mHandlers;
+    private int[] mHandlerStarts;
+    private int[] mHandlerEnds;
+    private int[] mHandlerCatches;
+    private String[] mHandlerTypes;
+
+    private LinkedList<Integer> mWork;
+    private boolean[] mQueued;
+
+    /**
+     * @param thisReference the "this" local variable, or null if static
+     */
+    StackMapBuilder(InstructionList instructions, ClassFile classFile,
+                    String methodName, LocalVariable thisReference,
+                    LocalVariable[] parameters) {
+        mInstructions = instructions;
+        mClassFile = classFile;
+        mCp = classFile.getConstantPool();
+        mConstructor = "<init>".equals(methodName);
+        mThisReference = thisReference;
+        mParameters = parameters;
+        mThisName = internalName(classFile.getClassName());
+    }
+
+    /**
+     * Returns the StackMapTableAttr for the instructions, or null if no
+     * frames are required.
+     */
+    StackMapTableAttr build() {
+        if (mInstructions.mFirst == null) {
+            return null;
+        }
+
+        int maxLocals = mInstructions.assignLocalNumbers();
+        Object[] initial = new Object[maxLocals];
+        Arrays.fill(initial, TOP);
+
+        if (mThisReference != null) {
+            initial[mThisReference.getNumber()] =
+                (mConstructor && mClassFile.getSuperClassName() != null) ?
+                UNINITIALIZED_THIS : mThisName;
+        }
+
+        for (int i=0; i<mParameters.length; i++) {
+            LocalVariable param = mParameters[i];
+            setLocal(initial, param.getNumber(), itemOf(param.getType()));
+        }
+
+        analyze(initial);
+        while (removeUnreachable()) {
+            analyze(initial);
+        }
+
+        // Determine which instructions require frames.
+
+        int count = mInstrs.length;
+        boolean[] required = new boolean[count];
+        InstructionList.BranchInstruction[] conditions =
+            new InstructionList.BranchInstruction[count];
+
+        for (int i=0; i<count; i++) {
+            InstructionList.Instruction instr = mInstrs[i];
+            if (mFrames[i] == null) {
+                continue;
+            }
+
+            Location[] targets = instr.getBranchTargets();
+            if (targets != null) {
+                for (int j=0; j<targets.length; j++) {
+                    required[indexOf(targets[j])] = true;
+                }
+
+                // A conditional branch too far from its target is expanded
+                // with a goto_w, which requires a frame after it.
+                if (instr.isFlowThrough() &&
+                    instr instanceof InstructionList.BranchInstruction &&
+                    i + 1 < count) {
+                    conditions[i + 1] =
+                        (InstructionList.BranchInstruction)instr;
+                }
+            }
+
+            if (!instr.isFlowThrough() && i + 1 < count) {
+                required[i + 1] = true;
+            }
+        }
+
+        for (int i=0; i<mHandlers.length; i++) {
+            required[mHandlerCatches[i]] = true;
+        }
+
+        StackMapTableAttr attr =
+            new StackMapTableAttr(mCp, mInstructions, toLocals(initial));
+
+        for (int i=0; i<count; i++) {
+            if (!required[i] && conditions[i] == null) {
+                continue;
+            }
+
+            // Labels don't generate code, so the frame belongs to the next
+            // real instruction.
+            int j = i;
+            while (j < count &&
+                   mInstrs[j] instanceof InstructionList.LabelInstruction) {
+                j++;
+            }
+
+            if (j >= count || mFrames[j] == null) {
+                continue;
+            }
+
+            Frame frame = mFrames[j];
+            attr.addFrame(mInstrs[j], toLocals(frame.mLocals),
+                          toStack(frame.mStack, frame.mStackSize),
+                          required[i] ? null : conditions[i]);
+        }
+
+        return attr.getFrameCount() == 0 ? null : attr;
+    }
+
+    private void analyze(Object[] initial) {
+        List<InstructionList.Instruction> list =
+            new ArrayList<InstructionList.Instruction>();
+        for (InstructionList.Instruction instr = mInstructions.mFirst;
+             instr != null; instr = instr.mNext) {
+            list.add(instr);
+        }
+
+        int count = list.size();
+        mInstrs = list.toArray(new InstructionList.Instruction[count]);
+
+        mIndexes = new IdentityHashMap<Location, Integer>(count * 2);
+        for (int i=0; i<count; i++) {
+            mIndexes.put(mInstrs[i], new Integer(i));
+        }
+
+        List<ExceptionHandler> handlers =
+            mInstructions.getExceptionHandlerList();
+        int handlerCount = handlers.size();
+        mHandlers = handlers.toArray(new ExceptionHandler[handlerCount]);
+        mHandlerStarts = new int[handlerCount];
+        mHandlerEnds = new int[handlerCount];
+        mHandlerCatches = new int[handlerCount];
+        mHandlerTypes = new String[handlerCount];
+
+        for (int i=0; i<handlerCount; i++) {
+            ExceptionHandler handler = mHandlers[i];
+            mHandlerStarts[i] = indexOf(handler.getStartLocation());
+            mHandlerEnds[i] = indexOf(handler.getEndLocation());
+            mHandlerCatches[i] = indexOf(handler.getCatchLocation());
+
+            ConstantClassInfo catchType = handler.getCatchType();
+            mHandlerTypes[i] = (catchType == null) ?
+                THROWABLE : itemOf(catchType.getType()).toString();
+        }
+
+        mFrames = new Frame[count];
+        mWork = new LinkedList<Integer>();
+        mQueued = new boolean[count];
+
+        merge(0, new Frame(initial.clone()));
+
+        while (!mWork.isEmpty()) {
+            int index = mWork.removeFirst().intValue();
+            mQueued[index] = false;
+            flow(index);
+        }
+    }
+
+    private void flow(int index) {
+        InstructionList.Instruction instr = mInstrs[index];
+        Frame in = mFrames[index];
+        Frame out = new Frame(in);
+
+        execute(instr, out);
+
+        if (!(instr instanceof InstructionList.LabelInstruction)) {
+            for (int i=0; i<mHandlers.length; i++) {
+                if (mHandlerStarts[i] <= index && index < mHandlerEnds[i]) {
+                    // Locals may be modified by the instruction, so the
+                    // handler must accept the locals before and after.
+                    merge(mHandlerCatches[i],
+                          new Frame(in.mLocals, mHandlerTypes[i]));
+                    merge(mHandlerCatches[i],
+                          new Frame(out.mLocals, mHandlerTypes[i]));
+                }
+            }
+        }
+
+        if (instr.isFlowThrough()) {
+            if (index + 1 >= mInstrs.length) {
+                throw new RuntimeException
+                    ("Execution flows through end of method");
+            }
+            merge(index + 1, out);
+        }
+
+        Location[] targets = instr.getBranchTargets();
+        if (targets != null) {
+            for (int i=0; i<targets.length; i++) {
+                merge(indexOf(targets[i]), out);
+            }
+        }
+    }
+
+    private void merge(int index, Frame frame) {
+        Frame existing = mFrames[index];
+        if (existing == null) {
+            mFrames[index] = new Frame(frame);
+        }
+        else if (!existing.merge(frame)) {
+            return;
+        }
+
+        if (!mQueued[index]) {
+            mQueued[index] = true;
+            mWork.add(new Integer(index));
+        }
+    }
+
+    /**
+     * Removes all unreachable instructions, and the exception handlers which
+     * only guard unreachable instructions. Returns true if anything was
+     * removed.
+     */
+    private boolean removeUnreachable() {
+        boolean removed = false;
+
+        for (int i=0; i<mHandlers.length; i++) {
+            boolean reachable = false;
+            for (int j=mHandlerStarts[i]; j<mHandlerEnds[i]; j++) {
+                if (mFrames[j] != null &&
+                    !(mInstrs[j] instanceof InstructionList.LabelInstruction)) {
+                    reachable = true;
+                    break;
+                }
+            }
+
+            if (!reachable) {
+                mInstructions.getExceptionHandlerList().remove(mHandlers[i]);
+                removed = true;
+            }
+        }
+
+        for (int i=0; i<mInstrs.length; i++) {
+            if (mFrames[i] == null &&
+                !(mInstrs[i] instanceof InstructionList.LabelInstruction)) {
+                mInstrs[i].remove();
+                removed = true;
+            }
+        }
+
+        return removed;
+    }
+
+    private int indexOf(Location location) {
+        Integer index = mIndexes.get(location);
+        if (index == null) {
+            throw new IllegalStateException
+                ("Location is not an instruction in the method: " + location);
+        }
+        return index.intValue();
+    }
+
+    /**
+     * Simulates the effect of the given instruction on the frame.
+     */
+    private void execute(InstructionList.Instruction instr, Frame frame) {
+        if (instr instanceof InstructionList.LabelInstruction ||
+            instr instanceof InstructionList.ShortIncrementInstruction) {
+            return;
+        }
+
+        if (instr instanceof InstructionList.LoadLocalInstruction) {
+            LocalVariable local =
+                ((InstructionList.LocalOperandInstruction)instr)
+                .getLocalVariable();
+            Object item = itemOf(local.getType());
+            Object current = frame.mLocals[local.getNumber()];
+            if (!local.getType().isPrimitive() && isReference(current)) {
+                item = current;
+            }
+            frame.push(item);
+            return;
+        }
+
+        if (instr instanceof InstructionList.StoreLocalInstruction) {
+            LocalVariable local =
+                ((InstructionList.LocalOperandInstruction)instr)
+                .getLocalVariable();
+            Object item = itemOf(local.getType());
+            Object value = frame.pop();
+            if (value == UNINITIALIZED_THIS ||
+                value instanceof InstructionList.Instruction) {
+                item = value;
+            }
+            setLocal(frame.mLocals, local.getNumber(), item);
+            return;
+        }
+
+        if (instr instanceof InstructionList.LoadConstantInstruction) {
+            ConstantInfo info =
+                ((InstructionList.LoadConstantInstruction)instr)
+                .getConstantInfo();
+            frame.push(itemOf(info));
+            return;
+        }
+
+        if (instr instanceof InstructionList.SwitchInstruction) {
+            frame.pop();
+            return;
+        }
+
+        if (instr instanceof InstructionList.ConstantOperandInstruction) {
+            executeConstantOperand
+                ((InstructionList.ConstantOperandInstruction)instr, frame);
+            return;
+        }
+
+        if (!(instr instanceof InstructionList.CodeInstruction)) {
+            throw new IllegalStateException
+                ("Unknown instruction: " + instr);
+        }
+
+        byte[] bytes = ((InstructionList.CodeInstruction)instr).mBytes;
+        byte opcode = bytes[0];
+
+        Object v1, v2, v3, v4;
+
+        switch (opcode) {
+        case Opcode.NOP:
+        case Opcode.BREAKPOINT:
+        case Opcode.GOTO:
+        case Opcode.GOTO_W:
+        case Opcode.RETURN:
+        case Opcode.INEG:
+        case Opcode.LNEG:
+        case Opcode.FNEG:
+        case Opcode.DNEG:
+        case Opcode.I2B:
+        case Opcode.I2C:
+        case Opcode.I2S:
+            break;
+
+        case Opcode.ACONST_NULL:
+            frame.push(NULL);
+            break;
+
+        case Opcode.ICONST_M1:
+        case Opcode.ICONST_0:
+        case Opcode.ICONST_1:
+        case Opcode.ICONST_2:
+        case Opcode.ICONST_3:
+        case Opcode.ICONST_4:
+        case Opcode.ICONST_5:
+        case Opcode.BIPUSH:
+        case Opcode.SIPUSH:
+            frame.push(INTEGER);
+            break;
+
+        case Opcode.LCONST_0:
+        case Opcode.LCONST_1:
+            frame.push(LONG);
+            break;
+
+        case Opcode.FCONST_0:
+        case Opcode.FCONST_1:
+        case Opcode.FCONST_2:
+            frame.push(FLOAT);
+            break;
+
+        case Opcode.DCONST_0:
+        case Opcode.DCONST_1:
+            frame.push(DOUBLE);
+            break;
+
+        case Opcode.IALOAD:
+        case Opcode.BALOAD:
+        case Opcode.CALOAD:
+        case Opcode.SALOAD:
+            frame.pop(2);
+            frame.push(INTEGER);
+            break;
+        case Opcode.LALOAD:
+            frame.pop(2);
+            frame.push(LONG);
+            break;
+        case Opcode.FALOAD:
+            frame.pop(2);
+            frame.push(FLOAT);
+            break;
+        case Opcode.DALOAD:
+            frame.pop(2);
+            frame.push(DOUBLE);
+            break;
+        case Opcode.AALOAD:
+            frame.pop();
+            v1 = frame.pop();
+            if (v1 instanceof String && ((String)v1).startsWith("[")) {
+                frame.push(itemOf(((String)v1).substring(1)));
+            }
+            else if (v1 == NULL) {
+                frame.push(NULL);
+            }
+            else {
+                frame.push(OBJECT);
+            }
+            break;
+
+        case Opcode.IASTORE:
+        case Opcode.LASTORE:
+        case Opcode.FASTORE:
+        case Opcode.DASTORE:
+        case Opcode.AASTORE:
+        case Opcode.BASTORE:
+        case Opcode.CASTORE:
+        case Opcode.SASTORE:
+            frame.pop(3);
+            break;
+
+        case Opcode.POP:
+        case Opcode.MONITORENTER:
+        case Opcode.MONITOREXIT:
+        case Opcode.IRETURN:
+        case Opcode.LRETURN:
+        case Opcode.FRETURN:
+        case Opcode.DRETURN:
+        case Opcode.ARETURN:
+        case Opcode.ATHROW:
+        case Opcode.IFEQ:
+        case Opcode.IFNE:
+        case Opcode.IFLT:
+        case Opcode.IFGE:
+        case Opcode.IFGT:
+        case Opcode.IFLE:
+        case Opcode.IFNULL:
+        case Opcode.IFNONNULL:
+            frame.pop();
+            break;
+
+        case Opcode.POP2:
+            if (!isWide(frame.pop())) {
+                frame.pop();
+            }
+            break;
+
+        case Opcode.IF_ICMPEQ:
+        case Opcode.IF_ICMPNE:
+        case Opcode.IF_ICMPLT:
+        case Opcode.IF_ICMPGE:
+        case Opcode.IF_ICMPGT:
+        case Opcode.IF_ICMPLE:
+        case Opcode.IF_ACMPEQ:
+        case Opcode.IF_ACMPNE:
+            frame.pop(2);
+            break;
+
+        case Opcode.DUP:
+            v1 = frame.pop();
+            frame.push(v1);
+            frame.push(v1);
+            break;
+
+        case Opcode.DUP_X1:
+            v1 = frame.pop();
+            v2 = frame.pop();
+            frame.push(v1);
+            frame.push(v2);
+            frame.push(v1);
+            break;
+
+        case Opcode.DUP_X2:
+            v1 = frame.pop();
+            v2 = frame.pop();
+            if (isWide(v2)) {
+                frame.push(v1);
+                frame.push(v2);
+                frame.push(v1);
+            }
+            else {
+                v3 = frame.pop();
+                frame.push(v1);
+                frame.push(v3);
+                frame.push(v2);
+                frame.push(v1);
+            }
+            break;
+
+        case Opcode.DUP2:
+            v1 = frame.pop();
+            if (isWide(v1)) {
+                frame.push(v1);
+                frame.push(v1);
+            }
+            else {
+                v2 = frame.pop();
+                frame.push(v2);
+                frame.push(v1);
+                frame.push(v2);
+                frame.push(v1);
+            }
+            break;
+
+        case Opcode.DUP2_X1:
+            v1 = frame.pop();
+            if (isWide(v1)) {
+                v2 = frame.pop();
+                frame.push(v1);
+                frame.push(v2);
+                frame.push(v1);
+            }
+            else {
+                v2 = frame.pop();
+                v3 = frame.pop();
+                frame.push(v2);
+                frame.push(v1);
+                frame.push(v3);
+                frame.push(v2);
+                frame.push(v1);
+            }
+            break;
+
+        case Opcode.DUP2_X2:
+            v1 = frame.pop();
+            if (isWide(v1)) {
+                v2 = frame.pop();
+                if (isWide(v2)) {
+                    frame.push(v1);
+                    frame.push(v2);
+                    frame.push(v1);
+                }
+                else {
+                    v3 = frame.pop();
+                    frame.push(v1);
+                    frame.push(v3);
+                    frame.push(v2);
+                    frame.push(v1);
+                }
+            }
+            else {
+                v2 = frame.pop();
+                v3 = frame.pop();
+                if (isWide(v3)) {
+                    frame.push(v2);
+                    frame.push(v1);
+                    frame.push(v3);
+                    frame.push(v2);
+                    frame.push(v1);
+                }
+                else {
+                    v4 = frame.pop();
+                    frame.push(v2);
+                    frame.push(v1);
+                    frame.push(v4);
+                    frame.push(v3);
+                    frame.push(v2);
+                    frame.push(v1);
+                }
+            }
+            break;
+
+        case Opcode.SWAP:
+            v1 = frame.pop();
+            v2 = frame.pop();
+            frame.push(v1);
+            frame.push(v2);
+            break;
+
+        case Opcode.IADD:
+        case Opcode.ISUB:
+        case Opcode.IMUL:
+        case Opcode.IDIV:
+        case Opcode.IREM:
+        case Opcode.ISHL:
+        case Opcode.ISHR:
+        case Opcode.IUSHR:
+        case Opcode.IAND:
+        case Opcode.IOR:
+        case Opcode.IXOR:
+        case Opcode.LCMP:
+        case Opcode.FCMPL:
+        case Opcode.FCMPG:
+        case Opcode.DCMPL:
+        case Opcode.DCMPG:
+            frame.pop(2);
+            frame.push(INTEGER);
+            break;
+
+        case Opcode.LADD:
+        case Opcode.LSUB:
+        case Opcode.LMUL:
+        case Opcode.LDIV:
+        case Opcode.LREM:
+        case Opcode.LSHL:
+        case Opcode.LSHR:
+        case Opcode.LUSHR:
+        case Opcode.LAND:
+        case Opcode.LOR:
+        case Opcode.LXOR:
+            frame.pop(2);
+            frame.push(LONG);
+            break;
+
+        case Opcode.FADD:
+        case Opcode.FSUB:
+        case Opcode.FMUL:
+        case Opcode.FDIV:
+        case Opcode.FREM:
+            frame.pop(2);
+            frame.push(FLOAT);
+            break;
+
+        case Opcode.DADD:
+        case Opcode.DSUB:
+        case Opcode.DMUL:
+        case Opcode.DDIV:
+        case Opcode.DREM:
+            frame.pop(2);
+            frame.push(DOUBLE);
+            break;
+
+        case Opcode.L2I:
+        case Opcode.F2I:
+        case Opcode.D2I:
+        case Opcode.ARRAYLENGTH:
+            frame.pop();
+            frame.push(INTEGER);
+            break;
+
+        case Opcode.I2L:
+        case Opcode.F2L:
+        case Opcode.D2L:
+            frame.pop();
+            frame.push(LONG);
+            break;
+
+        case Opcode.I2F:
+        case Opcode.L2F:
+        case Opcode.D2F:
+            frame.pop();
+            frame.push(FLOAT);
+            break;
+
+        case Opcode.I2D:
+        case Opcode.L2D:
+        case Opcode.F2D:
+            frame.pop();
+            frame.push(DOUBLE);
+            break;
+
+        case Opcode.NEWARRAY:
+            frame.pop();
+            frame.push(arrayItemOf(bytes[1]));
+            break;
+
+        case Opcode.JSR:
+        case Opcode.JSR_W:
+        case Opcode.RET:
+            throw new IllegalStateException
+                ("Subroutines are not supported by class file version " +
+                 "51 and later");
+
+        default:
+            throw new IllegalStateException
+                ("Unsupported opcode: " + Opcode.getMnemonic(opcode));
+        }
+    }
+
+    private void executeConstantOperand
+        (InstructionList.ConstantOperandInstruction instr, Frame frame)
+    {
+        byte opcode = instr.mBytes[0];
+        ConstantInfo info = instr.getConstantInfo();
+
+        switch (opcode) {
+        case Opcode.GETSTATIC:
+            frame.push(itemOf((TypeDesc)((ConstantFieldInfo)info)
+                              .getNameAndType().getType()));
+            break;
+        case Opcode.PUTSTATIC:
+            frame.pop();
+            break;
+        case Opcode.GETFIELD:
+            frame.pop();
+            frame.push(itemOf((TypeDesc)((ConstantFieldInfo)info)
+                              .getNameAndType().getType()));
+            break;
+        case Opcode.PUTFIELD:
+            frame.pop(2);
+            break;
+
+        case Opcode.INVOKEVIRTUAL:
+        case Opcode.INVOKESPECIAL:
+        case Opcode.INVOKESTATIC:
+        case Opcode.INVOKEINTERFACE: {
+            ConstantNameAndTypeInfo nameAndType;
+            if (info instanceof ConstantInterfaceMethodInfo) {
+                nameAndType =
+                    ((ConstantInterfaceMethodInfo)info).getNameAndType();
+            }
+            else {
+                nameAndType = ((ConstantMethodInfo)info).getNameAndType();
+            }
+
+            MethodDesc desc = (MethodDesc)nameAndType.getType();
+            frame.pop(desc.getParameterCount());
+
+            if (opcode != Opcode.INVOKESTATIC) {
+                Object receiver = frame.pop();
+                if (opcode == Opcode.INVOKESPECIAL &&
+                    "<init>".equals(nameAndType.getName())) {
+
+                    // The object is now initialized.
+                    if (receiver == UNINITIALIZED_THIS) {
+                        frame.replace(receiver, mThisName);
+                    }
+                    else if (receiver instanceof
+                             InstructionList.ConstantOperandInstruction) {
+                        ConstantClassInfo type = (ConstantClassInfo)
+                            ((InstructionList.ConstantOperandInstruction)
+                             receiver).getConstantInfo();
+                        frame.replace(receiver, itemOf(type.getType()));
+                    }
+                }
+            }
+
+            TypeDesc ret = desc.getReturnType();
+            if (ret != null && ret != TypeDesc.VOID) {
+                frame.push(itemOf(ret));
+            }
+            break;
+        }
+
+        case Opcode.NEW:
+            // Uninitialized objects are identified by the new instruction.
+            frame.push(instr);
+            break;
+
+        case Opcode.ANEWARRAY:
+            frame.pop();
+            frame.push(itemOf(((ConstantClassInfo)info).getType()
+                              .toArrayType()));
+            break;
+
+        case Opcode.MULTIANEWARRAY:
+            frame.pop(instr.mBytes[3] & 0xff);
+            frame.push(itemOf(((ConstantClassInfo)info).getType()));
+            break;
+
+        case Opcode.CHECKCAST:
+            frame.pop();
+            frame.push(itemOf(((ConstantClassInfo)info).getType()));
+            break;
+
+        case Opcode.INSTANCEOF:
+            frame.pop();
+            frame.push(INTEGER);
+            break;
+
+        default:
+            throw new IllegalStateException
+                ("Unsupported opcode: " + Opcode.getMnemonic(opcode));
+        }
+    }
+
+    /**
+     * Converts a frame's locals into those written to the StackMapTable, in
+     * which long and double locals occupy a single entry, and trailing
+     * unused locals are dropped.
+     */
+    private Object[] toLocals(Object[] locals) {
+        int length = locals.length;
+        while (length > 0 && locals[length - 1] == TOP) {
+            length--;
+        }
+
+        List<Object> list = new ArrayList<Object>(length);
+        for (int i=0; i<length; i++) {
+            Object item = locals[i];
+            list.add(toItem(item));
+            if (isWide(item)) {
+                i++;
+            }
+        }
+
+        return list.toArray();
+    }
+
+    private Object[] toStack(Object[] stack, int size) {
+        Object[] items = new Object[size];
+        for (int i=0; i<size; i++) {
+            items[i] = toItem(stack[i]);
+        }
+        return items;
+    }
+
+    private Object toItem(Object item) {
+        if (!(item instanceof String)) {
+            return item;
+        }
+
+        String name = (String)item;
+        ConstantClassInfo info = mClassInfos.get(name);
+        if (info == null) {
+            TypeDesc type;
+            if (name.startsWith("[")) {
+                type = TypeDesc.forDescriptor(name);
+            }
+            else {
+                type = TypeDesc.forClass(name.replace('/', '.'));
+            }
+            info = ConstantClassInfo.make(mCp, type);
+            mClassInfos.put(name, info);
+        }
+        return info;
+    }
+
+    // Item utilities. Object types are represented by their internal class
+    // names, or descriptors for arrays.
+
+    private static Object itemOf(TypeDesc type) {
+        switch (type.getTypeCode()) {
+        case TypeDesc.BOOLEAN_CODE:
+        case TypeDesc.CHAR_CODE:
+        case TypeDesc.BYTE_CODE:
+        case TypeDesc.SHORT_CODE:
+        case TypeDesc.INT_CODE:
+            return INTEGER;
+        case TypeDesc.LONG_CODE:
+            return LONG;
+        case TypeDesc.FLOAT_CODE:
+            return FLOAT;
+        case TypeDesc.DOUBLE_CODE:
+            return DOUBLE;
+        case TypeDesc.VOID_CODE:
+            throw new IllegalArgumentException("Void type has no item");
+        }
+
+        return itemOf(type.getDescriptor());
+    }
+
+    private static Object itemOf(String descriptor) {
+        switch (descriptor.charAt(0)) {
+        case 'Z':
+        case 'C':
+        case 'B':
+        case 'S':
+        case 'I':
+            return INTEGER;
+        case 'J':
+            return LONG;
+        case 'F':
+            return FLOAT;
+        case 'D':
+            return DOUBLE;
+        case 'L':
+            return descriptor.substring(1, descriptor.length() - 1);
+        default:
+            return descriptor;
+        }
+    }
+
+    private static Object itemOf(ConstantInfo info) {
+        if (info instanceof ConstantIntegerInfo) {
+            return INTEGER;
+        }
+        else if (info instanceof ConstantLongInfo) {
+            return LONG;
+        }
+        else if (info instanceof ConstantFloatInfo) {
+            return FLOAT;
+        }
+        else if (info instanceof ConstantDoubleInfo) {
+            return DOUBLE;
+        }
+        else if (info instanceof ConstantStringInfo) {
+            return "java/lang/String";
+        }
+        else if (info instanceof ConstantClassInfo) {
+            return "java/lang/Class";
+        }
+
+        throw new IllegalStateException("Unsupported constant: " + info);
+    }
+
+    private static Object arrayItemOf(byte typeCode) {
+        switch (typeCode) {
+        case TypeDesc.BOOLEAN_CODE:
+            return "[Z";
+        case TypeDesc.CHAR_CODE:
+            return "[C";
+        case TypeDesc.FLOAT_CODE:
+            return "[F";
+        case TypeDesc.DOUBLE_CODE:
+            return "[D";
+        case TypeDesc.BYTE_CODE:
+            return "[B";
+        case TypeDesc.SHORT_CODE:
+            return "[S";
+        case TypeDesc.INT_CODE:
+            return "[I";
+        case TypeDesc.LONG_CODE:
+            return "[J";
+        default:
+            throw new IllegalStateException
+                ("Unsupported array type: " + typeCode);
+        }
+    }
+
+    private static String internalName(String className) {
+        return className.replace('.', '/');
+    }
+
+    private static String descriptorOf(String item) {
+        return item.startsWith("[") ? item : 'L' + item + ';';
+    }
+
+    private static boolean isWide(Object item) {
+        return item == LONG || item == DOUBLE;
+    }
+
+    private static boolean isReference(Object item) {
+        return item == NULL || item == UNINITIALIZED_THIS ||
+            item instanceof String ||
+            item instanceof InstructionList.Instruction;
+    }
+
+    private static void setLocal(Object[] locals, int number, Object item) {
+        if (number > 0 && isWide(locals[number - 1])) {
+            locals[number - 1] = TOP;
+        }
+        locals[number] = item;
+        if (isWide(item)) {
+            locals[number + 1] = TOP;
+        }
+    }
+
+    private Object mergeItems(Object a, Object b) {
+        if (a.equals(b)) {
+            return a;
+        }
+        if (a == NULL && b instanceof String) {
+            return b;
+        }
+        if (b == NULL && a instanceof String) {
+            return a;
+        }
+        if (a instanceof String && b instanceof String) {
+            return commonSuperclass((String)a, (String)b);
+        }
+        return TOP;
+    }
+
+    private String commonSuperclass(String a, String b) {
+        if (a.startsWith("[") || b.startsWith("[")) {
+            if (a.startsWith("[") && b.startsWith("[")) {
+                Object ca = itemOf(a.substring(1));
+                Object cb = itemOf(b.substring(1));
+                if (ca instanceof String && cb instanceof String) {
+                    return '[' + descriptorOf(commonSuperclass
+                                              ((String)ca, (String)cb));
+                }
+            }
+            return OBJECT;
+        }
+
+        List<String> chain = getSuperclasses(a);
+        if (chain == null) {
+            return OBJECT;
+        }
+
+        for (String name = b; name != null; name = getSuperclass(name)) {
+            if (chain.contains(name)) {
+                return name;
+            }
+        }
+
+        return OBJECT;
+    }
+
+    /**
+     * Returns the given class and all of its superclasses, or null if any
+     * are unknown or if the class is an interface.
+     */
+    private List<String> getSuperclasses(String name) {
+        List<String> chain = new ArrayList<String>();
+        while (name != null) {
+            chain.add(name);
+            if (OBJECT.equals(name)) {
+                return chain;
+            }
+            name = getSuperclass(name);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the internal name of the superclass, or null if unknown or if
+     * the given class is an interface or java.lang.Object.
+     */
+    private String getSuperclass(String name) {
+        if (mSuperclasses.containsKey(name)) {
+            return mSuperclasses.get(name);
+        }
+
+        String superName = null;
+
+        ClassFile cf = findClassFile(name);
+        if (cf != null) {
+            if (!cf.getModifiers().isInterface() &&
+                cf.getSuperClassName() != null) {
+                superName = internalName(cf.getSuperClassName());
+            }
+        }
+        else {
+            try {
+                Class<?> clazz = Class.forName
+                    (name.replace('/', '.'), false,
+                     mClassFile.getClassLoader());
+                if (!clazz.isInterface() && clazz.getSuperclass() != null) {
+                    superName = internalName(clazz.getSuperclass().getName());
+                }
+            }
+            catch (ClassNotFoundException e) {
+            }
+            catch (LinkageError e) {
+            }
+        }
+
+        mSuperclasses.put(name, superName);
+        return superName;
+    }
+
+    /**
+     * Finds the ClassFile being generated for the given class, which cannot
+     * be loaded yet.
+     */
+    private ClassFile findClassFile(String name) {
+        ClassFile root = mClassFile;
+        while (root.getOuterClass() != null) {
+            root = root.getOuterClass();
+        }
+        return findClassFile(root, name);
+    }
+
+    private static ClassFile findClassFile(ClassFile cf, String name) {
+        if (internalName(cf.getClassName()).equals(name)) {
+            return cf;
+        }
+
+        ClassFile[] inner = cf.getInnerClasses();
+        for (int i=0; i<inner.length; i++) {
+            ClassFile found = findClassFile(inner[i], name);
+            if (found != null) {
+                return found;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The types of the locals and stack entries at an instruction. Long and
+     * double locals occupy two slots, but a single stack entry.
+     */
+    private class Frame {
+        Object[] mLocals;
+        Object[] mStack;
+        int mStackSize;
+
+        Frame(Object[] locals) {
+            mLocals = locals;
+            mStack = new Object[4];
+        }
+
+        /**
+         * Creates a frame for entering an exception handler.
+         */
+        Frame(Object[] locals, String exceptionType) {
+            mLocals = locals.clone();
+            mStack = new Object[] { exceptionType };
+            mStackSize = 1;
+        }
+
+        Frame(Frame frame) {
+            mLocals = frame.mLocals.clone();
+            mStack = frame.mStack.clone();
+            mStackSize = frame.mStackSize;
+        }
+
+        void push(Object item) {
+            if (mStackSize >= mStack.length) {
+                Object[] stack = new Object[mStack.length * 2];
+                System.arraycopy(mStack, 0, stack, 0, mStackSize);
+                mStack = stack;
+            }
+            mStack[mStackSize++] = item;
+        }
+
+        Object pop() {
+            if (mStackSize <= 0) {
+                throw new IllegalStateException("Stack underflow");
+            }
+            Object item = mStack[--mStackSize];
+            mStack[mStackSize] = null;
+            return item;
+        }
+
+        void pop(int count) {
+            while (--count >= 0) {
+                pop();
+            }
+        }
+
+        /**
+         * Replaces all occurrences of an uninitialized type.
+         */
+        void replace(Object from, Object to) {
+            for (int i=0; i<mLocals.length; i++) {
+                if (mLocals[i] == from) {
+                    mLocals[i] = to;
+                }
+            }
+            for (int i=0; i<mStackSize; i++) {
+                if (mStack[i] == from) {
+                    mStack[i] = to;
+                }
+            }
+        }
+
+        /**
+         * Merges the given frame into this one, returning true if this frame
+         * changed.
+         */
+        boolean merge(Frame frame) {
+            if (mStackSize != frame.mStackSize) {
+                throw new IllegalStateException
+                    ("Stack depth different at merged instruction: " +
+                     mStackSize + " != " + frame.mStackSize);
+            }
+
+            boolean changed = false;
+
+            for (int i=0; i<mLocals.length; i++) {
+                Object item = mergeItems(mLocals[i], frame.mLocals[i]);
+                if (!item.equals(mLocals[i])) {
+                    mLocals[i] = item;
+                    changed = true;
+                }
+            }
+
+            for (int i=0; i<mStackSize; i++) {
+                Object item = mergeItems(mStack[i], frame.mStack[i]);
+                if (!item.equals(mStack[i])) {
+                    mStack[i] = item;
+                    changed = true;
+                }
+            }
+
+            return changed;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.trove.classfile;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class corresponds to the StackMapTable_attribute structure as defined
+ * in section 4.7.4 of <i>The Java Virtual Machine Specification, Java SE 7
+ * Edition</i>. Frames are defined against Locations, and so their offsets are
+ * only computed when the attribute is written. Verification types are either
+ * one of the Integer item constants, a ConstantClassInfo for an object type,
+ * or the Location of the new instruction that created an uninitialized
+ * object.
+ *
+ * @see StackMapBuilder
+ */
+class StackMapTableAttr extends Attribute {
+    static final Integer TOP = new Integer(0);
+    static final Integer INTEGER = new Integer(1);
+    static final Integer FLOAT = new Integer(2);
+    static final Integer DOUBLE = new Integer(3);
+    static final Integer LONG = new Integer(4);
+    static final Integer NULL = new Integer(5);
+    static final Integer UNINITIALIZED_THIS = new Integer(6);
+
+    private static final int ITEM_OBJECT = 7;
+    private static final int ITEM_UNINITIALIZED = 8;
+
+    private static final int SAME_FRAME_MAX = 63;
+    private static final int SAME_LOCALS_1_STACK_ITEM = 64;
+    private static final int SAME_LOCALS_1_STACK_ITEM_EXTENDED = 247;
+    private static final int CHOP_FRAME = 251;
+    private static final int SAME_FRAME_EXTENDED = 251;
+    private static final int APPEND_FRAME = 251;
+    private static final int FULL_FRAME = 255;
+
+    private final CodeBuffer mCode;
+    private final Object[] mInitialLocals;
+    private List<Frame> mFrames = new ArrayList<Frame>();
+
+    /**
+     * @param code code the frames are defined against, which is resolved
+     * before the frame offsets are computed
+     * @param initialLocals locals implied by the method descriptor
+     */
+    public StackMapTableAttr(ConstantPool cp, CodeBuffer code,
+                             Object[] initialLocals) {
+        super(cp, STACK_MAP_TABLE);
+        mCode = code;
+        mInitialLocals = initialLocals;
+    }
+
+    /**
+     * Adds a frame for the given instruction. If more than one frame is
+     * added for the same location, only the first is written.
+     *
+     * @param condition when not null, the frame is only written if the
+     * conditional branch had to be expanded with a goto_w instruction, in
+     * which case the location is also the target of a branch
+     */
+    public void addFrame(Location location, Object[] locals, Object[] stack,
+                         InstructionList.BranchInstruction condition) {
+        mFrames.add(new Frame(location, locals, stack, condition));
+    }
+
+    public int getFrameCount() {
+        return mFrames.size();
+    }
+
+    public int getLength() {
+        return encode().length;
+    }
+
+    public void writeDataTo(DataOutput dout) throws IOException {
+        dout.write(encode());
+    }
+
+    private byte[] encode() {
+        // Ensure all the locations are known.
+        mCode.getByteCodes();
+
+        SortedMap<Integer, Frame> frames = new TreeMap<Integer, Frame>();
+        for (int i=0; i<mFrames.size(); i++) {
+            Frame frame = mFrames.get(i);
+            if (frame.mCondition != null &&
+                !frame.mCondition.hasShortHop()) {
+                continue;
+            }
+
+            Integer offset = new Integer(frame.mLocation.getLocation());
+            if (!frames.containsKey(offset)) {
+                frames.put(offset, frame);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream dout = new DataOutputStream(bytes);
+
+        try {
+            dout.writeShort(frames.size());
+
+            int lastOffset = -1;
+            Object[] lastLocals = mInitialLocals;
+
+            Iterator<Map.Entry<Integer, Frame>> it =
+                frames.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Frame> entry = it.next();
+                int offset = entry.getKey().intValue();
+                Frame frame = entry.getValue();
+
+                writeFrame(dout, offset - lastOffset - 1,
+                           lastLocals, frame.mLocals, frame.mStack);
+
+                lastOffset = offset;
+                lastLocals = frame.mLocals;
+            }
+
+            dout.flush();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.toString());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void writeFrame(DataOutput dout, int delta, Object[] lastLocals,
+                            Object[] locals, Object[] stack)
+        throws IOException
+    {
+        int diff = locals.length - lastLocals.length;
+
+        if (stack.length == 0 && Arrays.equals(locals, lastLocals)) {
+            if (delta <= SAME_FRAME_MAX) {
+                dout.writeByte(delta);
+            }
+            else {
+                dout.writeByte(SAME_FRAME_EXTENDED);
+                dout.writeShort(delta);
+            }
+        }
+        else if (stack.length == 1 && Arrays.equals(locals, lastLocals)) {
+            if (delta <= SAME_FRAME_MAX) {
+                dout.writeByte(SAME_LOCALS_1_STACK_ITEM + delta);
+            }
+            else {
+                dout.writeByte(SAME_LOCALS_1_STACK_ITEM_EXTENDED);
+                dout.writeShort(delta);
+            }
+            writeItem(dout, stack[0]);
+        }
+        else if (stack.length == 0 && diff < 0 && diff >= -3 &&
+                 startsWith(lastLocals, locals)) {
+            dout.writeByte(CHOP_FRAME + diff);
+            dout.writeShort(delta);
+        }
+        else if (stack.length == 0 && diff > 0 && diff <= 3 &&
+                 startsWith(locals, lastLocals)) {
+            dout.writeByte(APPEND_FRAME + diff);
+            dout.writeShort(delta);
+            for (int i=lastLocals.length; i<locals.length; i++) {
+                writeItem(dout, locals[i]);
+            }
+        }
+        else {
+            dout.writeByte(FULL_FRAME);
+            dout.writeShort(delta);
+            dout.writeShort(locals.length);
+            for (int i=0; i<locals.length; i++) {
+                writeItem(dout, locals[i]);
+            }
+            dout.writeShort(stack.length);
+            for (int i=0; i<stack.length; i++) {
+                writeItem(dout, stack[i]);
+            }
+        }
+    }
+
+    private void writeItem(DataOutput dout, Object item) throws IOException {
+        if (item instanceof Integer) {
+            dout.writeByte(((Integer)item).intValue());
+        }
+        else if (item instanceof ConstantClassInfo) {
+            dout.writeByte(ITEM_OBJECT);
+            dout.writeShort(((ConstantClassInfo)item).getIndex());
+        }
+        else {
+            int offset = ((Location)item).getLocation();
+            if (offset < 0 || offset > 65535) {
+                throw new RuntimeException
+                    ("Value for uninitialized offset out of valid range: " +
+                     offset);
+            }
+            dout.writeByte(ITEM_UNINITIALIZED);
+            dout.writeShort(offset);
+        }
+    }
+
+    private static boolean startsWith(Object[] items, Object[] prefix) {
+        for (int i=0; i<prefix.length; i++) {
+            if (!items[i].equals(prefix[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Frame {
+        final Location mLocation;
+        final Object[] mLocals;
+        final Object[] mStack;
+        final InstructionList.BranchInstruction mCondition;
+
+        Frame(Location location, Object[] locals, Object[] stack,
+              InstructionList.BranchInstruction condition) {
+            mLocation = location;
+            mLocals = locals;
+            mStack = stack;
+            mCondition = condition;
+        }
+    }
+}
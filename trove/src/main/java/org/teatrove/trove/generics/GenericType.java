@@ -27,16 +27,19 @@ import java.lang.reflect.WildcardType;
  *
  * @author Nick Hagan
  */
-public class GenericType {
+public class GenericType implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Only generic types that are classes can be serialized.
     private GenericType rootType;
     private Class<?> type;
     private Type genericType;
 
-    private boolean _supertype;
-    private GenericType supertype;
-    private GenericType[] interfaces;
+    private transient boolean _supertype;
+    private transient GenericType supertype;
+    private transient GenericType[] interfaces;
 
-    private GenericHandler<?> handler;
+    private transient GenericHandler<?> handler;
 
     public GenericType(Class<?> type) {
         this((GenericType) null, type);
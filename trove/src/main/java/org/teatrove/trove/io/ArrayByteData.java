@@ -19,13 +19,14 @@ package org.teatrove.trove.io;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * A ByteData implementation that wraps an array of bytes.
  * 
  * @author Brian S O'Neill
  */
-public class ArrayByteData implements ByteData, Serializable {
+public class ArrayByteData implements ChannelByteData, Serializable {
     private static final long serialVersionUID = 1L;
 
     private byte[] mData;
@@ -50,7 +51,19 @@ public class ArrayByteData implements ByteData, Serializable {
         out.write(mData, mOffset, mLength);
     }
 
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        java.nio.ByteBuffer buffer = wrap();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
     public void reset() {
         // No transient data to reset.
     }
+
+    // Returns a view of the bytes, for gathering writes.
+    java.nio.ByteBuffer wrap() {
+        return java.nio.ByteBuffer.wrap(mData, mOffset, mLength);
+    }
 }
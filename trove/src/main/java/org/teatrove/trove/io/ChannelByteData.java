@@ -0,0 +1,33 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.trove.io;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * ByteData that can be written to a channel without copying its bytes
+ * through an OutputStream. Byte arrays are handed to the channel as is,
+ * several at a time when it supports gathering writes, and files are
+ * transferred by the channel of the file.
+ */
+public interface ChannelByteData extends ByteData {
+    /**
+     * Writes all the bytes to the given blocking channel.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException;
+}
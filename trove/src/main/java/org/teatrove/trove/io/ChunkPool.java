@@ -0,0 +1,132 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.trove.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Re-uses the byte arrays that buffers keep their data in. Chunk sizes are
+ * powers of two from {@link #MIN_SIZE} to {@link #MAX_SIZE}. Each thread
+ * keeps its own chunks, so getting and putting chunks needs no locking.
+ * <p>
+ * The count of bytes kept by each thread is limited by the system property
+ * "org.teatrove.trove.io.ChunkPool.LIMIT", which defaults to 262144. Chunks
+ * put beyond the limit are left to the garbage collector, so memory stays
+ * bounded under bursts. A limit of 0 disables pooling.
+ */
+public class ChunkPool {
+    public static final int MIN_SIZE = 512;
+    public static final int MAX_SIZE = 16384;
+
+    private static final int SIZES = 6;
+    private static final int LIMIT;
+
+    private static final ThreadLocal<ChunkPool> cPools;
+
+    static {
+        LIMIT = Integer.getInteger
+            ("org.teatrove.trove.io.ChunkPool.LIMIT", 262144).intValue();
+
+        cPools = new ThreadLocal<ChunkPool>() {
+            protected ChunkPool initialValue() {
+                return new ChunkPool();
+            }
+        };
+    }
+
+    /**
+     * Returns the chunk size that holds the given count of bytes, limited
+     * to the range of pooled sizes.
+     */
+    public static int getChunkSize(int size) {
+        int chunkSize = MIN_SIZE;
+        while (chunkSize < size && chunkSize < MAX_SIZE) {
+            chunkSize <<= 1;
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Returns a chunk of the given size, which must be a chunk size as
+     * returned by {@link #getChunkSize}. The contents of the chunk are
+     * undefined.
+     */
+    public static byte[] get(int size) {
+        if (LIMIT > 0) {
+            byte[] chunk = cPools.get().remove(size);
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Returns a chunk to the pool of the current thread. The chunk must not
+     * be used by the caller afterwards.
+     */
+    public static void put(byte[] chunk) {
+        if (LIMIT > 0) {
+            cPools.get().add(chunk);
+        }
+    }
+
+    private static int indexOf(int size) {
+        int index = Integer.numberOfTrailingZeros(size) - 9;
+        if (index < 0 || index >= SIZES || size != (MIN_SIZE << index)) {
+            return -1;
+        }
+        return index;
+    }
+
+    // Arrays of a generic type can't be created, but this one is private
+    // and only ever holds List<byte[]> instances, so the cast is safe.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final List<byte[]>[] mChunks = new List[SIZES];
+    private int mByteCount;
+
+    private ChunkPool() {
+    }
+
+    private byte[] remove(int size) {
+        int index = indexOf(size);
+        if (index >= 0) {
+            List<byte[]> chunks = mChunks[index];
+            if (chunks != null && !chunks.isEmpty()) {
+                mByteCount -= size;
+                return chunks.remove(chunks.size() - 1);
+            }
+        }
+        return null;
+    }
+
+    private void add(byte[] chunk) {
+        int size = chunk.length;
+        int index = indexOf(size);
+        if (index < 0 || mByteCount + size > LIMIT) {
+            return;
+        }
+
+        List<byte[]> chunks = mChunks[index];
+        if (chunks == null) {
+            chunks = mChunks[index] = new ArrayList<byte[]>();
+        }
+        chunks.add(chunk);
+        mByteCount += size;
+    }
+}
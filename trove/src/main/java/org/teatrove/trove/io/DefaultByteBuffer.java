@@ -19,15 +19,28 @@ package org.teatrove.trove.io;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.ArrayList;
 
 /**
  * A ByteBuffer implementation that keeps byte data in memory.
+ * <p>
+ * A pooled buffer draws its chunks from the {@link ChunkPool}, doubling the
+ * chunk size as it grows, and returns them when it is cleared or
+ * {@link #release released}. Pooled buffers suit short-lived output, such as
+ * a response, whose data is not used after the buffer is done with.
+ * <p>
+ * When written to a channel, the chunks are handed over without copying,
+ * with gathering writes if the channel supports them.
  *
  * @author Brian S O'Neill
  */
-public class DefaultByteBuffer implements ByteBuffer, Serializable {
+public class DefaultByteBuffer
+    implements ByteBuffer, ChannelByteData, Serializable
+{
     private static final long serialVersionUID = 1L;
 
     private static final int BUFFER_SIZE = 512;
@@ -38,11 +51,35 @@ public class DefaultByteBuffer implements ByteBuffer, Serializable {
     private byte[] mBuffer;
     private int mCursor;
 
+    private final boolean mPooled;
+    private final int mFirstChunkSize;
+    // Size of the next chunk, and chunks drawn from the pool, when pooled.
+    private int mChunkSize;
+    private transient List<byte[]> mPooledChunks;
+
     private int mBaseCount;
 
     private List<ByteBuffer> mCaptureBuffers;
 
     public DefaultByteBuffer() {
+        this(false);
+    }
+
+    /**
+     * @param pooled when true, chunks are drawn from the {@link ChunkPool}
+     */
+    public DefaultByteBuffer(boolean pooled) {
+        this(pooled, 0);
+    }
+
+    /**
+     * @param pooled when true, chunks are drawn from the {@link ChunkPool}
+     * @param sizeHint expected count of bytes, which sizes the first chunk
+     * of a pooled buffer
+     */
+    public DefaultByteBuffer(boolean pooled, int sizeHint) {
+        mPooled = pooled;
+        mFirstChunkSize = ChunkPool.getChunkSize(sizeHint);
         init();
     }
     
@@ -83,6 +120,34 @@ public class DefaultByteBuffer implements ByteBuffer, Serializable {
         }
     }
 
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        int size = mChunks.size();
+        java.nio.ByteBuffer[] buffers = new java.nio.ByteBuffer[size + 1];
+        int count = 0;
+
+        for (int i=0; i<size; i++) {
+            ByteData chunk = mChunks.get(i);
+            if (chunk instanceof ArrayByteData) {
+                buffers[count++] = ((ArrayByteData)chunk).wrap();
+                continue;
+            }
+
+            write(channel, buffers, count);
+            count = 0;
+            if (chunk instanceof ChannelByteData) {
+                ((ChannelByteData)chunk).writeTo(channel);
+            }
+            else {
+                chunk.writeTo(Channels.newOutputStream(channel));
+            }
+        }
+
+        if (mBuffer != null && mCursor != 0) {
+            buffers[count++] = java.nio.ByteBuffer.wrap(mBuffer, 0, mCursor);
+        }
+        write(channel, buffers, count);
+    }
+
     public void append(byte b) throws IOException {
         List<ByteBuffer> captureBuffers;
         if ((captureBuffers = mCaptureBuffers) != null) {
@@ -93,13 +158,13 @@ public class DefaultByteBuffer implements ByteBuffer, Serializable {
         }
 
         if (mBuffer == null) {
-            mBuffer = new byte[BUFFER_SIZE];
+            mBuffer = newChunk();
             mCursor = 0;
         }
         else if (mCursor >= mBuffer.length) {
             mChunks.add(new ArrayByteData(mBuffer));
-            mBaseCount += BUFFER_SIZE;
-            mBuffer = new byte[BUFFER_SIZE];
+            mBaseCount += mBuffer.length;
+            mBuffer = newChunk();
             mCursor = 0;
         }
 
@@ -123,7 +188,7 @@ public class DefaultByteBuffer implements ByteBuffer, Serializable {
 
         while (length > 0) {
             if (mBuffer == null) {
-                if (length >= BUFFER_SIZE) {
+                if (length >= BUFFER_SIZE && !mPooled) {
                     byte[] copy = new byte[length];
                     System.arraycopy(bytes, offset, copy, 0, length);
                     mChunks.add(new ArrayByteData(copy));
@@ -131,11 +196,11 @@ public class DefaultByteBuffer implements ByteBuffer, Serializable {
                     return;
                 }
                 
-                mBuffer = new byte[BUFFER_SIZE];
+                mBuffer = newChunk();
                 mCursor = 0;
             }
             
-            int available = BUFFER_SIZE - mCursor;
+            int available = mBuffer.length - mCursor;
             
             if (length <= available) {
                 System.arraycopy(bytes, offset, mBuffer, mCursor, length);
@@ -145,7 +210,7 @@ public class DefaultByteBuffer implements ByteBuffer, Serializable {
             
             System.arraycopy(bytes, offset, mBuffer, mCursor, available);
             mChunks.add(new ArrayByteData(mBuffer));
-            mBaseCount += BUFFER_SIZE;
+            mBaseCount += mBuffer.length;
             mBuffer = null;
             offset += available;
             length -= available;
@@ -216,10 +281,69 @@ public class DefaultByteBuffer implements ByteBuffer, Serializable {
         }
     }
     
+    /**
+     * Clears this buffer, and returns its chunks to the {@link ChunkPool} if
+     * it is pooled. Unlike {@link #clear}, capture buffers are left as is.
+     */
+    public void release() {
+        init();
+    }
+
+    // Writes the first count of buffers fully to the channel.
+    private static void write(WritableByteChannel channel,
+                              java.nio.ByteBuffer[] buffers, int count)
+        throws IOException
+    {
+        int offset = 0;
+        while (offset < count) {
+            if (channel instanceof GatheringByteChannel) {
+                ((GatheringByteChannel)channel)
+                    .write(buffers, offset, count - offset);
+            }
+            else {
+                channel.write(buffers[offset]);
+            }
+            while (offset < count && !buffers[offset].hasRemaining()) {
+                buffers[offset++] = null;
+            }
+        }
+    }
+
     private void init() {
         mCursor = 0;
         mBaseCount = 0;
         mBuffer = null;
         mChunks = new ArrayList<ByteData>(100);
+
+        if (mPooled) {
+            mChunkSize = mFirstChunkSize;
+            List<byte[]> pooledChunks = mPooledChunks;
+            if (pooledChunks != null) {
+                int size = pooledChunks.size();
+                for (int i=0; i<size; i++) {
+                    ChunkPool.put(pooledChunks.get(i));
+                }
+                pooledChunks.clear();
+            }
+        }
+    }
+
+    private byte[] newChunk() {
+        if (!mPooled) {
+            return new byte[BUFFER_SIZE];
+        }
+
+        // Larger chunks as the buffer grows keep the count of chunks low.
+        int size = mChunkSize;
+        if (size < ChunkPool.MAX_SIZE) {
+            mChunkSize = size << 1;
+        }
+
+        byte[] chunk = ChunkPool.get(size);
+        if (mPooledChunks == null) {
+            mPooledChunks = new ArrayList<byte[]>();
+        }
+        mPooledChunks.add(chunk);
+        return chunk;
     }
 }
@@ -28,6 +28,9 @@ public class DefaultCharToByteBuffer
 {
     private static final long serialVersionUID = 1L;
 
+    private static final int CAPACITY = 4000;
+    private static final int MIN_CAPACITY = 512;
+
     private ByteBuffer mBuffer;
     private transient OutputStreamWriter mConvertor;
 
@@ -50,8 +53,24 @@ public class DefaultCharToByteBuffer
      * is not called.
      */    
     public DefaultCharToByteBuffer(ByteBuffer buffer, String defaultEncoding) {
+        this(buffer, defaultEncoding, 0);
+    }
+
+    /**
+     * @param buffer Buffer that receives the characters converted to bytes.
+     * @param defaultEncoding Default character encoding to use if setEncoding
+     * is not called.
+     * @param sizeHint expected count of bytes, which sizes the buffer of
+     * characters waiting to be converted, or 0 if unknown
+     */    
+    public DefaultCharToByteBuffer(ByteBuffer buffer, String defaultEncoding,
+                                   int sizeHint) {
         mBuffer = buffer;
-        mChars = new char[4000];
+        if (sizeHint <= 0) {
+            sizeHint = CAPACITY;
+        }
+        mChars = new char
+            [Math.max(MIN_CAPACITY, Math.min(sizeHint, CAPACITY))];
         mCapacity = mChars.length;
         mDefaultEncoding = defaultEncoding;
     }
@@ -17,6 +17,8 @@
 package org.teatrove.trove.io;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -27,7 +29,9 @@ import java.util.HashSet;
  * 
  * @author Brian S O'Neill
  */
-public class FastCharToByteBuffer implements CharToByteBuffer, Serializable {
+public class FastCharToByteBuffer
+    implements CharToByteBuffer, ChannelByteData, Serializable
+{
     private static final long serialVersionUID = 1L;
 
     private static final int TEMP_BUF_LEN = 512;
@@ -48,6 +52,7 @@ public class FastCharToByteBuffer implements CharToByteBuffer, Serializable {
     }
 
     private ByteBuffer mBuffer;
+    private final int mSizeHint;
 
     private transient byte[] mTempBytes;
     private transient char[] mTempChars;
@@ -67,7 +72,20 @@ public class FastCharToByteBuffer implements CharToByteBuffer, Serializable {
      * is not called.
      */    
     public FastCharToByteBuffer(ByteBuffer buffer, String defaultEncoding) {
+        this(buffer, defaultEncoding, 0);
+    }
+
+    /**
+     * @param buffer Buffer that receives the characters converted to bytes.
+     * @param defaultEncoding Default character encoding to use if setEncoding
+     * is not called.
+     * @param sizeHint expected count of bytes, which presizes the convertor
+     * of encodings other than ISO-8859-1, or 0 if unknown
+     */    
+    public FastCharToByteBuffer(ByteBuffer buffer, String defaultEncoding,
+                                int sizeHint) {
         mBuffer = buffer;
+        mSizeHint = sizeHint;
         try {
             setEncoding(defaultEncoding);
         }
@@ -81,7 +99,8 @@ public class FastCharToByteBuffer implements CharToByteBuffer, Serializable {
             mSlowConvertor = null;
         }
         else {
-            mSlowConvertor = new DefaultCharToByteBuffer(mBuffer, enc);
+            mSlowConvertor =
+                new DefaultCharToByteBuffer(mBuffer, enc, mSizeHint);
         }
     }
 
@@ -105,6 +124,16 @@ public class FastCharToByteBuffer implements CharToByteBuffer, Serializable {
         mBuffer.writeTo(out);
     }
 
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        drain();
+        if (mBuffer instanceof ChannelByteData) {
+            ((ChannelByteData)mBuffer).writeTo(channel);
+        }
+        else {
+            mBuffer.writeTo(Channels.newOutputStream(channel));
+        }
+    }
+
     public void append(byte b) throws IOException {
         drain();
         mBuffer.append(b);
@@ -208,6 +237,23 @@ public class FastCharToByteBuffer implements CharToByteBuffer, Serializable {
         }
     }
 
+    /**
+     * Returns the temporary conversion buffer to the {@link ChunkPool}, and
+     * releases the buffer that receives the bytes, if it is a
+     * {@link DefaultByteBuffer}. Any bytes still held by this buffer are
+     * discarded.
+     */
+    public void release() {
+        byte[] tempBytes = mTempBytes;
+        if (tempBytes != null) {
+            mTempBytes = null;
+            ChunkPool.put(tempBytes);
+        }
+        if (mBuffer instanceof DefaultByteBuffer) {
+            ((DefaultByteBuffer)mBuffer).release();
+        }
+    }
+
     private void appendFast(char[] chars, int offset, int length)
         throws IOException
     {
@@ -231,7 +277,7 @@ public class FastCharToByteBuffer implements CharToByteBuffer, Serializable {
 
     private byte[] getTempBytes() {
         if (mTempBytes == null) {
-            mTempBytes = new byte[TEMP_BUF_LEN];
+            mTempBytes = ChunkPool.get(TEMP_BUF_LEN);
         }
         return mTempBytes;
     }
@@ -20,13 +20,16 @@ import java.io.OutputStream;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
- * A ByteData implementation that reads the contents of a file.
+ * A ByteData implementation that reads the contents of a file. When written
+ * to a channel, the file is transferred without being read into the heap.
  *
  * @author Brian S O'Neill
  */
-public class FileByteData implements ByteData {
+public class FileByteData implements ChannelByteData {
     private static final Object NULL = new Object();
     
     private File mFile;
@@ -87,6 +90,35 @@ public class FileByteData implements ByteData {
         }
     }
 
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        RandomAccessFile raf = open();
+        if (raf == null) {
+            return;
+        }
+
+        try {
+            FileChannel file = raf.getChannel();
+            long length = file.size();
+            long position = 0;
+            while (position < length) {
+                long count =
+                    file.transferTo(position, length - position, channel);
+                if (count <= 0) {
+                    // File was truncated.
+                    break;
+                }
+                position += count;
+            }
+        }
+        finally {
+            try {
+                finalize();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
     public void reset() throws IOException {
         Object obj = mRAF.get();
         try {
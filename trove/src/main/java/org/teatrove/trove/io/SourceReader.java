@@ -132,6 +132,14 @@ public class SourceReader extends PushbackPositionReader {
         return mEndTag;
     }
 
+    /**
+     * Returns the source that this reader reads characters from, before
+     * any tags or unicode escapes are processed.
+     */
+    public Reader getOriginalSource() {
+        return mTagReader.getOriginalSource();
+    }
+
     /** 
      * All newline character patterns are are converted to \n. 
      */
@@ -187,6 +187,14 @@ public class ClassInjector extends ClassLoader {
         }
     }
 
+    /**
+     * Returns the parent ClassLoader classes are loaded from when they aren't
+     * defined by this ClassInjector, for {@link ClassLoaderCache}.
+     */
+    ClassLoader getSuperLoader() {
+        return mSuperLoader;
+    }
+
     /**
      * Get a stream used to define a class. Close the stream to finish the
      * definition.
@@ -0,0 +1,388 @@
+/*
+ *  Copyright 1997-2011 teatrove.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.teatrove.trove.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.GenericDeclaration;
+import java.lang.reflect.Member;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe cache of values derived from classes, such as the results
+ * of introspection. Entries are partitioned by the ClassLoader of the
+ * classes they are derived from, and reads and writes do not lock.
+ * <p>
+ * Each entry is placed in the partition of the most specific ClassLoader of
+ * its classes, and so only refers to classes visible from that ClassLoader.
+ * Entries whose classes come from unrelated ClassLoaders are not cached.
+ * Partitions are softly referenced, so that they don't prevent their
+ * ClassLoaders from being unloaded, and they can be discarded explicitly
+ * with {@link #invalidate(ClassLoader)} when a ClassLoader is replaced.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public class ClassLoaderCache<K, V> {
+
+    // All caches, for invalidating.
+    private static final Set<ClassLoaderCache<?, ?>> cCaches =
+        Collections.synchronizedSet(Collections.newSetFromMap
+            (new WeakHashMap<ClassLoaderCache<?, ?>, Boolean>()));
+
+    // Maximum number of ClassLoaders followed to find an ancestor.
+    private static final int MAX_DEPTH = 32;
+
+    // Marks a ClassLoader that cannot be determined.
+    private static final ClassLoader UNRELATED = new ClassLoader(null) { };
+
+    /**
+     * Discards the entries of all caches that may refer to classes of the
+     * given ClassLoader, or of the ClassLoaders that descend from it.
+     */
+    public static void invalidate(ClassLoader loader) {
+        if (loader == null) {
+            return;
+        }
+
+        List<ClassLoaderCache<?, ?>> caches;
+        synchronized (cCaches) {
+            caches = new ArrayList<ClassLoaderCache<?, ?>>(cCaches);
+        }
+
+        for (ClassLoaderCache<?, ?> cache : caches) {
+            cache.clear(loader);
+        }
+    }
+
+    /**
+     * Returns the ClassLoader of the partition of an entry derived from the
+     * given types, which may be null for the bootstrap ClassLoader.
+     */
+    private static ClassLoader getLoader(ClassLoader loader, Type type) {
+        if (loader == UNRELATED || type == null) {
+            return loader;
+        }
+
+        if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            while (clazz.isArray()) {
+                clazz = clazz.getComponentType();
+            }
+            return getLoader(loader, clazz.getClassLoader());
+        }
+        else if (type instanceof ParameterizedType) {
+            ParameterizedType ptype = (ParameterizedType) type;
+            loader = getLoader(loader, ptype.getRawType());
+            loader = getLoader(loader, ptype.getOwnerType());
+            for (Type arg : ptype.getActualTypeArguments()) {
+                loader = getLoader(loader, arg);
+            }
+            return loader;
+        }
+        else if (type instanceof GenericArrayType) {
+            return getLoader
+                (loader, ((GenericArrayType) type).getGenericComponentType());
+        }
+        else if (type instanceof WildcardType) {
+            WildcardType wtype = (WildcardType) type;
+            for (Type bound : wtype.getUpperBounds()) {
+                loader = getLoader(loader, bound);
+            }
+            for (Type bound : wtype.getLowerBounds()) {
+                loader = getLoader(loader, bound);
+            }
+            return loader;
+        }
+        else if (type instanceof TypeVariable) {
+            // Bounds may refer back to the variable, so only the declaring
+            // class is considered.
+            GenericDeclaration decl = ((TypeVariable<?>) type)
+                .getGenericDeclaration();
+            if (decl instanceof Class) {
+                return getLoader(loader, (Class<?>) decl);
+            }
+            else if (decl instanceof Member) {
+                return getLoader(loader, ((Member) decl).getDeclaringClass());
+            }
+            return loader;
+        }
+
+        return UNRELATED;
+    }
+
+    /**
+     * Returns the more specific of the given ClassLoaders, or UNRELATED if
+     * neither descends from the other.
+     */
+    private static ClassLoader getLoader(ClassLoader a, ClassLoader b) {
+        if (a == b || b == null) {
+            return a;
+        }
+        if (a == null || isAncestor(a, b)) {
+            return b;
+        }
+        if (isAncestor(b, a)) {
+            return a;
+        }
+        return UNRELATED;
+    }
+
+    /**
+     * Returns true if the given ClassLoader delegates to the given ancestor,
+     * directly or indirectly, and so can load all of its classes. Besides
+     * parents, the delegates of ClassInjectors and DelegateClassLoaders are
+     * followed.
+     */
+    private static boolean isAncestor(ClassLoader ancestor,
+                                      ClassLoader loader) {
+        return isAncestor(ancestor, loader, MAX_DEPTH);
+    }
+
+    private static boolean isAncestor(ClassLoader ancestor,
+                                      ClassLoader loader, int depth) {
+        if (depth <= 0) {
+            return false;
+        }
+
+        try {
+            ClassLoader parent = loader.getParent();
+            if (parent != null && (parent == ancestor ||
+                isAncestor(ancestor, parent, depth - 1))) {
+                return true;
+            }
+        }
+        catch (SecurityException e) {
+        }
+
+        if (loader instanceof ClassInjector) {
+            ClassLoader superLoader = ((ClassInjector) loader).getSuperLoader();
+            if (superLoader != null && (superLoader == ancestor ||
+                isAncestor(ancestor, superLoader, depth - 1))) {
+                return true;
+            }
+        }
+        else if (loader instanceof DelegateClassLoader) {
+            for (ClassLoader scout : ((DelegateClassLoader) loader).getScouts()) {
+                if (scout != null && (scout == ancestor ||
+                    isAncestor(ancestor, scout, depth - 1))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // The bootstrap ClassLoader is never unloaded, so its partition is
+    // strongly referenced.
+    private final ConcurrentMap<K, V> mBootstrap =
+        new ConcurrentHashMap<K, V>();
+
+    private final ConcurrentMap<Object, Partition<K, V>> mPartitions =
+        new ConcurrentHashMap<Object, Partition<K, V>>();
+
+    private final ReferenceQueue<Object> mQueue =
+        new ReferenceQueue<Object>();
+
+    public ClassLoaderCache() {
+        cCaches.add(this);
+    }
+
+    /**
+     * Returns the value cached for the given key, or null if none.
+     *
+     * @param key the key
+     * @param types the classes or generic types the key is derived from
+     */
+    public V get(K key, Type... types) {
+        Map<K, V> partition = getPartition(types, false);
+        return (partition == null) ? null : partition.get(key);
+    }
+
+    /**
+     * Caches the given value for the given key, unless a value is already
+     * cached. Returns the value that is cached, which is the given value if
+     * it cannot be cached.
+     *
+     * @param key the key
+     * @param value the value
+     * @param types the classes or generic types the key and value are
+     * derived from
+     */
+    public V putIfAbsent(K key, V value, Type... types) {
+        ConcurrentMap<K, V> partition = getPartition(types, true);
+        if (partition == null) {
+            return value;
+        }
+
+        V existing = partition.putIfAbsent(key, value);
+        return (existing == null) ? value : existing;
+    }
+
+    /**
+     * Discards all entries.
+     */
+    public void clear() {
+        mBootstrap.clear();
+        mPartitions.clear();
+    }
+
+    /**
+     * Discards all entries that may refer to classes of the given
+     * ClassLoader, or of the ClassLoaders that descend from it.
+     */
+    public void clear(ClassLoader loader) {
+        for (Partition<K, V> partition : mPartitions.values()) {
+            ClassLoader other = partition.get();
+            if (other == null || other == loader ||
+                isAncestor(loader, other)) {
+                mPartitions.remove(partition);
+            }
+        }
+    }
+
+    private ConcurrentMap<K, V> getPartition(Type[] types, boolean create) {
+        ClassLoader loader = null;
+        for (Type type : types) {
+            loader = getLoader(loader, type);
+        }
+
+        if (loader == null) {
+            return mBootstrap;
+        }
+        if (loader == UNRELATED) {
+            return null;
+        }
+
+        expunge();
+
+        Partition<K, V> partition = mPartitions.get(new Lookup(loader));
+        ConcurrentMap<K, V> map = null;
+        if (partition != null) {
+            map = partition.mMap.get();
+            if (map == null) {
+                mPartitions.remove(partition, partition);
+            }
+        }
+
+        if (map == null && create) {
+            map = new ConcurrentHashMap<K, V>();
+            Partition<K, V> created = new Partition<K, V>(loader, map, mQueue);
+            partition = mPartitions.putIfAbsent(created, created);
+            if (partition != null) {
+                ConcurrentMap<K, V> existing = partition.mMap.get();
+                if (existing != null) {
+                    map = existing;
+                }
+                else {
+                    mPartitions.put(created, created);
+                }
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Removes the partitions of ClassLoaders that have been unloaded.
+     */
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = mQueue.poll()) != null) {
+            mPartitions.remove(ref);
+        }
+    }
+
+    /**
+     * Weak reference to a ClassLoader, with a soft reference to the entries
+     * of its partition. Partitions are equal if their ClassLoaders are the
+     * same.
+     */
+    private static class Partition<K, V> extends WeakReference<ClassLoader> {
+        final int mHash;
+        final SoftReference<ConcurrentMap<K, V>> mMap;
+
+        Partition(ClassLoader loader, ConcurrentMap<K, V> map,
+                  ReferenceQueue<Object> queue) {
+            super(loader, queue);
+            mHash = System.identityHashCode(loader);
+            mMap = new SoftReference<ConcurrentMap<K, V>>(map);
+        }
+
+        public int hashCode() {
+            return mHash;
+        }
+
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+
+            ClassLoader loader = get();
+            if (loader == null) {
+                return false;
+            }
+            if (other instanceof Partition) {
+                return ((Partition<?, ?>) other).get() == loader;
+            }
+            if (other instanceof Lookup) {
+                return ((Lookup) other).mLoader == loader;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Key for finding the partition of a ClassLoader.
+     */
+    private static class Lookup {
+        final ClassLoader mLoader;
+
+        Lookup(ClassLoader loader) {
+            mLoader = loader;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(mLoader);
+        }
+
+        public boolean equals(Object other) {
+            if (other instanceof Lookup) {
+                return ((Lookup) other).mLoader == mLoader;
+            }
+            if (other instanceof Partition) {
+                return ((Partition<?, ?>) other).get() == mLoader;
+            }
+            return false;
+        }
+    }
+}
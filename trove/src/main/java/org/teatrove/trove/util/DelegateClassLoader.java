@@ -40,6 +40,13 @@ public class DelegateClassLoader extends ClassLoader {
         mScouts = (ClassLoader[])scouts.clone();
     }
 
+    /**
+     * Returns the scouts, for {@link ClassLoaderCache}.
+     */
+    ClassLoader[] getScouts() {
+        return mScouts;
+    }
+
     protected synchronized Class findClass(String name)
         throws ClassNotFoundException
     {
@@ -19,6 +19,7 @@ package org.teatrove.trove.util;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.Method;
@@ -84,6 +85,11 @@ public class MergedClass {
 
     private static final boolean DEBUG = 
         Boolean.getBoolean(MergedClass.class.getName().concat(".DEBUG"));
+
+    // Major class file version of generated classes.
+    private static volatile int cClassFileVersion = Integer.getInteger
+        (MergedClass.class.getName().concat(".classFileVersion"), 50)
+        .intValue();
     
     static {
         try {
@@ -101,6 +107,29 @@ public class MergedClass {
         }
     }
 
+    /**
+     * Sets the major class file version of merged classes generated from
+     * now on. For version 51 and later, stack map frames are computed for
+     * every method. The default version is 50, unless overridden by the
+     * system property "org.teatrove.trove.util.MergedClass.classFileVersion".
+     *
+     * @throws IllegalArgumentException if the version is not supported
+     */
+    public static void setClassFileVersion(int version) {
+        if (version < 45 || version > 65) {
+            throw new IllegalArgumentException
+                ("Unsupported class file version: " + version);
+        }
+        cClassFileVersion = version;
+    }
+
+    /**
+     * Returns the major class file version of generated merged classes.
+     */
+    public static int getClassFileVersion() {
+        return cClassFileVersion;
+    }
+
     /**
      * Returns the constructor for a class that merges all of the given source
      * classes. The constructor's parameter types match the source classes.
@@ -886,6 +915,10 @@ public class MergedClass {
         ClassFile cf = new ClassFile(className);
         cf.getModifiers().setFinal(true);
         cf.markSynthetic();
+        cf.setVersion(cClassFileVersion, 0);
+        if (injector != null) {
+            cf.setClassLoader(injector);
+        }
 
         List<GenericTypeDesc> generics = new ArrayList<GenericTypeDesc>();
         
@@ -1376,6 +1409,8 @@ public class MergedClass {
         if (ClassUtils.isDeprecated(method)) {
             mi.addRuntimeVisibleAnnotation(TypeDesc.forClass(Deprecated.class));
         }
+
+        addMarkerAnnotations(mi, method);
         
         // Delegate to wrapped object.
         CodeBuilder builder = new CodeBuilder(mi);
@@ -1392,6 +1427,20 @@ public class MergedClass {
         builder.returnValue(TypeDesc.OBJECT);
     }
     
+    /**
+     * Copies the runtime annotations of the given method that have no
+     * elements, such as those marking methods as pure, to a merged method.
+     */
+    private static void addMarkerAnnotations(MethodInfo mi, Method method) {
+        for (Annotation annotation : method.getAnnotations()) {
+            Class<? extends Annotation> type = annotation.annotationType();
+            if (type != Deprecated.class &&
+                type.getDeclaredMethods().length == 0) {
+                mi.addRuntimeVisibleAnnotation(TypeDesc.forClass(type));
+            }
+        }
+    }
+
     private static void addWrapperMethod(ClassFile cf,
                                          MethodEntry methodEntry,
                                          String fieldName,
@@ -1450,6 +1499,8 @@ public class MergedClass {
         if (ClassUtils.isDeprecated(method)) {
             mi.addRuntimeVisibleAnnotation(TypeDesc.forClass(Deprecated.class));
         }
+
+        addMarkerAnnotations(mi, method);
         
         // Delegate to wrapped object.
         CodeBuilder builder = new CodeBuilder(mi);
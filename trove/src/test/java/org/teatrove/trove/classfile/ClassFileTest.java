@@ -90,6 +90,157 @@ public class ClassFileTest {
         assertNotNull("expected deprecated", method.getAnnotation(Deprecated.class));
     }
     
+    @Test
+    public void testStackMapFrames() throws Exception {
+        String className = "org.teatrove.trove.test.Framed";
+        TypeDesc builderDesc = TypeDesc.forClass(StringBuilder.class);
+
+        ClassFile cf = new ClassFile(className);
+        cf.setVersion(52, 0);
+        assertEquals(52, cf.getMajorVersion());
+
+        MethodInfo ctor = cf.addDefaultConstructor();
+        CodeBuilder builder = new CodeBuilder(ctor);
+        builder.loadThis();
+        builder.invokeSuperConstructor();
+        builder.returnVoid();
+
+        Modifiers mods = new Modifiers(Modifier.PUBLIC | Modifier.STATIC);
+        MethodInfo describe = cf.addMethod
+            (mods, "describe", TypeDesc.STRING,
+             new TypeDesc[] { TypeDesc.OBJECT, TypeDesc.INT });
+        builder = new CodeBuilder(describe);
+        LocalVariable value = builder.getParameters()[0];
+        LocalVariable count = builder.getParameters()[1];
+
+        // long total = 0; for (int i = 0; i < count; i++) total += i;
+        LocalVariable total = builder.createLocalVariable("total", TypeDesc.LONG);
+        LocalVariable i = builder.createLocalVariable("i", TypeDesc.INT);
+        builder.loadConstant(0L);
+        builder.storeLocal(total);
+        builder.loadConstant(0);
+        builder.storeLocal(i);
+        Label loop = builder.createLabel().setLocation();
+        Label end = builder.createLabel();
+        builder.loadLocal(i);
+        builder.loadLocal(count);
+        builder.ifComparisonBranch(end, ">=");
+        builder.loadLocal(total);
+        builder.loadLocal(i);
+        builder.convert(TypeDesc.INT, TypeDesc.LONG);
+        builder.math(Opcode.LADD);
+        builder.storeLocal(total);
+        builder.integerIncrement(i, 1);
+        builder.branch(loop);
+        // unreachable
+        builder.loadConstant("dead");
+        builder.pop();
+        end.setLocation();
+
+        // new StringBuilder(value instanceof String ? (String) value : "other")
+        builder.newObject(builderDesc);
+        builder.dup();
+        Label notString = builder.createLabel();
+        Label done = builder.createLabel();
+        builder.loadLocal(value);
+        builder.instanceOf(TypeDesc.STRING);
+        builder.ifZeroComparisonBranch(notString, "==");
+        builder.loadLocal(value);
+        builder.checkCast(TypeDesc.STRING);
+        builder.branch(done);
+        notString.setLocation();
+        builder.loadConstant("other");
+        done.setLocation();
+        builder.invokeConstructor(builderDesc.getRootName(), TypeDesc.STRING);
+
+        // append(count == 0 ? "none" : Integer.valueOf(count))
+        Label zero = builder.createLabel();
+        Label merged = builder.createLabel();
+        builder.loadLocal(count);
+        builder.ifZeroComparisonBranch(zero, "==");
+        builder.loadLocal(count);
+        builder.invokeStatic("java.lang.Integer", "valueOf",
+                             TypeDesc.INT.toObjectType(), TypeDesc.INT);
+        builder.branch(merged);
+        zero.setLocation();
+        builder.loadConstant("none");
+        merged.setLocation();
+        builder.invokeVirtual(builderDesc.getRootName(), "append",
+                              builderDesc, TypeDesc.OBJECT);
+
+        // append(':').append(total)
+        builder.loadConstant(":");
+        builder.invokeVirtual(builderDesc.getRootName(), "append",
+                              builderDesc, TypeDesc.STRING);
+        builder.loadLocal(total);
+        builder.invokeVirtual(builderDesc.getRootName(), "append",
+                              builderDesc, TypeDesc.LONG);
+
+        // switch (count) { case 0: "a"; case 1: "b"; default: "c" }
+        Label case0 = builder.createLabel();
+        Label case1 = builder.createLabel();
+        Label other = builder.createLabel();
+        Label appended = builder.createLabel();
+        builder.loadLocal(count);
+        builder.switchBranch(new int[] { 0, 1 },
+                             new Location[] { case0, case1 }, other);
+        case0.setLocation();
+        builder.loadConstant("a");
+        builder.branch(appended);
+        case1.setLocation();
+        builder.loadConstant("b");
+        builder.branch(appended);
+        other.setLocation();
+        builder.loadConstant("c");
+        appended.setLocation();
+        builder.invokeVirtual(builderDesc.getRootName(), "append",
+                              builderDesc, TypeDesc.STRING);
+
+        // try { Integer.parseInt(value) } catch (RuntimeException e) { "!" }
+        LocalVariable result =
+            builder.createLocalVariable("result", builderDesc);
+        builder.storeLocal(result);
+        Label tryStart = builder.createLabel().setLocation();
+        builder.loadConstant("x");
+        builder.invokeStatic("java.lang.Integer", "parseInt",
+                             TypeDesc.INT, TypeDesc.STRING);
+        builder.pop();
+        Label tryEnd = builder.createLabel().setLocation();
+        Label finish = builder.createLabel();
+        builder.branch(finish);
+        builder.exceptionHandler(tryStart, tryEnd,
+                                 "java.lang.RuntimeException");
+        builder.pop();
+        builder.loadLocal(result);
+        builder.loadConstant("!");
+        builder.invokeVirtual(builderDesc.getRootName(), "append",
+                              builderDesc, TypeDesc.STRING);
+        builder.pop();
+        finish.setLocation();
+        builder.loadLocal(result);
+        builder.invokeVirtual(builderDesc.getRootName(), "toString",
+                              TypeDesc.STRING);
+        builder.returnValue(TypeDesc.STRING);
+
+        ClassInjector injector = ClassInjector.getInstance();
+        cf.setClassLoader(injector);
+        OutputStream os = injector.getStream(className);
+        cf.writeTo(os);
+        os.close();
+
+        // Type checking verification fails without correct frames.
+        Class<?> clazz = injector.loadClass(className);
+        Method method = clazz.getMethod("describe", Object.class, int.class);
+        assertEquals("abc4:6c!", method.invoke(null, "abc", 4));
+        assertEquals("othernone:0a!", method.invoke(null, 5, 0));
+        assertEquals("x1:0b!", method.invoke(null, "x", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedVersion() {
+        new ClassFile("org.teatrove.trove.test.Unsupported").setVersion(99, 0);
+    }
+
     @Retention(RetentionPolicy.RUNTIME)
     public static @interface TestAnnotation {
         String value();
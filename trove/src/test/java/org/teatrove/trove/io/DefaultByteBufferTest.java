@@ -0,0 +1,184 @@
+package org.teatrove.trove.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import org.junit.Test;
+
+public class DefaultByteBufferTest {
+
+    @Test
+    public void testChunkSize() {
+        assertEquals(512, ChunkPool.getChunkSize(0));
+        assertEquals(512, ChunkPool.getChunkSize(512));
+        assertEquals(1024, ChunkPool.getChunkSize(513));
+        assertEquals(16384, ChunkPool.getChunkSize(10000));
+        assertEquals(16384, ChunkPool.getChunkSize(1000000));
+    }
+
+    @Test
+    public void testChunkPool() {
+        byte[] chunk = ChunkPool.get(2048);
+        assertEquals(2048, chunk.length);
+
+        ChunkPool.put(chunk);
+        assertSame(chunk, ChunkPool.get(2048));
+
+        // sizes that are not pooled are left to the garbage collector
+        byte[] odd = new byte[1000];
+        ChunkPool.put(odd);
+        assertTrue(odd != ChunkPool.get(1000));
+    }
+
+    @Test
+    public void testPooled() throws IOException {
+        byte[] expected = createBytes(100000);
+
+        for (int round = 0; round < 3; round++) {
+            DefaultByteBuffer buffer = new DefaultByteBuffer(true);
+            DefaultByteBuffer capture = new DefaultByteBuffer();
+            buffer.addCaptureBuffer(capture);
+
+            int offset = 0;
+            int length = 1;
+            while (offset < expected.length) {
+                length = Math.min(length, expected.length - offset);
+                if (length == 1) {
+                    buffer.append(expected[offset]);
+                }
+                else {
+                    buffer.append(expected, offset, length);
+                }
+                offset += length;
+                length = (length * 7) % 3001 + 1;
+            }
+
+            assertEquals(expected.length, buffer.getByteCount());
+            assertEquals(expected.length, buffer.getBaseByteCount());
+            assertEquals(new String(expected, "ISO-8859-1"), toString(buffer));
+
+            buffer.release();
+            assertEquals(0, buffer.getByteCount());
+            assertEquals(new String(expected, "ISO-8859-1"), toString(capture));
+
+            buffer.append(expected, 0, 10);
+            assertEquals(new String(expected, 0, 10, "ISO-8859-1"),
+                         toString(buffer));
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testSizeHint() throws IOException {
+        byte[] chunk = ChunkPool.get(2048);
+        ChunkPool.put(chunk);
+
+        // the first chunk holds the expected count of bytes
+        DefaultByteBuffer buffer = new DefaultByteBuffer(true, 2000);
+        byte[] expected = createBytes(2000);
+        buffer.append(expected);
+        assertTrue(chunk != ChunkPool.get(2048));
+        assertEquals(new String(expected, "ISO-8859-1"), toString(buffer));
+
+        buffer.release();
+        assertSame(chunk, ChunkPool.get(2048));
+
+        // and again after release
+        ChunkPool.put(chunk);
+        buffer.append(expected, 0, 10);
+        assertTrue(chunk != ChunkPool.get(2048));
+        buffer.release();
+    }
+
+    @Test
+    public void testPooledSurrogate() throws IOException {
+        DefaultByteBuffer surrogate = new DefaultByteBuffer();
+        surrogate.append("surrogate".getBytes("ISO-8859-1"));
+
+        FastCharToByteBuffer buffer = new FastCharToByteBuffer
+            (new DefaultByteBuffer(true), "ISO-8859-1");
+        buffer.append("before ");
+        buffer.appendSurrogate(surrogate);
+        buffer.append(" after");
+
+        assertEquals("before surrogate after", toString(buffer));
+        buffer.release();
+        assertEquals(0, buffer.getByteCount());
+
+        buffer.append("again");
+        assertEquals("again", toString(buffer));
+    }
+
+    @Test
+    public void testWriteToChannel() throws IOException {
+        File file = File.createTempFile("DefaultByteBufferTest", ".dat");
+        file.deleteOnExit();
+        FileOutputStream fout = new FileOutputStream(file);
+        fout.write(createBytes(3000));
+        fout.close();
+
+        DefaultByteBuffer buffer = new DefaultByteBuffer(true);
+        buffer.append(createBytes(5000));
+        buffer.appendSurrogate(new FileByteData(file));
+        buffer.append((byte) '|');
+        buffer.appendSurrogate(new ByteData() {
+            public long getByteCount() { return 5; }
+            public void writeTo(OutputStream out) throws IOException {
+                out.write("plain".getBytes("ISO-8859-1"));
+            }
+            public void reset() { }
+        });
+        buffer.append(createBytes(700));
+        String expected = toString(buffer);
+        assertEquals(8706, expected.length());
+
+        // a channel without gathering writes
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(Channels.newChannel(out));
+        assertEquals(expected, out.toString("ISO-8859-1"));
+
+        // a channel with gathering writes, which files transfer to
+        File target = File.createTempFile("DefaultByteBufferTest", ".out");
+        target.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer.writeTo(channel);
+            assertEquals(expected.length(), channel.size());
+
+            byte[] written = new byte[expected.length()];
+            raf.seek(0);
+            raf.readFully(written);
+            assertEquals(expected, new String(written, "ISO-8859-1"));
+        }
+        finally {
+            raf.close();
+        }
+
+        buffer.release();
+    }
+
+    protected byte[] createBytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + (i * 31) % 26);
+        }
+        return bytes;
+    }
+
+    protected String toString(ByteData data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        data.writeTo(out);
+        return out.toString("ISO-8859-1");
+    }
+}
@@ -0,0 +1,104 @@
+package org.teatrove.trove.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.OutputStream;
+import java.util.List;
+
+import org.junit.Test;
+import org.teatrove.trove.classfile.ClassFile;
+
+public class ClassLoaderCacheTest {
+
+    @Test
+    public void testBootstrap() {
+        ClassLoaderCache<String, String> cache =
+            new ClassLoaderCache<String, String>();
+
+        assertNull(cache.get("a", String.class));
+        assertEquals("1", cache.putIfAbsent("a", "1", String.class));
+        assertEquals("1", cache.putIfAbsent("a", "2", String.class));
+        assertEquals("1", cache.get("a", String.class, List.class));
+
+        // the bootstrap partition is not invalidated
+        ClassLoaderCache.invalidate(getClass().getClassLoader());
+        assertEquals("1", cache.get("a", String.class));
+
+        cache.clear();
+        assertNull(cache.get("a", String.class));
+    }
+
+    @Test
+    public void testPartitions() throws Exception {
+        ClassLoaderCache<String, String> cache =
+            new ClassLoaderCache<String, String>();
+
+        ClassInjector parent = new ClassInjector();
+        ClassInjector child = new ClassInjector(parent);
+        Class<?> parentClass = define(parent, "Parent");
+        Class<?> childClass = define(child, "Child");
+
+        cache.putIfAbsent("a", "parent", parentClass);
+        cache.putIfAbsent("a", "child", childClass, parentClass);
+        assertEquals("parent", cache.get("a", parentClass));
+        assertEquals("child", cache.get("a", childClass));
+        assertNull(cache.get("a", getClass()));
+
+        // invalidating the child keeps the entries of its parent
+        ClassLoaderCache.invalidate(child);
+        assertEquals("parent", cache.get("a", parentClass));
+        assertNull(cache.get("a", childClass));
+
+        // invalidating the parent also discards its descendants
+        cache.putIfAbsent("a", "child", childClass);
+        ClassLoaderCache.invalidate(parent);
+        assertNull(cache.get("a", parentClass));
+        assertNull(cache.get("a", childClass));
+    }
+
+    @Test
+    public void testUnrelated() throws Exception {
+        ClassLoaderCache<String, String> cache =
+            new ClassLoaderCache<String, String>();
+
+        Class<?> a = define(new ClassInjector(), "A");
+        Class<?> b = define(new ClassInjector(), "B");
+
+        // values derived from unrelated classes are not cached
+        assertEquals("1", cache.putIfAbsent("a", "1", a, b));
+        assertEquals("2", cache.putIfAbsent("a", "2", a, b));
+        assertNull(cache.get("a", a, b));
+        assertNull(cache.get("a", a));
+    }
+
+    @Test
+    public void testGenericTypes() throws Exception {
+        ClassLoaderCache<String, String> cache =
+            new ClassLoaderCache<String, String>();
+
+        java.lang.reflect.Type type = Holder.class.getField("mList")
+            .getGenericType();
+        cache.putIfAbsent("a", "1", type);
+
+        // the partition is that of the type argument
+        assertSame("1", cache.get("a", Holder.class));
+        assertSame("1", cache.get("a", type));
+    }
+
+    private static Class<?> define(ClassInjector injector, String name)
+        throws Exception {
+
+        ClassFile cf = new ClassFile(name);
+        cf.addDefaultConstructor();
+        OutputStream out = injector.getStream(name);
+        cf.writeTo(out);
+        out.close();
+        return injector.loadClass(name);
+    }
+
+    public static class Holder {
+        public List<Holder> mList;
+    }
+}